@@ -0,0 +1,174 @@
+package cluster.sharding;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionId;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Messages and counters for repairing the broadcast topology replicas. Each member periodically sends a
+ * {@link Digest} of its own shards, and a member whose replica differs asks for just the differing shards.
+ */
+class AntiEntropy {
+
+    /**
+     * Combines the shard digests of a member into one hash, independent of shard order.
+     */
+    static long root(Map<String, Topology.ShardDigest> shardDigests) {
+        long root = 0;
+        for (Map.Entry<String, Topology.ShardDigest> shard : shardDigests.entrySet()) {
+            long h = shard.getKey().hashCode() * 0x9E3779B97F4A7C15L ^ shard.getValue().hash ^ shard.getValue().count;
+            h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+            root ^= h ^ (h >>> 33);
+        }
+        return root;
+    }
+
+    /**
+     * Shards whose digests differ, including shards present on only one side.
+     */
+    static Set<String> differingShards(Map<String, Topology.ShardDigest> replica, Map<String, Topology.ShardDigest> authority) {
+        Set<String> differing = new HashSet<>();
+        authority.forEach((shardId, digest) -> {
+            if (!digest.equals(replica.get(shardId))) {
+                differing.add(shardId);
+            }
+        });
+        replica.keySet().forEach(shardId -> {
+            if (!authority.containsKey(shardId)) {
+                differing.add(shardId);
+            }
+        });
+        return differing;
+    }
+
+    static class Digest implements Serializable {
+        final String member;
+        final long root;
+        final Map<String, Topology.ShardDigest> shards;
+
+        Digest(String member, Map<String, Topology.ShardDigest> shards) {
+            this.member = member;
+            this.root = root(shards);
+            this.shards = shards;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %016x, %d shards]", getClass().getSimpleName(), member, root, shards.size());
+        }
+    }
+
+    static class RepairRequest implements Serializable {
+        final String member;
+        final Set<String> shards;
+        final long requested;
+
+        RepairRequest(String member, Set<String> shards, long requested) {
+            this.member = member;
+            this.shards = shards;
+            this.requested = requested;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %s]", getClass().getSimpleName(), member, shards);
+        }
+    }
+
+    static class Repair implements Serializable {
+        final String member;
+        final Map<String, Set<String>> shards;
+        final long requested;
+
+        Repair(String member, Map<String, Set<String>> shards, long requested) {
+            this.member = member;
+            this.shards = shards;
+            this.requested = requested;
+        }
+
+        int entities() {
+            return shards.values().stream().mapToInt(Set::size).sum();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %s]", getClass().getSimpleName(), member, shards.keySet());
+        }
+    }
+
+    static class Counters implements Extension {
+        private static final ExtensionId<Counters> id = new AbstractExtensionId<Counters>() {
+            @Override
+            public Counters createExtension(ExtendedActorSystem system) {
+                return new Counters();
+            }
+        };
+        private final LongAdder digestsSent = new LongAdder();
+        private final LongAdder digestsReceived = new LongAdder();
+        private final LongAdder mismatches = new LongAdder();
+        private final LongAdder shardsRepaired = new LongAdder();
+        private final LongAdder entitiesTransferred = new LongAdder();
+        private final LongAccumulator maxRepairMillis = new LongAccumulator(Math::max, 0);
+
+        static Counters get(ActorSystem system) {
+            return id.get(system);
+        }
+
+        void sent() {
+            digestsSent.increment();
+        }
+
+        void received(boolean mismatch) {
+            digestsReceived.increment();
+            if (mismatch) {
+                mismatches.increment();
+            }
+        }
+
+        /**
+         * A repair applied, timed from the request, both on the receiving node's clock.
+         */
+        void repaired(Repair repair, long nowNanos) {
+            shardsRepaired.add(repair.shards.size());
+            entitiesTransferred.add(repair.entities());
+            maxRepairMillis.accumulate((nowNanos - repair.requested) / 1_000_000);
+        }
+
+        long shardsRepaired() {
+            return shardsRepaired.sum();
+        }
+
+        Map<String, Object> state() {
+            Map<String, Object> state = new LinkedHashMap<>();
+            state.put("digestsSent", digestsSent.sum());
+            state.put("digestsReceived", digestsReceived.sum());
+            state.put("mismatches", mismatches.sum());
+            state.put("shardsRepaired", shardsRepaired.sum());
+            state.put("entitiesTransferred", entitiesTransferred.sum());
+            state.put("maxRepairMillis", maxRepairMillis.get());
+            return state;
+        }
+
+        String toJson() {
+            ObjectWriter ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
+            try {
+                return ow.writeValueAsString(state());
+            } catch (JsonProcessingException e) {
+                return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package cluster.sharding;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.typesafe.config.Config;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded, in memory timeline of cluster membership and reachability changes seen by this node.
+ */
+class ClusterJournal {
+    private final int capacity;
+    private final Deque<Entry> entries = new ArrayDeque<>();
+    private long recorded;
+
+    ClusterJournal(int capacity) {
+        this.capacity = capacity;
+    }
+
+    static ClusterJournal create(Config config) {
+        return new ClusterJournal(config.getInt("akka-cluster-openshift.cluster-journal.capacity"));
+    }
+
+    synchronized void record(Entry entry) {
+        entries.addLast(entry);
+        recorded++;
+        if (entries.size() > capacity) {
+            entries.removeFirst();
+        }
+    }
+
+    synchronized long recorded() {
+        return recorded;
+    }
+
+    /**
+     * Entries with <code>from &lt;= time &lt; to</code>, newest first, at most <code>limit</code> of them.
+     */
+    synchronized List<Entry> entries(long from, long to, int limit) {
+        List<Entry> found = new ArrayList<>();
+        Iterator<Entry> newestFirst = entries.descendingIterator();
+        while (newestFirst.hasNext() && found.size() < limit) {
+            Entry entry = newestFirst.next();
+            if (entry.time < from) {
+                break;
+            } else if (entry.time < to) {
+                found.add(entry);
+            }
+        }
+        return found;
+    }
+
+    String toJson(long from, long to, int limit) {
+        Map<String, Object> journal = new LinkedHashMap<>();
+        synchronized (this) {
+            journal.put("capacity", capacity);
+            journal.put("held", entries.size());
+            journal.put("evicted", recorded - entries.size());
+            journal.put("entries", entries(from, to, limit));
+        }
+        ObjectWriter ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
+        try {
+            return ow.writeValueAsString(journal);
+        } catch (JsonProcessingException e) {
+            return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+        }
+    }
+
+    /**
+     * Parses a time range bound given as epoch milliseconds or an ISO-8601 instant.
+     */
+    static long parseTime(String time) {
+        return time.chars().allMatch(Character::isDigit) ? Long.parseLong(time) : Instant.parse(time).toEpochMilli();
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class Entry {
+        public final long time;
+        public final String event;
+        public final String member;
+        public final String from;
+        public final String to;
+
+        Entry(long time, String event, String member, String from, String to) {
+            this.time = time;
+            this.event = event;
+            this.member = member;
+            this.from = from;
+            this.to = to;
+        }
+
+        public String getInstant() {
+            return Instant.ofEpochMilli(time).toString();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %s, %s, %s -> %s]", getClass().getSimpleName(), getInstant(), event, member, from, to);
+        }
+    }
+}
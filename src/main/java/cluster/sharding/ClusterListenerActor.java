@@ -1,39 +1,111 @@
 package cluster.sharding;
 
 import akka.actor.AbstractLoggingActor;
+import akka.actor.Address;
 import akka.actor.Cancellable;
 import akka.actor.Props;
 import akka.cluster.Cluster;
 import akka.cluster.ClusterEvent;
 import akka.cluster.ClusterEvent.CurrentClusterState;
 import akka.cluster.Member;
+import scala.concurrent.duration.FiniteDuration;
 
 import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.stream.StreamSupport;
 
+/**
+ * Logs and journals cluster membership, reachability and leader changes, one line per change, with the
+ * full member list at most once per <code>summary-interval</code>.
+ */
 class ClusterListenerActor extends AbstractLoggingActor {
     private final Cluster cluster = Cluster.get(context().system());
-    private Cancellable showClusterStateCancelable;
+    private final StartupTimer startupTimer;
+    private final ClusterJournal clusterJournal;
+    private final Map<Address, String> statuses = new HashMap<>();
+    private final Set<Address> unreachable = new HashSet<>();
+    private Address leader;
+    private boolean changed;
+    private Cancellable summaryTicker;
+
+    ClusterListenerActor(StartupTimer startupTimer, ClusterJournal clusterJournal) {
+        this.startupTimer = startupTimer;
+        this.clusterJournal = clusterJournal;
+    }
 
     @Override
     public Receive createReceive() {
         return receiveBuilder()
-                .match(ShowClusterState.class, this::showClusterState)
-                .matchAny(this::logClusterEvent)
+                .match(ClusterEvent.MemberEvent.class, this::memberEvent)
+                .match(ClusterEvent.UnreachableMember.class, event -> reachability(event.member(), "unreachable"))
+                .match(ClusterEvent.ReachableMember.class, event -> reachability(event.member(), "reachable"))
+                .match(ClusterEvent.LeaderChanged.class, this::leaderChanged)
+                .match(Summary.class, summary -> summary())
+                .matchAny(event -> log().debug("{} sent to {}", event, cluster.selfMember()))
                 .build();
     }
 
-    private void showClusterState(ShowClusterState showClusterState) {
-        log().info("{} sent to {}", showClusterState, cluster.selfMember());
-        logClusterMembers(cluster.state());
-        showClusterStateCancelable = null;
+    private void memberEvent(ClusterEvent.MemberEvent memberEvent) {
+        Member member = memberEvent.member();
+        if (member.equals(cluster.selfMember())) {
+            startupTimer.mark("joined");
+        }
+        String from = statuses.getOrDefault(member.address(), "none");
+        String to = memberEvent instanceof ClusterEvent.MemberRemoved ? "removed" : status(member);
+        if (to.equals("removed")) {
+            statuses.remove(member.address());
+            unreachable.remove(member.address());
+        } else {
+            statuses.put(member.address(), to);
+        }
+        if (!from.equals(to)) {
+            record("member", member.address(), from, to);
+        }
+    }
+
+    private void reachability(Member member, String reachability) {
+        boolean changedReachability = reachability.equals("unreachable")
+                ? unreachable.add(member.address())
+                : unreachable.remove(member.address());
+        if (changedReachability) {
+            record(reachability, member.address(), reachability.equals("unreachable") ? "reachable" : "unreachable", reachability);
+        }
     }
 
-    private void logClusterEvent(Object clusterEventMessage) {
-        log().info("{} sent to {}", clusterEventMessage, cluster.selfMember());
-        logClusterMembers();
+    private void leaderChanged(ClusterEvent.LeaderChanged leaderChanged) {
+        Address newLeader = leaderChanged.getLeader();
+        if (newLeader != null && !newLeader.equals(leader)) {
+            record("leader", newLeader, leader == null ? "none" : leader.toString(), newLeader.toString());
+        }
+        leader = newLeader;
+    }
+
+    private void record(String event, Address member, String from, String to) {
+        log().info("Cluster {} {} {} -> {}", event, member, from, to);
+        clusterJournal.record(new ClusterJournal.Entry(System.currentTimeMillis(), event, member.toString(), from, to));
+        changed = true;
+    }
+
+    /**
+     * A summary entry names the leader as its member and the member status counts as its <code>to</code>.
+     */
+    private void summary() {
+        if (changed) {
+            changed = false;
+            logClusterMembers(cluster.state());
+            Map<String, Integer> counts = new TreeMap<>();
+            statuses.values().forEach(status -> counts.merge(status, 1, Integer::sum));
+            counts.put("unreachable", unreachable.size());
+            clusterJournal.record(new ClusterJournal.Entry(System.currentTimeMillis(), "summary",
+                    leader == null ? null : leader.toString(), null, counts.toString()));
+        }
     }
 
     @Override
@@ -41,29 +113,30 @@ class ClusterListenerActor extends AbstractLoggingActor {
         log().debug("Start");
         cluster.subscribe(self(), ClusterEvent.initialStateAsEvents(),
                 ClusterEvent.ClusterDomainEvent.class);
+        Duration interval = context().system().settings().config().getDuration("akka-cluster-openshift.cluster-journal.summary-interval");
+        FiniteDuration summaryInterval = FiniteDuration.create(interval.toMillis(), TimeUnit.MILLISECONDS);
+        summaryTicker = context().system().scheduler().schedule(
+                summaryInterval,
+                summaryInterval,
+                self(),
+                new Summary(),
+                context().system().dispatcher(),
+                null);
     }
 
     @Override
     public void postStop() {
         log().debug("Stop");
+        summaryTicker.cancel();
         cluster.unsubscribe(self());
     }
 
-    static Props props() {
-        return Props.create(ClusterListenerActor.class);
+    static Props props(StartupTimer startupTimer, ClusterJournal clusterJournal) {
+        return Props.create(ClusterListenerActor.class, startupTimer, clusterJournal);
     }
 
-    private void logClusterMembers() {
-        logClusterMembers(cluster.state());
-
-        if (showClusterStateCancelable == null) {
-            showClusterStateCancelable = context().system().scheduler().scheduleOnce(
-                    Duration.ofSeconds(15),
-                    self(),
-                    new ShowClusterState(),
-                    context().system().dispatcher(),
-                    null);
-        }
+    private static String status(Member member) {
+        return member.status().toString().toLowerCase();
     }
 
     private void logClusterMembers(CurrentClusterState currentClusterState) {
@@ -91,10 +164,10 @@ class ClusterListenerActor extends AbstractLoggingActor {
                 });
     }
 
-    private static class ShowClusterState {
+    private static class Summary {
         @Override
         public String toString() {
-            return ShowClusterState.class.getSimpleName();
+            return Summary.class.getSimpleName();
         }
     }
 }
@@ -16,6 +16,7 @@ public class ClusterSingletonActor extends AbstractLoggingActor {
     private final String memberId = Cluster.get(context().system()).selfMember().address().toString();
     private final FiniteDuration tickInterval = Duration.create(5, TimeUnit.SECONDS);
     private Cancellable ticker;
+    private boolean ready;
 
     public ClusterSingletonActor(ActorRef httpServer) {
         this.httpServer = httpServer;
@@ -28,13 +29,19 @@ public class ClusterSingletonActor extends AbstractLoggingActor {
                 .build();
     }
 
+    /**
+     * The first tick is the first message this singleton processes, which completes a handover.
+     * Later ticks re-announce it for nodes that missed the start.
+     */
     private void tick() {
-        httpServer.tell(new Action(memberId, "start", true), self());
+        httpServer.tell(new Action(memberId, ready ? "start" : "ready", true), self());
+        ready = true;
     }
 
     @Override
     public void preStart() {
         log().info("Start");
+        httpServer.tell(new Action(memberId, "start", true), self());
         ticker = context().system().scheduler()
                 .schedule(Duration.Zero(),
                         tickInterval,
@@ -59,20 +66,26 @@ public class ClusterSingletonActor extends AbstractLoggingActor {
         final String member;
         final String action;
         final boolean forward;
+        final long time;
 
         Action(String member, String action, boolean forward) {
+            this(member, action, forward, System.currentTimeMillis());
+        }
+
+        private Action(String member, String action, boolean forward, long time) {
             this.member = member;
             this.action = action;
             this.forward = forward;
+            this.time = time;
         }
 
         Action asNoForward() {
-            return new Action(member, action, false);
+            return new Action(member, action, false, time);
         }
 
         @Override
         public String toString() {
-            return String.format("%s[%s, %s, %b]", getClass().getSimpleName(), member, action, forward);
+            return String.format("%s[%s, %s, %b, %d]", getClass().getSimpleName(), member, action, forward, time);
         }
     }
 }
@@ -0,0 +1,191 @@
+package cluster.sharding;
+
+import akka.actor.ActorRef;
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionId;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import akka.dispatch.UnboundedMessageQueueSemantics;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.typesafe.config.Config;
+import scala.Option;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Optional {@link EntityActor} mailbox that replaces a queued <code>set</code> command with a newer one,
+ * carrying the replaced commands along in a {@link Coalesced} message so the entity still acks each of them.
+ */
+class CoalescingMailbox implements MailboxType, ProducesMessageQueue<CoalescingMailbox.Queue> {
+    public CoalescingMailbox(ActorSystem.Settings settings, Config config) {
+    }
+
+    @Override
+    public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+        return new Queue(system.isDefined() ? Counters.get(system.get()) : new Counters());
+    }
+
+    static class Queue implements MessageQueue, UnboundedMessageQueueSemantics {
+        private final ArrayDeque<Envelope> envelopes = new ArrayDeque<>();
+        private final Counters counters;
+
+        Queue(Counters counters) {
+            this.counters = counters;
+        }
+
+        @Override
+        public synchronized void enqueue(ActorRef receiver, Envelope handle) {
+            if (isSet(handle.message())) {
+                counters.setCommands.increment();
+                Envelope newest = envelopes.peekLast();
+                if (newest != null && (isSet(newest.message()) || newest.message() instanceof Coalesced)) {
+                    envelopes.pollLast();
+                    envelopes.addLast(handle.copy(Coalesced.merge(newest, handle), handle.sender()));
+                    counters.superseded.increment();
+                    return;
+                }
+            }
+            envelopes.addLast(handle);
+        }
+
+        @Override
+        public synchronized Envelope dequeue() {
+            Envelope envelope = envelopes.pollFirst();
+            if (envelope != null && envelope.message() instanceof Coalesced) {
+                counters.coalesced(((Coalesced) envelope.message()).superseded.size());
+            }
+            return envelope;
+        }
+
+        @Override
+        public synchronized int numberOfMessages() {
+            return envelopes.size();
+        }
+
+        @Override
+        public synchronized boolean hasMessages() {
+            return !envelopes.isEmpty();
+        }
+
+        @Override
+        public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+            Envelope envelope;
+            while ((envelope = dequeue()) != null) {
+                if (envelope.message() instanceof Coalesced) {
+                    Coalesced coalesced = (Coalesced) envelope.message();
+                    coalesced.superseded.forEach(s -> deadLetters.enqueue(owner, new Envelope(s.command, s.sender)));
+                    deadLetters.enqueue(owner, envelope.copy(coalesced.command, envelope.sender()));
+                } else {
+                    deadLetters.enqueue(owner, envelope);
+                }
+            }
+        }
+
+        private static boolean isSet(Object message) {
+            return message instanceof EntityMessage.Command
+                    && ((EntityMessage.Command) message).operation == EntityMessage.Command.Operation.set;
+        }
+    }
+
+    /**
+     * The latest set command of a run, delivered with the sender of that command, and the commands it
+     * replaced, oldest first.
+     */
+    static class Coalesced {
+        final EntityMessage.Command command;
+        final List<Superseded> superseded;
+
+        private Coalesced(EntityMessage.Command command, List<Superseded> superseded) {
+            this.command = command;
+            this.superseded = superseded;
+        }
+
+        private static Coalesced merge(Envelope newest, Envelope handle) {
+            List<Superseded> superseded;
+            if (newest.message() instanceof Coalesced) {
+                Coalesced coalesced = (Coalesced) newest.message();
+                superseded = coalesced.superseded;
+                superseded.add(new Superseded(coalesced.command, newest.sender()));
+            } else {
+                superseded = new ArrayList<>();
+                superseded.add(new Superseded((EntityMessage.Command) newest.message(), newest.sender()));
+            }
+            return new Coalesced((EntityMessage.Command) handle.message(), superseded);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, superseded %d]", getClass().getSimpleName(), command, superseded.size());
+        }
+    }
+
+    static class Superseded {
+        final EntityMessage.Command command;
+        final ActorRef sender;
+
+        Superseded(EntityMessage.Command command, ActorRef sender) {
+            this.command = command;
+            this.sender = sender;
+        }
+    }
+
+    /**
+     * The counters of all entity mailboxes of an actor system.
+     */
+    static class Counters implements Extension {
+        private static final ExtensionId<Counters> id = new AbstractExtensionId<Counters>() {
+            @Override
+            public Counters createExtension(ExtendedActorSystem system) {
+                return new Counters();
+            }
+        };
+        private final LongAdder setCommands = new LongAdder();
+        private final LongAdder superseded = new LongAdder();
+        private final LongAdder coalesced = new LongAdder();
+        private final LongAccumulator largestRun = new LongAccumulator(Math::max, 0);
+
+        private void coalesced(int superseded) {
+            coalesced.increment();
+            largestRun.accumulate(superseded + 1);
+        }
+
+        static Counters get(ActorSystem system) {
+            return id.get(system);
+        }
+
+        long superseded() {
+            return superseded.sum();
+        }
+
+        Map<String, Object> state() {
+            Map<String, Object> state = new LinkedHashMap<>();
+            state.put("setCommands", setCommands.sum());
+            state.put("superseded", superseded.sum());
+            state.put("coalescedDeliveries", coalesced.sum());
+            state.put("largestRun", largestRun.get());
+            return state;
+        }
+
+        String toJson() {
+            ObjectWriter ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
+            try {
+                return ow.writeValueAsString(state());
+            } catch (JsonProcessingException e) {
+                return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+            }
+        }
+    }
+}
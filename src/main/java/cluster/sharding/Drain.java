@@ -0,0 +1,185 @@
+package cluster.sharding;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Graceful removal of a node from the cluster in four timed phases, <code>intake</code>,
+ * <code>mailboxes</code>, <code>handoff</code> and <code>leave</code>, run by the {@link DrainActor}.
+ */
+class Drain {
+    final Duration inFlightTimeout;
+    final Duration handoffTimeout;
+    final Duration leaveTimeout;
+    final Duration pollInterval;
+    final List<String> loadGenerators;
+
+    Drain(Duration inFlightTimeout, Duration handoffTimeout, Duration leaveTimeout, Duration pollInterval, List<String> loadGenerators) {
+        this.inFlightTimeout = inFlightTimeout;
+        this.handoffTimeout = handoffTimeout;
+        this.leaveTimeout = leaveTimeout;
+        this.pollInterval = pollInterval;
+        this.loadGenerators = loadGenerators;
+    }
+
+    static Drain create(Config config) {
+        Config drain = config.getConfig("akka-cluster-openshift.drain");
+        return new Drain(
+                drain.getDuration("in-flight-timeout"),
+                drain.getDuration("handoff-timeout"),
+                drain.getDuration("leave-timeout"),
+                drain.getDuration("poll-interval"),
+                drain.getStringList("load-generators")
+        );
+    }
+
+    /**
+     * The phases of this node's drain, written by the {@link DrainActor} and read by the HTTP server.
+     */
+    static class Progress {
+        private String reason;
+        private Instant started;
+        private long startedNanos;
+        private long phaseStartedNanos;
+        private String phase;
+        private final List<Phase> phases = new ArrayList<>();
+        private boolean finished;
+
+        synchronized void start(String reason, long nowNanos) {
+            this.reason = reason;
+            started = Instant.now();
+            startedNanos = nowNanos;
+            phaseStartedNanos = nowNanos;
+            phase = "intake";
+        }
+
+        synchronized boolean isStarted() {
+            return started != null;
+        }
+
+        synchronized boolean isFinished() {
+            return finished;
+        }
+
+        synchronized String phase() {
+            return phase;
+        }
+
+        /**
+         * Ends the current phase and starts <code>next</code>, or finishes the drain when <code>next</code> is null.
+         * <code>remaining</code> is what the phase was waiting for when it ended.
+         */
+        synchronized Phase next(String next, long nowNanos, boolean timedOut, int remaining) {
+            Phase ended = new Phase(phase, TimeUnit.NANOSECONDS.toMillis(nowNanos - phaseStartedNanos), timedOut, remaining);
+            phases.add(ended);
+            phase = next;
+            phaseStartedNanos = nowNanos;
+            finished = next == null;
+            return ended;
+        }
+
+        synchronized List<Phase> phases() {
+            return new ArrayList<>(phases);
+        }
+
+        synchronized long elapsedMillis(long nowNanos) {
+            return started == null ? 0 : TimeUnit.NANOSECONDS.toMillis(nowNanos - startedNanos);
+        }
+
+        synchronized Map<String, Object> state(long nowNanos) {
+            Map<String, Object> state = new LinkedHashMap<>();
+            state.put("reason", reason);
+            state.put("started", started == null ? null : started.toString());
+            state.put("phase", phase);
+            state.put("elapsedMs", finished ? phases.stream().mapToLong(p -> p.millis).sum() : elapsedMillis(nowNanos));
+            state.put("phases", phases());
+            return state;
+        }
+
+        String toJson() {
+            ObjectWriter ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
+            try {
+                return ow.writeValueAsString(state(System.nanoTime()));
+            } catch (JsonProcessingException e) {
+                return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%s[%s, %s, %s]", getClass().getSimpleName(), reason, finished ? "finished" : phase, phases);
+        }
+    }
+
+    public static class Phase {
+        public final String name;
+        public final long millis;
+        public final boolean timedOut;
+        public final int remaining;
+
+        Phase(String name, long millis, boolean timedOut, int remaining) {
+            this.name = name;
+            this.millis = millis;
+            this.timedOut = timedOut;
+            this.remaining = remaining;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %dms%s", name, millis, timedOut ? String.format(" timed out, %d remaining", remaining) : "");
+        }
+    }
+
+    /**
+     * Starts the drain, or joins the one running. The sender is answered with {@link akka.Done} once the shards
+     * are handed off, before the node leaves.
+     */
+    static class Start {
+        final String reason;
+
+        Start(String reason) {
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s]", getClass().getSimpleName(), reason);
+        }
+    }
+
+    /**
+     * Sent to the HTTP server, which refuses new entity work and serves the progress on <code>/drain</code>.
+     */
+    static class Draining {
+        final Progress progress;
+
+        Draining(Progress progress) {
+            this.progress = progress;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s]", getClass().getSimpleName(), progress);
+        }
+    }
+
+    /**
+     * Sent to the load generators, which stop sending and stop themselves once their requests are answered.
+     */
+    static class StopIntake {
+        @Override
+        public String toString() {
+            return getClass().getSimpleName();
+        }
+    }
+}
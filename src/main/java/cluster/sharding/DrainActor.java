@@ -0,0 +1,259 @@
+package cluster.sharding;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorIdentity;
+import akka.actor.ActorPath;
+import akka.actor.ActorRef;
+import akka.actor.ActorRefProvider;
+import akka.actor.Cancellable;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Identify;
+import akka.actor.Props;
+import akka.actor.Terminated;
+import akka.cluster.Cluster;
+import akka.cluster.sharding.ShardRegion;
+import akka.pattern.Patterns;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+class DrainActor extends AbstractLoggingActor {
+    private final Drain drain;
+    private final Drain.Progress progress;
+    private final ActorRef shardRegion;
+    private final ActorRef httpServer;
+    private final Cluster cluster = Cluster.get(context().system());
+    private final ActorRefProvider provider = ((ExtendedActorSystem) context().system()).provider();
+    private final Set<ActorRef> loadGenerators = new HashSet<>();
+    private final List<ActorRef> waiters = new ArrayList<>();
+    private int identifying;
+    private int queued = -1;
+    private boolean polling;
+    private long deadline;
+    private Cancellable ticker;
+
+    private DrainActor(Drain drain, Drain.Progress progress, ActorRef shardRegion, ActorRef httpServer) {
+        this.drain = drain;
+        this.progress = progress;
+        this.shardRegion = shardRegion;
+        this.httpServer = httpServer;
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(Drain.Start.class, this::start)
+                .match(ActorIdentity.class, this::identified)
+                .match(Terminated.class, terminated -> terminated(terminated.actor()))
+                .match(ShardRegion.CurrentShardRegionState.class, this::regionState)
+                .match(RegionStateFailed.class, failed -> regionStateFailed())
+                .matchEquals("tick", t -> tick())
+                .matchEquals("removed", r -> removed())
+                .build();
+    }
+
+    private void start(Drain.Start start) {
+        if (!sender().equals(context().system().deadLetters())) {
+            waiters.add(sender());
+        }
+        if (progress.isStarted()) {
+            log().info("{} joins {}", start, progress);
+            replyWhenHandedOff();
+            return;
+        }
+        log().warning("Drain started, {}", start);
+        progress.start(start.reason, System.nanoTime());
+        deadline = System.nanoTime() + drain.inFlightTimeout.toNanos();
+        httpServer.tell(new Drain.Draining(progress), self());
+        drain.loadGenerators.forEach(path -> {
+            identifying++;
+            context().actorSelection(path).tell(new Identify(path), self());
+        });
+        ActorRef self = self();
+        cluster.registerOnMemberRemoved(() -> self.tell("removed", ActorRef.noSender()));
+        FiniteDuration every = FiniteDuration.create(drain.pollInterval.toNanos(), TimeUnit.NANOSECONDS);
+        ticker = context().system().scheduler().schedule(every, every, self(), "tick", context().system().dispatcher(), null);
+        intakeStopped(false);
+    }
+
+    private void identified(ActorIdentity identity) {
+        identifying--;
+        if (identity.getActorRef().isPresent()) {
+            ActorRef loadGenerator = identity.getActorRef().get();
+            loadGenerators.add(loadGenerator);
+            context().watch(loadGenerator);
+            loadGenerator.tell(new Drain.StopIntake(), self());
+        }
+        intakeStopped(false);
+    }
+
+    private void terminated(ActorRef actor) {
+        if (loadGenerators.remove(actor)) {
+            intakeStopped(false);
+        } else if (actor.equals(shardRegion) && "handoff".equals(progress.phase())) {
+            next("leave", false, 0);
+            cluster.leave(cluster.selfAddress());
+        }
+    }
+
+    private void tick() {
+        boolean timedOut = System.nanoTime() >= deadline;
+        switch (String.valueOf(progress.phase())) {
+            case "intake":
+                intakeStopped(timedOut);
+                break;
+            case "mailboxes":
+                if (timedOut) {
+                    startHandoff(true, queued < 0 ? 0 : queued);
+                } else if (!polling) {
+                    pollRegion();
+                }
+                break;
+            case "handoff":
+                if (timedOut) {
+                    next("leave", true, 1);
+                    cluster.leave(cluster.selfAddress());
+                }
+                break;
+            case "leave":
+                if (timedOut) {
+                    next(null, true, 1);
+                }
+                break;
+        }
+    }
+
+    /**
+     * The intake has stopped once all load generators found are stopped, after answering what they sent.
+     */
+    private void intakeStopped(boolean timedOut) {
+        if ("intake".equals(progress.phase()) && (timedOut || identifying == 0 && loadGenerators.isEmpty())) {
+            next("mailboxes", timedOut, identifying + loadGenerators.size());
+            if (timedOut) {
+                startHandoff(true, 0);
+            } else {
+                pollRegion();
+            }
+        }
+    }
+
+    private void pollRegion() {
+        ActorRef self = self();
+        polling = true;
+        Patterns.ask(shardRegion, ShardRegion.getShardRegionStateInstance(), drain.pollInterval.multipliedBy(10))
+                .whenComplete((state, e) -> self.tell(e == null ? state : new RegionStateFailed(), self));
+    }
+
+    /**
+     * The messages queued in the region, its shards and their entities, which are all local.
+     */
+    private void regionState(ShardRegion.CurrentShardRegionState state) {
+        polling = false;
+        if (!"mailboxes".equals(progress.phase())) {
+            return;
+        }
+        ActorPath regionPath = shardRegion.path();
+        int messages = mailboxSize(shardRegion);
+        for (ShardRegion.ShardState shard : state.getShards()) {
+            ActorPath shardPath = regionPath.child(encode(shard.shardId()));
+            messages += mailboxSize(provider.resolveActorRef(shardPath));
+            for (String entityId : shard.getEntityIds()) {
+                messages += mailboxSize(provider.resolveActorRef(shardPath.child(encode(entityId))));
+            }
+        }
+        queued = messages;
+        if (queued == 0) {
+            startHandoff(false, 0);
+        }
+    }
+
+    private void regionStateFailed() {
+        polling = false;
+    }
+
+    private static int mailboxSize(ActorRef actorRef) {
+        Integer size = Saturation.mailboxSize(actorRef);
+        return size == null ? 0 : size;
+    }
+
+    /**
+     * Shard region child names are URL encoded ids.
+     */
+    private static String encode(String id) {
+        try {
+            return URLEncoder.encode(id, "utf-8");
+        } catch (UnsupportedEncodingException e) {
+            return id;
+        }
+    }
+
+    /**
+     * While the node is still up its shards are moved by the coordinator, one rebalance per shard, as the
+     * region shuts down gracefully.
+     */
+    private void startHandoff(boolean timedOut, int remaining) {
+        next("handoff", timedOut, remaining);
+        deadline = System.nanoTime() + drain.handoffTimeout.toNanos();
+        context().watch(shardRegion);
+        shardRegion.tell(ShardRegion.gracefulShutdownInstance(), self());
+    }
+
+    private void removed() {
+        if ("leave".equals(progress.phase())) {
+            next(null, false, 0);
+        }
+    }
+
+    private void next(String phase, boolean timedOut, int remaining) {
+        Drain.Phase ended = progress.next(phase, System.nanoTime(), timedOut, remaining);
+        if (ended.timedOut) {
+            log().warning("Drain phase {}", ended);
+        } else {
+            log().info("Drain phase {}", ended);
+        }
+        if ("leave".equals(phase)) {
+            deadline = System.nanoTime() + drain.leaveTimeout.toNanos();
+            replyWhenHandedOff();
+        } else if (phase == null) {
+            ticker.cancel();
+            log().warning("Drain finished in {}ms, {}", progress.elapsedMillis(System.nanoTime()), progress.phases());
+        }
+    }
+
+    private void replyWhenHandedOff() {
+        if (progress.isFinished() || "leave".equals(progress.phase())) {
+            waiters.forEach(waiter -> waiter.tell(akka.Done.getInstance(), self()));
+            waiters.clear();
+        }
+    }
+
+    @Override
+    public void preStart() {
+        log().info("Start");
+    }
+
+    @Override
+    public void postStop() {
+        log().info("Stop {}", progress);
+        if (ticker != null) {
+            ticker.cancel();
+        }
+    }
+
+    static Props props(Drain drain, Drain.Progress progress, ActorRef shardRegion, ActorRef httpServer) {
+        return Props.create(DrainActor.class, drain, progress, shardRegion, httpServer);
+    }
+
+    private static class RegionStateFailed {
+        @Override
+        public String toString() {
+            return getClass().getSimpleName();
+        }
+    }
+}
@@ -3,17 +3,32 @@ package cluster.sharding;
 import java.io.Serializable;
 import java.util.Objects;
 
+/**
+ * Entity state, an id and a typed value with a version. The version starts at 1 when the entity is
+ * initialized and is incremented by every applied command, so acks and query replies tell a client
+ * exactly which state it saw.
+ */
 class Entity implements Serializable {
     final Id id;
-    Value value;
+    final Value value;
+    final long version;
 
-    Entity(Id id, Value value) {
+    Entity(Id id, Value value, long version) {
         this.id = id;
         this.value = value;
+        this.version = version;
     }
 
-    Entity(String id, Object value) {
-        this(new Id(id), new Value(value));
+    Entity(Id id, Value value) {
+        this(id, value, 0);
+    }
+
+    Entity(String id, String value) {
+        this(new Id(id), Value.text(value));
+    }
+
+    Entity updated(Value value) {
+        return new Entity(id, value, version + 1);
     }
 
     @Override
@@ -21,19 +36,20 @@ class Entity implements Serializable {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Entity entity = (Entity) o;
-        return Objects.equals(id, entity.id) &&
+        return version == entity.version &&
+                Objects.equals(id, entity.id) &&
                 Objects.equals(value, entity.value);
     }
 
     @Override
     public int hashCode() {
 
-        return Objects.hash(id, value);
+        return Objects.hash(id, value, version);
     }
 
     @Override
     public String toString() {
-        return String.format("%s[%s -> %s]", getClass().getSimpleName(), id, value);
+        return String.format("%s[%s -> %s, v%d]", getClass().getSimpleName(), id, value, version);
     }
 
     static class Id implements Serializable {
@@ -43,22 +59,98 @@ class Entity implements Serializable {
             this.id = id;
         }
 
+        @Override
+        public boolean equals(Object o) {
+            return this == o || o instanceof Id && id.equals(((Id) o).id);
+        }
+
+        @Override
+        public int hashCode() {
+            return id.hashCode();
+        }
+
         @Override
         public String toString() {
             return String.format("%s[%s]", getClass().getSimpleName(), id);
         }
     }
 
-    static class Value implements Serializable {
-        final Object value;
+    /**
+     * Entity id backed by a 64 bit number. The decimal name used as the entity id is formatted, and its hash
+     * computed, once when the id is created, so an id that is reused is not formatted again for every message.
+     * Ids are not cached here: the load generators reuse the ids that {@link WorkloadProfile} precomputes for
+     * key spaces up to 65536 keys, while larger key spaces, and ids read by the serializer, cost one id per
+     * message. Shard extraction hashes the name, which routes a numeric id to the same shard as the equivalent
+     * string id.
+     */
+    static class NumericId extends Id {
+        final long value;
 
-        Value(Object value) {
+        private NumericId(long value) {
+            super(Long.toString(value));
             this.value = value;
+            // String caches its hash, which shard extraction then reads for every message
+            id.hashCode();
+        }
+
+        static NumericId of(long value) {
+            return new NumericId(value);
+        }
+    }
+
+    /**
+     * Typed entity value, either text or a 64 bit number. Only numbers can be incremented.
+     */
+    static class Value implements Serializable {
+        enum Type {text, number}
+
+        final Type type;
+        final String text;
+        final long number;
+
+        private Value(Type type, String text, long number) {
+            this.type = type;
+            this.text = text;
+            this.number = number;
+        }
+
+        static Value text(String text) {
+            return new Value(Type.text, Objects.requireNonNull(text), 0);
+        }
+
+        static Value number(long number) {
+            return new Value(Type.number, null, number);
+        }
+
+        boolean isNumber() {
+            return type == Type.number;
+        }
+
+        Value plus(long delta) {
+            if (!isNumber()) {
+                throw new IllegalStateException(String.format("Can't increment %s", this));
+            }
+            return number(number + delta);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Value value = (Value) o;
+            return type == value.type &&
+                    number == value.number &&
+                    Objects.equals(text, value.text);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, text, number);
         }
 
         @Override
         public String toString() {
-            return String.format("%s[%s]", getClass().getSimpleName(), value);
+            return String.format("%s[%s]", getClass().getSimpleName(), isNumber() ? String.valueOf(number) : text);
         }
     }
 }
@@ -3,6 +3,7 @@ package cluster.sharding;
 import akka.actor.*;
 import akka.cluster.Cluster;
 import akka.cluster.sharding.ShardRegion;
+import com.typesafe.config.Config;
 import scala.concurrent.duration.Duration;
 import scala.concurrent.duration.FiniteDuration;
 
@@ -10,59 +11,153 @@ import java.util.concurrent.TimeUnit;
 
 class EntityActor extends AbstractLoggingActor {
     private final ActorRef httpServer;
+    private final ShardLoad.Counters shardLoadCounters;
+    private final boolean announce;
+    private final EntityStore store;
     private Entity entity;
+    private int slot = -1;
     private String shardId;
     private String entityId;
     private final String memberId = Cluster.get(context().system()).selfMember().address().toString();
     private final FiniteDuration receiveTimeout = Duration.create(15, TimeUnit.SECONDS);
 
-    EntityActor(ActorRef httpServer) {
+    EntityActor(ActorRef httpServer, ShardLoad.Counters shardLoadCounters, boolean announce, EntityStore store) {
         this.httpServer = httpServer;
+        this.shardLoadCounters = shardLoadCounters;
+        this.announce = announce;
+        this.store = store;
     }
 
     @Override
     public Receive createReceive() {
         return receiveBuilder()
                 .match(EntityMessage.Command.class, this::command)
+                .match(CoalescingMailbox.Coalesced.class, this::coalesced)
                 .match(EntityMessage.Query.class, this::query)
                 .matchEquals(ReceiveTimeout.getInstance(), t -> passivate())
                 .build();
     }
 
     private void command(EntityMessage.Command command) {
-        if (entity == null) {
-            entity = command.entity;
-            log().info("initialize {}", entity);
+        long dequeuedNanos = System.nanoTime();
+        reply(command, apply(command), dequeuedNanos);
+    }
 
-            sender().tell(new EntityMessage.CommandAck("initialize", command.entity), self());
-            entityId = entity.id.id;
-            shardId = EntityMessage.extractShardIdFromCommands(command);
-            notifyStart();
+    /**
+     * Applies only the latest command. The superseded ones are acked with the entity it left, or with its
+     * rejection, as if each had been applied and immediately overwritten.
+     */
+    private void coalesced(CoalescingMailbox.Coalesced coalesced) {
+        long dequeuedNanos = System.nanoTime();
+        EntityMessage.CommandAck commandAck = apply(coalesced.command);
+        EntityMessage.CommandAck supersededAck = new EntityMessage.CommandAck(
+                commandAck.isApplied() ? "superseded" : commandAck.action, commandAck.entity);
+        for (CoalescingMailbox.Superseded superseded : coalesced.superseded) {
+            superseded.sender.tell(withHops(supersededAck, superseded.command, dequeuedNanos), self());
+        }
+        log().info("coalesced {} superseded commands", coalesced.superseded.size());
+        reply(coalesced.command, commandAck, dequeuedNanos);
+        coalesced.superseded.forEach(superseded -> shardLoadCounters.message(shardId, entityId));
+    }
+
+    private void reply(EntityMessage.Command command, EntityMessage.CommandAck commandAck, long dequeuedNanos) {
+        log().info("{} {} -> {}", commandAck.action, command, commandAck.entity);
+        sender().tell(withHops(commandAck, command, dequeuedNanos), self());
+        started(command.entity.id.id, EntityMessage.extractShardIdFromCommands(command));
+        shardLoadCounters.message(shardId, entityId);
+    }
+
+    private static EntityMessage.CommandAck withHops(EntityMessage.CommandAck commandAck, EntityMessage.Command command, long dequeuedNanos) {
+        return command.trace == null ? commandAck : commandAck.withHops(command.trace.hops(dequeuedNanos, System.nanoTime()));
+    }
+
+    private EntityMessage.CommandAck apply(EntityMessage.Command command) {
+        Entity.Id id = command.entity.id;
+        Entity entity = entity(id);
+        switch (command.operation) {
+            case compareAndSet:
+                if ((entity == null ? 0 : entity.version) != command.expectedVersion) {
+                    return new EntityMessage.CommandAck("conflict", entity == null ? new Entity(id, null, 0) : entity);
+                }
+                return set(id, command.entity.value);
+            case increment:
+                if (!command.entity.value.isNumber() || entity != null && !entity.value.isNumber()) {
+                    return new EntityMessage.CommandAck("rejected", entity == null ? new Entity(id, null, 0) : entity);
+                }
+                return set(id, entity == null ? command.entity.value : entity.value.plus(command.entity.value.number));
+            default:
+                return set(id, command.entity.value);
+        }
+    }
+
+    private EntityMessage.CommandAck set(Entity.Id id, Entity.Value value) {
+        Entity entity = entity(id);
+        String action = entity == null ? "initialize" : "update";
+        Entity updated = entity == null ? new Entity(id, value, 1) : entity.updated(value);
+        if (store == null) {
+            this.entity = updated;
         } else {
-            log().info("update {} {} -> {}", entity.id, command.entity.value, entity.value);
-            entity.value = command.entity.value;
-            sender().tell(new EntityMessage.CommandAck("update", command.entity), self());
+            int written = store.write(slot, updated);
+            if (written < 0) {
+                return new EntityMessage.CommandAck("rejected", entity == null ? new Entity(id, null, 0) : entity);
+            }
+            slot = written;
         }
+        return new EntityMessage.CommandAck(action, updated);
+    }
+
+    /**
+     * The entity's state, held by this actor or read from its slot in the node's entity store. The slot is
+     * looked up until the entity is first written, which finds the state left by an earlier incarnation.
+     */
+    private Entity entity(Entity.Id id) {
+        if (store == null) {
+            return entity;
+        }
+        if (slot < 0) {
+            slot = store.find(id.id);
+        }
+        return slot < 0 ? null : store.read(slot);
     }
 
     private void query(EntityMessage.Query query) {
+        long dequeuedNanos = System.nanoTime();
+        Entity entity = entity(query.id);
         log().info("query {} -> {}", query, entity == null ? "(not initialized)" : entity);
+        LatencyTrace.Hops hops = query.trace == null ? null : query.trace.hops(dequeuedNanos, System.nanoTime());
         if (entity == null) {
-            sender().tell(new EntityMessage.QueryAckNotFound(query.id), self());
-            entityId = query.id.id;
-            shardId = EntityMessage.extractShardIdFromCommands(query);
-            notifyStart();
+            sender().tell(new EntityMessage.QueryAckNotFound(query.id, hops), self());
         } else {
-            sender().tell(new EntityMessage.QueryAck(entity), self());
+            sender().tell(new EntityMessage.QueryAck(entity, hops), self());
+        }
+        started(query.id.id, EntityMessage.extractShardIdFromCommands(query));
+        shardLoadCounters.message(shardId, entityId);
+    }
+
+    private void started(String entityId, String shardId) {
+        if (this.shardId == null) {
+            this.entityId = entityId;
+            this.shardId = shardId;
+            shardLoadCounters.entityStarted(shardId);
+            if (store != null) {
+                context().system().eventStream().publish(new EntityStore.Hosted(shardId, context().parent()));
+            }
+            notifyStart();
         }
     }
 
     private void notifyStart() {
+        if (!announce) {
+            return;
+        }
         EntityMessage.Action start = new EntityMessage.Action(memberId, shardId, entityId, "start", true);
         httpServer.tell(start, self());
     }
 
     private void notifyStop() {
+        if (!announce) {
+            return;
+        }
         EntityMessage.Action stop = new EntityMessage.Action(memberId, shardId, entityId, "stop", true);
         httpServer.tell(stop, self());
     }
@@ -79,11 +174,33 @@ class EntityActor extends AbstractLoggingActor {
 
     @Override
     public void postStop() {
+        if (shardId != null) {
+            shardLoadCounters.entityStopped(shardId);
+        }
         notifyStop();
         log().info("Stop shard {}, entity {}", shardId, entityId);
     }
 
-    static Props props(ActorRef httpServer) {
-        return Props.create(EntityActor.class, httpServer);
+    static Props props(ActorRef httpServer, ShardLoad.Counters shardLoadCounters) {
+        return Props.create(EntityActor.class, httpServer, shardLoadCounters, true, null);
+    }
+
+    /**
+     * Entities announce their start and stop to the HTTP server only when the topology is broadcast;
+     * in scatter gather mode the monitor asks the shard regions instead.
+     */
+    static Props props(ActorRef httpServer, ShardLoad.Counters shardLoadCounters, Config config) {
+        return props(httpServer, shardLoadCounters, config, null);
+    }
+
+    /**
+     * With an entity store, entity state is kept in the store instead of on the heap.
+     */
+    static Props props(ActorRef httpServer, ShardLoad.Counters shardLoadCounters, Config config, EntityStore store) {
+        boolean announce = config.getString("akka-cluster-openshift.topology.mode").equals("broadcast");
+        Props props = Props.create(EntityActor.class, httpServer, shardLoadCounters, announce, store);
+        return config.getBoolean("akka-cluster-openshift.entity-mailbox.coalescing")
+                ? props.withMailbox("akka-cluster-openshift.entity-mailbox")
+                : props;
     }
 }
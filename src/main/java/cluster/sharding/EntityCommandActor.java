@@ -6,6 +6,8 @@ import akka.actor.Props;
 import akka.actor.Cancellable;
 import akka.cluster.Cluster;
 import akka.cluster.ClusterEvent;
+import akka.pattern.Patterns;
+import com.typesafe.config.Config;
 import scala.concurrent.duration.Duration;
 import scala.concurrent.duration.FiniteDuration;
 
@@ -13,52 +15,89 @@ import java.util.concurrent.TimeUnit;
 
 class EntityCommandActor extends AbstractLoggingActor {
     private final ActorRef shardRegion;
+    private final RateController rateController;
+    private final WorkloadProfile workload;
+    private final WorkloadProfile.Keys keys;
+    private final Config config = context().system().settings().config().getConfig("akka-cluster-openshift.load-generator");
+    private final FiniteDuration tickInterval = Duration.create(config.getDuration("tick-interval", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+    private final java.time.Duration responseTimeout = config.getDuration("response-timeout");
+    private final int maxInFlight = config.getInt("max-in-flight");
+    private final double traceSampleRate = context().system().settings().config().getDouble("akka-cluster-openshift.latency-trace.sample-rate");
+    private final LatencyTrace stages = LatencyTrace.get(context().system());
+    private final String valuePrefix = self().path().name() + "-";
+    private final StringBuilder value = new StringBuilder();
     private Cancellable ticker;
     private int messageNumber;
-    private final Receive sending;
-    private final Receive receiving;
+    private int inFlight;
+    private boolean stopping;
+    private long started;
+    private RateController.Update phaseRates;
     private final Cluster cluster = Cluster.get(context().system());
 
-    {
-        sending = receiveBuilder()
-                .matchEquals("tick", t -> tickSending())
-                .match(EntityMessage.CommandAck.class, this::commandAckSending)
-                .matchAny(this::adjustMessageRate)
-                .build();
-
-        receiving = receiveBuilder()
-                .matchEquals("tick", t -> tickReceiving())
-                .match(EntityMessage.CommandAck.class, this::commandAckReceiving)
-                .matchAny(this::adjustMessageRate)
-                .build();
-    }
-
-    private EntityCommandActor(ActorRef shardRegion) {
+    private EntityCommandActor(ActorRef shardRegion, RateController rateController, WorkloadProfile workload) {
         this.shardRegion = shardRegion;
+        this.rateController = rateController;
+        this.workload = workload;
+        this.keys = workload.keys();
     }
 
     @Override
     public Receive createReceive() {
-        return sending;
+        return receiveBuilder()
+                .matchEquals("tick", t -> tick())
+                .match(CommandResult.class, this::commandResult)
+                .match(Drain.StopIntake.class, stopIntake -> stopIntake())
+                .match(ClusterEvent.ClusterDomainEvent.class, this::adjustMemberCount)
+                .build();
     }
 
-    private void commandAckSending(EntityMessage.CommandAck commandAck) {
-        log().warning("Received (late) {} {}", commandAck, sender());
+    private void tick() {
+        long now = System.nanoTime();
+        applyPhase(now);
+        while (!stopping && inFlight < maxInFlight && rateController.tryAcquireCommand(now)) {
+            send(command(), now);
+        }
     }
 
-    private void tickSending() {
-        shardRegion.tell(command(), self());
-        getContext().become(receiving);
+    /**
+     * The workload phases set both the command and the query rate, so only this generator applies them.
+     * While the closed loop sets the command rate the phases are skipped, and the current phase is applied
+     * again once it is turned off.
+     */
+    private void applyPhase(long now) {
+        if (rateController.closedLoop()) {
+            phaseRates = null;
+            return;
+        }
+        RateController.Update rates = workload.rates(now - started);
+        if (rates != null && (phaseRates == null || !rates.commandRate.equals(phaseRates.commandRate)
+                || !rates.queryRate.equals(phaseRates.queryRate))) {
+            rateController.update(rates, now);
+            phaseRates = rates;
+        }
     }
 
-    private void commandAckReceiving(EntityMessage.CommandAck commandAck) {
-        log().info("Received {} {}", commandAck, sender());
-        getContext().become(sending);
+    private void send(EntityMessage.Command command, long sentNanos) {
+        ActorRef self = self();
+        inFlight++;
+        EntityMessage.Command traced = LatencyTrace.sample(traceSampleRate) ? command.traced(LatencyTrace.Trace.sent(sentNanos)) : command;
+        Patterns.ask(shardRegion, traced, responseTimeout)
+                .whenComplete((reply, e) -> {
+                    long receivedNanos = System.nanoTime();
+                    stages.recordReply(reply, receivedNanos);
+                    self.tell(new CommandResult(command, reply, receivedNanos - sentNanos), ActorRef.noSender());
+                });
     }
 
-    private void tickReceiving() {
-        log().warning("No response to last command {}", messageNumber);
-        getContext().become(sending);
+    private void commandResult(CommandResult commandResult) {
+        inFlight--;
+        rateController.recordCommandLatency(commandResult.latencyNanos, System.nanoTime());
+        if (commandResult.reply instanceof EntityMessage.CommandAck) {
+            log().info("Received {} in {}us", commandResult.reply, TimeUnit.NANOSECONDS.toMicros(commandResult.latencyNanos));
+        } else {
+            log().warning("No response to command {}", commandResult.command);
+        }
+        stopWhenAnswered();
     }
 
     private EntityMessage.Command command() {
@@ -66,25 +105,39 @@ class EntityCommandActor extends AbstractLoggingActor {
     }
 
     private Entity randomEntity() {
-        return new Entity(Random.entityId(1, 100), new Entity.Value(String.format("%s-%d", self().path().name(), ++messageNumber)));
-    }
-
-    private void adjustMessageRate(Object clusterEventMessage) {
-        scheduleMessageRateTicker(clusterEventMessage);
+        value.setLength(0);
+        value.append(valuePrefix).append(++messageNumber);
+        return new Entity(workload.entityId(keys.next()), Entity.Value.text(workload.value(value)));
     }
 
-    private void scheduleMessageRateTicker(Object event) {
+    private void adjustMemberCount(ClusterEvent.ClusterDomainEvent event) {
         int memberCount = cluster.state().members().size();
-        int messageRatePerSec = 10;
-        int millsPerMessage = 1000 / messageRatePerSec * (memberCount == 0 ? 3 : memberCount);
-        log().info("Message interval {}ms, cluster member count {}, {}", millsPerMessage, memberCount, event);
+        rateController.memberCount(memberCount, System.nanoTime());
+        log().info("Command rate {}/s, cluster member count {}, {}", String.format("%.2f", rateController.effectiveCommandRate()), memberCount, event);
+    }
 
-        FiniteDuration tickInterval = Duration.create(millsPerMessage, TimeUnit.MILLISECONDS);
+    /**
+     * Asked by a drain, no more commands are sent and the generator stops once those sent are answered.
+     */
+    private void stopIntake() {
+        log().info("Stop intake, {} in flight", inFlight);
+        ticker.cancel();
+        stopping = true;
+        stopWhenAnswered();
+    }
 
-        if (ticker != null) {
-            ticker.cancel();
+    private void stopWhenAnswered() {
+        if (stopping && inFlight == 0) {
+            context().stop(self());
         }
+    }
 
+    @Override
+    public void preStart() {
+        log().info("Start {}", workload);
+        started = System.nanoTime();
+        cluster.subscribe(self(), ClusterEvent.initialStateAsEvents(),
+                ClusterEvent.ClusterDomainEvent.class);
         ticker = context().system().scheduler().schedule(
                 Duration.Zero(),
                 tickInterval,
@@ -95,14 +148,6 @@ class EntityCommandActor extends AbstractLoggingActor {
         );
     }
 
-    @Override
-    public void preStart() {
-        log().info("Start");
-        cluster.subscribe(self(), ClusterEvent.initialStateAsEvents(),
-                ClusterEvent.ClusterDomainEvent.class);
-        scheduleMessageRateTicker("Start");
-    }
-
     @Override
     public void postStop() {
         log().info("Stop");
@@ -110,7 +155,19 @@ class EntityCommandActor extends AbstractLoggingActor {
         ticker.cancel();
     }
 
-    static Props props(ActorRef shardRegion) {
-        return Props.create(EntityCommandActor.class, shardRegion);
+    static Props props(ActorRef shardRegion, RateController rateController, WorkloadProfile workload) {
+        return Props.create(EntityCommandActor.class, shardRegion, rateController, workload);
+    }
+
+    private static class CommandResult {
+        final EntityMessage.Command command;
+        final Object reply;
+        final long latencyNanos;
+
+        CommandResult(EntityMessage.Command command, Object reply, long latencyNanos) {
+            this.command = command;
+            this.reply = reply;
+            this.latencyNanos = latencyNanos;
+        }
     }
 }
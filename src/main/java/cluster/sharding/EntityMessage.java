@@ -3,28 +3,97 @@ package cluster.sharding;
 import akka.cluster.sharding.ShardRegion;
 
 import java.io.Serializable;
+import java.util.List;
 
 class EntityMessage {
+    private static final int numberOfShards = 15;
+    private static final String[] shardIds = new String[2 * numberOfShards - 1];
+
+    static {
+        for (int i = 0; i < shardIds.length; i++) {
+            shardIds[i] = String.valueOf(i - numberOfShards + 1);
+        }
+    }
+
+    /**
+     * Entity update. A <code>set</code> replaces the value, a <code>compareAndSet</code> replaces it only
+     * when the entity is at <code>expectedVersion</code>, zero meaning not yet initialized, and an
+     * <code>increment</code> adds the numeric command value to a numeric entity value. An increment
+     * initializes a new entity to the delta. A command may carry a {@link LatencyTrace.Trace}.
+     */
     static class Command implements Serializable {
+        enum Operation {set, compareAndSet, increment}
+
         final Entity entity;
+        final Operation operation;
+        final long expectedVersion;
+        final LatencyTrace.Trace trace;
 
-        Command(Entity entity) {
+        Command(Entity entity, Operation operation, long expectedVersion, LatencyTrace.Trace trace) {
             this.entity = entity;
+            this.operation = operation;
+            this.expectedVersion = expectedVersion;
+            this.trace = trace;
+        }
+
+        Command(Entity entity, Operation operation, long expectedVersion) {
+            this(entity, operation, expectedVersion, null);
+        }
+
+        Command(Entity entity) {
+            this(entity, Operation.set, 0);
+        }
+
+        static Command compareAndSet(Entity.Id id, Entity.Value value, long expectedVersion) {
+            return new Command(new Entity(id, value), Operation.compareAndSet, expectedVersion);
+        }
+
+        static Command increment(Entity.Id id, long delta) {
+            return new Command(new Entity(id, Entity.Value.number(delta)), Operation.increment, 0);
+        }
+
+        Command traced(LatencyTrace.Trace trace) {
+            return new Command(entity, operation, expectedVersion, trace);
         }
 
         @Override
         public String toString() {
-            return String.format("%s[%s]", getClass().getSimpleName(), entity);
+            return operation == Operation.compareAndSet
+                    ? String.format("%s[%s %s, expected v%d]", getClass().getSimpleName(), operation, entity, expectedVersion)
+                    : String.format("%s[%s %s]", getClass().getSimpleName(), operation, entity);
         }
     }
 
+    /**
+     * Reply to a command with the entity as it is after the command. The action is <code>initialize</code>
+     * or <code>update</code> when the command was applied, <code>conflict</code> when a compare and set
+     * found another version, and <code>rejected</code> when an increment hit a text value.
+     */
     static class CommandAck implements Serializable {
         final String action;
         final Entity entity;
+        final LatencyTrace.Hops hops;
 
-        CommandAck(String action, Entity entity) {
+        CommandAck(String action, Entity entity, LatencyTrace.Hops hops) {
             this.action = action;
             this.entity = entity;
+            this.hops = hops;
+        }
+
+        CommandAck(String action, Entity entity) {
+            this(action, entity, null);
+        }
+
+        CommandAck withHops(LatencyTrace.Hops hops) {
+            return new CommandAck(action, entity, hops);
+        }
+
+        boolean isApplied() {
+            return action.equals("initialize") || action.equals("update") || action.equals("superseded");
+        }
+
+        long version() {
+            return entity.version;
         }
 
         @Override
@@ -35,9 +104,19 @@ class EntityMessage {
 
     static class Query implements Serializable {
         final Entity.Id id;
+        final LatencyTrace.Trace trace;
 
-        Query(Entity.Id id) {
+        Query(Entity.Id id, LatencyTrace.Trace trace) {
             this.id = id;
+            this.trace = trace;
+        }
+
+        Query(Entity.Id id) {
+            this(id, null);
+        }
+
+        Query traced(LatencyTrace.Trace trace) {
+            return new Query(id, trace);
         }
 
         @Override
@@ -48,9 +127,15 @@ class EntityMessage {
 
     static class QueryAck implements Serializable {
         final Entity entity;
+        final LatencyTrace.Hops hops;
 
-        QueryAck(Entity entity) {
+        QueryAck(Entity entity, LatencyTrace.Hops hops) {
             this.entity = entity;
+            this.hops = hops;
+        }
+
+        QueryAck(Entity entity) {
+            this(entity, null);
         }
 
         @Override
@@ -61,9 +146,15 @@ class EntityMessage {
 
     static class QueryAckNotFound implements Serializable {
         final Entity.Id id;
+        final LatencyTrace.Hops hops;
 
-        QueryAckNotFound(Entity.Id id) {
+        QueryAckNotFound(Entity.Id id, LatencyTrace.Hops hops) {
             this.id = id;
+            this.hops = hops;
+        }
+
+        QueryAckNotFound(Entity.Id id) {
+            this(id, null);
         }
 
         @Override
@@ -72,6 +163,46 @@ class EntityMessage {
         }
     }
 
+    /**
+     * Query for many entities at once, answered by a {@link MultiQueryActor} with a {@link MultiQueryAck}.
+     */
+    static class MultiQuery implements Serializable {
+        final List<Entity.Id> ids;
+
+        MultiQuery(List<Entity.Id> ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d ids]", getClass().getSimpleName(), ids.size());
+        }
+    }
+
+    /**
+     * Reply to a multi query, each id in exactly one of found, not found, or timed out when its entity did not
+     * reply before the deadline. <code>shards</code> is the number of shards the ids were spread over.
+     */
+    static class MultiQueryAck implements Serializable {
+        final List<Entity> found;
+        final List<Entity.Id> notFound;
+        final List<Entity.Id> timedOut;
+        final int shards;
+
+        MultiQueryAck(List<Entity> found, List<Entity.Id> notFound, List<Entity.Id> timedOut, int shards) {
+            this.found = found;
+            this.notFound = notFound;
+            this.timedOut = timedOut;
+            this.shards = shards;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d found, %d not found, %d timed out, %d shards]", getClass().getSimpleName(),
+                    found.size(), notFound.size(), timedOut.size(), shards);
+        }
+    }
+
     static class Action implements Serializable {
         final String member;
         final String shardId;
@@ -109,25 +240,42 @@ class EntityMessage {
                 return extractEntityIdFromCommands(message);
             }
 
+            /**
+             * Called by the shard as it hands a message to its entity, which stamps traced requests.
+             */
             @Override
             public Object entityMessage(Object message) {
+                if (message instanceof Command && ((Command) message).trace != null) {
+                    Command command = (Command) message;
+                    return command.traced(command.trace.atShard(System.nanoTime()));
+                } else if (message instanceof Query && ((Query) message).trace != null) {
+                    Query query = (Query) message;
+                    return query.traced(query.trace.atShard(System.nanoTime()));
+                }
                 return message;
             }
         };
     }
 
     static String extractShardIdFromCommands(Object message) {
-        int numberOfShards = 15;
-
         if (message instanceof Command) {
-            return ((Command) message).entity.id.id.hashCode() % numberOfShards + "";
+            return shardId(((Command) message).entity.id);
         } else if (message instanceof Query) {
-            return ((Query) message).id.id.hashCode() % numberOfShards + "";
+            return shardId(((Query) message).id);
         } else {
             return null;
         }
     }
 
+    /**
+     * Shard id of an entity id, looked up in a table of preformatted ids. The remainder of the name
+     * hash may be negative, so the table covers <code>-(numberOfShards - 1)</code> to
+     * <code>numberOfShards - 1</code>.
+     */
+    static String shardId(Entity.Id id) {
+        return shardIds[id.id.hashCode() % numberOfShards + numberOfShards - 1];
+    }
+
     static String extractEntityIdFromCommands(Object message) {
         if (message instanceof Command) {
             return ((Command) message).entity.id.id;
@@ -0,0 +1,264 @@
+package cluster.sharding;
+
+import akka.actor.ExtendedActorSystem;
+import akka.serialization.SerializerWithStringManifest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary serializer for the entity commands, queries and their acks, with varint numbers and lengths,
+ * numeric ids as zigzag varints, and an optional trailing {@link LatencyTrace} of traced messages.
+ */
+class EntityMessageSerializer extends SerializerWithStringManifest {
+    private static final String commandManifest = "C";
+    private static final String commandAckManifest = "CA";
+    private static final String queryManifest = "Q";
+    private static final String queryAckManifest = "QA";
+    private static final String queryAckNotFoundManifest = "QN";
+
+    private static final byte stringId = 0;
+    private static final byte numericId = 1;
+
+    private static final byte noValue = 0;
+    private static final byte textValue = 1;
+    private static final byte numberValue = 2;
+
+    private static final byte traced = 1;
+
+    private final LatencyTrace stages;
+
+    public EntityMessageSerializer(ExtendedActorSystem system) {
+        this(LatencyTrace.get(system));
+    }
+
+    EntityMessageSerializer(LatencyTrace stages) {
+        this.stages = stages;
+    }
+
+    @Override
+    public int identifier() {
+        return 8_032_001;
+    }
+
+    @Override
+    public String manifest(Object message) {
+        if (message instanceof EntityMessage.Command) {
+            return commandManifest;
+        } else if (message instanceof EntityMessage.CommandAck) {
+            return commandAckManifest;
+        } else if (message instanceof EntityMessage.Query) {
+            return queryManifest;
+        } else if (message instanceof EntityMessage.QueryAck) {
+            return queryAckManifest;
+        } else if (message instanceof EntityMessage.QueryAckNotFound) {
+            return queryAckNotFoundManifest;
+        }
+        throw new IllegalArgumentException(String.format("Can't serialize %s", message.getClass()));
+    }
+
+    @Override
+    public byte[] toBinary(Object message) {
+        long startNanos = System.nanoTime();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        boolean isTraced;
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            if (message instanceof EntityMessage.Command) {
+                EntityMessage.Command command = (EntityMessage.Command) message;
+                writeEntity(command.entity, out);
+                out.writeByte(command.operation.ordinal());
+                writeVarLong(command.expectedVersion, out);
+                isTraced = writeTrace(command.trace, startNanos, out);
+            } else if (message instanceof EntityMessage.CommandAck) {
+                writeString(((EntityMessage.CommandAck) message).action, out);
+                writeEntity(((EntityMessage.CommandAck) message).entity, out);
+                isTraced = writeHops(((EntityMessage.CommandAck) message).hops, out);
+            } else if (message instanceof EntityMessage.Query) {
+                writeId(((EntityMessage.Query) message).id, out);
+                isTraced = writeTrace(((EntityMessage.Query) message).trace, startNanos, out);
+            } else if (message instanceof EntityMessage.QueryAck) {
+                writeEntity(((EntityMessage.QueryAck) message).entity, out);
+                isTraced = writeHops(((EntityMessage.QueryAck) message).hops, out);
+            } else if (message instanceof EntityMessage.QueryAckNotFound) {
+                writeId(((EntityMessage.QueryAckNotFound) message).id, out);
+                isTraced = writeHops(((EntityMessage.QueryAckNotFound) message).hops, out);
+            } else {
+                throw new IllegalArgumentException(String.format("Can't serialize %s", message.getClass()));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (isTraced) {
+            stages.serialization(System.nanoTime() - startNanos);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public Object fromBinary(byte[] bytes, String manifest) throws NotSerializableException {
+        long startNanos = System.nanoTime();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            Object message;
+            switch (manifest) {
+                case commandManifest:
+                    message = new EntityMessage.Command(readEntity(in), EntityMessage.Command.Operation.values()[in.readByte()], readVarLong(in), readTrace(in, startNanos));
+                    break;
+                case commandAckManifest:
+                    message = new EntityMessage.CommandAck(readString(in), readEntity(in), readHops(in));
+                    break;
+                case queryManifest:
+                    message = new EntityMessage.Query(readId(in), readTrace(in, startNanos));
+                    break;
+                case queryAckManifest:
+                    message = new EntityMessage.QueryAck(readEntity(in), readHops(in));
+                    break;
+                case queryAckNotFoundManifest:
+                    message = new EntityMessage.QueryAckNotFound(readId(in), readHops(in));
+                    break;
+                default:
+                    throw new NotSerializableException(String.format("Unknown manifest '%s'", manifest));
+            }
+            if (isTraced(message)) {
+                stages.serialization(System.nanoTime() - startNanos);
+            }
+            return message;
+        } catch (IOException | RuntimeException e) {
+            NotSerializableException notSerializable = new NotSerializableException(String.format("Manifest '%s', %s", manifest, e.getMessage()));
+            notSerializable.initCause(e);
+            throw notSerializable;
+        }
+    }
+
+    private static boolean writeTrace(LatencyTrace.Trace trace, long nowNanos, DataOutputStream out) throws IOException {
+        if (trace == null) {
+            return false;
+        }
+        out.writeByte(traced);
+        writeVarLong(trace.sentNanos, out);
+        writeVarLong(trace.waitNanos(nowNanos), out);
+        return true;
+    }
+
+    private static LatencyTrace.Trace readTrace(DataInputStream in, long nowNanos) throws IOException {
+        if (in.available() == 0 || in.readByte() != traced) {
+            return null;
+        }
+        return LatencyTrace.Trace.arrived(readVarLong(in), readVarLong(in), nowNanos);
+    }
+
+    private static boolean writeHops(LatencyTrace.Hops hops, DataOutputStream out) throws IOException {
+        if (hops == null) {
+            return false;
+        }
+        out.writeByte(traced);
+        writeVarLong(hops.sentNanos, out);
+        writeVarLong(hops.senderNanos, out);
+        writeVarLong(hops.regionNanos, out);
+        writeVarLong(hops.mailboxNanos, out);
+        writeVarLong(hops.processingNanos, out);
+        return true;
+    }
+
+    private static LatencyTrace.Hops readHops(DataInputStream in) throws IOException {
+        if (in.available() == 0 || in.readByte() != traced) {
+            return null;
+        }
+        return new LatencyTrace.Hops(readVarLong(in), readVarLong(in), readVarLong(in), readVarLong(in), readVarLong(in));
+    }
+
+    private static boolean isTraced(Object message) {
+        return message instanceof EntityMessage.Command && ((EntityMessage.Command) message).trace != null
+                || message instanceof EntityMessage.Query && ((EntityMessage.Query) message).trace != null
+                || message instanceof EntityMessage.CommandAck && ((EntityMessage.CommandAck) message).hops != null
+                || message instanceof EntityMessage.QueryAck && ((EntityMessage.QueryAck) message).hops != null
+                || message instanceof EntityMessage.QueryAckNotFound && ((EntityMessage.QueryAckNotFound) message).hops != null;
+    }
+
+    private static void writeEntity(Entity entity, DataOutputStream out) throws IOException {
+        writeId(entity.id, out);
+        writeVarLong(entity.version, out);
+        writeValue(entity.value, out);
+    }
+
+    private static Entity readEntity(DataInputStream in) throws IOException {
+        Entity.Id id = readId(in);
+        long version = readVarLong(in);
+        return new Entity(id, readValue(in), version);
+    }
+
+    private static void writeId(Entity.Id id, DataOutputStream out) throws IOException {
+        if (id instanceof Entity.NumericId) {
+            out.writeByte(numericId);
+            writeVarLong(((Entity.NumericId) id).value, out);
+        } else {
+            out.writeByte(stringId);
+            writeString(id.id, out);
+        }
+    }
+
+    private static Entity.Id readId(DataInputStream in) throws IOException {
+        return in.readByte() == numericId ? Entity.NumericId.of(readVarLong(in)) : new Entity.Id(readString(in));
+    }
+
+    private static void writeValue(Entity.Value value, DataOutputStream out) throws IOException {
+        if (value == null) {
+            out.writeByte(noValue);
+        } else if (value.isNumber()) {
+            out.writeByte(numberValue);
+            writeVarLong(value.number, out);
+        } else {
+            out.writeByte(textValue);
+            writeString(value.text, out);
+        }
+    }
+
+    private static Entity.Value readValue(DataInputStream in) throws IOException {
+        switch (in.readByte()) {
+            case noValue:
+                return null;
+            case numberValue:
+                return Entity.Value.number(readVarLong(in));
+            default:
+                return Entity.Value.text(readString(in));
+        }
+    }
+
+    private static void writeString(String string, DataOutputStream out) throws IOException {
+        byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(utf8.length, out);
+        out.write(utf8);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] utf8 = new byte[(int) readVarLong(in)];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    private static void writeVarLong(long value, DataOutputStream out) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.writeByte((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.writeByte((int) zigzag);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long zigzag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
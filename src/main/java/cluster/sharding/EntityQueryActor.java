@@ -4,6 +4,8 @@ import akka.actor.AbstractLoggingActor;
 import akka.actor.ActorRef;
 import akka.actor.Cancellable;
 import akka.actor.Props;
+import akka.pattern.Patterns;
+import com.typesafe.config.Config;
 import scala.concurrent.duration.Duration;
 import scala.concurrent.duration.FiniteDuration;
 
@@ -11,62 +13,77 @@ import java.util.concurrent.TimeUnit;
 
 class EntityQueryActor extends AbstractLoggingActor {
     private final ActorRef shardRegion;
+    private final RateController rateController;
+    private final WorkloadProfile workload;
+    private final WorkloadProfile.Keys keys;
+    private final Config config = context().system().settings().config().getConfig("akka-cluster-openshift.load-generator");
+    private final FiniteDuration tickInterval = Duration.create(config.getDuration("tick-interval", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+    private final java.time.Duration responseTimeout = config.getDuration("response-timeout");
+    private final int maxInFlight = config.getInt("max-in-flight");
+    private final double traceSampleRate = context().system().settings().config().getDouble("akka-cluster-openshift.latency-trace.sample-rate");
+    private final LatencyTrace stages = LatencyTrace.get(context().system());
     private Cancellable ticker;
-    private FiniteDuration tickInterval = Duration.create(2, TimeUnit.SECONDS);
-    private Entity.Id lastQueryId;
-    private final Receive sending;
-    private final Receive receiving;
+    private int inFlight;
+    private boolean stopping;
 
-    {
-        sending = receiveBuilder()
-                .matchEquals("tick", t -> tickSending())
-                .match(EntityMessage.QueryAck.class, this::queryAckSending)
-                .match(EntityMessage.QueryAckNotFound.class, this::queryAckNotFoundSending)
-                .build();
-
-        receiving = receiveBuilder()
-                .matchEquals("tick", t -> tickReceiving())
-                .match(EntityMessage.QueryAck.class, this::queryAckReceiving)
-                .match(EntityMessage.QueryAckNotFound.class, this::queryAckNotFoundReceiving)
-                .build();
-    }
-
-    private EntityQueryActor(ActorRef shardRegion) {
+    private EntityQueryActor(ActorRef shardRegion, RateController rateController, WorkloadProfile workload) {
         this.shardRegion = shardRegion;
+        this.rateController = rateController;
+        this.workload = workload;
+        this.keys = workload.keys();
     }
 
     @Override
     public Receive createReceive() {
-        return sending;
-    }
-
-    private void tickSending() {
-        lastQueryId = Random.entityId(1, 100);
-        shardRegion.tell(new EntityMessage.Query(lastQueryId), self());
-        getContext().become(receiving);
+        return receiveBuilder()
+                .matchEquals("tick", t -> tick())
+                .match(QueryResult.class, this::queryResult)
+                .match(Drain.StopIntake.class, stopIntake -> stopIntake())
+                .build();
     }
 
-    private void queryAckSending(EntityMessage.QueryAck queryAck) {
-        log().info("Received (late) {} {}", queryAck, sender());
+    private void tick() {
+        long now = System.nanoTime();
+        while (!stopping && inFlight < maxInFlight && rateController.tryAcquireQuery(now)) {
+            send(new EntityMessage.Query(workload.entityId(keys.next())));
+        }
     }
 
-    private void queryAckNotFoundSending(EntityMessage.QueryAckNotFound queryAckNotFound) {
-        log().info("Received (late) {} {}", queryAckNotFound, sender());
+    private void send(EntityMessage.Query query) {
+        ActorRef self = self();
+        inFlight++;
+        EntityMessage.Query traced = LatencyTrace.sample(traceSampleRate) ? query.traced(LatencyTrace.Trace.sent(System.nanoTime())) : query;
+        Patterns.ask(shardRegion, traced, responseTimeout)
+                .whenComplete((reply, e) -> {
+                    stages.recordReply(reply, System.nanoTime());
+                    self.tell(new QueryResult(query, reply), ActorRef.noSender());
+                });
     }
 
-    private void tickReceiving() {
-        log().warning("No query response to {}", lastQueryId);
-        getContext().become(sending);
+    private void queryResult(QueryResult queryResult) {
+        inFlight--;
+        if (queryResult.reply instanceof EntityMessage.QueryAck || queryResult.reply instanceof EntityMessage.QueryAckNotFound) {
+            log().info("Received {}", queryResult.reply);
+        } else {
+            log().warning("No query response to {}", queryResult.query.id);
+        }
+        stopWhenAnswered();
     }
 
-    private void queryAckReceiving(EntityMessage.QueryAck queryAck) {
-        log().info("Received {} {}", queryAck, sender());
-        getContext().become(sending);
+    /**
+     * Asked by a drain, no more queries are sent and the generator stops once those sent are answered.
+     */
+    private void stopIntake() {
+        log().info("Stop intake, {} in flight", inFlight);
+        ticker.cancel();
+        stopping = true;
+        stopWhenAnswered();
     }
 
-    private void queryAckNotFoundReceiving(EntityMessage.QueryAckNotFound queryAckNotFound) {
-        log().info("Received {} {}", queryAckNotFound, sender());
-        getContext().become(sending);
+    private void stopWhenAnswered() {
+        if (stopping && inFlight == 0) {
+            context().stop(self());
+        }
     }
 
     @Override
@@ -88,7 +105,17 @@ class EntityQueryActor extends AbstractLoggingActor {
         ticker.cancel();
     }
 
-    static Props props(ActorRef shardRegion) {
-        return Props.create(EntityQueryActor.class, shardRegion);
+    static Props props(ActorRef shardRegion, RateController rateController, WorkloadProfile workload) {
+        return Props.create(EntityQueryActor.class, shardRegion, rateController, workload);
+    }
+
+    private static class QueryResult {
+        final EntityMessage.Query query;
+        final Object reply;
+
+        QueryResult(EntityMessage.Query query, Object reply) {
+            this.query = query;
+            this.reply = reply;
+        }
     }
 }
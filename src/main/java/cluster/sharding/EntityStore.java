@@ -0,0 +1,375 @@
+package cluster.sharding;
+
+import akka.actor.ActorRef;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.typesafe.config.Config;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * Node local entity state in a memory mapped file of fixed size, CRC checked slots, so entity values live
+ * off the Java heap and survive a crash of the node. The {@link EntityStoreActor} frees the slots of a shard
+ * when it is handed off, so a shard that comes back does not revive older state.
+ */
+class EntityStore {
+    private static final int header = 20;
+    private static final int maxSegmentBytes = 1 << 30;
+
+    private final Path file;
+    private final int slotSize;
+    private final int capacity;
+    private final int segmentShift;
+    private final int segmentMask;
+    private final MappedByteBuffer[] segments;
+    private final long[] indexHashes;
+    private final int[] indexSlots;
+    private int[] free = new int[16];
+    private int freeCount;
+    private int nextSlot;
+    private int size;
+    private long recovered;
+    private long torn;
+    private long rejected;
+
+    private EntityStore(Path file, int slotSize, int capacity) throws IOException {
+        if (slotSize <= header || slotSize > maxSegmentBytes) {
+            throw new IllegalArgumentException(String.format("Slot size %d, must be between %d and %d", slotSize, header + 1, maxSegmentBytes));
+        }
+        this.file = file;
+        this.slotSize = slotSize;
+        this.capacity = capacity;
+        int slotsPerSegment = Integer.highestOneBit(maxSegmentBytes / slotSize);
+        this.segmentShift = Integer.numberOfTrailingZeros(slotsPerSegment);
+        this.segmentMask = slotsPerSegment - 1;
+        this.segments = new MappedByteBuffer[(capacity + slotsPerSegment - 1) / slotsPerSegment];
+        int indexSize = Integer.highestOneBit(Math.max(2, capacity) - 1) << 2;
+        this.indexHashes = new long[indexSize];
+        this.indexSlots = new int[indexSize];
+
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file.toFile(), "rw")) {
+            randomAccessFile.setLength((long) capacity * slotSize);
+            FileChannel channel = randomAccessFile.getChannel();
+            for (int segment = 0; segment < segments.length; segment++) {
+                long start = (long) segment * slotsPerSegment * slotSize;
+                long length = Math.min((long) slotsPerSegment * slotSize, (long) capacity * slotSize - start);
+                segments[segment] = channel.map(FileChannel.MapMode.READ_WRITE, start, length);
+            }
+        }
+        recover();
+    }
+
+    static EntityStore open(Path file, int slotSize, int capacity) throws IOException {
+        return new EntityStore(file, slotSize, capacity);
+    }
+
+    /**
+     * Opens <code>directory/entities-&lt;node&gt;.slots</code>; the node name keeps the files of nodes that
+     * share a directory apart.
+     */
+    static EntityStore create(Config config, String node) {
+        Config entityStore = config.getConfig("akka-cluster-openshift.entity-store");
+        Path file = Paths.get(entityStore.getString("directory"), String.format("entities-%s.slots", node));
+        try {
+            return open(file, entityStore.getInt("slot-size"), entityStore.getInt("capacity"));
+        } catch (IOException e) {
+            throw new UncheckedIOException(String.format("Unable to open entity store %s", file), e);
+        }
+    }
+
+    /**
+     * Indexes every valid slot. Empty and torn slots below the highest valid one are free for new entities.
+     */
+    private void recover() {
+        int highest = -1;
+        for (int slot = 0; slot < capacity; slot++) {
+            ByteBuffer buffer = slot(slot);
+            if (buffer.getShort(4) == 0) {
+                continue;
+            }
+            String id = valid(buffer);
+            if (id == null) {
+                torn++;
+                continue;
+            }
+            index(id, slot);
+            recovered++;
+            for (int hole = highest + 1; hole < slot; hole++) {
+                release(hole);
+            }
+            highest = slot;
+        }
+        nextSlot = highest + 1;
+    }
+
+    /**
+     * The slot of the entity with this id, or -1 when the store does not have it.
+     */
+    synchronized int find(String id) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        int mask = indexHashes.length - 1;
+        long hash = hash(idBytes);
+        for (int i = (int) hash & mask; indexHashes[i] != 0; i = (i + 1) & mask) {
+            if (indexHashes[i] == hash && Arrays.equals(idBytes, id(slot(indexSlots[i])))) {
+                return indexSlots[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes the entity to its slot, or to a new slot when <code>slot</code> is -1, and returns the slot. Returns
+     * -1 when the entity does not fit a slot or a new slot is needed and the store is full.
+     */
+    int write(int slot, Entity entity) {
+        byte[] id = entity.id.id.getBytes(StandardCharsets.UTF_8);
+        byte[] value = entity.value.isNumber()
+                ? ByteBuffer.allocate(8).putLong(0, entity.value.number).array()
+                : entity.value.text.getBytes(StandardCharsets.UTF_8);
+        if (header + id.length + value.length > slotSize || id.length > Short.MAX_VALUE) {
+            return reject();
+        }
+        if (slot < 0) {
+            synchronized (this) {
+                slot = find(entity.id.id);
+                if (slot < 0) {
+                    if (freeCount == 0 && nextSlot >= capacity) {
+                        return reject();
+                    }
+                    slot = freeCount > 0 ? free[--freeCount] : nextSlot++;
+                    put(slot, id, entity, value);
+                    index(entity.id.id, slot);
+                    return slot;
+                }
+            }
+        }
+        put(slot, id, entity, value);
+        return slot;
+    }
+
+    /**
+     * Frees the slots of the entities whose ids match and returns how many were freed.
+     */
+    synchronized int remove(Predicate<String> ids) {
+        List<Integer> slots = new ArrayList<>();
+        for (int i = 0; i < indexHashes.length; i++) {
+            if (indexHashes[i] != 0 && ids.test(new String(id(slot(indexSlots[i])), StandardCharsets.UTF_8))) {
+                slots.add(indexSlots[i]);
+            }
+        }
+        for (int slot : slots) {
+            unindex(id(slot(slot)));
+            ByteBuffer buffer = slot(slot);
+            buffer.putInt(0, 0);
+            buffer.putShort(4, (short) 0);
+            release(slot);
+        }
+        return slots.size();
+    }
+
+    Entity read(int slot) {
+        ByteBuffer buffer = slot(slot);
+        byte[] id = id(buffer);
+        int valueLength = buffer.getInt(16);
+        buffer.position(header + id.length);
+        Entity.Value value;
+        if (buffer.get(6) == Entity.Value.Type.number.ordinal()) {
+            value = Entity.Value.number(buffer.getLong());
+        } else {
+            byte[] text = new byte[valueLength];
+            buffer.get(text);
+            value = Entity.Value.text(new String(text, StandardCharsets.UTF_8));
+        }
+        return new Entity(new Entity.Id(new String(id, StandardCharsets.UTF_8)), value, buffer.getLong(8));
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Flushes the mapped pages to the file.
+     */
+    void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    synchronized Map<String, Object> state() {
+        Map<String, Object> state = new LinkedHashMap<>();
+        state.put("file", file.toString());
+        state.put("slotSize", slotSize);
+        state.put("capacity", capacity);
+        state.put("entities", size);
+        state.put("recovered", recovered);
+        state.put("torn", torn);
+        state.put("rejected", rejected);
+        return state;
+    }
+
+    String toJson() {
+        ObjectWriter ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
+        try {
+            return ow.writeValueAsString(state());
+        } catch (JsonProcessingException e) {
+            return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+        }
+    }
+
+    private synchronized int reject() {
+        rejected++;
+        return -1;
+    }
+
+    private void put(int slot, byte[] id, Entity entity, byte[] value) {
+        ByteBuffer record = ByteBuffer.allocate(header + id.length + value.length);
+        record.putShort(4, (short) id.length);
+        record.put(6, (byte) entity.value.type.ordinal());
+        record.putLong(8, entity.version);
+        record.putInt(16, value.length);
+        record.position(header);
+        record.put(id).put(value);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, record.capacity() - 4);
+        record.putInt(0, (int) crc.getValue());
+
+        ByteBuffer buffer = slot(slot);
+        buffer.putInt(0, 0);
+        record.position(4);
+        buffer.position(4);
+        buffer.put(record);
+        buffer.putInt(0, (int) crc.getValue());
+    }
+
+    /**
+     * The id of a slot whose lengths and CRC are consistent, otherwise null.
+     */
+    private String valid(ByteBuffer buffer) {
+        int idLength = buffer.getShort(4);
+        int valueLength = buffer.getInt(16);
+        if (idLength < 0 || valueLength < 0 || header + idLength + valueLength > slotSize) {
+            return null;
+        }
+        byte[] record = new byte[header - 4 + idLength + valueLength];
+        buffer.position(4);
+        buffer.get(record);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        if ((int) crc.getValue() != buffer.getInt(0)) {
+            return null;
+        }
+        return new String(record, header - 4, idLength, StandardCharsets.UTF_8);
+    }
+
+    private byte[] id(ByteBuffer buffer) {
+        byte[] id = new byte[buffer.getShort(4)];
+        buffer.position(header);
+        buffer.get(id);
+        return id;
+    }
+
+    /**
+     * A buffer over one slot, with its own position, so actors can use different slots at the same time.
+     */
+    private ByteBuffer slot(int slot) {
+        ByteBuffer buffer = segments[slot >>> segmentShift].duplicate();
+        int offset = (slot & segmentMask) * slotSize;
+        buffer.position(offset);
+        buffer.limit(offset + slotSize);
+        return buffer.slice();
+    }
+
+    private void index(String id, int slot) {
+        int mask = indexHashes.length - 1;
+        long hash = hash(id.getBytes(StandardCharsets.UTF_8));
+        int i = (int) hash & mask;
+        while (indexHashes[i] != 0) {
+            if (indexHashes[i] == hash && id.equals(new String(id(slot(indexSlots[i])), StandardCharsets.UTF_8))) {
+                indexSlots[i] = slot;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        indexHashes[i] = hash;
+        indexSlots[i] = slot;
+        size++;
+    }
+
+    /**
+     * Removes an id from the index, moving later entries of its probe sequence back into the gap.
+     */
+    private void unindex(byte[] id) {
+        int mask = indexHashes.length - 1;
+        long hash = hash(id);
+        int hole = (int) hash & mask;
+        while (indexHashes[hole] != hash || !Arrays.equals(id, id(slot(indexSlots[hole])))) {
+            hole = (hole + 1) & mask;
+        }
+        for (int i = (hole + 1) & mask; indexHashes[i] != 0; i = (i + 1) & mask) {
+            int home = (int) indexHashes[i] & mask;
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                indexHashes[hole] = indexHashes[i];
+                indexSlots[hole] = indexSlots[i];
+                hole = i;
+            }
+        }
+        indexHashes[hole] = 0;
+        size--;
+    }
+
+    private void release(int slot) {
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, free.length << 1);
+        }
+        free[freeCount++] = slot;
+    }
+
+    private static long hash(byte[] bytes) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            h = (h ^ b) * 0x100000001b3L;
+        }
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * Published by an entity actor with a store, so the {@link EntityStoreActor} watches its shard.
+     */
+    static class Hosted {
+        final String shardId;
+        final ActorRef shard;
+
+        Hosted(String shardId, ActorRef shard) {
+            this.shardId = shardId;
+            this.shard = shard;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %s]", getClass().getSimpleName(), shardId, shard);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package cluster.sharding;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.actor.Terminated;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Frees the entity store slots of a shard when its shard actor stops, which it does when the shard is
+ * handed off to another node but not when its entities passivate.
+ */
+class EntityStoreActor extends AbstractLoggingActor {
+    private final EntityStore store;
+    private final Map<ActorRef, String> shards = new HashMap<>();
+
+    private EntityStoreActor(EntityStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(EntityStore.Hosted.class, this::hosted)
+                .match(Terminated.class, terminated -> handedOff(terminated.actor()))
+                .build();
+    }
+
+    private void hosted(EntityStore.Hosted hosted) {
+        if (shards.putIfAbsent(hosted.shard, hosted.shardId) == null) {
+            context().watch(hosted.shard);
+        }
+    }
+
+    private void handedOff(ActorRef shard) {
+        String shardId = shards.remove(shard);
+        if (shardId != null) {
+            int removed = store.remove(id -> EntityMessage.shardId(new Entity.Id(id)).equals(shardId));
+            log().info("Shard {} stopped, {} entities removed from the store", shardId, removed);
+        }
+    }
+
+    @Override
+    public void preStart() {
+        log().info("Start");
+        context().system().eventStream().subscribe(self(), EntityStore.Hosted.class);
+    }
+
+    @Override
+    public void postStop() {
+        log().info("Stop");
+    }
+
+    static Props props(EntityStore store) {
+        return Props.create(EntityStoreActor.class, store);
+    }
+}
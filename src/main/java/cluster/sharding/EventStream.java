@@ -0,0 +1,308 @@
+package cluster.sharding;
+
+import akka.NotUsed;
+import akka.http.javadsl.model.ws.BinaryMessage;
+import akka.http.javadsl.model.ws.Message;
+import akka.http.javadsl.model.ws.TextMessage;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Flow;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Flow control of the <code>/events</code> WebSocket connections: snapshot requests are conflated, frames
+ * are rate limited and built only when the client can take them, and lagging clients are disconnected.
+ */
+class EventStream {
+    final Connections connections = new Connections();
+    final Duration minFrameInterval;
+    final Duration maxLag;
+    final int maxMessageLength;
+    final Duration messageTimeout;
+
+    EventStream(Duration minFrameInterval, Duration maxLag, int maxMessageLength, Duration messageTimeout) {
+        this.minFrameInterval = minFrameInterval;
+        this.maxLag = maxLag;
+        this.maxMessageLength = maxMessageLength;
+        this.messageTimeout = messageTimeout;
+    }
+
+    static EventStream create(Config config) {
+        Config events = config.getConfig("akka-cluster-openshift.events");
+        return new EventStream(
+                events.getDuration("min-frame-interval"),
+                events.getDuration("max-lag"),
+                events.getBytes("max-message-length").intValue(),
+                events.getDuration("message-timeout")
+        );
+    }
+
+    /**
+     * The flow of a new connection. <code>clientText</code> is called with every client text message,
+     * <code>refresh</code> before each frame and <code>snapshot</code> to build the frame once the client can
+     * take it. A push interval shorter than <code>min-frame-interval</code> is raised to it, and null means
+     * no push.
+     */
+    Flow<Message, Message, NotUsed> flow(String format, Duration pushInterval, Consumer<String> clientText,
+                                         Supplier<CompletionStage<?>> refresh, Supplier<Message> snapshot, Materializer materializer) {
+        return flow(connections.open(format, pushInterval), clientText, refresh, snapshot, materializer);
+    }
+
+    Flow<Message, Message, NotUsed> flow(Connection connection, Consumer<String> clientText,
+                                         Supplier<CompletionStage<?>> refresh, Supplier<Message> snapshot, Materializer materializer) {
+        Flow<Message, Long, NotUsed> requests = Flow.<Message>create()
+                .mapAsync(1, message -> read(message, connection, materializer))
+                .map(text -> {
+                    if (!text.isEmpty()) {
+                        clientText.accept(text);
+                    }
+                    return connection.requested(System.nanoTime());
+                });
+        if (connection.pushInterval != null) {
+            Duration interval = connection.pushInterval.compareTo(minFrameInterval) < 0 ? minFrameInterval : connection.pushInterval;
+            requests = requests.merge(Source.tick(interval, interval, "push").map(push -> connection.requested(System.nanoTime())), true);
+        }
+        return requests
+                .conflate((older, newer) -> connection.conflated(older))
+                .map(connection::taken)
+                .throttle(1, minFrameInterval)
+                .mapAsync(1, requested -> refresh.get().handle((refreshed, e) -> requested))
+                .map(requested -> snapshot.get())
+                .backpressureTimeout(maxLag)
+                .map(frame -> connection.sent(frame, System.nanoTime()))
+                .watchTermination((notUsed, done) -> {
+                    done.whenComplete((d, e) -> connections.close(connection, e));
+                    return notUsed;
+                });
+    }
+
+    /**
+     * The text of a client message, cut at <code>max-message-length</code>, or empty for a binary message.
+     * Streamed messages are always read to the end, which the connection needs before the next one.
+     */
+    private CompletionStage<String> read(Message message, Connection connection, Materializer materializer) {
+        if (message.isText()) {
+            TextMessage textMessage = message.asTextMessage();
+            if (textMessage.isStrict()) {
+                return CompletableFuture.completedFuture(connection.text(textMessage.getStrictText(), maxMessageLength));
+            }
+            return connection.reading(textMessage.getStreamedText()
+                    .completionTimeout(messageTimeout)
+                    .runFold(new StringBuilder(), (text, part) -> text.length() > maxMessageLength ? text : text.append(part), materializer)
+                    .thenApply(text -> connection.text(text.toString(), maxMessageLength)));
+        }
+        BinaryMessage binaryMessage = message.asBinaryMessage();
+        connection.binary();
+        if (binaryMessage.isStrict()) {
+            return CompletableFuture.completedFuture("");
+        }
+        return connection.reading(binaryMessage.getStreamedData()
+                .completionTimeout(messageTimeout)
+                .runWith(Sink.ignore(), materializer)
+                .thenApply(done -> ""));
+    }
+
+    /**
+     * Counters of one connection. The stream stages and the HTTP server read and update them on different threads.
+     */
+    static class Connection {
+        final long id;
+        final String format;
+        final Duration pushInterval;
+        final Instant opened = Instant.now();
+        private long requests;
+        private long conflated;
+        private long frames;
+        private long bytes;
+        private long oversized;
+        private long binary;
+        private boolean messageFailed;
+        private long waitingSince;
+        private final ArrayDeque<Long> taken = new ArrayDeque<>();
+        private long lastLagNanos;
+        private long maxLagNanos;
+
+        Connection(long id, String format, Duration pushInterval) {
+            this.id = id;
+            this.format = format;
+            this.pushInterval = pushInterval;
+        }
+
+        synchronized long requested(long nowNanos) {
+            requests++;
+            if (waitingSince == 0) {
+                waitingSince = nowNanos;
+            }
+            return nowNanos;
+        }
+
+        /**
+         * A request merged into an older one that is still waiting, which keeps its time for the lag.
+         */
+        synchronized long conflated(long older) {
+            conflated++;
+            return older;
+        }
+
+        /**
+         * The oldest waiting request is on its way to a frame, later ones wait for the next. Frames reach
+         * the client in the order their requests were taken.
+         */
+        synchronized long taken(long requestedNanos) {
+            taken.addLast(requestedNanos);
+            waitingSince = 0;
+            return requestedNanos;
+        }
+
+        synchronized Message sent(Message frame, long nowNanos) {
+            Long requestedNanos = taken.pollFirst();
+            frames++;
+            bytes += frame.isText() ? frame.asTextMessage().getStrictText().length() : frame.asBinaryMessage().getStrictData().size();
+            lastLagNanos = requestedNanos == null ? 0 : nowNanos - requestedNanos;
+            maxLagNanos = Math.max(maxLagNanos, lastLagNanos);
+            return frame;
+        }
+
+        synchronized String text(String text, int maxLength) {
+            if (text.length() > maxLength) {
+                oversized++;
+                return "";
+            }
+            return text;
+        }
+
+        synchronized void binary() {
+            binary++;
+        }
+
+        /**
+         * A streamed client message being read, whose failure also fails the connection.
+         */
+        CompletionStage<String> reading(CompletionStage<String> text) {
+            return text.whenComplete((t, e) -> {
+                if (e != null) {
+                    failedReading();
+                }
+            });
+        }
+
+        private synchronized void failedReading() {
+            messageFailed = true;
+        }
+
+        synchronized boolean messageFailed() {
+            return messageFailed;
+        }
+
+        synchronized long frames() {
+            return frames;
+        }
+
+        synchronized long conflated() {
+            return conflated;
+        }
+
+        /**
+         * The current lag, the age of the oldest request not yet answered, or zero.
+         */
+        synchronized long lagNanos(long nowNanos) {
+            long oldest = taken.isEmpty() ? waitingSince : taken.peekFirst();
+            return oldest == 0 ? 0 : nowNanos - oldest;
+        }
+
+        synchronized Map<String, Object> state(long nowNanos) {
+            Map<String, Object> state = new LinkedHashMap<>();
+            state.put("id", id);
+            state.put("format", format);
+            state.put("pushIntervalMs", pushInterval == null ? null : pushInterval.toMillis());
+            state.put("opened", opened.toString());
+            state.put("requests", requests);
+            state.put("conflated", conflated);
+            state.put("frames", frames);
+            state.put("bytes", bytes);
+            state.put("lagMs", TimeUnit.NANOSECONDS.toMillis(lagNanos(nowNanos)));
+            state.put("lastLagMs", TimeUnit.NANOSECONDS.toMillis(lastLagNanos));
+            state.put("maxLagMs", TimeUnit.NANOSECONDS.toMillis(maxLagNanos));
+            state.put("oversizedMessages", oversized);
+            state.put("binaryMessages", binary);
+            return state;
+        }
+    }
+
+    static class Connections {
+        private final Map<Long, Connection> open = new ConcurrentHashMap<>();
+        private final AtomicLong ids = new AtomicLong();
+        private final LongAdder closed = new LongAdder();
+        private final LongAdder closedSlow = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+
+        Connection open(String format, Duration pushInterval) {
+            Connection connection = new Connection(ids.incrementAndGet(), format, pushInterval);
+            open.put(connection.id, connection);
+            return connection;
+        }
+
+        /**
+         * A connection that timed out other than while reading a client message did not take a frame in time.
+         */
+        void close(Connection connection, Throwable failure) {
+            open.remove(connection.id);
+            if (failure instanceof TimeoutException && !connection.messageFailed()) {
+                closedSlow.increment();
+            } else if (failure != null) {
+                failed.increment();
+            } else {
+                closed.increment();
+            }
+        }
+
+        Connection connection(long id) {
+            return open.get(id);
+        }
+
+        Map<String, Object> state() {
+            long now = System.nanoTime();
+            List<Map<String, Object>> connections = new ArrayList<>();
+            open.values().stream()
+                    .sorted((c1, c2) -> Long.compare(c1.id, c2.id))
+                    .forEach(connection -> connections.add(connection.state(now)));
+            Map<String, Object> state = new LinkedHashMap<>();
+            state.put("open", connections.size());
+            state.put("closed", closed.sum());
+            state.put("closedSlow", closedSlow.sum());
+            state.put("failed", failed.sum());
+            state.put("connections", connections);
+            return state;
+        }
+
+        String toJson() {
+            ObjectWriter ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
+            try {
+                return ow.writeValueAsString(state());
+            } catch (JsonProcessingException e) {
+                return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+            }
+        }
+    }
+}
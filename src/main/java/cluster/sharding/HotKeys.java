@@ -0,0 +1,275 @@
+package cluster.sharding;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.typesafe.config.Config;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The entities and shards taking the most messages on this node and across the cluster, tracked with
+ * decaying Count-Min sketches and top lists.
+ */
+class HotKeys {
+    private static final double ln2 = Math.log(2);
+
+    private final Sketch entities;
+    private final Sketch shards;
+    private final long halfLifeNanos;
+    private final long staleAfterNanos;
+    private final double hotShare;
+    private final Map<String, Received> reports = new HashMap<>();
+    private long lastDecayNanos;
+
+    HotKeys(int width, int depth, int top, long halfLifeNanos, long staleAfterNanos, double hotShare, long nowNanos) {
+        this.entities = new Sketch(width, depth, top);
+        this.shards = new Sketch(width, depth, top);
+        this.halfLifeNanos = halfLifeNanos;
+        this.staleAfterNanos = staleAfterNanos;
+        this.hotShare = hotShare;
+        this.lastDecayNanos = nowNanos;
+    }
+
+    static HotKeys create(Config config) {
+        Config hotKeys = config.getConfig("akka-cluster-openshift.hot-keys");
+        return new HotKeys(
+                hotKeys.getInt("width"),
+                hotKeys.getInt("depth"),
+                hotKeys.getInt("top"),
+                hotKeys.getDuration("half-life", TimeUnit.NANOSECONDS),
+                hotKeys.getDuration("stale-after", TimeUnit.NANOSECONDS),
+                hotKeys.getDouble("hot-share"),
+                System.nanoTime()
+        );
+    }
+
+    /**
+     * Counts a message straight into the sketches, so memory stays fixed however many ids there are.
+     */
+    void record(String shardId, String entityId) {
+        shards.add(shardId, 1);
+        entities.add(entityId, 1);
+    }
+
+    /**
+     * This node's top lists as message rates, after which the counts decay by the time since the last report.
+     */
+    synchronized Report report(String member, long nowNanos) {
+        double perSecond = ln2 / (halfLifeNanos / 1e9);
+        Report report = new Report(member, entities.top(perSecond), shards.top(perSecond), entities.total() * perSecond);
+        double factor = Math.pow(0.5, (nowNanos - lastDecayNanos) / (double) halfLifeNanos);
+        entities.decay(factor);
+        shards.decay(factor);
+        lastDecayNanos = nowNanos;
+        return report;
+    }
+
+    synchronized void update(Report report, long nowNanos) {
+        reports.put(report.member, new Received(report, nowNanos));
+    }
+
+    synchronized Report local(String member) {
+        Received received = reports.get(member);
+        return received == null ? new Report(member, new ArrayList<>(), new ArrayList<>(), 0) : received.report;
+    }
+
+    /**
+     * The top lists of the cluster, summing the latest report of each node that is not stale.
+     */
+    synchronized Report cluster(long nowNanos) {
+        Map<String, Double> entityRates = new HashMap<>();
+        Map<String, Double> shardRates = new HashMap<>();
+        double total = 0;
+        for (Received received : reports.values()) {
+            if (nowNanos - received.receivedNanos <= staleAfterNanos) {
+                received.report.entities.forEach(hot -> entityRates.merge(hot.id, hot.rate, Double::sum));
+                received.report.shards.forEach(hot -> shardRates.merge(hot.id, hot.rate, Double::sum));
+                total += received.report.rate;
+            }
+        }
+        return new Report("cluster", top(entityRates, total, entities.top), top(shardRates, total, shards.top), total);
+    }
+
+    Set<String> hot(List<Hot> top) {
+        Set<String> hot = new HashSet<>();
+        top.forEach(key -> {
+            if (key.share >= hotShare) {
+                hot.add(key.id);
+            }
+        });
+        return hot;
+    }
+
+    String toJson(Report report) {
+        ObjectWriter ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
+        try {
+            return ow.writeValueAsString(report);
+        } catch (JsonProcessingException e) {
+            return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+        }
+    }
+
+    private static List<Hot> top(Map<String, Double> rates, double total, int top) {
+        List<Hot> hot = new ArrayList<>();
+        rates.forEach((id, rate) -> hot.add(new Hot(id, rate, total)));
+        hot.sort(Comparator.comparingDouble((Hot h) -> h.rate).reversed());
+        return new ArrayList<>(hot.subList(0, Math.min(top, hot.size())));
+    }
+
+    /**
+     * Count-Min sketch with conservative update, and the ids with the highest estimates. An id's estimate
+     * never undercounts it, and overcounts it by at most <code>e / width</code> of the total with
+     * probability <code>1 - exp(-depth)</code>. Entity actors record into it concurrently, so it is locked.
+     */
+    static class Sketch {
+        private final double[][] counts;
+        private final int mask;
+        private final int top;
+        private final Map<String, double[]> topIds = new HashMap<>();
+        private String minId;
+        private double total;
+
+        Sketch(int width, int depth, int top) {
+            int powerOfTwo = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+            this.counts = new double[depth][powerOfTwo];
+            this.mask = powerOfTwo - 1;
+            this.top = top;
+        }
+
+        synchronized double add(String id, long count) {
+            int hash = id.hashCode();
+            double estimate = estimate(id) + count;
+            for (int row = 0; row < counts.length; row++) {
+                int slot = slot(hash, row);
+                counts[row][slot] = Math.max(counts[row][slot], estimate);
+            }
+            total += count;
+            offer(id, estimate);
+            return estimate;
+        }
+
+        synchronized double estimate(String id) {
+            int hash = id.hashCode();
+            double min = Double.MAX_VALUE;
+            for (int row = 0; row < counts.length; row++) {
+                min = Math.min(min, counts[row][slot(hash, row)]);
+            }
+            return min;
+        }
+
+        /**
+         * Keeps the top list current; the smallest entry is only looked for when it may be replaced.
+         */
+        private void offer(String id, double estimate) {
+            double[] count = topIds.get(id);
+            if (count != null) {
+                count[0] = estimate;
+                if (id.equals(minId)) {
+                    findMin();
+                }
+            } else if (topIds.size() < top) {
+                topIds.put(id, new double[]{estimate});
+                findMin();
+            } else if (estimate > topIds.get(minId)[0]) {
+                topIds.remove(minId);
+                topIds.put(id, new double[]{estimate});
+                findMin();
+            }
+        }
+
+        private void findMin() {
+            minId = null;
+            double min = Double.MAX_VALUE;
+            for (Map.Entry<String, double[]> entry : topIds.entrySet()) {
+                if (entry.getValue()[0] < min) {
+                    min = entry.getValue()[0];
+                    minId = entry.getKey();
+                }
+            }
+        }
+
+        synchronized void decay(double factor) {
+            for (double[] row : counts) {
+                for (int slot = 0; slot < row.length; slot++) {
+                    row[slot] *= factor;
+                }
+            }
+            topIds.values().forEach(count -> count[0] *= factor);
+            total *= factor;
+        }
+
+        synchronized double total() {
+            return total;
+        }
+
+        synchronized List<Hot> top(double scale) {
+            Map<String, Double> rates = new HashMap<>();
+            topIds.forEach((id, count) -> rates.put(id, count[0] * scale));
+            return HotKeys.top(rates, total * scale, top);
+        }
+
+        private int slot(int hash, int row) {
+            long h = (hash + 0x9E3779B97F4A7C15L * (row + 1)) * 0xff51afd7ed558ccdL;
+            h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+            return (int) (h ^ (h >>> 33)) & mask;
+        }
+    }
+
+    public static class Hot implements Serializable {
+        public final String id;
+        public final double rate;
+        public final double share;
+
+        Hot(String id, double rate, double total) {
+            this.id = id;
+            this.rate = rate;
+            this.share = total > 0 ? rate / total : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %.2f/s, %.3f]", getClass().getSimpleName(), id, rate, share);
+        }
+    }
+
+    /**
+     * Top entity and shard ids of a member, with its total message rate.
+     */
+    public static class Report implements Serializable {
+        public final String member;
+        public final List<Hot> entities;
+        public final List<Hot> shards;
+        public final double rate;
+
+        Report(String member, List<Hot> entities, List<Hot> shards, double rate) {
+            this.member = member;
+            this.entities = entities;
+            this.shards = shards;
+            this.rate = rate;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %.2f/s, entities %s, shards %s]", getClass().getSimpleName(), member, rate, entities, shards);
+        }
+    }
+
+    private static class Received {
+        final Report report;
+        final long receivedNanos;
+
+        Received(Report report, long receivedNanos) {
+            this.report = report;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+}
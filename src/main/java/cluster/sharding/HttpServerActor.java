@@ -1,44 +1,108 @@
 package cluster.sharding;
 
+import akka.Done;
 import akka.NotUsed;
 import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
 import akka.actor.ActorSelection;
 import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
 import akka.actor.Props;
 import akka.cluster.Cluster;
+import akka.cluster.ClusterEvent;
 import akka.cluster.Member;
 import akka.cluster.MemberStatus;
 import akka.http.javadsl.ConnectHttp;
 import akka.http.javadsl.Http;
 import akka.http.javadsl.ServerBinding;
 import akka.http.javadsl.model.*;
+import akka.http.javadsl.model.ws.BinaryMessage;
 import akka.http.javadsl.model.ws.Message;
 import akka.http.javadsl.model.ws.TextMessage;
 import akka.http.javadsl.model.ws.WebSocket;
-import akka.japi.JavaPartialFunction;
+import akka.cluster.sharding.ClusterSharding;
+import akka.cluster.sharding.ShardRegion;
+import akka.cluster.singleton.ClusterSingletonManagerSettings;
+import akka.pattern.Patterns;
 import akka.stream.ActorMaterializer;
 import akka.stream.javadsl.Flow;
+import akka.util.ByteString;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
+import com.typesafe.config.Config;
+import scala.concurrent.duration.FiniteDuration;
 
 import java.io.*;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class HttpServerActor extends AbstractLoggingActor {
     private ActorSystem actorSystem = context().system();
     private ActorMaterializer actorMaterializer = ActorMaterializer.create(actorSystem);
     private final Cluster cluster = Cluster.get(actorSystem);
-    private final Tree tree = new Tree("cluster", "cluster");
+    private final Topology topology = new Topology();
+    private final Topology.Traffic traffic = Topology.Traffic.get(actorSystem);
+    private final AntiEntropy.Counters antiEntropy = AntiEntropy.Counters.get(actorSystem);
+    private final LatencyTrace stages = LatencyTrace.get(actorSystem);
+    private final StartupTimer startupTimer;
+    private final RateController rateController;
+    private final MemberMetrics memberMetrics;
+    private final SingletonHandover singletonHandover;
+    private final ClusterJournal clusterJournal;
+    private final HotKeys hotKeys;
+    private final Ingest ingest = Ingest.create(actorSystem.settings().config());
+    private final EventStream eventStream = EventStream.create(actorSystem.settings().config());
+    private final CoalescingMailbox.Counters entityMailbox = CoalescingMailbox.Counters.get(actorSystem);
+    private final HttpServerMailbox.Counters mailbox = HttpServerMailbox.Counters.get(actorSystem);
+    private final AtomicReference<Ingest.Progress> ingestProgress = new AtomicReference<>();
+    private volatile Drain.Progress drainProgress;
+    private final Optional<String> singletonRole = toOptional(ClusterSingletonManagerSettings.create(actorSystem).role());
+    private final Set<Member> upMembers = new HashSet<>();
+    private final boolean scatterGather;
+    private final Duration gatherTimeout;
+    private final Duration gatherMaxAge;
+    private final Duration antiEntropyInterval;
+    private Cancellable antiEntropyTicker;
+    private final Set<String> gatherPending = new HashSet<>();
+    private final List<ActorRef> gatherWaiters = new ArrayList<>();
+    private long gatherStarted;
+    private long gatherEnded;
+    private boolean gathered;
+
+    HttpServerActor(StartupTimer startupTimer, RateController rateController, MemberMetrics memberMetrics,
+                    SingletonHandover singletonHandover, ClusterJournal clusterJournal, HotKeys hotKeys) {
+        this.startupTimer = startupTimer;
+        this.rateController = rateController;
+        this.memberMetrics = memberMetrics;
+        this.singletonHandover = singletonHandover;
+        this.clusterJournal = clusterJournal;
+        this.hotKeys = hotKeys;
+        Config topologyConfig = actorSystem.settings().config().getConfig("akka-cluster-openshift.topology");
+        scatterGather = topologyConfig.getString("mode").equals("scatter-gather");
+        gatherTimeout = topologyConfig.getDuration("gather-timeout");
+        gatherMaxAge = topologyConfig.getDuration("gather-max-age");
+        antiEntropyInterval = topologyConfig.getDuration("anti-entropy-interval");
+    }
 
     @Override
     public Receive createReceive() {
@@ -46,17 +110,28 @@ public class HttpServerActor extends AbstractLoggingActor {
                 .match(EntityMessage.Action.class, this::actionEntity)
                 .match(ClusterSingletonActor.Action.class, this::actionSingleton)
                 .match(StopNode.class, this::stopNode)
+                .match(Drain.Draining.class, this::draining)
+                .match(RateController.Update.class, this::updateRate)
+                .match(Resync.class, this::resync)
+                .match(Gather.class, this::gather)
+                .match(RegionState.class, this::regionState)
+                .match(AntiEntropyTick.class, tick -> sendDigest())
+                .match(AntiEntropy.Digest.class, this::digest)
+                .match(AntiEntropy.RepairRequest.class, this::repairRequest)
+                .match(AntiEntropy.Repair.class, this::repair)
+                .match(ClusterEvent.MemberUp.class, memberUp -> memberUp(memberUp.member()))
+                .match(ClusterEvent.MemberEvent.class, memberEvent -> memberDown(memberEvent.member()))
                 .build();
     }
 
     private void actionEntity(EntityMessage.Action action) {
         log().info("Entity {} <-- {}", action, sender());
         if (action.action.equals("start")) {
-            tree.add(action.member, action.shardId, action.entityId);
+            topology.add(action.member, action.shardId, action.entityId);
         } else if (action.action.equals("stop")) {
-            tree.remove(action.member, action.shardId, action.entityId);
+            topology.remove(action.member, action.shardId, action.entityId);
         }
-        if (action.forward) {
+        if (action.forward && !scatterGather) {
             forwardAction(action.asNoForward());
         }
     }
@@ -64,23 +139,183 @@ public class HttpServerActor extends AbstractLoggingActor {
     private void actionSingleton(ClusterSingletonActor.Action action) {
         log().info("Singleton {} <-- {}", action, sender());
         if (action.action.equals("start")) {
-            tree.setMemberType(action.member, "singleton");
+            topology.setMemberType(action.member, "singleton");
+            singletonHandover.started(action.member, action.time);
+        } else if (action.action.equals("ready")) {
+            topology.setMemberType(action.member, "singleton");
+            singletonHandover.ready(action.member, action.time);
+            logHandover();
         } else if (action.action.equals("stop")) {
-            tree.unsetMemberType(action.member, "singleton");
+            topology.unsetMemberType(action.member, "singleton");
+            singletonHandover.stopped(action.member, action.time);
         }
         if (action.forward) {
             forwardAction(action.asNoForward());
         }
     }
 
+    private void memberUp(Member member) {
+        upMembers.add(member);
+        locateSingleton();
+    }
+
+    private void memberDown(Member member) {
+        upMembers.remove(member);
+        locateSingleton();
+    }
+
+    /**
+     * The singleton runs on the oldest up member with the singleton role, so its location is known as
+     * soon as membership changes, without waiting for the singleton to announce itself.
+     */
+    private void locateSingleton() {
+        upMembers.stream()
+                .filter(member -> !singletonRole.isPresent() || member.hasRole(singletonRole.get()))
+                .reduce((a, b) -> a.isOlderThan(b) ? a : b)
+                .map(oldest -> oldest.address().toString())
+                .ifPresent(oldest -> {
+                    if (!oldest.equals(singletonHandover.location())) {
+                        log().info("Singleton located on {}", oldest);
+                        singletonHandover.located(oldest, System.currentTimeMillis());
+                        topology.setMemberType(oldest, "singleton");
+                    }
+                });
+    }
+
+    private void logHandover() {
+        SingletonHandover.Handover handover = singletonHandover.last();
+        if (handover != null && handover.ready >= 0) {
+            log().info("{}", handover);
+        }
+    }
+
+    /**
+     * The node is drained by the {@link DrainActor}, which leaves the cluster once the shards are handed off.
+     */
     private void stopNode(StopNode stopNode) {
         log().info("{}", stopNode);
         if (stopNode.memberAddress.equals(cluster.selfAddress().toString())) {
             log().info("Stopping node {}", stopNode.memberAddress);
-            cluster.leave(cluster.selfAddress());
+            context().actorSelection("/user/drain").tell(new Drain.Start(stopNode.toString()), ActorRef.noSender());
+        }
+    }
+
+    private void draining(Drain.Draining draining) {
+        log().info("{}", draining);
+        drainProgress = draining.progress;
+    }
+
+    private void updateRate(RateController.Update update) {
+        log().info("{} <-- {}", update, sender());
+        rateController.update(update, System.nanoTime());
+    }
+
+    /**
+     * Sent by the {@link HttpServerMailbox} after it drops topology actions, to rebuild the topology.
+     */
+    private void resync(Resync resync) {
+        log().warning("{}, {} topology actions dropped so far", resync, mailbox.dropped());
+        if (gatherPending.isEmpty()) {
+            startGather();
+        }
+    }
+
+    /**
+     * Asked by websocket clients in scatter gather mode. A gather younger than <code>gather-max-age</code>
+     * is answered at once, and clients asking while a gather runs share it.
+     */
+    private void gather(Gather gather) {
+        if (gathered && gatherPending.isEmpty() && System.nanoTime() - gatherEnded < gatherMaxAge.toNanos()) {
+            sender().tell(gather, self());
+            return;
+        }
+        gatherWaiters.add(sender());
+        if (gatherPending.isEmpty()) {
+            startGather();
+        }
+    }
+
+    /**
+     * Each up member's shard region is asked for its shards and entities, and each reply replaces that
+     * member's part of the topology. A member that does not reply within <code>gather-timeout</code> keeps
+     * what was known of it, so a slow member gives a partial, not a failed, result.
+     */
+    private void startGather() {
+        ActorRef self = self();
+        gatherStarted = System.nanoTime();
+        cluster.state().getMembers().forEach(member -> {
+            if (member.status().equals(MemberStatus.up())) {
+                String memberId = member.address().toString();
+                gatherPending.add(memberId);
+                ActorSelection shardRegion = context().actorSelection(memberId + "/system/sharding/entity");
+                Patterns.ask(shardRegion, ShardRegion.getShardRegionStateInstance(), gatherTimeout)
+                        .whenComplete((state, e) -> self.tell(new RegionState(memberId, (ShardRegion.CurrentShardRegionState) state), self));
+            }
+        });
+        topology.retainMembers(new HashSet<>(gatherPending));
+        traffic.gather(gatherPending.size());
+        if (gatherPending.isEmpty()) {
+            endGather();
+        }
+    }
+
+    private void regionState(RegionState regionState) {
+        log().debug("{}", regionState);
+        if (regionState.answered) {
+            topology.replaceMember(regionState.memberId, regionState.shards);
+        }
+        traffic.reply(regionState.answered, regionState.memberId.equals(cluster.selfAddress().toString()) ? 0 : regionState.entities());
+        if (gatherPending.remove(regionState.memberId) && gatherPending.isEmpty()) {
+            endGather();
+        }
+    }
+
+    private void endGather() {
+        gatherEnded = System.nanoTime();
+        gathered = true;
+        traffic.gathered(gatherEnded - gatherStarted);
+        gatherWaiters.forEach(waiter -> waiter.tell(new Gather(), self()));
+        gatherWaiters.clear();
+    }
+
+    /**
+     * In broadcast mode this node is the authority for its own entities, so it sends the digests of its
+     * own shards to the other members, who ask for the shards they disagree on.
+     */
+    private void sendDigest() {
+        String self = cluster.selfAddress().toString();
+        AntiEntropy.Digest digest = new AntiEntropy.Digest(self, topology.digests(self));
+        cluster.state().getMembers().forEach(member -> {
+            if (!cluster.selfMember().equals(member) && member.status().equals(MemberStatus.up())) {
+                forwardAction(digest, member);
+                antiEntropy.sent();
+            }
+        });
+    }
+
+    private void digest(AntiEntropy.Digest digest) {
+        Map<String, Topology.ShardDigest> replica = topology.digests(digest.member);
+        boolean mismatch = AntiEntropy.root(replica) != digest.root;
+        antiEntropy.received(mismatch);
+        if (mismatch) {
+            Set<String> differing = AntiEntropy.differingShards(replica, digest.shards);
+            log().info("{} differs in shards {} <-- {}", digest, differing, sender());
+            sender().tell(new AntiEntropy.RepairRequest(digest.member, differing, System.nanoTime()), self());
         }
     }
 
+    private void repairRequest(AntiEntropy.RepairRequest repairRequest) {
+        log().debug("{} <-- {}", repairRequest, sender());
+        sender().tell(new AntiEntropy.Repair(repairRequest.member,
+                topology.entities(repairRequest.member, repairRequest.shards), repairRequest.requested), self());
+    }
+
+    private void repair(AntiEntropy.Repair repair) {
+        log().info("{} {} entities <-- {}", repair, repair.entities(), sender());
+        topology.replaceShards(repair.member, repair.shards);
+        antiEntropy.repaired(repair, System.nanoTime());
+    }
+
     private void forwardAction(Object action) {
         cluster.state().getMembers().forEach(member -> {
             if (!cluster.selfMember().equals(member) && member.status().equals(MemberStatus.up())) {
@@ -90,6 +325,9 @@ public class HttpServerActor extends AbstractLoggingActor {
     }
 
     private void forwardAction(Object action, Member member) {
+        if (action instanceof EntityMessage.Action) {
+            traffic.forwarded();
+        }
         String httpServerPath = member.address().toString() + self().path().toStringWithoutAddress();
         ActorSelection httpServer = context().actorSelection(httpServerPath);
         log().debug("{} --> {}", action, httpServer);
@@ -99,17 +337,26 @@ public class HttpServerActor extends AbstractLoggingActor {
     @Override
     public void preStart() {
         log().info("Start");
+        cluster.subscribe(self(), ClusterEvent.initialStateAsEvents(), ClusterEvent.MemberEvent.class);
         startHttpServer();
+        if (!scatterGather) {
+            FiniteDuration interval = FiniteDuration.create(antiEntropyInterval.toMillis(), TimeUnit.MILLISECONDS);
+            antiEntropyTicker = actorSystem.scheduler().schedule(interval, interval, self(), new AntiEntropyTick(),
+                    actorSystem.dispatcher(), null);
+        }
     }
 
     private void startHttpServer() {
-        int serverPort = 8080;
+        Config http = actorSystem.settings().config().getConfig("akka-cluster-openshift.http");
+        int serverPort = http.getInt("port");
 
         try {
+            String hostname = http.getString("hostname").isEmpty() ? InetAddress.getLocalHost().getHostName() : http.getString("hostname");
             CompletionStage<ServerBinding> serverBindingCompletionStage = Http.get(actorSystem)
-                    .bindAndHandleSync(this::handleHttpRequest, ConnectHttp.toHost(InetAddress.getLocalHost().getHostName(), serverPort), actorMaterializer);
+                    .bindAndHandleSync(this::handleHttpRequest, ConnectHttp.toHost(hostname, serverPort), actorMaterializer);
 
             serverBindingCompletionStage.toCompletableFuture().get(15, TimeUnit.SECONDS);
+            startupTimer.mark("httpBound");
         } catch (UnknownHostException e) {
             log().error(e, "Unable to access hostname");
         } catch (InterruptedException | TimeoutException | ExecutionException e) {
@@ -136,8 +383,42 @@ public class HttpServerActor extends AbstractLoggingActor {
                 return jsFileResponse("d3/d3.geom.js");
             case "/d3/d3.layout.js":
                 return jsFileResponse("d3/d3.layout.js");
+            case "/tree-codec.js":
+                return jsFileResponse("tree-codec.js");
             case "/events":
                 return webSocketHandler(httpRequest);
+            case "/event-connections":
+                return jsonResponse(eventStream.connections.toJson());
+            case "/startup":
+                return jsonResponse(startupTimer.toJson());
+            case "/rate":
+                return rateResponse(httpRequest.getUri().query());
+            case "/entity-mailbox":
+                return jsonResponse(entityMailbox.toJson());
+            case "/http-server-mailbox":
+                return jsonResponse(mailbox.toJson());
+            case "/singleton":
+                return jsonResponse(singletonHandover.toJson());
+            case "/topology":
+                return jsonResponse(traffic.toJson(scatterGather ? "scatter-gather" : "broadcast", topology.size()));
+            case "/latency-trace":
+                return latencyTraceResponse(httpRequest.getUri().query());
+            case "/anti-entropy":
+                return jsonResponse(antiEntropy.toJson());
+            case "/hot-keys":
+                return hotKeysResponse(httpRequest.getUri().query());
+            case "/metrics":
+                return jsonResponse(memberMetrics.toJson(topology.memberCounts()));
+            case "/saturation":
+                return jsonResponse(Saturation.toJson(memberMetrics.saturation()));
+            case "/ingest":
+                return ingestResponse(httpRequest);
+            case "/cluster-journal":
+                return clusterJournalResponse(httpRequest.getUri().query());
+            case "/drain":
+                return drainProgress == null
+                        ? HttpResponse.create().withStatus(StatusCodes.NOT_FOUND)
+                        : jsonResponse(drainProgress.toJson());
             default:
                 return HttpResponse.create().withStatus(404);
         }
@@ -167,6 +448,113 @@ public class HttpServerActor extends AbstractLoggingActor {
         }
     }
 
+    private HttpResponse rateResponse(Query query) {
+        RateController.Update update;
+        try {
+            update = new RateController.Update(
+                    query.get("command").map(Double::valueOf).orElse(null),
+                    query.get("query").map(Double::valueOf).orElse(null),
+                    query.get("closedLoop").map(Boolean::valueOf).orElse(null),
+                    query.get("targetP99").map(Long::valueOf).orElse(null)
+            );
+        } catch (NumberFormatException e) {
+            return HttpResponse.create().withStatus(StatusCodes.BAD_REQUEST);
+        }
+        if (query.get("scope").orElse("node").equals("cluster")) {
+            broadcast(update);
+        } else {
+            rateController.update(update, System.nanoTime());
+        }
+        return jsonResponse(rateController.toJson());
+    }
+
+    /**
+     * Stage histograms of the traced requests sent from this node, cleared afterwards with <code>reset=true</code>.
+     */
+    private HttpResponse latencyTraceResponse(Query query) {
+        String json = stages.toJson();
+        if (query.get("reset").map(Boolean::valueOf).orElse(false)) {
+            stages.reset();
+        }
+        return jsonResponse(json);
+    }
+
+    /**
+     * This node's hottest entities and shards, or with <code>scope=cluster</code> those of the cluster.
+     */
+    private HttpResponse hotKeysResponse(Query query) {
+        HotKeys.Report report = query.get("scope").orElse("node").equals("cluster")
+                ? hotKeys.cluster(System.nanoTime())
+                : hotKeys.local(cluster.selfAddress().toString());
+        return jsonResponse(hotKeys.toJson(report));
+    }
+
+    /**
+     * A POST with <code>file</code> starts loading it from the ingest directory, with optional <code>parallelism</code>
+     * and <code>batchSize</code>, and a GET returns the progress of the latest ingestion. One file at a time, and
+     * none once the node is draining.
+     */
+    private HttpResponse ingestResponse(HttpRequest httpRequest) {
+        Query query = httpRequest.getUri().query();
+        Ingest.Progress current = ingestProgress.get();
+        if (httpRequest.method().equals(HttpMethods.GET) && !query.get("file").isPresent()) {
+            return current == null
+                    ? HttpResponse.create().withStatus(StatusCodes.NOT_FOUND)
+                    : jsonResponse(current.toJson());
+        }
+        if (!httpRequest.method().equals(HttpMethods.POST)) {
+            return HttpResponse.create().withStatus(StatusCodes.METHOD_NOT_ALLOWED);
+        }
+        if (!query.get("file").isPresent()) {
+            return HttpResponse.create().withStatus(StatusCodes.BAD_REQUEST);
+        }
+        if (drainProgress != null) {
+            return HttpResponse.create().withStatus(StatusCodes.SERVICE_UNAVAILABLE).withEntity(ContentTypes.APPLICATION_JSON, drainProgress.toJson());
+        }
+        if (current != null && current.isRunning()) {
+            return HttpResponse.create().withStatus(StatusCodes.CONFLICT).withEntity(ContentTypes.APPLICATION_JSON, current.toJson());
+        }
+        try {
+            Ingest tuned = ingest.withParallelism(
+                    query.get("parallelism").map(Integer::valueOf).orElse(ingest.parallelism),
+                    query.get("batchSize").map(Integer::valueOf).orElse(ingest.batchSize));
+            Path file = ingest.file(query.get("file").get());
+            if (!Files.isReadable(file)) {
+                return HttpResponse.create().withStatus(StatusCodes.NOT_FOUND);
+            }
+            Ingest.Progress progress = tuned.progress(file);
+            if (!ingestProgress.compareAndSet(current, progress)) {
+                return HttpResponse.create().withStatus(StatusCodes.CONFLICT).withEntity(ContentTypes.APPLICATION_JSON, ingestProgress.get().toJson());
+            }
+            ActorRef shardRegion = ClusterSharding.get(actorSystem).shardRegion("entity");
+            tuned.start(file, progress, shardRegion, actorMaterializer, actorSystem.log());
+            return jsonResponse(progress.toJson());
+        } catch (IllegalArgumentException e) {
+            return HttpResponse.create().withStatus(StatusCodes.BAD_REQUEST);
+        }
+    }
+
+    /**
+     * Journal entries newest first, optionally limited to a time range with <code>from</code> and
+     * <code>to</code> given as epoch milliseconds or ISO-8601 instants.
+     */
+    private HttpResponse clusterJournalResponse(Query query) {
+        try {
+            long from = query.get("from").map(ClusterJournal::parseTime).orElse(0L);
+            long to = query.get("to").map(ClusterJournal::parseTime).orElse(Long.MAX_VALUE);
+            int limit = query.get("limit").map(Integer::valueOf).orElse(1000);
+            return jsonResponse(clusterJournal.toJson(from, to, limit));
+        } catch (RuntimeException e) {
+            return HttpResponse.create().withStatus(StatusCodes.BAD_REQUEST);
+        }
+    }
+
+    private HttpResponse jsonResponse(String json) {
+        return HttpResponse.create()
+                .withEntity(ContentTypes.APPLICATION_JSON, json)
+                .withStatus(StatusCodes.OK);
+    }
+
     private String readFile(String filename) throws IOException {
         InputStream inputStream = getClass().getClassLoader().getResourceAsStream(filename);
         if (inputStream == null) {
@@ -184,50 +572,86 @@ public class HttpServerActor extends AbstractLoggingActor {
         }
     }
 
+    /**
+     * Topology snapshots, one per client message and, with <code>interval</code> milliseconds, pushed at
+     * that interval, under the flow control of {@link EventStream}.
+     */
     private HttpResponse webSocketHandler(HttpRequest httpRequest) {
-        Flow<Message, Message, NotUsed> flow = Flow.<Message>create()
-                .collect(new JavaPartialFunction<Message, Message>() {
-                    @Override
-                    public Message apply(Message message, boolean isCheck) {
-                        if (isCheck && message.isText()) {
-                            return null;
-                        } else if (isCheck && !message.isText()) {
-                            throw noMatch();
-                        } else if (message.asTextMessage().isStrict()) {
-                            return handleClientMessage(message);
-                        } else {
-                            return TextMessage.create("");
-                        }
-                    }
-                });
+        if (!httpRequest.getHeader("UpgradeToWebSocket").isPresent()) {
+            return HttpResponse.create().withStatus(StatusCodes.BAD_REQUEST);
+        }
+        Query query = httpRequest.getUri().query();
+        TreeCodec.Format format = TreeCodec.Format.of(query.get("format").orElse("json"));
+        Duration pushInterval;
+        try {
+            pushInterval = query.get("interval").map(interval -> Duration.ofMillis(Long.parseLong(interval))).orElse(null);
+        } catch (NumberFormatException e) {
+            return HttpResponse.create().withStatus(StatusCodes.BAD_REQUEST);
+        }
+        Flow<Message, Message, NotUsed> flow = eventStream.flow(format.name(), pushInterval, this::handleClientText,
+                this::refresh, () -> getTreeAsMessage(format), actorMaterializer);
 
         return WebSocket.handleWebSocketRequestWith(httpRequest, flow);
     }
 
-    private Message handleClientMessage(Message message) {
-        String messageText = message.asTextMessage().getStrictText();
+    private void handleClientText(String messageText) {
         if (messageText.startsWith("akka.tcp")) {
             broadcastStopNode(messageText);
         }
-        return getTreeAsJson();
+    }
+
+    /**
+     * In scatter gather mode the topology is gathered from the shard regions before it is sent. A gather
+     * that does not finish in time still sends what is known.
+     */
+    private CompletionStage<?> refresh() {
+        if (scatterGather) {
+            return Patterns.ask(self(), new Gather(), gatherTimeout.plusSeconds(1));
+        }
+        return CompletableFuture.completedFuture(Done.getInstance());
     }
 
     private void broadcastStopNode(String memberAddress) {
-        cluster.state().getMembers().forEach(member -> forwardAction(new StopNode(memberAddress), member));
+        broadcast(new StopNode(memberAddress));
     }
 
-    private Message getTreeAsJson() {
-        tree.setMemberType(cluster.selfAddress().toString(), "httpServer");
-        return TextMessage.create(tree.toJson());
+    private void broadcast(Object message) {
+        cluster.state().getMembers().forEach(member -> forwardAction(message, member));
+    }
+
+    private Message getTreeAsMessage(TreeCodec.Format format) {
+        topology.setMemberType(cluster.selfAddress().toString(), "httpServer");
+        Optional.ofNullable(singletonHandover.location()).ifPresent(location -> topology.setMemberType(location, "singleton"));
+        Tree tree = topology.toTree(memberMetrics);
+        HotKeys.Report hot = hotKeys.cluster(System.nanoTime());
+        tree.setHot(hotKeys.hot(hot.shards), hotKeys.hot(hot.entities));
+        switch (format) {
+            case compact:
+                return TextMessage.create(TreeCodec.toCompactJson(tree));
+            case cbor:
+                return BinaryMessage.create(ByteString.fromArray(TreeCodec.toCbor(tree)));
+            default:
+                return TextMessage.create(tree.toJson());
+        }
     }
 
     @Override
     public void postStop() {
         log().info("Stop");
+        if (antiEntropyTicker != null) {
+            antiEntropyTicker.cancel();
+        }
+        cluster.unsubscribe(self());
+    }
+
+    private static <T> Optional<T> toOptional(scala.Option<T> option) {
+        return option.isDefined() ? Optional.of(option.get()) : Optional.empty();
     }
 
-    static Props props() {
-        return Props.create(HttpServerActor.class);
+    static Props props(StartupTimer startupTimer, RateController rateController, MemberMetrics memberMetrics,
+                       SingletonHandover singletonHandover, ClusterJournal clusterJournal, HotKeys hotKeys) {
+        return Props.create(HttpServerActor.class, startupTimer, rateController, memberMetrics, singletonHandover, clusterJournal, hotKeys)
+                .withMailbox("akka-cluster-openshift.http-server-mailbox");
     }
 
     static class StopNode implements Serializable {
@@ -243,11 +667,64 @@ public class HttpServerActor extends AbstractLoggingActor {
         }
     }
 
+    static class Resync implements Serializable {
+        @Override
+        public String toString() {
+            return getClass().getSimpleName();
+        }
+    }
+
+    static class Gather {
+        @Override
+        public String toString() {
+            return getClass().getSimpleName();
+        }
+    }
+
+    private static class AntiEntropyTick {
+        @Override
+        public String toString() {
+            return AntiEntropyTick.class.getSimpleName();
+        }
+    }
+
+    /**
+     * A member's shards and entities, or no answer when its region did not reply in time.
+     */
+    static class RegionState {
+        final String memberId;
+        final boolean answered;
+        final Map<String, Set<String>> shards = new HashMap<>();
+
+        RegionState(String memberId, ShardRegion.CurrentShardRegionState state) {
+            this.memberId = memberId;
+            this.answered = state != null;
+            if (answered) {
+                state.getShards().forEach(shard -> shards.put(shard.shardId(), shard.getEntityIds()));
+            }
+        }
+
+        int entities() {
+            return shards.values().stream().mapToInt(Set::size).sum();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %s, %d shards]", getClass().getSimpleName(), memberId, answered ? "answered" : "timed out", shards.size());
+        }
+    }
+
     public static class Tree implements Serializable {
         public final String name;
         public String type;
         public int events;
         public final List<Tree> children = new ArrayList<>();
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public MemberMetrics.Sample metrics;
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public Saturation.Sample saturation;
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public JvmMetrics.Sample jvm;
 
         public Tree(String name, String type) {
             this.name = name;
@@ -368,6 +845,22 @@ public class HttpServerActor extends AbstractLoggingActor {
             }
         }
 
+        /**
+         * Adds the hot type to the given shards and entities.
+         */
+        void setHot(Set<String> shardIds, Set<String> entityIds) {
+            children.forEach(member -> member.children.forEach(shard -> {
+                if (shardIds.contains(shard.name)) {
+                    shard.type = shard.type + " hot";
+                }
+                shard.children.forEach(entity -> {
+                    if (entityIds.contains(entity.name)) {
+                        entity.type = entity.type + " hot";
+                    }
+                });
+            }));
+        }
+
         int leafCount() {
             if (children.size() > 0) {
                 return children.stream().mapToInt(Tree::leafCount).sum();
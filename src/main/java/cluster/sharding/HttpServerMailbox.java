@@ -0,0 +1,209 @@
+package cluster.sharding;
+
+import akka.actor.ActorRef;
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionId;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import akka.dispatch.UnboundedMessageQueueSemantics;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.typesafe.config.Config;
+import scala.Option;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Unbounded {@link HttpServerActor} mailbox that handles control messages first and conflates queued topology
+ * actions. Beyond <code>capacity</code> topology actions, new ones forwarded from other nodes are dropped and
+ * a {@link HttpServerActor.Resync} is queued instead.
+ */
+class HttpServerMailbox implements MailboxType, ProducesMessageQueue<HttpServerMailbox.Queue> {
+    private final int capacity;
+
+    public HttpServerMailbox(ActorSystem.Settings settings, Config config) {
+        this(config.getInt("capacity"));
+    }
+
+    HttpServerMailbox(int capacity) {
+        this.capacity = capacity;
+    }
+
+    @Override
+    public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+        return new Queue(capacity, system.isDefined() ? Counters.get(system.get()) : new Counters());
+    }
+
+    static class Queue implements MessageQueue, UnboundedMessageQueueSemantics {
+        private final ArrayDeque<Envelope> control = new ArrayDeque<>();
+        private final ArrayDeque<Envelope> other = new ArrayDeque<>();
+        private final Map<String, Envelope> topology = new LinkedHashMap<>();
+        private final int capacity;
+        private final Counters counters;
+        private boolean resyncQueued;
+
+        Queue(int capacity, Counters counters) {
+            this.capacity = capacity;
+            this.counters = counters;
+        }
+
+        @Override
+        public synchronized void enqueue(ActorRef receiver, Envelope handle) {
+            Object message = handle.message();
+            String key = topologyKey(message);
+            if (key != null) {
+                enqueueTopology(key, handle);
+            } else if (isControl(message)) {
+                control.addLast(handle);
+            } else {
+                other.addLast(handle);
+            }
+            counters.depth(size());
+        }
+
+        private void enqueueTopology(String key, Envelope handle) {
+            if (topology.remove(key) != null) {
+                counters.conflated.increment();
+            } else if (topology.size() >= capacity && !isForward(handle.message())) {
+                counters.dropped.increment();
+                if (!resyncQueued) {
+                    resyncQueued = true;
+                    control.addLast(new Envelope(new HttpServerActor.Resync(), ActorRef.noSender()));
+                }
+                return;
+            }
+            topology.put(key, handle);
+        }
+
+        @Override
+        public synchronized Envelope dequeue() {
+            Envelope envelope = control.pollFirst();
+            if (envelope == null) {
+                envelope = other.pollFirst();
+            }
+            if (envelope == null && !topology.isEmpty()) {
+                Iterator<Envelope> oldest = topology.values().iterator();
+                envelope = oldest.next();
+                oldest.remove();
+            }
+            if (envelope != null && envelope.message() instanceof HttpServerActor.Resync) {
+                resyncQueued = false;
+                counters.resyncs.increment();
+            }
+            counters.depth(size());
+            return envelope;
+        }
+
+        @Override
+        public synchronized int numberOfMessages() {
+            return size();
+        }
+
+        @Override
+        public synchronized boolean hasMessages() {
+            return size() > 0;
+        }
+
+        @Override
+        public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+            Envelope envelope;
+            while ((envelope = dequeue()) != null) {
+                deadLetters.enqueue(owner, envelope);
+            }
+        }
+
+        private int size() {
+            return control.size() + other.size() + topology.size();
+        }
+
+        private static boolean isControl(Object message) {
+            return message instanceof HttpServerActor.StopNode
+                    || message instanceof RateController.Update
+                    || message instanceof HttpServerActor.Resync;
+        }
+
+        /**
+         * Actions from this node's own entities and singleton are still to be forwarded to the other
+         * nodes, which cannot resync on their behalf, so they are conflated but never dropped.
+         */
+        private static boolean isForward(Object message) {
+            return message instanceof EntityMessage.Action && ((EntityMessage.Action) message).forward
+                    || message instanceof ClusterSingletonActor.Action && ((ClusterSingletonActor.Action) message).forward;
+        }
+
+        private static String topologyKey(Object message) {
+            if (message instanceof EntityMessage.Action) {
+                EntityMessage.Action action = (EntityMessage.Action) message;
+                return String.format("entity/%s/%s/%s", action.member, action.shardId, action.entityId);
+            } else if (message instanceof ClusterSingletonActor.Action) {
+                ClusterSingletonActor.Action action = (ClusterSingletonActor.Action) message;
+                return String.format("singleton/%s/%s", action.member, action.action);
+            } else if (message instanceof AntiEntropy.Digest) {
+                return String.format("digest/%s", ((AntiEntropy.Digest) message).member);
+            } else if (message instanceof AntiEntropy.Repair) {
+                AntiEntropy.Repair repair = (AntiEntropy.Repair) message;
+                return String.format("repair/%s/%s", repair.member, new TreeSet<>(repair.shards.keySet()));
+            }
+            return null;
+        }
+    }
+
+    static class Counters implements Extension {
+        private static final ExtensionId<Counters> id = new AbstractExtensionId<Counters>() {
+            @Override
+            public Counters createExtension(ExtendedActorSystem system) {
+                return new Counters();
+            }
+        };
+        private final AtomicInteger depth = new AtomicInteger();
+        private final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+        private final LongAdder conflated = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+        private final LongAdder resyncs = new LongAdder();
+
+        private void depth(int depth) {
+            this.depth.set(depth);
+            maxDepth.accumulate(depth);
+        }
+
+        static Counters get(ActorSystem system) {
+            return id.get(system);
+        }
+
+        long dropped() {
+            return dropped.sum();
+        }
+
+        Map<String, Object> state() {
+            Map<String, Object> state = new LinkedHashMap<>();
+            state.put("depth", depth.get());
+            state.put("maxDepth", maxDepth.get());
+            state.put("conflated", conflated.sum());
+            state.put("dropped", dropped.sum());
+            state.put("resyncs", resyncs.sum());
+            return state;
+        }
+
+        String toJson() {
+            ObjectWriter ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
+            try {
+                return ow.writeValueAsString(state());
+            } catch (JsonProcessingException e) {
+                return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+            }
+        }
+    }
+}
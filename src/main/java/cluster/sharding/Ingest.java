@@ -0,0 +1,332 @@
+package cluster.sharding;
+
+import akka.actor.ActorRef;
+import akka.event.LoggingAdapter;
+import akka.japi.Pair;
+import akka.pattern.Patterns;
+import akka.stream.Materializer;
+import akka.stream.javadsl.FileIO;
+import akka.stream.javadsl.Framing;
+import akka.stream.javadsl.FramingTruncation;
+import akka.util.ByteString;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.typesafe.config.Config;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bulk load of entities from a CSV or NDJSON file into the shard region, with at most <code>parallelism</code>
+ * batches of <code>batchSize</code> set commands awaiting their acks.
+ */
+class Ingest {
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final Path directory;
+    final int parallelism;
+    final int batchSize;
+    private final Duration responseTimeout;
+    private final int maxLineLength;
+    private final long progressIntervalNanos;
+
+    Ingest(Path directory, int parallelism, int batchSize, Duration responseTimeout, int maxLineLength, Duration progressInterval) {
+        if (parallelism < 1 || batchSize < 1) {
+            throw new IllegalArgumentException(String.format("Parallelism %d and batch size %d must be at least 1", parallelism, batchSize));
+        }
+        this.directory = directory;
+        this.parallelism = parallelism;
+        this.batchSize = batchSize;
+        this.responseTimeout = responseTimeout;
+        this.maxLineLength = maxLineLength;
+        this.progressIntervalNanos = progressInterval.toNanos();
+    }
+
+    static Ingest create(Config config) {
+        Config ingest = config.getConfig("akka-cluster-openshift.ingest");
+        return new Ingest(
+                Paths.get(ingest.getString("directory")),
+                ingest.getInt("parallelism"),
+                ingest.getInt("batch-size"),
+                ingest.getDuration("response-timeout"),
+                ingest.getBytes("max-line-length").intValue(),
+                ingest.getDuration("progress-interval")
+        );
+    }
+
+    Ingest withParallelism(int parallelism, int batchSize) {
+        return new Ingest(directory, parallelism, batchSize, responseTimeout, maxLineLength, Duration.ofNanos(progressIntervalNanos));
+    }
+
+    /**
+     * A file named over HTTP, which must be inside the ingest directory.
+     */
+    Path file(String name) {
+        Path root = directory.toAbsolutePath().normalize();
+        Path file = root.resolve(name).normalize();
+        if (!file.startsWith(root)) {
+            throw new IllegalArgumentException(String.format("File '%s' is not in %s", name, root));
+        }
+        return file;
+    }
+
+    /**
+     * Starts loading the file. The returned progress is updated as acks arrive, and completes when the
+     * whole file is loaded or the stream fails.
+     */
+    Progress start(Path file, ActorRef shardRegion, Materializer materializer, LoggingAdapter log) {
+        return start(file, progress(file), shardRegion, materializer, log);
+    }
+
+    /**
+     * The progress of a load of the file that is not started yet.
+     */
+    Progress progress(Path file) {
+        return new Progress(file.toString(), Format.of(file), parallelism, batchSize, System.nanoTime());
+    }
+
+    Progress start(Path file, Progress progress, ActorRef shardRegion, Materializer materializer, LoggingAdapter log) {
+        Format format = progress.format;
+        log.info("Ingest start {}", progress);
+        FileIO.fromPath(file)
+                .via(Framing.delimiter(ByteString.fromString("\n"), maxLineLength, FramingTruncation.ALLOW))
+                .zipWithIndex()
+                .mapConcat(line -> parse(format, line, progress))
+                .grouped(batchSize)
+                .mapAsyncUnordered(parallelism, batch -> send(batch, shardRegion, progress))
+                .runForeach(batch -> {
+                    if (progress.due(System.nanoTime(), progressIntervalNanos)) {
+                        log.info("Ingest {}", progress);
+                    }
+                }, materializer)
+                .whenComplete((done, e) -> {
+                    progress.finished(System.nanoTime(), e);
+                    if (e == null) {
+                        log.info("Ingest completed {}", progress);
+                    } else {
+                        log.error(e, "Ingest failed {}", progress);
+                    }
+                });
+        return progress;
+    }
+
+    private static List<Record> parse(Format format, Pair<ByteString, Long> line, Progress progress) {
+        long lineNumber = line.second() + 1;
+        String text = line.first().utf8String().trim();
+        progress.line();
+        if (text.isEmpty() || format == Format.csv && lineNumber == 1 && text.equalsIgnoreCase("id,value")) {
+            return Collections.emptyList();
+        }
+        try {
+            Entity entity = format == Format.csv ? parseCsv(text) : parseNdjson(text);
+            return Collections.singletonList(new Record(lineNumber, entity));
+        } catch (IOException | RuntimeException e) {
+            progress.malformed(lineNumber, e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    static Entity parseNdjson(String line) throws IOException {
+        JsonNode json = objectMapper.readTree(line);
+        JsonNode id = json.get("id");
+        JsonNode value = json.get("value");
+        if (id == null || !id.isValueNode() || value == null || !value.isValueNode() || value.isNull()) {
+            throw new IllegalArgumentException("Expected {\"id\": ..., \"value\": ...}");
+        }
+        return new Entity(new Entity.Id(id.asText()), value.isIntegralNumber() && value.canConvertToLong()
+                ? Entity.Value.number(value.longValue())
+                : Entity.Value.text(value.asText()));
+    }
+
+    static Entity parseCsv(String line) {
+        int comma = line.indexOf(',');
+        if (comma < 1) {
+            throw new IllegalArgumentException("Expected id,value");
+        }
+        String id = line.substring(0, comma).trim();
+        String value = line.substring(comma + 1).trim();
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            return new Entity(new Entity.Id(id), Entity.Value.text(value.substring(1, value.length() - 1).replace("\"\"", "\"")));
+        }
+        try {
+            return new Entity(new Entity.Id(id), Entity.Value.number(Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            return new Entity(new Entity.Id(id), Entity.Value.text(value));
+        }
+    }
+
+    /**
+     * Sends the batch's commands at once and completes when all of them are acked or timed out.
+     */
+    private CompletionStage<Integer> send(List<Record> batch, ActorRef shardRegion, Progress progress) {
+        CompletableFuture<?>[] acks = new CompletableFuture<?>[batch.size()];
+        for (int i = 0; i < acks.length; i++) {
+            Record record = batch.get(i);
+            acks[i] = Patterns.ask(shardRegion, new EntityMessage.Command(record.entity), responseTimeout)
+                    .handle((reply, e) -> {
+                        progress.reply(record, reply, e);
+                        return reply;
+                    })
+                    .toCompletableFuture();
+        }
+        return CompletableFuture.allOf(acks).thenApply(done -> batch.size());
+    }
+
+    enum Format {
+        ndjson, csv;
+
+        static Format of(Path file) {
+            return file.getFileName().toString().toLowerCase().endsWith(".csv") ? csv : ndjson;
+        }
+    }
+
+    private static class Record {
+        final long line;
+        final Entity entity;
+
+        Record(long line, Entity entity) {
+            this.line = line;
+            this.entity = entity;
+        }
+    }
+
+    /**
+     * Counts of one ingestion. Records are the parsed lines; each record ends up applied, rejected by its
+     * entity, or failed when no ack arrived within the response timeout.
+     */
+    static class Progress {
+        final String file;
+        final Format format;
+        final int parallelism;
+        final int batchSize;
+        private final long startedNanos;
+        private final CompletableFuture<Progress> completion = new CompletableFuture<>();
+        private long lines;
+        private long records;
+        private long applied;
+        private long rejected;
+        private long failed;
+        private long malformed;
+        private String lastError;
+        private long finishedNanos;
+        private long loggedNanos;
+        private String status = "running";
+
+        Progress(String file, Format format, int parallelism, int batchSize, long startedNanos) {
+            this.file = file;
+            this.format = format;
+            this.parallelism = parallelism;
+            this.batchSize = batchSize;
+            this.startedNanos = startedNanos;
+            this.loggedNanos = startedNanos;
+        }
+
+        synchronized void line() {
+            lines++;
+        }
+
+        synchronized void malformed(long line, String error) {
+            malformed++;
+            lastError = String.format("line %d: %s", line, error);
+        }
+
+        synchronized void reply(Record record, Object reply, Throwable e) {
+            records++;
+            if (reply instanceof EntityMessage.CommandAck && ((EntityMessage.CommandAck) reply).isApplied()) {
+                applied++;
+            } else if (reply instanceof EntityMessage.CommandAck) {
+                rejected++;
+                lastError = String.format("line %d: %s", record.line, reply);
+            } else {
+                failed++;
+                lastError = String.format("line %d: %s", record.line, e == null ? reply : e.getMessage());
+            }
+        }
+
+        synchronized boolean due(long nowNanos, long intervalNanos) {
+            if (nowNanos - loggedNanos < intervalNanos) {
+                return false;
+            }
+            loggedNanos = nowNanos;
+            return true;
+        }
+
+        void finished(long nowNanos, Throwable e) {
+            synchronized (this) {
+                finishedNanos = nowNanos;
+                if (e == null) {
+                    status = "completed";
+                } else {
+                    status = "failed";
+                    lastError = e.getMessage();
+                }
+            }
+            completion.complete(this);
+        }
+
+        /**
+         * Completes with this progress once the ingestion has finished, whether it completed or failed.
+         */
+        CompletionStage<Progress> completion() {
+            return completion;
+        }
+
+        synchronized boolean isRunning() {
+            return status.equals("running");
+        }
+
+        synchronized long applied() {
+            return applied;
+        }
+
+        synchronized double recordsPerSecond() {
+            long elapsedNanos = (finishedNanos == 0 ? System.nanoTime() : finishedNanos) - startedNanos;
+            return elapsedNanos > 0 ? records * 1e9 / elapsedNanos : 0;
+        }
+
+        synchronized Map<String, Object> state() {
+            Map<String, Object> state = new LinkedHashMap<>();
+            state.put("file", file);
+            state.put("format", format.name());
+            state.put("status", status);
+            state.put("parallelism", parallelism);
+            state.put("batchSize", batchSize);
+            state.put("lines", lines);
+            state.put("records", records);
+            state.put("applied", applied);
+            state.put("rejected", rejected);
+            state.put("failed", failed);
+            state.put("malformed", malformed);
+            state.put("elapsedMs", TimeUnit.NANOSECONDS.toMillis((finishedNanos == 0 ? System.nanoTime() : finishedNanos) - startedNanos));
+            state.put("recordsPerSecond", Math.round(recordsPerSecond()));
+            state.put("lastError", lastError);
+            return state;
+        }
+
+        String toJson() {
+            ObjectWriter ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
+            try {
+                return ow.writeValueAsString(state());
+            } catch (JsonProcessingException e) {
+                return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%s[%s %s, %s, %d records, %d applied, %d rejected, %d failed, %d malformed, %.0f/s]",
+                    getClass().getSimpleName(), format, file, status, records, applied, rejected, failed, malformed, recordsPerSecond());
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package cluster.sharding;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.typesafe.config.Config;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.Serializable;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap occupancy, garbage collection pauses and allocation rate of a node, read from the platform MXBeans.
+ */
+class JvmMetrics {
+    final Duration reportInterval;
+    final int topThreads;
+
+    JvmMetrics(Duration reportInterval, int topThreads) {
+        this.reportInterval = reportInterval;
+        this.topThreads = topThreads;
+    }
+
+    static JvmMetrics create(Config config) {
+        Config jvmMetrics = config.getConfig("akka-cluster-openshift.jvm-metrics");
+        return new JvmMetrics(
+                jvmMetrics.getDuration("report-interval"),
+                jvmMetrics.getInt("top-threads")
+        );
+    }
+
+    Collector collector(long nowNanos) {
+        return new Collector(topThreads, nowNanos);
+    }
+
+    /**
+     * Reads the MXBeans. Samples are taken by one actor at a time; pauses arrive on the JMX notification thread.
+     */
+    static class Collector implements NotificationListener {
+        private final int topThreads;
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private final com.sun.management.ThreadMXBean allocations;
+        private Map<Long, Long> allocated = new HashMap<>();
+        private long gcCount;
+        private long gcMillis;
+        private long maxPauseMillis;
+        private long sampledNanos;
+
+        Collector(int topThreads, long nowNanos) {
+            this.topThreads = topThreads;
+            this.allocations = threads instanceof com.sun.management.ThreadMXBean
+                    && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()
+                    ? (com.sun.management.ThreadMXBean) threads : null;
+            if (allocations != null && !allocations.isThreadAllocatedMemoryEnabled()) {
+                allocations.setThreadAllocatedMemoryEnabled(true);
+            }
+            for (GarbageCollectorMXBean collector : collectors) {
+                gcCount += Math.max(0, collector.getCollectionCount());
+                gcMillis += Math.max(0, collector.getCollectionTime());
+                if (collector instanceof NotificationEmitter) {
+                    ((NotificationEmitter) collector).addNotificationListener(this, null, null);
+                }
+            }
+            allocatedPerThread(1);
+            sampledNanos = nowNanos;
+        }
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                if (isPause(info.getGcName())) {
+                    pause(info.getGcInfo().getDuration());
+                }
+            }
+        }
+
+        private static boolean isPause(String gcName) {
+            return !gcName.contains("Concurrent") && !gcName.contains("Cycles");
+        }
+
+        private synchronized void pause(long millis) {
+            maxPauseMillis = Math.max(maxPauseMillis, millis);
+        }
+
+        Sample sample(long nowNanos) {
+            long windowNanos = Math.max(1, nowNanos - sampledNanos);
+            sampledNanos = nowNanos;
+
+            long count = 0;
+            long millis = 0;
+            for (GarbageCollectorMXBean collector : collectors) {
+                count += Math.max(0, collector.getCollectionCount());
+                millis += Math.max(0, collector.getCollectionTime());
+            }
+            long windowCount = count - gcCount;
+            long windowMillis = millis - gcMillis;
+            gcCount = count;
+            gcMillis = millis;
+            long maxPause;
+            synchronized (this) {
+                maxPause = maxPauseMillis;
+                maxPauseMillis = 0;
+            }
+
+            Map<Long, Long> perSecond = allocatedPerThread(windowNanos);
+            long allocatedPerSecond = perSecond.values().stream().mapToLong(Long::longValue).sum();
+            MemoryUsage heap = memory.getHeapMemoryUsage();
+            return new Sample(heap.getUsed(), heap.getCommitted(), heap.getMax(), windowCount, windowMillis, maxPause,
+                    allocatedPerSecond, topThreads(perSecond), TimeUnit.NANOSECONDS.toMillis(windowNanos));
+        }
+
+        /**
+         * Bytes allocated per second since the previous call by each live thread. A thread started since
+         * then counts all it allocated.
+         */
+        private Map<Long, Long> allocatedPerThread(long windowNanos) {
+            if (allocations == null) {
+                return Collections.emptyMap();
+            }
+            long[] ids = threads.getAllThreadIds();
+            long[] bytes = allocations.getThreadAllocatedBytes(ids);
+            Map<Long, Long> latest = new HashMap<>(ids.length * 2);
+            Map<Long, Long> perSecond = new HashMap<>(ids.length * 2);
+            for (int i = 0; i < ids.length; i++) {
+                if (bytes[i] >= 0) {
+                    latest.put(ids[i], bytes[i]);
+                    long delta = bytes[i] - allocated.getOrDefault(ids[i], 0L);
+                    perSecond.put(ids[i], (long) (delta * 1e9 / windowNanos));
+                }
+            }
+            allocated = latest;
+            return perSecond;
+        }
+
+        private Map<String, Long> topThreads(Map<Long, Long> perSecond) {
+            Map<String, Long> top = new LinkedHashMap<>();
+            perSecond.entrySet().stream()
+                    .filter(thread -> thread.getValue() > 0)
+                    .sorted(Map.Entry.<Long, Long>comparingByValue().reversed())
+                    .limit(topThreads)
+                    .forEach(thread -> {
+                        ThreadInfo info = threads.getThreadInfo(thread.getKey(), 0);
+                        if (info != null) {
+                            top.merge(info.getThreadName(), thread.getValue(), Long::sum);
+                        }
+                    });
+            return top;
+        }
+
+        void close() {
+            for (GarbageCollectorMXBean collector : collectors) {
+                if (collector instanceof NotificationEmitter) {
+                    try {
+                        ((NotificationEmitter) collector).removeNotificationListener(this);
+                    } catch (ListenerNotFoundException e) {
+                        // Not registered, nothing to remove.
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * One report interval of a node. Heap sizes are in bytes, <code>heapMax</code> is -1 when the heap is
+     * unbounded, and allocation rates are in bytes per second.
+     */
+    public static class Sample implements Serializable {
+        public final long heapUsed;
+        public final long heapCommitted;
+        public final long heapMax;
+        public final long gcCount;
+        public final long gcMillis;
+        public final long maxPauseMillis;
+        public final long allocatedPerSecond;
+        public final Map<String, Long> topThreads;
+        public final long intervalMillis;
+
+        Sample(long heapUsed, long heapCommitted, long heapMax, long gcCount, long gcMillis, long maxPauseMillis,
+               long allocatedPerSecond, Map<String, Long> topThreads, long intervalMillis) {
+            this.heapUsed = heapUsed;
+            this.heapCommitted = heapCommitted;
+            this.heapMax = heapMax;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+            this.maxPauseMillis = maxPauseMillis;
+            this.allocatedPerSecond = allocatedPerSecond;
+            this.topThreads = Collections.unmodifiableMap(new LinkedHashMap<>(topThreads));
+            this.intervalMillis = intervalMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[heap %dMB of %dMB, %d GCs %dms max pause %dms, allocated %dMB/s, in %dms]",
+                    getClass().getSimpleName(), heapUsed >> 20, (heapMax < 0 ? heapCommitted : heapMax) >> 20,
+                    gcCount, gcMillis, maxPauseMillis, allocatedPerSecond >> 20, intervalMillis);
+        }
+    }
+
+    static class Report implements Serializable {
+        final String member;
+        final Sample sample;
+
+        Report(String member, Sample sample) {
+            this.member = member;
+            this.sample = sample;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %s]", getClass().getSimpleName(), member, sample);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package cluster.sharding;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorSelection;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.cluster.Cluster;
+import akka.cluster.Member;
+import akka.cluster.MemberStatus;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.concurrent.TimeUnit;
+
+class JvmMetricsActor extends AbstractLoggingActor {
+    private final MemberMetrics memberMetrics;
+    private final JvmMetrics jvmMetrics;
+    private final Cluster cluster = Cluster.get(context().system());
+    private JvmMetrics.Collector collector;
+    private Cancellable ticker;
+
+    private JvmMetricsActor(MemberMetrics memberMetrics, JvmMetrics jvmMetrics) {
+        this.memberMetrics = memberMetrics;
+        this.jvmMetrics = jvmMetrics;
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .matchEquals("tick", t -> report())
+                .match(JvmMetrics.Report.class, this::receiveReport)
+                .build();
+    }
+
+    private void report() {
+        JvmMetrics.Report report = new JvmMetrics.Report(cluster.selfAddress().toString(), collector.sample(System.nanoTime()));
+        log().debug("{}", report);
+        memberMetrics.update(report.member, report.sample);
+        cluster.state().getMembers().forEach(member -> {
+            if (!cluster.selfMember().equals(member) && member.status().equals(MemberStatus.up())) {
+                forward(report, member);
+            }
+        });
+    }
+
+    private void forward(JvmMetrics.Report report, Member member) {
+        ActorSelection peer = context().actorSelection(member.address().toString() + self().path().toStringWithoutAddress());
+        peer.tell(report, self());
+    }
+
+    private void receiveReport(JvmMetrics.Report report) {
+        log().debug("{} <-- {}", report, sender());
+        memberMetrics.update(report.member, report.sample);
+    }
+
+    @Override
+    public void preStart() {
+        log().info("Start");
+        collector = jvmMetrics.collector(System.nanoTime());
+        FiniteDuration every = FiniteDuration.create(jvmMetrics.reportInterval.toNanos(), TimeUnit.NANOSECONDS);
+        ticker = context().system().scheduler().schedule(every, every, self(), "tick", context().system().dispatcher(), null);
+    }
+
+    @Override
+    public void postStop() {
+        log().info("Stop");
+        ticker.cancel();
+        collector.close();
+    }
+
+    static Props props(MemberMetrics memberMetrics, JvmMetrics jvmMetrics) {
+        return Props.create(JvmMetricsActor.class, memberMetrics, jvmMetrics);
+    }
+}
@@ -0,0 +1,248 @@
+package cluster.sharding;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionId;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Histograms of where the time of traced entity commands and queries goes: <code>sender</code>,
+ * <code>region</code>, <code>mailbox</code>, <code>processing</code>, and the rest as <code>network</code>.
+ * Only times read on the same node are compared, so clock skew between nodes does not matter.
+ */
+class LatencyTrace implements Extension {
+    private static final ExtensionId<LatencyTrace> id = new AbstractExtensionId<LatencyTrace>() {
+        @Override
+        public LatencyTrace createExtension(ExtendedActorSystem system) {
+            return new LatencyTrace();
+        }
+    };
+
+    enum Stage {total, sender, region, mailbox, processing, network, serialization}
+
+    private final Histogram[] histograms = new Histogram[Stage.values().length];
+    private long resetNanos = System.nanoTime();
+
+    LatencyTrace() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    static LatencyTrace get(ActorSystem system) {
+        return id.get(system);
+    }
+
+    static boolean sample(double rate) {
+        return rate > 0 && (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate);
+    }
+
+    synchronized void record(Hops hops, long nowNanos) {
+        long total = nowNanos - hops.sentNanos;
+        histograms[Stage.total.ordinal()].record(total);
+        histograms[Stage.sender.ordinal()].record(hops.senderNanos);
+        histograms[Stage.region.ordinal()].record(hops.regionNanos);
+        histograms[Stage.mailbox.ordinal()].record(hops.mailboxNanos);
+        histograms[Stage.processing.ordinal()].record(hops.processingNanos);
+        histograms[Stage.network.ordinal()].record(total - hops.senderNanos - hops.regionNanos - hops.mailboxNanos - hops.processingNanos);
+    }
+
+    /**
+     * Records the hops of a reply to a traced request; other replies are ignored.
+     */
+    void recordReply(Object reply, long nowNanos) {
+        Hops hops = null;
+        if (reply instanceof EntityMessage.CommandAck) {
+            hops = ((EntityMessage.CommandAck) reply).hops;
+        } else if (reply instanceof EntityMessage.QueryAck) {
+            hops = ((EntityMessage.QueryAck) reply).hops;
+        } else if (reply instanceof EntityMessage.QueryAckNotFound) {
+            hops = ((EntityMessage.QueryAckNotFound) reply).hops;
+        }
+        if (hops != null) {
+            record(hops, nowNanos);
+        }
+    }
+
+    synchronized void serialization(long nanos) {
+        histograms[Stage.serialization.ordinal()].record(nanos);
+    }
+
+    synchronized Histogram histogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    synchronized void reset() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+        resetNanos = System.nanoTime();
+    }
+
+    synchronized Map<String, Object> state() {
+        Map<String, Object> state = new LinkedHashMap<>();
+        state.put("sinceSeconds", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - resetNanos));
+        for (Stage stage : Stage.values()) {
+            state.put(stage.name(), histograms[stage.ordinal()].state());
+        }
+        return state;
+    }
+
+    String toJson() {
+        ObjectWriter ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
+        try {
+            return ow.writeValueAsString(state());
+        } catch (JsonProcessingException e) {
+            return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+        }
+    }
+
+    /**
+     * Trace carried by a command or query. <code>sentNanos</code> is on the sending node's clock and
+     * <code>localNanos</code> and <code>shardNanos</code> on the clock of the node the request is on now.
+     * <code>waitNanos</code> is the time already spent on earlier nodes.
+     */
+    static class Trace implements Serializable {
+        final long sentNanos;
+        final long waitNanos;
+        final long localNanos;
+        final long shardNanos;
+
+        Trace(long sentNanos, long waitNanos, long localNanos, long shardNanos) {
+            this.sentNanos = sentNanos;
+            this.waitNanos = waitNanos;
+            this.localNanos = localNanos;
+            this.shardNanos = shardNanos;
+        }
+
+        static Trace sent(long nowNanos) {
+            return new Trace(nowNanos, 0, nowNanos, 0);
+        }
+
+        /**
+         * The time spent on this node so far, written when the request leaves it.
+         */
+        long waitNanos(long nowNanos) {
+            return waitNanos + nowNanos - localNanos;
+        }
+
+        static Trace arrived(long sentNanos, long waitNanos, long nowNanos) {
+            return new Trace(sentNanos, waitNanos, nowNanos, 0);
+        }
+
+        Trace atShard(long nowNanos) {
+            return new Trace(sentNanos, waitNanos, localNanos, nowNanos);
+        }
+
+        Hops hops(long dequeuedNanos, long ackedNanos) {
+            long shard = shardNanos == 0 ? dequeuedNanos : shardNanos;
+            return new Hops(sentNanos, waitNanos, shard - localNanos, dequeuedNanos - shard, ackedNanos - dequeuedNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[sent %d, wait %dns]", getClass().getSimpleName(), sentNanos, waitNanos);
+        }
+    }
+
+    /**
+     * Stage durations returned with the reply to a traced request, with its send time on the sender's clock.
+     */
+    static class Hops implements Serializable {
+        final long sentNanos;
+        final long senderNanos;
+        final long regionNanos;
+        final long mailboxNanos;
+        final long processingNanos;
+
+        Hops(long sentNanos, long senderNanos, long regionNanos, long mailboxNanos, long processingNanos) {
+            this.sentNanos = sentNanos;
+            this.senderNanos = senderNanos;
+            this.regionNanos = regionNanos;
+            this.mailboxNanos = mailboxNanos;
+            this.processingNanos = processingNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[sender %dns, region %dns, mailbox %dns, processing %dns]", getClass().getSimpleName(),
+                    senderNanos, regionNanos, mailboxNanos, processingNanos);
+        }
+    }
+
+    /**
+     * Log linear histogram of microseconds, eight buckets per power of two, so a percentile is within 12.5%
+     * of the recorded value. Negative durations, which rounding can produce for tiny stages, count as zero.
+     */
+    static class Histogram {
+        private static final int subBuckets = 8;
+        private final long[] counts = new long[64 * subBuckets];
+        private long count;
+        private long sumMicros;
+        private long maxMicros;
+
+        void record(long nanos) {
+            long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+            counts[bucket(micros)]++;
+            count++;
+            sumMicros += micros;
+            maxMicros = Math.max(maxMicros, micros);
+        }
+
+        long count() {
+            return count;
+        }
+
+        /**
+         * The upper bound of the bucket holding the percentile, in microseconds.
+         */
+        long percentileMicros(double percentile) {
+            long rank = (long) Math.ceil(count * percentile);
+            long seen = 0;
+            for (int bucket = 0; bucket < counts.length; bucket++) {
+                seen += counts[bucket];
+                if (seen >= rank && counts[bucket] > 0) {
+                    return Math.min(maxMicros, lowerBound(bucket + 1) - 1);
+                }
+            }
+            return maxMicros;
+        }
+
+        Map<String, Object> state() {
+            Map<String, Object> state = new LinkedHashMap<>();
+            state.put("count", count);
+            state.put("meanMs", count == 0 ? 0 : sumMicros / 1e3 / count);
+            state.put("p50Ms", percentileMicros(0.5) / 1e3);
+            state.put("p90Ms", percentileMicros(0.9) / 1e3);
+            state.put("p99Ms", percentileMicros(0.99) / 1e3);
+            state.put("maxMs", maxMicros / 1e3);
+            return state;
+        }
+
+        private static int bucket(long micros) {
+            if (micros < subBuckets) {
+                return (int) micros;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            return (exponent - 2) * subBuckets + (int) ((micros >>> (exponent - 3)) & (subBuckets - 1));
+        }
+
+        private static long lowerBound(int bucket) {
+            if (bucket < subBuckets) {
+                return bucket;
+            }
+            int exponent = bucket / subBuckets + 2;
+            return (long) (subBuckets + bucket % subBuckets) << (exponent - 3);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package cluster.sharding;
+
+import akka.actor.ActorRef;
+import akka.cluster.sharding.ShardCoordinator;
+import akka.dispatch.Futures;
+import com.typesafe.config.Config;
+import scala.collection.JavaConverters;
+import scala.collection.immutable.IndexedSeq;
+import scala.concurrent.Future;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Allocates and rebalances shards by reported shard load, scaled by the {@link MemberMetrics} pressure of
+ * each member, instead of shard count. Without load reports shard counts are balanced as by the least
+ * shard allocation strategy.
+ */
+class LoadAwareShardAllocationStrategy extends ShardCoordinator.AbstractShardAllocationStrategy {
+    private final ShardLoad.Table table;
+    private final MemberMetrics memberMetrics;
+    private final double rebalanceThreshold;
+    private final double minLoadDifference;
+    private final int maxSimultaneousRebalance;
+    private final long moveCooldownNanos;
+    private final LongSupplier clock;
+    private final Map<String, Long> lastMoved = new HashMap<>();
+
+    LoadAwareShardAllocationStrategy(ShardLoad.Table table, MemberMetrics memberMetrics, double rebalanceThreshold, double minLoadDifference,
+                                     int maxSimultaneousRebalance, long moveCooldownNanos, LongSupplier clock) {
+        this.table = table;
+        this.memberMetrics = memberMetrics;
+        this.rebalanceThreshold = rebalanceThreshold;
+        this.minLoadDifference = minLoadDifference;
+        this.maxSimultaneousRebalance = maxSimultaneousRebalance;
+        this.moveCooldownNanos = moveCooldownNanos;
+        this.clock = clock;
+    }
+
+    static LoadAwareShardAllocationStrategy create(Config config, ShardLoad.Table table, MemberMetrics memberMetrics) {
+        Config allocation = config.getConfig("akka-cluster-openshift.shard-allocation");
+        return new LoadAwareShardAllocationStrategy(
+                table,
+                memberMetrics,
+                allocation.getDouble("rebalance-threshold"),
+                allocation.getDouble("min-load-difference"),
+                allocation.getInt("max-simultaneous-rebalance"),
+                allocation.getDuration("move-cooldown", TimeUnit.NANOSECONDS),
+                System::nanoTime
+        );
+    }
+
+    @Override
+    public Future<ActorRef> allocateShard(ActorRef requester, String shardId, Map<ActorRef, IndexedSeq<String>> currentShardAllocations) {
+        return Futures.successful(selectRegion(asJava(currentShardAllocations), this::pressure));
+    }
+
+    @Override
+    public Future<Set<String>> rebalance(Map<ActorRef, IndexedSeq<String>> currentShardAllocations, Set<String> rebalanceInProgress) {
+        return Futures.successful(selectShardsToMove(asJava(currentShardAllocations), rebalanceInProgress, this::pressure));
+    }
+
+    <R> R selectRegion(Map<R, List<String>> allocations, ToDoubleFunction<R> pressure) {
+        Map<R, Double> pressures = pressures(allocations, pressure);
+        Map<R, Double> loads = loads(allocations, pressures, clock.getAsLong());
+        R selected = null;
+        for (R region : allocations.keySet()) {
+            if (selected == null || compare(region, selected, loads, pressures, allocations) < 0) {
+                selected = region;
+            }
+        }
+        return selected;
+    }
+
+    <R> Set<String> selectShardsToMove(Map<R, List<String>> allocations, Set<String> rebalanceInProgress, ToDoubleFunction<R> pressure) {
+        int moves = maxSimultaneousRebalance - rebalanceInProgress.size();
+        if (moves <= 0 || allocations.size() < 2) {
+            return Collections.emptySet();
+        }
+        long now = clock.getAsLong();
+        Map<R, Double> pressures = pressures(allocations, pressure);
+        Map<R, Double> loads = loads(allocations, pressures, now);
+        Map<R, Double> destinations = destinations(loads, pressures);
+        double total = loads.values().stream().mapToDouble(Double::doubleValue).sum();
+
+        Set<String> selected = new HashSet<>();
+        if (total <= 0) {
+            selectByShardCount(allocations, pressures, rebalanceInProgress, moves, selected);
+            return selected;
+        }
+
+        double mean = total / allocations.size();
+        for (int move = 0; move < moves; move++) {
+            R most = extreme(loads, 1);
+            R least = extreme(destinations, -1);
+            double difference = loads.get(most) - loads.get(least);
+            if (difference <= rebalanceThreshold * mean || difference < minLoadDifference) {
+                break;
+            }
+
+            String best = null;
+            double bestWeight = 0;
+            double mostFactor = memberMetrics.loadFactor(pressures.get(most));
+            for (String shardId : allocations.get(most)) {
+                double weight = table.weight(shardId, now) * mostFactor;
+                if (weight <= 0 || weight >= difference || !isMovable(shardId, rebalanceInProgress, selected, now)) {
+                    continue;
+                }
+                if (best == null || Math.abs(difference / 2 - weight) < Math.abs(difference / 2 - bestWeight)) {
+                    best = shardId;
+                    bestWeight = weight;
+                }
+            }
+            if (best == null) {
+                break;
+            }
+            selected.add(best);
+            lastMoved.put(best, now);
+            double leastWeight = bestWeight / mostFactor * memberMetrics.loadFactor(pressures.get(least));
+            loads.put(most, loads.get(most) - bestWeight);
+            loads.put(least, loads.get(least) + leastWeight);
+            destinations.put(least, destinations.get(least) + leastWeight);
+        }
+        return selected;
+    }
+
+    private <R> void selectByShardCount(Map<R, List<String>> allocations, Map<R, Double> pressures, Set<String> rebalanceInProgress,
+                                        int moves, Set<String> selected) {
+        Map<R, Double> counts = new LinkedHashMap<>();
+        allocations.forEach((region, shards) -> counts.put(region, (double) shards.size()));
+        Map<R, Double> destinations = destinations(counts, pressures);
+        for (int move = 0; move < moves; move++) {
+            R most = extreme(counts, 1);
+            R least = extreme(destinations, -1);
+            if (counts.get(most) - counts.get(least) <= 1) {
+                return;
+            }
+            String shardId = allocations.get(most).stream()
+                    .filter(s -> !rebalanceInProgress.contains(s) && !selected.contains(s))
+                    .findFirst()
+                    .orElse(null);
+            if (shardId == null) {
+                return;
+            }
+            selected.add(shardId);
+            counts.put(most, counts.get(most) - 1);
+            counts.put(least, counts.get(least) + 1);
+            destinations.put(least, destinations.get(least) + 1);
+        }
+    }
+
+    private boolean isMovable(String shardId, Set<String> rebalanceInProgress, Set<String> selected, long now) {
+        Long moved = lastMoved.get(shardId);
+        return !rebalanceInProgress.contains(shardId)
+                && !selected.contains(shardId)
+                && (moved == null || now - moved >= moveCooldownNanos);
+    }
+
+    private <R> Map<R, Double> loads(Map<R, List<String>> allocations, Map<R, Double> pressures, long now) {
+        Map<R, Double> loads = new LinkedHashMap<>();
+        allocations.forEach((region, shards) -> loads.put(region,
+                memberMetrics.loadFactor(pressures.get(region)) * shards.stream().mapToDouble(shardId -> table.weight(shardId, now)).sum()));
+        return loads;
+    }
+
+    private static <R> Map<R, Double> pressures(Map<R, List<String>> allocations, ToDoubleFunction<R> pressure) {
+        Map<R, Double> pressures = new LinkedHashMap<>();
+        allocations.keySet().forEach(region -> pressures.put(region, pressure.applyAsDouble(region)));
+        return pressures;
+    }
+
+    /**
+     * Regions that may receive shards, all but the saturated ones unless every region is saturated.
+     */
+    private <R> Map<R, Double> destinations(Map<R, Double> values, Map<R, Double> pressures) {
+        Map<R, Double> destinations = new LinkedHashMap<>();
+        values.forEach((region, value) -> {
+            if (!memberMetrics.isSaturated(pressures.get(region))) {
+                destinations.put(region, value);
+            }
+        });
+        return destinations.isEmpty() ? new LinkedHashMap<>(values) : destinations;
+    }
+
+    private <R> int compare(R a, R b, Map<R, Double> loads, Map<R, Double> pressures, Map<R, List<String>> allocations) {
+        int bySaturation = Boolean.compare(memberMetrics.isSaturated(pressures.get(a)), memberMetrics.isSaturated(pressures.get(b)));
+        if (bySaturation != 0) {
+            return bySaturation;
+        }
+        int byLoad = Double.compare(loads.get(a), loads.get(b));
+        if (byLoad != 0) {
+            return byLoad;
+        }
+        int byCount = Integer.compare(allocations.get(a).size(), allocations.get(b).size());
+        return byCount != 0 ? byCount : Double.compare(pressures.get(a), pressures.get(b));
+    }
+
+    private double pressure(ActorRef region) {
+        return memberMetrics.pressure(region.path().address());
+    }
+
+    private static <R> R extreme(Map<R, Double> values, int sign) {
+        R selected = null;
+        for (Map.Entry<R, Double> entry : values.entrySet()) {
+            if (selected == null || sign * Double.compare(entry.getValue(), values.get(selected)) > 0) {
+                selected = entry.getKey();
+            }
+        }
+        return selected;
+    }
+
+    private static Map<ActorRef, List<String>> asJava(Map<ActorRef, IndexedSeq<String>> allocations) {
+        Map<ActorRef, List<String>> converted = new LinkedHashMap<>();
+        allocations.forEach((region, shards) -> converted.put(region, JavaConverters.seqAsJavaList(shards)));
+        return converted;
+    }
+}
@@ -0,0 +1,217 @@
+package cluster.sharding;
+
+import akka.actor.Address;
+import akka.cluster.metrics.NodeMetrics;
+import akka.cluster.metrics.StandardMetrics;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.typesafe.config.Config;
+import scala.Option;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Latest akka-cluster-metrics sample of every member, reduced to a pressure, the highest of heap usage, CPU
+ * usage and load average per processor, with the members' latest {@link Saturation} and {@link JvmMetrics}.
+ */
+class MemberMetrics {
+    private final Map<String, Sample> samples = new ConcurrentHashMap<>();
+    private final Map<String, Saturation.Sample> saturation = new ConcurrentHashMap<>();
+    private final Map<String, JvmMetrics.Sample> jvm = new ConcurrentHashMap<>();
+    private final Address selfAddress;
+    final double pressureWeight;
+    final double saturated;
+    final double throttleAbove;
+    final double minThrottle;
+
+    MemberMetrics(Address selfAddress, double pressureWeight, double saturated, double throttleAbove, double minThrottle) {
+        this.selfAddress = selfAddress;
+        this.pressureWeight = pressureWeight;
+        this.saturated = saturated;
+        this.throttleAbove = throttleAbove;
+        this.minThrottle = minThrottle;
+    }
+
+    static MemberMetrics create(Config config, Address selfAddress) {
+        Config memberMetrics = config.getConfig("akka-cluster-openshift.member-metrics");
+        return new MemberMetrics(
+                selfAddress,
+                memberMetrics.getDouble("pressure-weight"),
+                memberMetrics.getDouble("saturated"),
+                memberMetrics.getDouble("throttle-above"),
+                memberMetrics.getDouble("min-throttle")
+        );
+    }
+
+    void update(Iterable<NodeMetrics> nodeMetrics) {
+        Map<String, Sample> latest = new HashMap<>();
+        nodeMetrics.forEach(metrics -> latest.put(metrics.address().toString(), Sample.of(metrics)));
+        samples.keySet().retainAll(latest.keySet());
+        samples.putAll(latest);
+    }
+
+    /**
+     * Drops every sample of a member that has left the cluster. Saturation and JVM samples are kept until then,
+     * as they may arrive before the member's first cluster metrics sample.
+     */
+    void remove(String memberAddress) {
+        samples.remove(memberAddress);
+        saturation.remove(memberAddress);
+        jvm.remove(memberAddress);
+    }
+
+    void update(Address address, Sample sample) {
+        samples.put(address.toString(), sample);
+    }
+
+    void update(String memberAddress, Saturation.Sample sample) {
+        saturation.put(memberAddress, sample);
+    }
+
+    void update(String memberAddress, JvmMetrics.Sample sample) {
+        jvm.put(memberAddress, sample);
+    }
+
+    Sample sample(String memberAddress) {
+        return samples.get(memberAddress);
+    }
+
+    Saturation.Sample saturation(String memberAddress) {
+        return saturation.get(memberAddress);
+    }
+
+    Map<String, Saturation.Sample> saturation() {
+        return new TreeMap<>(saturation);
+    }
+
+    JvmMetrics.Sample jvm(String memberAddress) {
+        return jvm.get(memberAddress);
+    }
+
+    /**
+     * Every member with metrics of any kind.
+     */
+    Set<String> members() {
+        Set<String> members = new TreeSet<>(samples.keySet());
+        members.addAll(saturation.keySet());
+        members.addAll(jvm.keySet());
+        return members;
+    }
+
+    /**
+     * Every member's samples next to its shard and entity counts, from <code>memberCounts</code> of the
+     * topology, with its heap in use per entity and GC time per second to relate entity density to GC cost.
+     */
+    Map<String, Object> state(Map<String, int[]> memberCounts) {
+        Map<String, Object> state = new TreeMap<>();
+        Set<String> members = members();
+        members.addAll(memberCounts.keySet());
+        for (String member : members) {
+            int[] counts = memberCounts.getOrDefault(member, new int[2]);
+            JvmMetrics.Sample jvm = jvm(member);
+            Map<String, Object> memberState = new LinkedHashMap<>();
+            memberState.put("shards", counts[0]);
+            memberState.put("entities", counts[1]);
+            if (jvm != null) {
+                memberState.put("heapPerEntity", counts[1] == 0 ? null : jvm.heapUsed / counts[1]);
+                memberState.put("gcMillisPerSecond", jvm.intervalMillis == 0 ? 0 : jvm.gcMillis * 1000.0 / jvm.intervalMillis);
+                memberState.put("jvm", jvm);
+            }
+            memberState.put("metrics", sample(member));
+            memberState.put("saturation", saturation(member));
+            state.put(member, memberState);
+        }
+        return state;
+    }
+
+    String toJson(Map<String, int[]> memberCounts) {
+        ObjectWriter ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
+        try {
+            return ow.writeValueAsString(state(memberCounts));
+        } catch (JsonProcessingException e) {
+            return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+        }
+    }
+
+    /**
+     * Pressure of the member at the given address, zero when no metrics have been received yet.
+     * A local address, such as the path address of the node's own shard region, means this node.
+     */
+    double pressure(Address address) {
+        Sample sample = samples.get((address.hasGlobalScope() ? address : selfAddress).toString());
+        return sample == null ? 0 : sample.pressure;
+    }
+
+    boolean isSaturated(double pressure) {
+        return pressure >= saturated;
+    }
+
+    /**
+     * Allocation weight multiplier, one for an idle member.
+     */
+    double loadFactor(double pressure) {
+        return 1 + pressureWeight * pressure;
+    }
+
+    /**
+     * Load generator rate multiplier for this node.
+     */
+    double throttle() {
+        double pressure = pressure(selfAddress);
+        if (pressure <= throttleAbove) {
+            return 1;
+        }
+        double throttle = 1 - (pressure - throttleAbove) / Math.max(1e-9, saturated - throttleAbove);
+        return Math.max(minThrottle, throttle);
+    }
+
+    public static class Sample implements Serializable {
+        public final double heap;
+        public final Double cpu;
+        public final Double load;
+        public final int processors;
+        public final double pressure;
+
+        Sample(double heap, Double cpu, Double load, int processors) {
+            this.heap = heap;
+            this.cpu = cpu;
+            this.load = load;
+            this.processors = processors;
+            this.pressure = Math.max(heap, Math.max(cpu == null ? 0 : cpu, load == null ? 0 : load));
+        }
+
+        static Sample of(NodeMetrics nodeMetrics) {
+            StandardMetrics.HeapMemory heapMemory = StandardMetrics.extractHeapMemory(nodeMetrics);
+            StandardMetrics.Cpu cpu = StandardMetrics.extractCpu(nodeMetrics);
+
+            double heap = 0;
+            if (heapMemory != null) {
+                Double max = value(heapMemory.max());
+                heap = (double) heapMemory.used() / (max == null ? heapMemory.committed() : max);
+            }
+            if (cpu == null) {
+                return new Sample(heap, null, null, 0);
+            }
+            Double load = value(cpu.systemLoadAverage());
+            return new Sample(heap, value(cpu.cpuCombined()), load == null ? null : load / cpu.processors(), cpu.processors());
+        }
+
+        private static Double value(Option<Object> option) {
+            return option.isDefined() ? ((Number) option.get()).doubleValue() : null;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[heap %.2f, cpu %s, load %s, processors %d, pressure %.2f]",
+                    getClass().getSimpleName(), heap, cpu, load, processors, pressure);
+        }
+    }
+}
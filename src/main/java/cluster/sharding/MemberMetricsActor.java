@@ -0,0 +1,57 @@
+package cluster.sharding;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.Props;
+import akka.cluster.Cluster;
+import akka.cluster.ClusterEvent;
+import akka.cluster.metrics.ClusterMetricsChanged;
+import akka.cluster.metrics.ClusterMetricsExtension;
+
+class MemberMetricsActor extends AbstractLoggingActor {
+    private final MemberMetrics memberMetrics;
+    private final RateController rateController;
+    private final ClusterMetricsExtension extension = ClusterMetricsExtension.get(context().system());
+    private final Cluster cluster = Cluster.get(context().system());
+    private double throttle = 1;
+
+    private MemberMetricsActor(MemberMetrics memberMetrics, RateController rateController) {
+        this.memberMetrics = memberMetrics;
+        this.rateController = rateController;
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(ClusterMetricsChanged.class, this::metricsChanged)
+                .match(ClusterEvent.MemberRemoved.class, removed -> memberMetrics.remove(removed.member().address().toString()))
+                .build();
+    }
+
+    private void metricsChanged(ClusterMetricsChanged clusterMetricsChanged) {
+        memberMetrics.update(clusterMetricsChanged.getNodeMetrics());
+        double latest = memberMetrics.throttle();
+        if (latest != throttle) {
+            log().info("Load generator throttle {} -> {}", String.format("%.2f", throttle), String.format("%.2f", latest));
+            throttle = latest;
+            rateController.throttle(throttle, System.nanoTime());
+        }
+    }
+
+    @Override
+    public void preStart() {
+        log().info("Start");
+        extension.subscribe(self());
+        cluster.subscribe(self(), ClusterEvent.MemberRemoved.class);
+    }
+
+    @Override
+    public void postStop() {
+        log().info("Stop");
+        extension.unsubscribe(self());
+        cluster.unsubscribe(self());
+    }
+
+    static Props props(MemberMetrics memberMetrics, RateController rateController) {
+        return Props.create(MemberMetricsActor.class, memberMetrics, rateController);
+    }
+}
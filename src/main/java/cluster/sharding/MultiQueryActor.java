@@ -0,0 +1,121 @@
+package cluster.sharding;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorRefFactory;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.pattern.Patterns;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answers one {@link EntityMessage.MultiQuery} by querying all its entities at once, one query per entity,
+ * then stops.
+ */
+class MultiQueryActor extends AbstractLoggingActor {
+    private final ActorRef shardRegion;
+    private final Duration deadline;
+    private final Map<Entity.Id, String> pending = new LinkedHashMap<>();
+    private final List<Entity> found = new ArrayList<>();
+    private final List<Entity.Id> notFound = new ArrayList<>();
+    private ActorRef replyTo;
+    private Cancellable deadlineTimer;
+    private int shards;
+
+    private MultiQueryActor(ActorRef shardRegion, Duration deadline) {
+        this.shardRegion = shardRegion;
+        this.deadline = deadline;
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(EntityMessage.MultiQuery.class, this::multiQuery)
+                .build();
+    }
+
+    private Receive gathering() {
+        return receiveBuilder()
+                .match(EntityMessage.QueryAck.class, queryAck -> {
+                    if (pending.remove(queryAck.entity.id) != null) {
+                        found.add(queryAck.entity);
+                        replyWhenDone();
+                    }
+                })
+                .match(EntityMessage.QueryAckNotFound.class, queryAckNotFound -> {
+                    if (pending.remove(queryAckNotFound.id) != null) {
+                        notFound.add(queryAckNotFound.id);
+                        replyWhenDone();
+                    }
+                })
+                .matchEquals("deadline", d -> reply())
+                .build();
+    }
+
+    private void multiQuery(EntityMessage.MultiQuery multiQuery) {
+        replyTo = sender();
+        for (Entity.Id id : multiQuery.ids) {
+            if (!pending.containsKey(id)) {
+                pending.put(id, EntityMessage.shardId(id));
+                shardRegion.tell(new EntityMessage.Query(id), self());
+            }
+        }
+        shards = new HashSet<>(pending.values()).size();
+        log().debug("{} over {} shards <-- {}", multiQuery, shards, replyTo);
+        deadlineTimer = context().system().scheduler().scheduleOnce(
+                FiniteDuration.create(deadline.toNanos(), TimeUnit.NANOSECONDS),
+                self(),
+                "deadline",
+                context().system().dispatcher(),
+                null
+        );
+        getContext().become(gathering());
+        replyWhenDone();
+    }
+
+    private void replyWhenDone() {
+        if (pending.isEmpty()) {
+            reply();
+        }
+    }
+
+    private void reply() {
+        EntityMessage.MultiQueryAck multiQueryAck = new EntityMessage.MultiQueryAck(found, notFound, new ArrayList<>(pending.keySet()), shards);
+        if (!pending.isEmpty()) {
+            log().warning("{}, timed out shards {}", multiQueryAck, new LinkedHashSet<>(pending.values()));
+        }
+        replyTo.tell(multiQueryAck, self());
+        context().stop(self());
+    }
+
+    @Override
+    public void postStop() {
+        if (deadlineTimer != null) {
+            deadlineTimer.cancel();
+        }
+    }
+
+    static Props props(ActorRef shardRegion, Duration deadline) {
+        return Props.create(MultiQueryActor.class, shardRegion, deadline);
+    }
+
+    /**
+     * Queries the ids through a new {@link MultiQueryActor}, completing shortly after the deadline at the latest.
+     */
+    static CompletionStage<EntityMessage.MultiQueryAck> query(ActorRefFactory actorRefFactory, ActorRef shardRegion,
+                                                              List<Entity.Id> ids, Duration deadline) {
+        ActorRef multiQuery = actorRefFactory.actorOf(props(shardRegion, deadline));
+        return Patterns.ask(multiQuery, new EntityMessage.MultiQuery(ids), deadline.plusSeconds(1))
+                .thenApply(EntityMessage.MultiQueryAck.class::cast);
+    }
+}
@@ -7,6 +7,10 @@ class Random {
         return new Entity.Id(String.valueOf(inRange(from, to)));
     }
 
+    static Entity.NumericId numericEntityId(int from, int to) {
+        return Entity.NumericId.of(inRange(from, to));
+    }
+
     private static int inRange(int from, int to) {
         return from + random.nextInt(to - from + 1);
     }
@@ -0,0 +1,215 @@
+package cluster.sharding;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.typesafe.config.Config;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per node command and query rates shared by the load generators, changed with an {@link Update}, tuned
+ * to a p99 latency target in closed loop mode and throttled under memory or CPU pressure.
+ */
+class RateController {
+    private static final double increaseFactor = 1.25;
+    private static final double decreaseFactor = 0.75;
+    private static final double minimumRate = 0.1;
+    private static final double achievedFraction = 0.9;
+
+    private final TokenBucket commands;
+    private final TokenBucket queries;
+    private final boolean scaleByMemberCount;
+    private final long adjustIntervalNanos;
+    private final int minSamples;
+    private double commandRate;
+    private double queryRate;
+    private double throttle = 1;
+    private int memberCount = 1;
+    private boolean closedLoop;
+    private long targetP99Nanos;
+    private LatencyTrace.Histogram latencies = new LatencyTrace.Histogram();
+    private long windowStartNanos;
+    private long lastP99Nanos;
+    private double achievedCommandRate;
+    private double maxRateMeetingTarget;
+
+    RateController(double commandRate, double queryRate, boolean scaleByMemberCount, double burstSeconds,
+                   boolean closedLoop, long targetP99Nanos, long adjustIntervalNanos, int minSamples, long nowNanos) {
+        this.commandRate = commandRate;
+        this.queryRate = queryRate;
+        this.scaleByMemberCount = scaleByMemberCount;
+        this.closedLoop = closedLoop;
+        this.targetP99Nanos = targetP99Nanos;
+        this.adjustIntervalNanos = adjustIntervalNanos;
+        this.minSamples = minSamples;
+        this.windowStartNanos = nowNanos;
+        commands = new TokenBucket(commandRate, burstSeconds, nowNanos);
+        queries = new TokenBucket(queryRate, burstSeconds, nowNanos);
+    }
+
+    static RateController create(Config config) {
+        Config loadGenerator = config.getConfig("akka-cluster-openshift.load-generator");
+        return new RateController(
+                loadGenerator.getDouble("command-rate"),
+                loadGenerator.getDouble("query-rate"),
+                loadGenerator.getBoolean("scale-by-member-count"),
+                loadGenerator.getDuration("burst", TimeUnit.MILLISECONDS) / 1000.0,
+                loadGenerator.getBoolean("closed-loop.enabled"),
+                loadGenerator.getDuration("closed-loop.target-p99", TimeUnit.NANOSECONDS),
+                loadGenerator.getDuration("closed-loop.adjust-interval", TimeUnit.NANOSECONDS),
+                loadGenerator.getInt("closed-loop.min-samples"),
+                System.nanoTime()
+        );
+    }
+
+    synchronized boolean tryAcquireCommand(long nowNanos) {
+        return commands.tryAcquire(nowNanos);
+    }
+
+    synchronized boolean tryAcquireQuery(long nowNanos) {
+        return queries.tryAcquire(nowNanos);
+    }
+
+    synchronized void memberCount(int memberCount, long nowNanos) {
+        this.memberCount = Math.max(1, memberCount);
+        applyCommandRate(nowNanos);
+    }
+
+    synchronized void throttle(double throttle, long nowNanos) {
+        this.throttle = Math.max(0, Math.min(1, throttle));
+        applyCommandRate(nowNanos);
+        applyQueryRate(nowNanos);
+    }
+
+    /**
+     * Records a completed command, so the window also counts the rate actually achieved.
+     */
+    synchronized void recordCommandLatency(long latencyNanos, long nowNanos) {
+        latencies.record(latencyNanos);
+        if (closedLoop && nowNanos - windowStartNanos >= adjustIntervalNanos && latencies.count() >= minSamples) {
+            adjust(nowNanos);
+        }
+    }
+
+    synchronized void update(Update update, long nowNanos) {
+        if (update.closedLoop != null) {
+            closedLoop = update.closedLoop;
+            resetWindow(nowNanos);
+        }
+        if (update.targetP99Millis != null) {
+            targetP99Nanos = TimeUnit.MILLISECONDS.toNanos(update.targetP99Millis);
+            maxRateMeetingTarget = 0;
+        }
+        if (update.commandRate != null) {
+            commandRate = Math.max(0, update.commandRate);
+            applyCommandRate(nowNanos);
+        }
+        if (update.queryRate != null) {
+            queryRate = Math.max(0, update.queryRate);
+            applyQueryRate(nowNanos);
+        }
+    }
+
+    synchronized double commandRate() {
+        return commandRate;
+    }
+
+    synchronized double effectiveCommandRate() {
+        return commands.rate();
+    }
+
+    synchronized boolean closedLoop() {
+        return closedLoop;
+    }
+
+    synchronized double maxRateMeetingTarget() {
+        return maxRateMeetingTarget;
+    }
+
+    synchronized Map<String, Object> state() {
+        Map<String, Object> state = new LinkedHashMap<>();
+        state.put("commandRate", commandRate);
+        state.put("effectiveCommandRate", commands.rate());
+        state.put("queryRate", queryRate);
+        state.put("effectiveQueryRate", queries.rate());
+        state.put("throttle", throttle);
+        state.put("memberCount", memberCount);
+        state.put("scaleByMemberCount", scaleByMemberCount);
+        state.put("closedLoop", closedLoop);
+        state.put("targetP99Millis", TimeUnit.NANOSECONDS.toMillis(targetP99Nanos));
+        state.put("lastP99Millis", lastP99Nanos / 1e6);
+        state.put("achievedCommandRate", achievedCommandRate);
+        state.put("maxRateMeetingTarget", maxRateMeetingTarget);
+        return state;
+    }
+
+    String toJson() {
+        ObjectWriter ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
+        try {
+            return ow.writeValueAsString(state());
+        } catch (JsonProcessingException e) {
+            return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+        }
+    }
+
+    /**
+     * The rate is only raised, and counted as meeting the target, while the generators complete close to the
+     * offered rate; when they cannot, for example at <code>max-in-flight</code>, it is held.
+     */
+    private void adjust(long nowNanos) {
+        lastP99Nanos = TimeUnit.MICROSECONDS.toNanos(latencies.percentileMicros(0.99));
+        achievedCommandRate = latencies.count() * 1e9 / (nowNanos - windowStartNanos);
+        if (lastP99Nanos > targetP99Nanos) {
+            commandRate = Math.max(minimumRate, commandRate * decreaseFactor);
+        } else if (achievedCommandRate >= commands.rate() * achievedFraction) {
+            maxRateMeetingTarget = Math.max(maxRateMeetingTarget, commandRate);
+            commandRate = commandRate * increaseFactor;
+        }
+        applyCommandRate(nowNanos);
+        resetWindow(nowNanos);
+    }
+
+    private void resetWindow(long nowNanos) {
+        latencies = new LatencyTrace.Histogram();
+        windowStartNanos = nowNanos;
+    }
+
+    private void applyCommandRate(long nowNanos) {
+        commands.setRate(throttle * (scaleByMemberCount ? commandRate / memberCount : commandRate), nowNanos);
+    }
+
+    private void applyQueryRate(long nowNanos) {
+        queries.setRate(throttle * queryRate, nowNanos);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s[%s, %s, closed loop %b]", getClass().getSimpleName(), commands, queries, closedLoop);
+    }
+
+    /**
+     * Rate change sent to one or all nodes. Null fields are left unchanged.
+     */
+    static class Update implements Serializable {
+        final Double commandRate;
+        final Double queryRate;
+        final Boolean closedLoop;
+        final Long targetP99Millis;
+
+        Update(Double commandRate, Double queryRate, Boolean closedLoop, Long targetP99Millis) {
+            this.commandRate = commandRate;
+            this.queryRate = queryRate;
+            this.closedLoop = closedLoop;
+            this.targetP99Millis = targetP99Millis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %s, %s, %s]", getClass().getSimpleName(), commandRate, queryRate, closedLoop, targetP99Millis);
+        }
+    }
+}
@@ -6,36 +6,88 @@ import akka.cluster.Cluster;
 import akka.cluster.Member;
 import akka.cluster.sharding.ClusterSharding;
 import akka.cluster.sharding.ClusterShardingSettings;
+import akka.cluster.sharding.ShardRegion;
 import akka.cluster.singleton.ClusterSingletonManager;
 import akka.cluster.singleton.ClusterSingletonManagerSettings;
 import akka.management.cluster.bootstrap.ClusterBootstrap;
 import akka.management.javadsl.AkkaManagement;
+import akka.pattern.Patterns;
+import akka.stream.ActorMaterializer;
+import com.typesafe.config.Config;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public class Runner {
+    /**
+     * Starts a cluster node. With <code>ingest &lt;file&gt;</code> the node also loads the file into the
+     * shard region once its shard region is ready.
+     */
     public static void main(String[] args) {
-        startupClusterNode();
+        startupClusterNode(args.length == 2 && args[0].equals("ingest") ? Paths.get(args[1]) : null);
     }
 
-    private static void startupClusterNode() {
+    private static void startupClusterNode(Path ingestFile) {
+        StartupTimer startupTimer = new StartupTimer();
         ActorSystem actorSystem = ActorSystem.create("akka-cluster-openshift");
+        startupTimer.mark("actorSystem");
+        boolean fastStart = actorSystem.settings().config().getBoolean("akka-cluster-openshift.fast-start");
+        RateController rateController = RateController.create(actorSystem.settings().config());
 
         startClusterBootstrap(actorSystem);
+        startupTimer.mark("bootstrapStarted");
 
         actorSystem.log().info("Started actor system '{}', member {}", actorSystem, actorSystem.provider().getDefaultAddress());
 
-        actorSystem.actorOf(ClusterListenerActor.props(), "clusterListener");
-        ActorRef httpServer = actorSystem.actorOf(HttpServerActor.props(), "httpServer");
-        ActorRef shardingRegion = setupClusterSharding(actorSystem, httpServer);
-        createClusterSingletonManagerActor(actorSystem, httpServer);
-
-        actorSystem.actorOf(EntityCommandActor.props(shardingRegion), "entityCommand");
-        actorSystem.actorOf(EntityQueryActor.props(shardingRegion), "entityQuery");
+        ActorRef shardingRegion = startNode(actorSystem, startupTimer, rateController).shardRegion;
+
+        if (fastStart) {
+            actorSystem.log().info("Fast start, load generators deferred until the shard region is ready");
+        } else {
+            startLoadGenerators(actorSystem, shardingRegion, rateController, startupTimer);
+        }
+
+        registerMemberEvents(actorSystem, shardingRegion, startupTimer, () -> {
+            if (fastStart) {
+                startLoadGenerators(actorSystem, shardingRegion, rateController, startupTimer);
+            }
+            if (ingestFile != null) {
+                ingest(actorSystem, shardingRegion, ingestFile);
+            }
+        });
+    }
 
-        addCoordinatedShutdownTask(actorSystem, CoordinatedShutdown.PhaseClusterShutdown());
+    /**
+     * Starts the actors of a node, its shard region and the drain run by coordinated shutdown, on an actor system
+     * that is joining or will join a cluster. Cluster bootstrap, the load generators and ingestion are left to
+     * the caller, so the in-JVM test cluster starts its nodes the same way.
+     */
+    static Node startNode(ActorSystem actorSystem, StartupTimer startupTimer, RateController rateController) {
+        MemberMetrics memberMetrics = MemberMetrics.create(actorSystem.settings().config(), Cluster.get(actorSystem).selfAddress());
+        ClusterJournal clusterJournal = ClusterJournal.create(actorSystem.settings().config());
+        actorSystem.actorOf(ClusterListenerActor.props(startupTimer, clusterJournal), "clusterListener");
+        HotKeys hotKeys = HotKeys.create(actorSystem.settings().config());
+        SingletonHandover singletonHandover = new SingletonHandover();
+        ActorRef httpServer = actorSystem.actorOf(HttpServerActor.props(startupTimer, rateController, memberMetrics,
+                singletonHandover, clusterJournal, hotKeys), "httpServer");
+        actorSystem.actorOf(MemberMetricsActor.props(memberMetrics, rateController), "memberMetrics");
+        actorSystem.actorOf(JvmMetricsActor.props(memberMetrics, JvmMetrics.create(actorSystem.settings().config())), "jvmMetrics");
+        actorSystem.actorOf(SaturationActor.props(memberMetrics, Saturation.create(actorSystem.settings().config())), "saturation");
+        ShardLoad.Counters shardLoadCounters = new ShardLoad.Counters(hotKeys);
+        ShardLoad.Table shardLoadTable = createShardLoadTable(actorSystem);
+        actorSystem.actorOf(ShardLoadActor.props(shardLoadCounters, shardLoadTable), "shardLoad");
+        EntityStore entityStore = openEntityStore(actorSystem);
+        ActorRef shardingRegion = setupClusterSharding(actorSystem, httpServer, shardLoadCounters, shardLoadTable, memberMetrics, entityStore);
+        createClusterSingletonManagerActor(actorSystem, httpServer);
+        Drain drain = Drain.create(actorSystem.settings().config());
+        Drain.Progress drainProgress = new Drain.Progress();
+        ActorRef drainActor = actorSystem.actorOf(DrainActor.props(drain, drainProgress, shardingRegion, httpServer), "drain");
 
-        registerMemberEvents(actorSystem);
+        addCoordinatedShutdownTask(actorSystem, CoordinatedShutdown.PhaseBeforeClusterShutdown(), drainActor, drain);
+        return new Node(httpServer, shardingRegion, singletonHandover, drainProgress);
     }
 
     private static void startClusterBootstrap(ActorSystem actorSystem) {
@@ -43,11 +95,66 @@ public class Runner {
         ClusterBootstrap.get(actorSystem).start();
     }
 
-    private static ActorRef setupClusterSharding(ActorSystem actorSystem, ActorRef httpServer) {
+    private static void startLoadGenerators(ActorSystem actorSystem, ActorRef shardingRegion, RateController rateController, StartupTimer startupTimer) {
+        WorkloadProfile workload = WorkloadProfile.create(actorSystem.settings().config());
+        actorSystem.actorOf(EntityCommandActor.props(shardingRegion, rateController, workload), "entityCommand");
+        actorSystem.actorOf(EntityQueryActor.props(shardingRegion, rateController, workload), "entityQuery");
+        startupTimer.mark("loadGenerators");
+    }
+
+    private static void ingest(ActorSystem actorSystem, ActorRef shardingRegion, Path ingestFile) {
+        Ingest.create(actorSystem.settings().config())
+                .start(ingestFile, shardingRegion, ActorMaterializer.create(actorSystem), actorSystem.log());
+    }
+
+    private static ShardLoad.Table createShardLoadTable(ActorSystem actorSystem) {
+        Config allocation = actorSystem.settings().config().getConfig("akka-cluster-openshift.shard-allocation");
+        return new ShardLoad.Table(
+                allocation.getDouble("entity-weight"),
+                allocation.getDuration("stale-after", TimeUnit.NANOSECONDS)
+        );
+    }
+
+    /**
+     * The optional off heap entity store, one file per node, flushed when the actor system terminates, with
+     * the actor that frees the slots of handed off shards.
+     */
+    private static EntityStore openEntityStore(ActorSystem actorSystem) {
+        if (!actorSystem.settings().config().getBoolean("akka-cluster-openshift.entity-store.enabled")) {
+            return null;
+        }
+        Address selfAddress = Cluster.get(actorSystem).selfAddress();
+        String node = String.format("%s-%s", selfAddress.host().getOrElse(() -> "local"), selfAddress.port().getOrElse(() -> 0));
+        EntityStore entityStore = EntityStore.create(actorSystem.settings().config(), node);
+        actorSystem.log().info("Entity store opened {}", entityStore.state());
+        actorSystem.actorOf(EntityStoreActor.props(entityStore), "entityStore");
+        CoordinatedShutdown.get(actorSystem).addTask(
+                CoordinatedShutdown.PhaseBeforeActorSystemTerminate(),
+                "entityStoreForce",
+                () -> {
+                    entityStore.force();
+                    return CompletableFuture.completedFuture(Done.getInstance());
+                });
+        return entityStore;
+    }
+
+    private static ActorRef setupClusterSharding(ActorSystem actorSystem, ActorRef httpServer, ShardLoad.Counters shardLoadCounters,
+                                                 ShardLoad.Table shardLoadTable, MemberMetrics memberMetrics, EntityStore entityStore) {
         ClusterShardingSettings settings = ClusterShardingSettings.create(actorSystem);
+        Config config = actorSystem.settings().config();
+        if (config.getString("akka-cluster-openshift.shard-allocation.strategy").equals("load-aware")) {
+            return ClusterSharding.get(actorSystem).start(
+                    "entity",
+                    EntityActor.props(httpServer, shardLoadCounters, config, entityStore),
+                    settings,
+                    EntityMessage.messageExtractor(),
+                    LoadAwareShardAllocationStrategy.create(config, shardLoadTable, memberMetrics),
+                    PoisonPill.getInstance()
+            );
+        }
         return ClusterSharding.get(actorSystem).start(
                 "entity",
-                EntityActor.props(httpServer),
+                EntityActor.props(httpServer, shardLoadCounters, config, entityStore),
                 settings,
                 EntityMessage.messageExtractor()
         );
@@ -63,27 +170,69 @@ public class Runner {
         actorSystem.actorOf(clusterSingletonManagerProps, "clusterSingletonManager");
     }
 
-    private static void addCoordinatedShutdownTask(ActorSystem actorSystem, String coordinatedShutdownPhase) {
+    /**
+     * A node that is shut down, for example by a rolling deploy, is drained before the cluster shutdown phases
+     * hand off what is left and leave. The phase is done once the shards are handed off, or at the drain's
+     * in flight and handoff timeouts.
+     */
+    private static void addCoordinatedShutdownTask(ActorSystem actorSystem, String coordinatedShutdownPhase, ActorRef drainActor, Drain drain) {
         CoordinatedShutdown.get(actorSystem).addTask(
                 coordinatedShutdownPhase,
                 coordinatedShutdownPhase,
                 () -> {
                     actorSystem.log().warning("Coordinated shutdown phase {}", coordinatedShutdownPhase);
-                    return CompletableFuture.completedFuture(Done.getInstance());
+                    return Patterns.ask(drainActor, new Drain.Start(coordinatedShutdownPhase), drain.inFlightTimeout.plus(drain.handoffTimeout))
+                            .handle((done, e) -> Done.getInstance());
                 });
     }
 
-    private static void registerMemberEvents(ActorSystem actorSystem) {
+    private static void registerMemberEvents(ActorSystem actorSystem, ActorRef shardingRegion, StartupTimer startupTimer, Runnable shardRegionReady) {
         Cluster cluster = Cluster.get(actorSystem);
-        cluster.registerOnMemberUp(() -> memberUp(actorSystem, cluster.selfMember()));
+        cluster.registerOnMemberUp(() -> memberUp(actorSystem, cluster.selfMember(), shardingRegion, startupTimer, shardRegionReady));
         cluster.registerOnMemberRemoved(() -> memberRemoved(actorSystem, cluster.selfMember()));
     }
 
-    private static void memberUp(ActorSystem actorSystem, Member member) {
+    private static void memberUp(ActorSystem actorSystem, Member member, ActorRef shardingRegion, StartupTimer startupTimer, Runnable shardRegionReady) {
+        startupTimer.mark("memberUp");
         actorSystem.log().info("Member up {}", member);
+        awaitShardRegionReady(actorSystem, shardingRegion, startupTimer, shardRegionReady);
+    }
+
+    private static void awaitShardRegionReady(ActorSystem actorSystem, ActorRef shardingRegion, StartupTimer startupTimer, Runnable shardRegionReady) {
+        Address selfAddress = Cluster.get(actorSystem).selfAddress();
+        Patterns.ask(shardingRegion, ShardRegion.getCurrentRegionsInstance(), Duration.ofSeconds(5))
+                .whenComplete((reply, e) -> {
+                    if (reply instanceof ShardRegion.CurrentRegions && ((ShardRegion.CurrentRegions) reply).getRegions().contains(selfAddress)) {
+                        startupTimer.mark("shardRegionReady");
+                        actorSystem.log().info("Shard region ready, {}", startupTimer);
+                        shardRegionReady.run();
+                    } else {
+                        actorSystem.scheduler().scheduleOnce(
+                                Duration.ofSeconds(1),
+                                () -> awaitShardRegionReady(actorSystem, shardingRegion, startupTimer, shardRegionReady),
+                                actorSystem.dispatcher());
+                    }
+                });
     }
 
     private static void memberRemoved(ActorSystem actorSystem, Member member) {
         actorSystem.log().info("Member removed {}", member);
     }
+
+    /**
+     * The actors of a started node that its callers talk to.
+     */
+    static class Node {
+        final ActorRef httpServer;
+        final ActorRef shardRegion;
+        final SingletonHandover singletonHandover;
+        final Drain.Progress drainProgress;
+
+        Node(ActorRef httpServer, ActorRef shardRegion, SingletonHandover singletonHandover, Drain.Progress drainProgress) {
+            this.httpServer = httpServer;
+            this.shardRegion = shardRegion;
+            this.singletonHandover = singletonHandover;
+            this.drainProgress = drainProgress;
+        }
+    }
 }
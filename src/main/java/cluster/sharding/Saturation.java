@@ -0,0 +1,209 @@
+package cluster.sharding;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorRefWithCell;
+import akka.dispatch.Dispatcher;
+import akka.dispatch.MessageDispatcher;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.typesafe.config.Config;
+
+import java.io.Serializable;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.Function;
+
+/**
+ * Default dispatcher utilization and queued tasks, and the mailbox sizes of a few key actors, read without
+ * messaging the actors so a saturated node still reports.
+ */
+class Saturation {
+    final Duration sampleInterval;
+    final Duration reportInterval;
+    final int queueFull;
+    final int mailboxFull;
+    final Map<String, String> actors;
+
+    Saturation(Duration sampleInterval, Duration reportInterval, int queueFull, int mailboxFull, Map<String, String> actors) {
+        this.sampleInterval = sampleInterval;
+        this.reportInterval = reportInterval;
+        this.queueFull = queueFull;
+        this.mailboxFull = mailboxFull;
+        this.actors = actors;
+    }
+
+    static Saturation create(Config config) {
+        Config saturation = config.getConfig("akka-cluster-openshift.saturation");
+        Map<String, String> actors = new TreeMap<>();
+        saturation.getConfig("actors").entrySet().forEach(actor -> actors.put(actor.getKey(), (String) actor.getValue().unwrapped()));
+        return new Saturation(
+                saturation.getDuration("sample-interval"),
+                saturation.getDuration("report-interval"),
+                saturation.getInt("queue-full"),
+                saturation.getInt("mailbox-full"),
+                actors
+        );
+    }
+
+    /**
+     * The executor service behind a dispatcher, null for dispatchers that do not run on one.
+     */
+    static ExecutorService executor(MessageDispatcher dispatcher) {
+        return dispatcher instanceof Dispatcher ? ((Dispatcher) dispatcher).executorService().executor() : null;
+    }
+
+    /**
+     * Fraction of the executor's threads running tasks right now, not counting the calling thread when it is
+     * one of them.
+     */
+    static double utilization(ExecutorService executor) {
+        Thread self = Thread.currentThread();
+        if (executor instanceof akka.dispatch.forkjoin.ForkJoinPool) {
+            akka.dispatch.forkjoin.ForkJoinPool pool = (akka.dispatch.forkjoin.ForkJoinPool) executor;
+            boolean own = self instanceof akka.dispatch.forkjoin.ForkJoinWorkerThread
+                    && ((akka.dispatch.forkjoin.ForkJoinWorkerThread) self).getPool() == pool;
+            return (double) Math.max(0, pool.getActiveThreadCount() - (own ? 1 : 0)) / pool.getParallelism();
+        } else if (executor instanceof java.util.concurrent.ForkJoinPool) {
+            java.util.concurrent.ForkJoinPool pool = (java.util.concurrent.ForkJoinPool) executor;
+            boolean own = self instanceof java.util.concurrent.ForkJoinWorkerThread
+                    && ((java.util.concurrent.ForkJoinWorkerThread) self).getPool() == pool;
+            return (double) Math.max(0, pool.getActiveThreadCount() - (own ? 1 : 0)) / pool.getParallelism();
+        } else if (executor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            return (double) pool.getActiveCount() / pool.getMaximumPoolSize();
+        }
+        return 0;
+    }
+
+    /**
+     * Tasks waiting for a thread of the executor, both submitted from outside and forked by its own threads.
+     */
+    static long queued(ExecutorService executor) {
+        if (executor instanceof akka.dispatch.forkjoin.ForkJoinPool) {
+            akka.dispatch.forkjoin.ForkJoinPool pool = (akka.dispatch.forkjoin.ForkJoinPool) executor;
+            return pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount();
+        } else if (executor instanceof java.util.concurrent.ForkJoinPool) {
+            java.util.concurrent.ForkJoinPool pool = (java.util.concurrent.ForkJoinPool) executor;
+            return pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount();
+        } else if (executor instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) executor).getQueue().size();
+        }
+        return 0;
+    }
+
+    /**
+     * Messages in the mailbox of a local actor, null for remote refs and for actors that are not running.
+     */
+    static Integer mailboxSize(ActorRef actorRef) {
+        if (actorRef instanceof ActorRefWithCell && !actorRef.isTerminated()) {
+            return ((ActorRefWithCell) actorRef).underlying().numberOfMessages();
+        }
+        return null;
+    }
+
+    static String toJson(Map<String, Sample> samples) {
+        ObjectWriter ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
+        try {
+            return ow.writeValueAsString(samples);
+        } catch (JsonProcessingException e) {
+            return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+        }
+    }
+
+    /**
+     * Accumulates the samples of one report window. Used by one actor at a time.
+     */
+    static class Sampler {
+        private final Saturation saturation;
+        private final ExecutorService executor;
+        private final Function<String, ActorRef> resolve;
+        private double utilization;
+        private int samples;
+        private long queued;
+        private Map<String, Integer> mailboxes = new TreeMap<>();
+
+        Sampler(Saturation saturation, ExecutorService executor, Function<String, ActorRef> resolve) {
+            this.saturation = saturation;
+            this.executor = executor;
+            this.resolve = resolve;
+        }
+
+        void sample() {
+            utilization += utilization(executor);
+            samples++;
+            queued = Math.max(queued, queued(executor));
+            saturation.actors.forEach((name, path) -> {
+                Integer size = mailboxSize(resolve.apply(path));
+                if (size != null) {
+                    mailboxes.merge(name, size, Math::max);
+                }
+            });
+        }
+
+        /**
+         * The window's sample, after which a new window starts.
+         */
+        Sample report() {
+            if (samples == 0) {
+                sample();
+            }
+            Sample sample = new Sample(utilization / samples, queued, mailboxes, saturation.queueFull, saturation.mailboxFull);
+            utilization = 0;
+            samples = 0;
+            queued = 0;
+            mailboxes = new TreeMap<>();
+            return sample;
+        }
+    }
+
+    /**
+     * One report window of a node. The level is the highest of utilization, queued tasks over
+     * <code>queue-full</code> and the largest mailbox over <code>mailbox-full</code>; at one or above the
+     * node is saturated.
+     */
+    public static class Sample implements Serializable {
+        public final double utilization;
+        public final long queued;
+        public final Map<String, Integer> mailboxes;
+        public final double level;
+
+        Sample(double utilization, long queued, Map<String, Integer> mailboxes, double level) {
+            this.utilization = utilization;
+            this.queued = queued;
+            this.mailboxes = Collections.unmodifiableMap(new LinkedHashMap<>(mailboxes));
+            this.level = level;
+        }
+
+        Sample(double utilization, long queued, Map<String, Integer> mailboxes, int queueFull, int mailboxFull) {
+            this(utilization, queued, mailboxes, Math.max(utilization, Math.max((double) queued / queueFull,
+                    (double) mailboxes.values().stream().mapToInt(Integer::intValue).max().orElse(0) / mailboxFull)));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[utilization %.2f, queued %d, mailboxes %s, level %.2f]",
+                    getClass().getSimpleName(), utilization, queued, mailboxes, level);
+        }
+    }
+
+    static class Report implements Serializable {
+        final String member;
+        final Sample sample;
+
+        Report(String member, Sample sample) {
+            this.member = member;
+            this.sample = sample;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %s]", getClass().getSimpleName(), member, sample);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package cluster.sharding;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRefProvider;
+import akka.actor.ActorSelection;
+import akka.actor.Cancellable;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Props;
+import akka.cluster.Cluster;
+import akka.cluster.Member;
+import akka.cluster.MemberStatus;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+class SaturationActor extends AbstractLoggingActor {
+    private final MemberMetrics memberMetrics;
+    private final Saturation saturation;
+    private final Cluster cluster = Cluster.get(context().system());
+    private final Saturation.Sampler sampler;
+    private Cancellable sampleTicker;
+    private Cancellable reportTicker;
+    private boolean saturated;
+
+    private SaturationActor(MemberMetrics memberMetrics, Saturation saturation) {
+        this.memberMetrics = memberMetrics;
+        this.saturation = saturation;
+        ActorRefProvider provider = ((ExtendedActorSystem) context().system()).provider();
+        String address = provider.getDefaultAddress().toString();
+        this.sampler = new Saturation.Sampler(saturation, Saturation.executor(context().system().dispatchers().defaultGlobalDispatcher()),
+                path -> provider.resolveActorRef(address + path));
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .matchEquals("sample", s -> sampler.sample())
+                .matchEquals("report", r -> report())
+                .match(Saturation.Report.class, this::receiveReport)
+                .build();
+    }
+
+    private void report() {
+        Saturation.Report report = new Saturation.Report(cluster.selfAddress().toString(), sampler.report());
+        log().debug("{}", report);
+        if (saturated != report.sample.level >= 1) {
+            saturated = !saturated;
+            log().warning("{} {}", saturated ? "Saturated" : "No longer saturated", report.sample);
+        }
+        memberMetrics.update(report.member, report.sample);
+        cluster.state().getMembers().forEach(member -> {
+            if (!cluster.selfMember().equals(member) && member.status().equals(MemberStatus.up())) {
+                forward(report, member);
+            }
+        });
+    }
+
+    private void forward(Saturation.Report report, Member member) {
+        ActorSelection peer = context().actorSelection(member.address().toString() + self().path().toStringWithoutAddress());
+        peer.tell(report, self());
+    }
+
+    private void receiveReport(Saturation.Report report) {
+        log().debug("{} <-- {}", report, sender());
+        memberMetrics.update(report.member, report.sample);
+    }
+
+    @Override
+    public void preStart() {
+        log().info("Start");
+        sampleTicker = schedule(saturation.sampleInterval, "sample");
+        reportTicker = schedule(saturation.reportInterval, "report");
+    }
+
+    private Cancellable schedule(Duration interval, String tick) {
+        FiniteDuration every = FiniteDuration.create(interval.toNanos(), TimeUnit.NANOSECONDS);
+        return context().system().scheduler().schedule(every, every, self(), tick, context().dispatcher(), null);
+    }
+
+    @Override
+    public void postStop() {
+        log().info("Stop");
+        sampleTicker.cancel();
+        reportTicker.cancel();
+    }
+
+    static Props props(MemberMetrics memberMetrics, Saturation saturation) {
+        return Props.create(SaturationActor.class, memberMetrics, saturation)
+                .withDispatcher("akka-cluster-openshift.saturation-dispatcher");
+    }
+}
@@ -0,0 +1,136 @@
+package cluster.sharding;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per shard load, entity messages per second and active entities, counted by the entity actors and
+ * shared between nodes by the {@link ShardLoadActor}.
+ */
+class ShardLoad implements Serializable {
+    final double messageRate;
+    final int activeEntities;
+
+    ShardLoad(double messageRate, int activeEntities) {
+        this.messageRate = messageRate;
+        this.activeEntities = activeEntities;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%.2f/s, %d]", getClass().getSimpleName(), messageRate, activeEntities);
+    }
+
+    static class Counters {
+        final HotKeys hotKeys;
+        private final Map<String, LongAdder> messages = new ConcurrentHashMap<>();
+        private final Map<String, AtomicInteger> entities = new ConcurrentHashMap<>();
+        private final Map<String, Long> lastMessages = new HashMap<>();
+        private long lastSnapshotNanos = System.nanoTime();
+
+        Counters(HotKeys hotKeys) {
+            this.hotKeys = hotKeys;
+        }
+
+        void message(String shardId, String entityId) {
+            messages.computeIfAbsent(shardId, s -> new LongAdder()).increment();
+            hotKeys.record(shardId, entityId);
+        }
+
+        void entityStarted(String shardId) {
+            entities.computeIfAbsent(shardId, s -> new AtomicInteger()).incrementAndGet();
+        }
+
+        void entityStopped(String shardId) {
+            entities.computeIfAbsent(shardId, s -> new AtomicInteger()).decrementAndGet();
+        }
+
+        /**
+         * Load of every shard with active entities or messages since the previous snapshot.
+         */
+        synchronized Map<String, ShardLoad> snapshot(long nowNanos) {
+            double seconds = Math.max(1e-3, (nowNanos - lastSnapshotNanos) / 1e9);
+            lastSnapshotNanos = nowNanos;
+
+            Map<String, ShardLoad> loads = new HashMap<>();
+            messages.forEach((shardId, count) -> {
+                long total = count.sum();
+                long delta = total - lastMessages.getOrDefault(shardId, 0L);
+                lastMessages.put(shardId, total);
+                int active = entities.getOrDefault(shardId, new AtomicInteger()).get();
+                if (delta > 0 || active > 0) {
+                    loads.put(shardId, new ShardLoad(delta / seconds, active));
+                }
+            });
+            entities.forEach((shardId, active) -> {
+                if (active.get() > 0) {
+                    loads.putIfAbsent(shardId, new ShardLoad(0, active.get()));
+                }
+            });
+            return loads;
+        }
+    }
+
+    static class Report implements Serializable {
+        final String member;
+        final Map<String, ShardLoad> shards;
+
+        Report(String member, Map<String, ShardLoad> shards) {
+            this.member = member;
+            this.shards = shards;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %s]", getClass().getSimpleName(), member, shards);
+        }
+    }
+
+    /**
+     * Latest reported load per shard id. The region currently hosting a shard is the only one reporting it,
+     * so the shard id alone is the key. Entries older than <code>staleAfterNanos</code> are ignored.
+     */
+    static class Table {
+        private final Map<String, Entry> shards = new ConcurrentHashMap<>();
+        private final double entityWeight;
+        private final long staleAfterNanos;
+
+        Table(double entityWeight, long staleAfterNanos) {
+            this.entityWeight = entityWeight;
+            this.staleAfterNanos = staleAfterNanos;
+        }
+
+        void update(Report report, long nowNanos) {
+            report.shards.forEach((shardId, load) -> update(shardId, load, nowNanos));
+        }
+
+        void update(String shardId, ShardLoad load, long nowNanos) {
+            shards.put(shardId, new Entry(load, nowNanos));
+        }
+
+        /**
+         * Allocation weight of a shard, messages per second plus a weighted active entity count.
+         */
+        double weight(String shardId, long nowNanos) {
+            Entry entry = shards.get(shardId);
+            if (entry == null || nowNanos - entry.updatedNanos > staleAfterNanos) {
+                return 0;
+            }
+            return entry.load.messageRate + entityWeight * entry.load.activeEntities;
+        }
+
+        private static class Entry {
+            final ShardLoad load;
+            final long updatedNanos;
+
+            Entry(ShardLoad load, long updatedNanos) {
+                this.load = load;
+                this.updatedNanos = updatedNanos;
+            }
+        }
+    }
+}
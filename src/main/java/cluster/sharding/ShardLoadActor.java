@@ -0,0 +1,98 @@
+package cluster.sharding;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorSelection;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.cluster.Cluster;
+import akka.cluster.Member;
+import akka.cluster.MemberStatus;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+class ShardLoadActor extends AbstractLoggingActor {
+    private final ShardLoad.Counters counters;
+    private final ShardLoad.Table table;
+    private final Cluster cluster = Cluster.get(context().system());
+    private final FiniteDuration reportInterval = Duration.create(context().system().settings().config()
+            .getDuration("akka-cluster-openshift.shard-allocation.report-interval", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+    private Cancellable ticker;
+
+    private ShardLoadActor(ShardLoad.Counters counters, ShardLoad.Table table) {
+        this.counters = counters;
+        this.table = table;
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .matchEquals("tick", t -> report())
+                .match(ShardLoad.Report.class, this::receiveReport)
+                .match(HotKeys.Report.class, this::receiveHotKeys)
+                .build();
+    }
+
+    private void report() {
+        long now = System.nanoTime();
+        HotKeys.Report hotKeys = counters.hotKeys.report(cluster.selfAddress().toString(), now);
+        counters.hotKeys.update(hotKeys, now);
+        forward(hotKeys);
+        Map<String, ShardLoad> shards = counters.snapshot(now);
+        if (shards.isEmpty()) {
+            return;
+        }
+        ShardLoad.Report report = new ShardLoad.Report(cluster.selfAddress().toString(), shards);
+        log().debug("{}", report);
+        table.update(report, now);
+        forward(report);
+    }
+
+    private void forward(Object report) {
+        cluster.state().getMembers().forEach(member -> {
+            if (!cluster.selfMember().equals(member) && member.status().equals(MemberStatus.up())) {
+                forward(report, member);
+            }
+        });
+    }
+
+    private void forward(Object report, Member member) {
+        ActorSelection shardLoad = context().actorSelection(member.address().toString() + self().path().toStringWithoutAddress());
+        shardLoad.tell(report, self());
+    }
+
+    private void receiveReport(ShardLoad.Report report) {
+        log().debug("{} <-- {}", report, sender());
+        table.update(report, System.nanoTime());
+    }
+
+    private void receiveHotKeys(HotKeys.Report report) {
+        log().debug("{} <-- {}", report, sender());
+        counters.hotKeys.update(report, System.nanoTime());
+    }
+
+    @Override
+    public void preStart() {
+        log().info("Start");
+        ticker = context().system().scheduler().schedule(
+                reportInterval,
+                reportInterval,
+                self(),
+                "tick",
+                context().system().dispatcher(),
+                null
+        );
+    }
+
+    @Override
+    public void postStop() {
+        log().info("Stop");
+        ticker.cancel();
+    }
+
+    static Props props(ShardLoad.Counters counters, ShardLoad.Table table) {
+        return Props.create(ShardLoadActor.class, counters, table);
+    }
+}
@@ -0,0 +1,169 @@
+package cluster.sharding;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cluster singleton location and handover timing as seen by one node, in wall clock milliseconds of the
+ * node where each step happened.
+ */
+class SingletonHandover {
+    private final int history;
+    private final Deque<Handover> completed = new ArrayDeque<>();
+    private String location;
+    private String running;
+    private Handover current;
+    private long handovers;
+    private long maxStopToReadyMillis;
+
+    SingletonHandover() {
+        this(20);
+    }
+
+    SingletonHandover(int history) {
+        this.history = history;
+    }
+
+    synchronized void located(String member, long time) {
+        if (member != null && !member.equals(location)) {
+            if (location != null && !member.equals(running)) {
+                open(location).located = time;
+                current.to = member;
+            }
+            location = member;
+        }
+    }
+
+    synchronized void stopped(String member, long time) {
+        open(member).stopped = time;
+    }
+
+    synchronized void started(String member, long time) {
+        if (current == null && running != null && !member.equals(running)) {
+            open(running);
+        }
+        if (current != null && current.started < 0 && !member.equals(current.from)) {
+            current.to = member;
+            current.started = time;
+        }
+    }
+
+    synchronized void ready(String member, long time) {
+        running = member;
+        if (current != null && current.started >= 0 && member.equals(current.to)) {
+            current.ready = time;
+            completed.addFirst(current);
+            if (completed.size() > history) {
+                completed.removeLast();
+            }
+            handovers++;
+            if (current.stopToReadyMillis() != null) {
+                maxStopToReadyMillis = Math.max(maxStopToReadyMillis, current.stopToReadyMillis());
+            }
+            current = null;
+        }
+    }
+
+    private Handover open(String from) {
+        if (current == null) {
+            current = new Handover(from);
+        }
+        return current;
+    }
+
+    synchronized String location() {
+        return location;
+    }
+
+    /**
+     * The member where the singleton last reported it has processed its first message.
+     */
+    synchronized String running() {
+        return running;
+    }
+
+    synchronized Handover last() {
+        return completed.peekFirst();
+    }
+
+    synchronized Map<String, Object> state() {
+        Map<String, Object> state = new LinkedHashMap<>();
+        state.put("location", location);
+        state.put("running", running);
+        state.put("handovers", handovers);
+        state.put("maxStopToReadyMillis", maxStopToReadyMillis);
+        state.put("inProgress", current == null ? null : current.copy());
+        List<Handover> recent = new ArrayList<>();
+        completed.forEach(handover -> recent.add(handover.copy()));
+        state.put("recent", recent);
+        return state;
+    }
+
+    String toJson() {
+        ObjectWriter ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
+        try {
+            return ow.writeValueAsString(state());
+        } catch (JsonProcessingException e) {
+            return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+        }
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class Handover {
+        public final String from;
+        public String to;
+        public long located = -1;
+        public long stopped = -1;
+        public long started = -1;
+        public long ready = -1;
+
+        Handover(String from) {
+            this.from = from;
+        }
+
+        public Long stopToStartMillis() {
+            return between(stopped, started);
+        }
+
+        public Long startToReadyMillis() {
+            return between(started, ready);
+        }
+
+        public Long stopToReadyMillis() {
+            return between(stopped, ready);
+        }
+
+        public Long locatedToReadyMillis() {
+            return between(located, ready);
+        }
+
+        private static Long between(long from, long to) {
+            return from < 0 || to < 0 ? null : to - from;
+        }
+
+        private Handover copy() {
+            Handover copy = new Handover(from);
+            copy.to = to;
+            copy.located = located;
+            copy.stopped = stopped;
+            copy.started = started;
+            copy.ready = ready;
+            return copy;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s -> %s, stop to start %sms, start to ready %sms, stop to ready %sms, membership to ready %sms]",
+                    getClass().getSimpleName(), from, to, stopToStartMillis(), startToReadyMillis(), stopToReadyMillis(), locatedToReadyMillis());
+        }
+    }
+}
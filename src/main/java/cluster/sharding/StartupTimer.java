@@ -0,0 +1,53 @@
+package cluster.sharding;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records when each node startup phase completed, in milliseconds since the JVM started.
+ * The first time a phase is marked wins, so phases can be marked from callbacks that fire repeatedly.
+ */
+class StartupTimer {
+    private final long jvmStartTime;
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+
+    StartupTimer() {
+        this(ManagementFactory.getRuntimeMXBean().getStartTime());
+    }
+
+    StartupTimer(long jvmStartTime) {
+        this.jvmStartTime = jvmStartTime;
+        phases.put("jvmStart", 0L);
+    }
+
+    synchronized long mark(String phase) {
+        return phases.computeIfAbsent(phase, p -> System.currentTimeMillis() - jvmStartTime);
+    }
+
+    synchronized boolean isMarked(String phase) {
+        return phases.containsKey(phase);
+    }
+
+    synchronized Map<String, Long> phases() {
+        return new LinkedHashMap<>(phases);
+    }
+
+    String toJson() {
+        ObjectWriter ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
+        try {
+            return ow.writeValueAsString(phases());
+        } catch (JsonProcessingException e) {
+            return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s%s", getClass().getSimpleName(), phases());
+    }
+}
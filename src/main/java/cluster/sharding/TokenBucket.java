@@ -0,0 +1,55 @@
+package cluster.sharding;
+
+/**
+ * Classic token bucket. Tokens accrue at <code>ratePerSecond</code> up to a capacity of
+ * <code>burstSeconds</code> worth of tokens, never less than one token. Not thread safe.
+ */
+class TokenBucket {
+    private final double burstSeconds;
+    private double ratePerSecond;
+    private double tokens;
+    private long lastRefillNanos;
+
+    TokenBucket(double ratePerSecond, double burstSeconds, long nowNanos) {
+        this.ratePerSecond = Math.max(0, ratePerSecond);
+        this.burstSeconds = burstSeconds;
+        this.tokens = 1;
+        this.lastRefillNanos = nowNanos;
+    }
+
+    boolean tryAcquire(long nowNanos) {
+        refill(nowNanos);
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    void setRate(double ratePerSecond, long nowNanos) {
+        refill(nowNanos);
+        this.ratePerSecond = Math.max(0, ratePerSecond);
+        tokens = Math.min(tokens, capacity());
+    }
+
+    double rate() {
+        return ratePerSecond;
+    }
+
+    private void refill(long nowNanos) {
+        long elapsedNanos = nowNanos - lastRefillNanos;
+        if (elapsedNanos > 0) {
+            tokens = Math.min(capacity(), tokens + ratePerSecond * elapsedNanos / 1e9);
+            lastRefillNanos = nowNanos;
+        }
+    }
+
+    private double capacity() {
+        return Math.max(1, ratePerSecond * burstSeconds);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%.2f/s, %.2f tokens]", getClass().getSimpleName(), ratePerSecond, tokens);
+    }
+}
@@ -0,0 +1,557 @@
+package cluster.sharding;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionId;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+
+/**
+ * Compact model of which member and shard each entity is on, kept by the {@link HttpServerActor} in parallel
+ * arrays, with numeric entity ids stored as longs. Access is synchronized for the HTTP stream threads.
+ */
+class Topology {
+    private static final int empty = -1;
+    private static final int maxMembers = 1 << 15;
+    private static final int maxShards = 1 << 16;
+    private static final double maxLoad = 0.75;
+
+    private final List<String> members = new ArrayList<>();
+    private final List<String> memberTypes = new ArrayList<>();
+    private final Map<String, Integer> memberIndex = new HashMap<>();
+    private final List<String> shards = new ArrayList<>();
+    private final Map<String, Integer> shardIndex = new HashMap<>();
+    private final Map<Integer, long[]> digests = new HashMap<>();
+
+    private long[] numbers;
+    private String[] names;
+    private int[] placements;
+    private int[] events;
+    private int size;
+
+    Topology() {
+        this(1024);
+    }
+
+    Topology(int initialCapacity) {
+        allocate(Integer.highestOneBit(Math.max(16, initialCapacity - 1)) << 1);
+    }
+
+    synchronized void add(String memberId, String shardId, String entityId) {
+        int placement = placement(member(memberId), shard(shardId));
+        int slot = find(entityId);
+        if (placements[slot] == empty) {
+            setKey(slot, entityId);
+            events[slot] = 0;
+            placements[slot] = placement;
+            digest(placement, entityHash(names[slot], numbers[slot]), 1);
+            if (++size > placements.length * maxLoad) {
+                resize(placements.length << 1);
+            }
+        } else if (placements[slot] != placement) {
+            long entityHash = entityHash(names[slot], numbers[slot]);
+            digest(placements[slot], entityHash, -1);
+            digest(placement, entityHash, 1);
+            placements[slot] = placement;
+        }
+    }
+
+    synchronized void remove(String memberId, String shardId, String entityId) {
+        int slot = find(entityId);
+        if (placements[slot] != empty && placements[slot] == placementOf(memberId, shardId)) {
+            delete(slot);
+        }
+    }
+
+    synchronized void incrementEvents(String memberId, String shardId, String entityId) {
+        int slot = find(entityId);
+        if (placements[slot] != empty && placements[slot] == placementOf(memberId, shardId)) {
+            events[slot]++;
+        }
+    }
+
+    synchronized void setMemberType(String memberId, String type) {
+        member(memberId);
+        for (int m = 0; m < members.size(); m++) {
+            String memberType = memberTypes.get(m);
+            if (members.get(m).equals(memberId)) {
+                if (!memberType.contains(type)) {
+                    memberTypes.set(m, memberType + " " + type);
+                }
+            } else if (memberType.contains(type)) {
+                memberTypes.set(m, memberType.replaceAll(type, "").replaceAll(" +", " "));
+            }
+        }
+    }
+
+    synchronized void unsetMemberType(String memberId, String type) {
+        Integer m = memberIndex.get(memberId);
+        if (m != null) {
+            memberTypes.set(m, memberTypes.get(m).replaceAll(type, "").replaceAll(" +", " "));
+        }
+    }
+
+    /**
+     * Replaces the shards and entities of a member.
+     */
+    synchronized void replaceMember(String memberId, Map<String, ? extends Collection<String>> memberShards) {
+        int m = member(memberId);
+        removeIf(placement -> placement >>> 16 == m);
+        memberShards.forEach((shardId, entityIds) -> entityIds.forEach(entityId -> add(memberId, shardId, entityId)));
+    }
+
+    /**
+     * Replaces the entities of some shards of a member; a shard with no entities is emptied.
+     */
+    synchronized void replaceShards(String memberId, Map<String, ? extends Collection<String>> memberShards) {
+        int m = member(memberId);
+        Set<Integer> replaced = new HashSet<>();
+        memberShards.keySet().forEach(shardId -> replaced.add(placement(m, shard(shardId))));
+        removeIf(replaced::contains);
+        memberShards.forEach((shardId, entityIds) -> entityIds.forEach(entityId -> add(memberId, shardId, entityId)));
+    }
+
+    /**
+     * The entity ids of some shards of a member, with an empty set for a shard it has no entities in.
+     */
+    synchronized Map<String, Set<String>> entities(String memberId, Collection<String> shardIds) {
+        Map<String, Set<String>> entities = new HashMap<>();
+        shardIds.forEach(shardId -> entities.put(shardId, new HashSet<>()));
+        Integer m = memberIndex.get(memberId);
+        for (int slot = 0; m != null && slot < placements.length; slot++) {
+            if (placements[slot] != empty && placements[slot] >>> 16 == m) {
+                Set<String> shard = entities.get(shards.get(placements[slot] & 0xffff));
+                if (shard != null) {
+                    shard.add(key(slot));
+                }
+            }
+        }
+        return entities;
+    }
+
+    /**
+     * Order independent digests of the entity ids in each shard of a member.
+     */
+    synchronized Map<String, ShardDigest> digests(String memberId) {
+        Map<String, ShardDigest> memberDigests = new HashMap<>();
+        Integer m = memberIndex.get(memberId);
+        if (m != null) {
+            digests.forEach((placement, digest) -> {
+                if (placement >>> 16 == m) {
+                    memberDigests.put(shards.get(placement & 0xffff), new ShardDigest(digest[0], (int) digest[1]));
+                }
+            });
+        }
+        return memberDigests;
+    }
+
+    /**
+     * Removes the entities of every member not in <code>memberIds</code>.
+     */
+    synchronized void retainMembers(Set<String> memberIds) {
+        boolean[] retained = new boolean[members.size()];
+        for (int m = 0; m < members.size(); m++) {
+            retained[m] = memberIds.contains(members.get(m));
+        }
+        removeIf(placement -> !retained[placement >>> 16]);
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * The number of shards and entities of every member with entities, as <code>[shards, entities]</code>.
+     */
+    synchronized Map<String, int[]> memberCounts() {
+        Map<String, int[]> counts = new TreeMap<>();
+        Set<Integer> placed = new HashSet<>();
+        for (int slot = 0; slot < placements.length; slot++) {
+            if (placements[slot] != empty) {
+                int[] count = counts.computeIfAbsent(members.get(placements[slot] >>> 16), m -> new int[2]);
+                if (placed.add(placements[slot])) {
+                    count[0]++;
+                }
+                count[1]++;
+            }
+        }
+        return counts;
+    }
+
+    synchronized int eventsCount() {
+        int count = 0;
+        for (int slot = 0; slot < placements.length; slot++) {
+            if (placements[slot] != empty) {
+                count += events[slot];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Builds the tree the monitor expects, members and shards in the order they were first seen. Only
+     * members with entities are included.
+     */
+    HttpServerActor.Tree toTree(Function<String, MemberMetrics.Sample> metrics) {
+        return buildTree(member -> member.metrics = metrics.apply(member.name));
+    }
+
+    /**
+     * The tree with each member's cluster metrics, saturation and JVM samples.
+     */
+    HttpServerActor.Tree toTree(MemberMetrics memberMetrics) {
+        return buildTree(member -> {
+            member.metrics = memberMetrics.sample(member.name);
+            member.saturation = memberMetrics.saturation(member.name);
+            member.jvm = memberMetrics.jvm(member.name);
+        });
+    }
+
+    private synchronized HttpServerActor.Tree buildTree(Consumer<HttpServerActor.Tree> metrics) {
+        Map<Integer, HttpServerActor.Tree> shardTrees = new TreeMap<>();
+        for (int slot = 0; slot < placements.length; slot++) {
+            if (placements[slot] != empty) {
+                int placement = placements[slot];
+                HttpServerActor.Tree entity = HttpServerActor.Tree.create(key(slot), "entity");
+                entity.events = events[slot];
+                shardTrees.computeIfAbsent(placement, p -> HttpServerActor.Tree.create(shards.get(p & 0xffff), "shard"))
+                        .children.add(entity);
+            }
+        }
+
+        Map<Integer, HttpServerActor.Tree> memberTrees = new LinkedHashMap<>();
+        shardTrees.forEach((placement, shard) -> memberTrees.computeIfAbsent(placement >>> 16, m -> {
+            HttpServerActor.Tree member = HttpServerActor.Tree.create(members.get(m), memberTypes.get(m));
+            metrics.accept(member);
+            return member;
+        }).children.add(shard));
+
+        HttpServerActor.Tree cluster = HttpServerActor.Tree.create("cluster", "cluster");
+        cluster.children.addAll(memberTrees.values());
+        return cluster;
+    }
+
+    private int member(String memberId) {
+        return memberIndex.computeIfAbsent(memberId, id -> {
+            if (members.size() == maxMembers) {
+                throw new IllegalStateException(String.format("More than %d member ids", maxMembers));
+            }
+            members.add(id);
+            memberTypes.add("member");
+            return members.size() - 1;
+        });
+    }
+
+    private int shard(String shardId) {
+        return shardIndex.computeIfAbsent(shardId, id -> {
+            if (shards.size() == maxShards) {
+                throw new IllegalStateException(String.format("More than %d shard ids", maxShards));
+            }
+            shards.add(id);
+            return shards.size() - 1;
+        });
+    }
+
+    private int placementOf(String memberId, String shardId) {
+        Integer m = memberIndex.get(memberId);
+        Integer s = shardIndex.get(shardId);
+        return m == null || s == null ? empty : placement(m, s);
+    }
+
+    private static int placement(int member, int shard) {
+        return member << 16 | shard;
+    }
+
+    /**
+     * The slot holding the entity, or the empty slot where it would be added.
+     */
+    private int find(String entityId) {
+        int mask = placements.length - 1;
+        long number = 0;
+        boolean numeric = isCanonicalLong(entityId);
+        if (numeric) {
+            number = Long.parseLong(entityId);
+        }
+        int slot = (numeric ? hash(number) : hash(entityId.hashCode())) & mask;
+        while (placements[slot] != empty) {
+            if (numeric ? names[slot] == null && numbers[slot] == number : entityId.equals(names[slot])) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void setKey(int slot, String entityId) {
+        if (isCanonicalLong(entityId)) {
+            numbers[slot] = Long.parseLong(entityId);
+            names[slot] = null;
+        } else {
+            names[slot] = entityId;
+        }
+    }
+
+    private String key(int slot) {
+        return names[slot] == null ? Long.toString(numbers[slot]) : names[slot];
+    }
+
+    private int slotHash(int slot) {
+        return names[slot] == null ? hash(numbers[slot]) : hash(names[slot].hashCode());
+    }
+
+    /**
+     * Backward shift deletion, so lookups never need tombstones.
+     */
+    private void delete(int slot) {
+        digest(placements[slot], entityHash(names[slot], numbers[slot]), -1);
+        int mask = placements.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (placements[next] != empty) {
+            int home = slotHash(next) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                move(next, hole);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        placements[hole] = empty;
+        names[hole] = null;
+        size--;
+    }
+
+    private void move(int from, int to) {
+        numbers[to] = numbers[from];
+        names[to] = names[from];
+        placements[to] = placements[from];
+        events[to] = events[from];
+    }
+
+    private void removeIf(IntPredicate placement) {
+        rebuild(placements.length, placement);
+    }
+
+    private void resize(int capacity) {
+        rebuild(capacity, placement -> false);
+    }
+
+    private void rebuild(int capacity, IntPredicate removed) {
+        long[] oldNumbers = numbers;
+        String[] oldNames = names;
+        int[] oldPlacements = placements;
+        int[] oldEvents = events;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int old = 0; old < oldPlacements.length; old++) {
+            if (oldPlacements[old] != empty && removed.test(oldPlacements[old])) {
+                digest(oldPlacements[old], entityHash(oldNames[old], oldNumbers[old]), -1);
+            } else if (oldPlacements[old] != empty) {
+                int slot = (oldNames[old] == null ? hash(oldNumbers[old]) : hash(oldNames[old].hashCode())) & mask;
+                while (placements[slot] != empty) {
+                    slot = (slot + 1) & mask;
+                }
+                numbers[slot] = oldNumbers[old];
+                names[slot] = oldNames[old];
+                placements[slot] = oldPlacements[old];
+                events[slot] = oldEvents[old];
+                size++;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        numbers = new long[capacity];
+        names = new String[capacity];
+        placements = new int[capacity];
+        events = new int[capacity];
+        Arrays.fill(placements, empty);
+        size = 0;
+    }
+
+    /**
+     * Adds or removes an entity from the digest of its member and shard. Entity hashes are combined with
+     * xor, so the digest does not depend on the order entities were added in.
+     */
+    private void digest(int placement, long entityHash, int count) {
+        long[] digest = digests.computeIfAbsent(placement, p -> new long[2]);
+        digest[0] ^= entityHash;
+        digest[1] += count;
+        if (digest[1] == 0) {
+            digests.remove(placement);
+        }
+    }
+
+    private static long entityHash(String name, long number) {
+        long h = number;
+        if (name != null) {
+            h = 0xcbf29ce484222325L;
+            for (int i = 0; i < name.length(); i++) {
+                h = (h ^ name.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    private static int hash(long number) {
+        long h = number * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int hash(int hashCode) {
+        return hashCode ^ (hashCode >>> 16);
+    }
+
+    /**
+     * True for the strings {@link Long#toString(long)} produces, so a parsed id renders back unchanged.
+     */
+    static boolean isCanonicalLong(String id) {
+        int length = id.length();
+        int start = length > 0 && id.charAt(0) == '-' ? 1 : 0;
+        if (length == start || length - start > 19 || (id.charAt(start) == '0' && (length > 1))) {
+            return false;
+        }
+        for (int i = start; i < length; i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        if (length - start == 19) {
+            try {
+                Long.parseLong(id);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static class ShardDigest implements Serializable {
+        final long hash;
+        final int count;
+
+        ShardDigest(long hash, int count) {
+            this.hash = hash;
+            this.count = count;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            ShardDigest that = (ShardDigest) o;
+            return hash == that.hash && count == that.count;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(hash, count);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%016x, %d]", getClass().getSimpleName(), hash, count);
+        }
+    }
+
+    /**
+     * What keeping the topology costs a node: entity actions forwarded to other nodes in broadcast mode,
+     * and region requests, replies and entity ids received in scatter gather mode.
+     */
+    static class Traffic implements Extension {
+        private static final ExtensionId<Traffic> id = new AbstractExtensionId<Traffic>() {
+            @Override
+            public Traffic createExtension(ExtendedActorSystem system) {
+                return new Traffic();
+            }
+        };
+        private final LongAdder forwardedActions = new LongAdder();
+        private final LongAdder gathers = new LongAdder();
+        private final LongAdder regionRequests = new LongAdder();
+        private final LongAdder regionReplies = new LongAdder();
+        private final LongAdder regionTimeouts = new LongAdder();
+        private final LongAdder gatheredRemoteEntities = new LongAdder();
+        private volatile long lastGatherMillis;
+        private final LongAccumulator maxGatherMillis = new LongAccumulator(Math::max, 0);
+
+        static Traffic get(ActorSystem system) {
+            return id.get(system);
+        }
+
+        void forwarded() {
+            forwardedActions.increment();
+        }
+
+        void gather(int members) {
+            gathers.increment();
+            regionRequests.add(members);
+        }
+
+        void reply(boolean answered, int remoteEntities) {
+            if (answered) {
+                regionReplies.increment();
+                gatheredRemoteEntities.add(remoteEntities);
+            } else {
+                regionTimeouts.increment();
+            }
+        }
+
+        void gathered(long nanos) {
+            lastGatherMillis = nanos / 1_000_000;
+            maxGatherMillis.accumulate(nanos / 1_000_000);
+        }
+
+        Map<String, Object> state() {
+            Map<String, Object> state = new LinkedHashMap<>();
+            state.put("forwardedActions", forwardedActions.sum());
+            state.put("gathers", gathers.sum());
+            state.put("regionRequests", regionRequests.sum());
+            state.put("regionReplies", regionReplies.sum());
+            state.put("regionTimeouts", regionTimeouts.sum());
+            state.put("gatheredRemoteEntities", gatheredRemoteEntities.sum());
+            state.put("lastGatherMillis", lastGatherMillis);
+            state.put("maxGatherMillis", maxGatherMillis.get());
+            return state;
+        }
+
+        String toJson(String mode, int entities) {
+            Map<String, Object> state = new LinkedHashMap<>();
+            state.put("mode", mode);
+            state.put("entities", entities);
+            state.putAll(state());
+            ObjectWriter ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
+            try {
+                return ow.writeValueAsString(state);
+            } catch (JsonProcessingException e) {
+                return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package cluster.sharding;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact encoding of a {@link HttpServerActor.Tree} snapshot, <code>{"d" : [dictionary], "t" : node}</code>,
+ * as JSON text or CBOR. A node is <code>[name, type, events, children, metrics, saturation, jvm]</code> with
+ * dictionary indexes and absent trailing elements left out. An entity leaf without events is just its name.
+ */
+class TreeCodec {
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    private static final CBORFactory cborFactory = new CBORFactory();
+
+    enum Format {
+        json, compact, cbor;
+
+        static Format of(String name) {
+            for (Format format : values()) {
+                if (format.name().equalsIgnoreCase(name)) {
+                    return format;
+                }
+            }
+            return json;
+        }
+    }
+
+    static String toCompactJson(HttpServerActor.Tree tree) {
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = jsonFactory.createGenerator((Writer) writer)) {
+            encode(tree, generator);
+        } catch (IOException e) {
+            return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+        }
+        return writer.toString();
+    }
+
+    static byte[] toCbor(HttpServerActor.Tree tree) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JsonGenerator generator = cborFactory.createGenerator((OutputStream) bytes)) {
+            encode(tree, generator);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static HttpServerActor.Tree fromCompactJson(String compactJson) throws IOException {
+        return decode(new ObjectMapper(jsonFactory).readTree(compactJson));
+    }
+
+    static HttpServerActor.Tree fromCbor(byte[] cbor) throws IOException {
+        return decode(new ObjectMapper(cborFactory).readTree(cbor));
+    }
+
+    private static void encode(HttpServerActor.Tree tree, JsonGenerator generator) throws IOException {
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        index(tree, dictionary);
+
+        generator.writeStartObject();
+        generator.writeFieldName("d");
+        generator.writeStartArray(dictionary.size());
+        for (String name : dictionary.keySet()) {
+            generator.writeString(name);
+        }
+        generator.writeEndArray();
+        generator.writeFieldName("t");
+        encode(tree, dictionary, generator);
+        generator.writeEndObject();
+    }
+
+    private static void index(HttpServerActor.Tree tree, Map<String, Integer> dictionary) {
+        if (isPlainEntity(tree)) {
+            return;
+        }
+        dictionary.putIfAbsent(tree.name, dictionary.size());
+        dictionary.putIfAbsent(tree.type, dictionary.size());
+        for (HttpServerActor.Tree child : tree.children) {
+            index(child, dictionary);
+        }
+    }
+
+    private static void encode(HttpServerActor.Tree tree, Map<String, Integer> dictionary, JsonGenerator generator) throws IOException {
+        if (isPlainEntity(tree)) {
+            generator.writeString(tree.name);
+            return;
+        }
+        boolean hasJvm = tree.jvm != null;
+        boolean hasSaturation = tree.saturation != null || hasJvm;
+        boolean hasMetrics = tree.metrics != null || hasSaturation;
+        boolean hasChildren = !tree.children.isEmpty() || hasMetrics;
+        generator.writeStartArray(hasJvm ? 7 : hasSaturation ? 6 : hasMetrics ? 5 : hasChildren ? 4 : 3);
+        generator.writeNumber(dictionary.get(tree.name));
+        generator.writeNumber(dictionary.get(tree.type));
+        generator.writeNumber(tree.events);
+        if (hasChildren) {
+            generator.writeStartArray(tree.children.size());
+            for (HttpServerActor.Tree child : tree.children) {
+                encode(child, dictionary, generator);
+            }
+            generator.writeEndArray();
+        }
+        if (hasMetrics) {
+            if (tree.metrics == null) {
+                generator.writeNull();
+            } else {
+                encode(tree.metrics, generator);
+            }
+        }
+        if (hasSaturation) {
+            if (tree.saturation == null) {
+                generator.writeNull();
+            } else {
+                encode(tree.saturation, generator);
+            }
+        }
+        if (hasJvm) {
+            encode(tree.jvm, generator);
+        }
+        generator.writeEndArray();
+    }
+
+    private static void encode(JvmMetrics.Sample jvm, JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        generator.writeNumberField("u", jvm.heapUsed);
+        generator.writeNumberField("c", jvm.heapCommitted);
+        generator.writeNumberField("x", jvm.heapMax);
+        generator.writeNumberField("g", jvm.gcCount);
+        generator.writeNumberField("t", jvm.gcMillis);
+        generator.writeNumberField("p", jvm.maxPauseMillis);
+        generator.writeNumberField("a", jvm.allocatedPerSecond);
+        generator.writeObjectFieldStart("th");
+        for (Map.Entry<String, Long> thread : jvm.topThreads.entrySet()) {
+            generator.writeNumberField(thread.getKey(), thread.getValue());
+        }
+        generator.writeEndObject();
+        generator.writeNumberField("i", jvm.intervalMillis);
+        generator.writeEndObject();
+    }
+
+    private static void encode(Saturation.Sample saturation, JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        generator.writeNumberField("u", saturation.utilization);
+        generator.writeNumberField("q", saturation.queued);
+        generator.writeObjectFieldStart("m");
+        for (Map.Entry<String, Integer> mailbox : saturation.mailboxes.entrySet()) {
+            generator.writeNumberField(mailbox.getKey(), mailbox.getValue());
+        }
+        generator.writeEndObject();
+        generator.writeNumberField("s", saturation.level);
+        generator.writeEndObject();
+    }
+
+    private static void encode(MemberMetrics.Sample metrics, JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        generator.writeNumberField("h", metrics.heap);
+        if (metrics.cpu != null) {
+            generator.writeNumberField("c", metrics.cpu);
+        }
+        if (metrics.load != null) {
+            generator.writeNumberField("l", metrics.load);
+        }
+        generator.writeNumberField("n", metrics.processors);
+        generator.writeNumberField("p", metrics.pressure);
+        generator.writeEndObject();
+    }
+
+    private static boolean isPlainEntity(HttpServerActor.Tree tree) {
+        return tree.events == 0 && tree.children.isEmpty() && tree.type.equals("entity");
+    }
+
+    private static HttpServerActor.Tree decode(JsonNode snapshot) throws IOException {
+        JsonNode d = snapshot.get("d");
+        JsonNode t = snapshot.get("t");
+        if (d == null || t == null) {
+            throw new IOException(String.format("Not a compact tree snapshot '%s'", snapshot));
+        }
+        List<String> dictionary = new ArrayList<>(d.size());
+        d.forEach(name -> dictionary.add(name.asText()));
+        return decode(t, dictionary);
+    }
+
+    private static HttpServerActor.Tree decode(JsonNode node, List<String> dictionary) {
+        if (node.isTextual()) {
+            return new HttpServerActor.Tree(node.asText(), "entity");
+        }
+        HttpServerActor.Tree tree = new HttpServerActor.Tree(dictionary.get(node.get(0).asInt()), dictionary.get(node.get(1).asInt()));
+        tree.events = node.get(2).asInt();
+        if (node.size() > 3) {
+            node.get(3).forEach(child -> tree.children.add(decode(child, dictionary)));
+        }
+        if (node.size() > 4 && !node.get(4).isNull()) {
+            tree.metrics = decodeMetrics(node.get(4));
+        }
+        if (node.size() > 5 && !node.get(5).isNull()) {
+            tree.saturation = decodeSaturation(node.get(5));
+        }
+        if (node.size() > 6) {
+            tree.jvm = decodeJvm(node.get(6));
+        }
+        return tree;
+    }
+
+    private static JvmMetrics.Sample decodeJvm(JsonNode jvm) {
+        Map<String, Long> topThreads = new LinkedHashMap<>();
+        jvm.get("th").fields().forEachRemaining(thread -> topThreads.put(thread.getKey(), thread.getValue().asLong()));
+        return new JvmMetrics.Sample(
+                jvm.get("u").asLong(),
+                jvm.get("c").asLong(),
+                jvm.get("x").asLong(),
+                jvm.get("g").asLong(),
+                jvm.get("t").asLong(),
+                jvm.get("p").asLong(),
+                jvm.get("a").asLong(),
+                topThreads,
+                jvm.get("i").asLong()
+        );
+    }
+
+    private static Saturation.Sample decodeSaturation(JsonNode saturation) {
+        Map<String, Integer> mailboxes = new LinkedHashMap<>();
+        saturation.get("m").fields().forEachRemaining(mailbox -> mailboxes.put(mailbox.getKey(), mailbox.getValue().asInt()));
+        return new Saturation.Sample(
+                saturation.get("u").asDouble(),
+                saturation.get("q").asLong(),
+                mailboxes,
+                saturation.get("s").asDouble()
+        );
+    }
+
+    private static MemberMetrics.Sample decodeMetrics(JsonNode metrics) {
+        return new MemberMetrics.Sample(
+                metrics.get("h").asDouble(),
+                metrics.has("c") ? metrics.get("c").asDouble() : null,
+                metrics.has("l") ? metrics.get("l").asDouble() : null,
+                metrics.get("n").asInt()
+        );
+    }
+}
@@ -0,0 +1,223 @@
+package cluster.sharding;
+
+import com.typesafe.config.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The keys and rate phases of the entity command and query load generators, selected by name from
+ * <code>load-generator.workload.profiles</code>. Zipfian keys follow Gray et al., "Quickly Generating
+ * Billion-Record Synthetic Databases".
+ */
+class WorkloadProfile {
+    enum Distribution {uniform, zipfian, hotspot, sequential}
+
+    private static final int maxPrecomputedIds = 1 << 16;
+
+    final String name;
+    final long keySpace;
+    final Distribution distribution;
+    final double readRatio;
+    final int valueSize;
+    final boolean numericIds;
+    final List<Phase> phases;
+    private final long hotKeys;
+    private final double hotTraffic;
+    private final double theta;
+    private final double zetaN;
+    private final double alpha;
+    private final double eta;
+    private final String filler;
+    private final Entity.Id[] ids;
+
+    WorkloadProfile(String name, long keySpace, Distribution distribution, double zipfExponent, double hotspotKeys,
+                    double hotspotTraffic, double readRatio, int valueSize, boolean numericIds, List<Phase> phases) {
+        if (keySpace < 1) {
+            throw new IllegalArgumentException(String.format("Workload %s key-space %d, must be at least 1", name, keySpace));
+        }
+        if (distribution == Distribution.zipfian && (zipfExponent <= 0 || zipfExponent >= 1)) {
+            throw new IllegalArgumentException(String.format("Workload %s zipf-exponent %s, must be between 0 and 1", name, zipfExponent));
+        }
+        this.name = name;
+        this.keySpace = keySpace;
+        this.distribution = distribution;
+        this.readRatio = Math.max(0, Math.min(1, readRatio));
+        this.valueSize = valueSize;
+        this.numericIds = numericIds;
+        this.phases = Collections.unmodifiableList(new ArrayList<>(phases));
+        this.hotKeys = Math.max(1, Math.min(keySpace, (long) Math.ceil(keySpace * hotspotKeys)));
+        this.hotTraffic = hotspotTraffic;
+        this.theta = zipfExponent;
+        if (distribution == Distribution.zipfian) {
+            zetaN = zeta(keySpace, theta);
+            alpha = 1 / (1 - theta);
+            eta = (1 - Math.pow(2.0 / keySpace, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+        } else {
+            zetaN = alpha = eta = 0;
+        }
+        char[] fill = new char[Math.max(0, valueSize)];
+        Arrays.fill(fill, '.');
+        this.filler = new String(fill);
+        this.ids = new Entity.Id[keySpace <= maxPrecomputedIds ? (int) keySpace : 0];
+        for (int key = 1; key <= ids.length; key++) {
+            ids[key - 1] = createId(key);
+        }
+    }
+
+    static WorkloadProfile create(Config config) {
+        Config loadGenerator = config.getConfig("akka-cluster-openshift.load-generator");
+        Config workload = loadGenerator.getConfig("workload");
+        String name = workload.getString("profile");
+        if (!workload.hasPath("profiles." + name)) {
+            throw new IllegalArgumentException(String.format("Workload profile %s is not defined", name));
+        }
+        Config profile = workload.getConfig("profiles." + name).withFallback(workload.getConfig("defaults"));
+        double readRatio = profile.getDouble("read-ratio");
+        List<Phase> phases = new ArrayList<>();
+        for (Config phase : profile.getConfigList("phases")) {
+            phases.add(new Phase(
+                    phase.getDuration("duration", TimeUnit.NANOSECONDS),
+                    phase.getDouble("rate"),
+                    phase.hasPath("read-ratio") ? phase.getDouble("read-ratio") : readRatio,
+                    phase.hasPath("ramp") && phase.getBoolean("ramp")));
+        }
+        return new WorkloadProfile(
+                name,
+                profile.getLong("key-space"),
+                Distribution.valueOf(profile.getString("distribution")),
+                profile.getDouble("zipf-exponent"),
+                profile.getDouble("hotspot-keys"),
+                profile.getDouble("hotspot-traffic"),
+                readRatio,
+                profile.getInt("value-size"),
+                loadGenerator.getString("entity-id").equals("numeric"),
+                phases
+        );
+    }
+
+    /**
+     * A key generator for one load generator actor; only the sequential position is per generator.
+     */
+    Keys keys() {
+        return new Keys();
+    }
+
+    /**
+     * Ids of key spaces up to 65536 keys are created once, larger ones for every message.
+     */
+    Entity.Id entityId(long key) {
+        return key <= ids.length ? ids[(int) key - 1] : createId(key);
+    }
+
+    private Entity.Id createId(long key) {
+        return numericIds ? Entity.NumericId.of(key) : new Entity.Id(Long.toString(key));
+    }
+
+    /**
+     * The label padded with dots, or cut, to <code>value-size</code> characters; as is when that is 0. The
+     * label is padded or cut in place, so a generator can reuse one builder for every value.
+     */
+    String value(StringBuilder label) {
+        if (valueSize > 0 && label.length() > valueSize) {
+            label.setLength(valueSize);
+        } else if (valueSize > 0) {
+            label.append(filler, label.length(), valueSize);
+        }
+        return label.toString();
+    }
+
+    /**
+     * The command and query rates at <code>elapsedNanos</code> since the generators started, or null
+     * when the profile has no phases.
+     */
+    RateController.Update rates(long elapsedNanos) {
+        if (phases.isEmpty()) {
+            return null;
+        }
+        double previousRate = 0;
+        long phaseStart = 0;
+        for (Phase phase : phases) {
+            if (elapsedNanos < phaseStart + phase.durationNanos) {
+                double rate = phase.ramp
+                        ? previousRate + (phase.rate - previousRate) * (elapsedNanos - phaseStart) / phase.durationNanos
+                        : phase.rate;
+                return phase.update(rate);
+            }
+            previousRate = phase.rate;
+            phaseStart += phase.durationNanos;
+        }
+        Phase last = phases.get(phases.size() - 1);
+        return last.update(last.rate);
+    }
+
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s, %d keys %s, read ratio %.2f, value size %d, %d phases]",
+                getClass().getSimpleName(), name, keySpace, distribution, readRatio, valueSize, phases.size());
+    }
+
+    class Keys {
+        private long sequence;
+
+        long next() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            switch (distribution) {
+                case zipfian:
+                    double u = random.nextDouble();
+                    double uz = u * zetaN;
+                    if (uz < 1) {
+                        return 1;
+                    } else if (uz < 1 + Math.pow(0.5, theta)) {
+                        return 2;
+                    }
+                    return Math.min(keySpace, 1 + (long) (keySpace * Math.pow(eta * u - eta + 1, alpha)));
+                case hotspot:
+                    if (hotKeys == keySpace || random.nextDouble() < hotTraffic) {
+                        return 1 + random.nextLong(hotKeys);
+                    }
+                    return hotKeys + 1 + random.nextLong(keySpace - hotKeys);
+                case sequential:
+                    return 1 + sequence++ % keySpace;
+                default:
+                    return 1 + random.nextLong(keySpace);
+            }
+        }
+    }
+
+    static class Phase {
+        final long durationNanos;
+        final double rate;
+        final double readRatio;
+        final boolean ramp;
+
+        Phase(long durationNanos, double rate, double readRatio, boolean ramp) {
+            this.durationNanos = durationNanos;
+            this.rate = rate;
+            this.readRatio = readRatio;
+            this.ramp = ramp;
+        }
+
+        private RateController.Update update(double rate) {
+            return new RateController.Update(rate * (1 - readRatio), rate * readRatio, null, null);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%dms, %.2f/s, read ratio %.2f%s]", getClass().getSimpleName(),
+                    TimeUnit.NANOSECONDS.toMillis(durationNanos), rate, readRatio, ramp ? ", ramp" : "");
+        }
+    }
+}
@@ -0,0 +1,129 @@
+// Decoder for the compact topology snapshots sent on /events?format=compact (JSON text)
+// and /events?format=cbor (binary frames). See TreeCodec.java for the encoding.
+var treeCodec = (function() {
+
+  function decode(data) {
+    const snapshot = typeof data === 'string' ? JSON.parse(data) : decodeCbor(data);
+    return expand(snapshot.d, snapshot.t);
+  }
+
+  function expand(dictionary, node) {
+    if (typeof node === 'string') {
+      return { 'name': node, 'type': 'entity', 'events': 0, 'children': [] };
+    }
+    const tree = { 'name': dictionary[node[0]], 'type': dictionary[node[1]], 'events': node[2], 'children': [] };
+    if (node.length > 3) {
+      tree.children = node[3].map(child => expand(dictionary, child));
+    }
+    if (node.length > 4 && node[4] !== null) {
+      const m = node[4];
+      tree.metrics = { 'heap': m.h, 'cpu': m.c === undefined ? null : m.c, 'load': m.l === undefined ? null : m.l, 'processors': m.n, 'pressure': m.p };
+    }
+    if (node.length > 5 && node[5] !== null) {
+      const s = node[5];
+      tree.saturation = { 'utilization': s.u, 'queued': s.q, 'mailboxes': s.m, 'level': s.s };
+    }
+    if (node.length > 6) {
+      const j = node[6];
+      tree.jvm = { 'heapUsed': j.u, 'heapCommitted': j.c, 'heapMax': j.x, 'gcCount': j.g, 'gcMillis': j.t,
+        'maxPauseMillis': j.p, 'allocatedPerSecond': j.a, 'topThreads': j.th, 'intervalMillis': j.i };
+    }
+    return tree;
+  }
+
+  // Minimal CBOR decoder covering the subset written by Jackson's CBORGenerator.
+  function decodeCbor(arrayBuffer) {
+    const view = new DataView(arrayBuffer);
+    const textDecoder = new TextDecoder('utf-8');
+    let offset = 0;
+
+    function readLength(info) {
+      if (info < 24) {
+        return info;
+      } else if (info === 24) {
+        return view.getUint8(offset++);
+      } else if (info === 25) {
+        offset += 2;
+        return view.getUint16(offset - 2);
+      } else if (info === 26) {
+        offset += 4;
+        return view.getUint32(offset - 4);
+      } else if (info === 27) {
+        offset += 8;
+        return view.getUint32(offset - 8) * 0x100000000 + view.getUint32(offset - 4);
+      } else if (info === 31) {
+        return -1;
+      }
+      throw new Error('Invalid CBOR length ' + info);
+    }
+
+    function isBreak() {
+      if (view.getUint8(offset) === 0xff) {
+        offset++;
+        return true;
+      }
+      return false;
+    }
+
+    function readItem() {
+      const initial = view.getUint8(offset++);
+      const major = initial >> 5;
+      const info = initial & 0x1f;
+
+      switch (major) {
+        case 0:
+          return readLength(info);
+        case 1:
+          return -1 - readLength(info);
+        case 2:
+        case 3: {
+          const length = readLength(info);
+          if (length < 0) {
+            let chunks = '';
+            while (!isBreak()) {
+              chunks += readItem();
+            }
+            return chunks;
+          }
+          offset += length;
+          const bytes = new Uint8Array(arrayBuffer, offset - length, length);
+          return major === 3 ? textDecoder.decode(bytes) : bytes;
+        }
+        case 4: {
+          const length = readLength(info);
+          const array = [];
+          for (let i = 0; length < 0 ? !isBreak() : i < length; i++) {
+            array.push(readItem());
+          }
+          return array;
+        }
+        case 5: {
+          const length = readLength(info);
+          const map = {};
+          for (let i = 0; length < 0 ? !isBreak() : i < length; i++) {
+            const key = readItem();
+            map[key] = readItem();
+          }
+          return map;
+        }
+        case 7:
+          if (info === 20) return false;
+          if (info === 21) return true;
+          if (info === 22 || info === 23) return null;
+          if (info === 26) {
+            offset += 4;
+            return view.getFloat32(offset - 4);
+          }
+          if (info === 27) {
+            offset += 8;
+            return view.getFloat64(offset - 8);
+          }
+      }
+      throw new Error('Unsupported CBOR item ' + initial);
+    }
+
+    return readItem();
+  }
+
+  return { 'decode': decode };
+})();
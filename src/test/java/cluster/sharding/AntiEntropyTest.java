@@ -0,0 +1,76 @@
+package cluster.sharding;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+public class AntiEntropyTest {
+    private static final String member1 = "akka.tcp://cluster@10.0.0.1:2552";
+    private static final String member2 = "akka.tcp://cluster@10.0.0.2:2552";
+
+    @Test
+    public void digestsDoNotDependOnHistory() {
+        Topology forward = new Topology();
+        Topology backward = new Topology();
+        for (int i = 0; i < 10000; i++) {
+            forward.add(member1, String.valueOf(i % 10), String.valueOf(i));
+            backward.add(member1, String.valueOf((9999 - i) % 10), String.valueOf(9999 - i));
+        }
+        forward.add(member1, "3", "entity-a");
+        forward.add(member2, "3", "entity-a");
+        backward.add(member1, "4", "moved");
+        backward.add(member1, "5", "moved");
+        backward.remove(member1, "5", "moved");
+        backward.add(member2, "3", "entity-a");
+
+        Assert.assertEquals(forward.digests(member1), backward.digests(member1));
+        Assert.assertEquals(AntiEntropy.root(forward.digests(member1)), AntiEntropy.root(backward.digests(member1)));
+        Assert.assertEquals(forward.digests(member2), backward.digests(member2));
+    }
+
+    @Test
+    public void onlyDifferingShardsAreFound() {
+        Topology authority = new Topology();
+        Topology replica = new Topology();
+        for (int i = 0; i < 1000; i++) {
+            authority.add(member1, String.valueOf(i % 10), String.valueOf(i));
+            replica.add(member1, String.valueOf(i % 10), String.valueOf(i));
+        }
+        authority.remove(member1, "7", "7");
+        replica.add(member1, "11", "lost-stop");
+
+        Map<String, Topology.ShardDigest> replicaDigests = replica.digests(member1);
+        Map<String, Topology.ShardDigest> authorityDigests = authority.digests(member1);
+        Assert.assertNotEquals(AntiEntropy.root(replicaDigests), AntiEntropy.root(authorityDigests));
+        Set<String> differing = AntiEntropy.differingShards(replicaDigests, authorityDigests);
+        Assert.assertEquals(2, differing.size());
+        Assert.assertTrue(differing.contains("7"));
+        Assert.assertTrue(differing.contains("11"));
+    }
+
+    @Test
+    public void repairConvergesReplica() {
+        Topology authority = new Topology();
+        Topology replica = new Topology();
+        for (int i = 0; i < 1000; i++) {
+            authority.add(member1, String.valueOf(i % 10), String.valueOf(i));
+        }
+        for (int i = 0; i < 990; i++) {
+            replica.add(member1, String.valueOf(i % 10), String.valueOf(i));
+        }
+        replica.add(member1, "11", "lost-stop");
+        replica.add(member2, "1", "1");
+
+        Set<String> differing = AntiEntropy.differingShards(replica.digests(member1), authority.digests(member1));
+        AntiEntropy.Repair repair = new AntiEntropy.Repair(member1, authority.entities(member1, differing), 0);
+        Assert.assertEquals(Collections.emptySet(), repair.shards.get("11"));
+        replica.replaceShards(repair.member, repair.shards);
+
+        Assert.assertEquals(authority.digests(member1), replica.digests(member1));
+        Assert.assertEquals(1000, replica.size());
+        Assert.assertTrue(replica.digests(member2).isEmpty());
+    }
+}
@@ -0,0 +1,396 @@
+package cluster.sharding;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Address;
+import akka.actor.Cancellable;
+import akka.cluster.Cluster;
+import akka.cluster.MemberStatus;
+import akka.cluster.sharding.ShardRegion;
+import akka.pattern.Patterns;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+/**
+ * Runs a cluster of N actor systems in this JVM, joined through a static seed node instead of
+ * Kubernetes bootstrap, and measures how sharding behaves while membership changes under load. Each node
+ * is started by {@link Runner#startNode}, as in production, without the load generators. The scenarios
+ * count shards per node to tell when a rebalance is done, so nodes use the least shard allocation strategy.
+ * <p>
+ * The first node is the seed and load driver and is never stopped by a scenario.
+ */
+class ClusterHarness implements AutoCloseable {
+    private static final String systemName = "akka-cluster-openshift";
+    private static final Duration commandTimeout = Duration.ofSeconds(1);
+
+    private final int seedPort = freePort();
+    private final Config overrides;
+    private final List<Node> nodes = new ArrayList<>();
+    private final ConcurrentLinkedQueue<Sample> samples = new ConcurrentLinkedQueue<>();
+    private Cancellable load;
+    private int commandNumber;
+
+    ClusterHarness(int nodeCount) {
+        this(nodeCount, ConfigFactory.empty());
+    }
+
+    ClusterHarness(int nodeCount, Config overrides) {
+        this.overrides = overrides;
+        for (int n = 0; n < nodeCount; n++) {
+            startNode();
+        }
+        awaitMembersUp(nodeCount, Duration.ofSeconds(30));
+    }
+
+    Node startNode() {
+        int port = nodes.isEmpty() ? seedPort : freePort();
+        ActorSystem actorSystem = ActorSystem.create(systemName, overrides.withFallback(nodeConfig(port, seedPort)));
+        RateController rateController = RateController.create(actorSystem.settings().config());
+        Node node = new Node(actorSystem, Runner.startNode(actorSystem, new StartupTimer(), rateController));
+        nodes.add(node);
+        return node;
+    }
+
+    Node driver() {
+        return nodes.get(0);
+    }
+
+    Node node(int index) {
+        return nodes.get(index);
+    }
+
+    /**
+     * Graceful leave, requested the same way as the monitor does, with a {@link HttpServerActor.StopNode},
+     * which drains the node before it leaves.
+     */
+    void leave(Node node) {
+        nodes.remove(node);
+        node.httpServer.tell(new HttpServerActor.StopNode(node.address().toString()), ActorRef.noSender());
+    }
+
+    /**
+     * Stops the node without leaving the cluster; the survivors have to detect and down it.
+     */
+    void crash(Node node) {
+        nodes.remove(node);
+        node.actorSystem.terminate();
+    }
+
+    void awaitMembersUp(int count, Duration timeout) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (System.nanoTime() < deadline) {
+            long up = StreamSupport.stream(Cluster.get(driver().actorSystem).state().getMembers().spliterator(), false)
+                    .filter(member -> member.status().equals(MemberStatus.up()))
+                    .count();
+            if (up == count) {
+                return;
+            }
+            sleep(100);
+        }
+        throw new IllegalStateException(String.format("%d members not up within %s", count, timeout));
+    }
+
+    /**
+     * Waits for the observer to see the singleton handed over to a member other than <code>from</code>
+     * and process its first message there.
+     */
+    SingletonHandover.Handover awaitSingletonHandover(Node observer, Address from, Duration timeout) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (System.nanoTime() < deadline) {
+            SingletonHandover.Handover handover = observer.singletonHandover.last();
+            if (handover != null && handover.from.equals(from.toString())) {
+                return handover;
+            }
+            sleep(50);
+        }
+        throw new IllegalStateException(String.format("Singleton not handed over from %s within %s", from, timeout));
+    }
+
+    void startLoad(int commandsPerSecond, int entityCount) {
+        int commandsPerTick = Math.max(1, commandsPerSecond / 100);
+        ActorSystem actorSystem = driver().actorSystem;
+        load = actorSystem.scheduler().schedule(
+                FiniteDuration.Zero(),
+                FiniteDuration.create(10, TimeUnit.MILLISECONDS),
+                () -> {
+                    for (int c = 0; c < commandsPerTick; c++) {
+                        sendCommand(String.valueOf(commandNumber++ % entityCount + 1));
+                    }
+                },
+                actorSystem.dispatcher());
+    }
+
+    void stopLoad() {
+        load.cancel();
+        sleep(commandTimeout.toMillis() + 500);
+    }
+
+    private void sendCommand(String entityId) {
+        EntityMessage.Command command = new EntityMessage.Command(new Entity(entityId, "load"));
+        String shardId = EntityMessage.extractShardIdFromCommands(command);
+        long sent = System.nanoTime();
+        Patterns.ask(driver().shardRegion, command, commandTimeout)
+                .whenComplete((reply, e) -> samples.add(new Sample(shardId, sent, System.nanoTime(), reply instanceof EntityMessage.CommandAck)));
+    }
+
+    /**
+     * Region address to hosted shard ids, as reported by the coordinator and all regions.
+     */
+    Map<Address, Set<String>> shardAllocation() {
+        try {
+            Object reply = Patterns.ask(driver().shardRegion,
+                    new ShardRegion.GetClusterShardingStats(FiniteDuration.create(2, TimeUnit.SECONDS)),
+                    Duration.ofSeconds(3)).toCompletableFuture().get();
+            Map<Address, Set<String>> allocation = new HashMap<>();
+            ((ShardRegion.ClusterShardingStats) reply).getRegions()
+                    .forEach((address, stats) -> allocation.put(address, new HashSet<>(stats.getStats().keySet())));
+            return allocation;
+        } catch (Exception e) {
+            return new HashMap<>();
+        }
+    }
+
+    /**
+     * True when exactly the live nodes host regions, at least the expected shards are allocated and
+     * the shard counts differ by at most one between regions.
+     */
+    boolean isBalanced(Map<Address, Set<String>> allocation, int expectedShards) {
+        Set<Address> live = nodes.stream().map(Node::address).collect(Collectors.toSet());
+        if (!allocation.keySet().equals(live)) {
+            return false;
+        }
+        int shards = allocation.values().stream().mapToInt(Set::size).sum();
+        int max = allocation.values().stream().mapToInt(Set::size).max().orElse(0);
+        int min = allocation.values().stream().mapToInt(Set::size).min().orElse(0);
+        return shards >= expectedShards && max - min <= 1;
+    }
+
+    int awaitBalanced(Duration timeout) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (System.nanoTime() < deadline) {
+            Map<Address, Set<String>> allocation = shardAllocation();
+            int shards = allocation.values().stream().mapToInt(Set::size).sum();
+            if (shards > 0 && isBalanced(allocation, shards)) {
+                return shards;
+            }
+            sleep(200);
+        }
+        throw new IllegalStateException(String.format("Shards not balanced within %s", timeout));
+    }
+
+    /**
+     * Runs load, applies the membership change and measures until the shards are balanced
+     * over the remaining nodes again.
+     */
+    ScenarioReport run(String scenario, Consumer<ClusterHarness> membershipChange, int commandsPerSecond, Duration timeout) {
+        samples.clear();
+        startLoad(commandsPerSecond, 1000);
+        int shards = awaitBalanced(timeout);
+        sleep(1000);
+
+        long changed = System.nanoTime();
+        membershipChange.accept(this);
+
+        long rebalanced = -1;
+        long deadline = changed + timeout.toNanos();
+        while (System.nanoTime() < deadline) {
+            if (isBalanced(shardAllocation(), shards)) {
+                rebalanced = System.nanoTime();
+                break;
+            }
+            sleep(200);
+        }
+        sleep(1000);
+        stopLoad();
+
+        return ScenarioReport.create(scenario, changed, rebalanced, samples);
+    }
+
+    @Override
+    public void close() {
+        if (load != null) {
+            load.cancel();
+        }
+        nodes.forEach(node -> node.actorSystem.terminate());
+        nodes.forEach(node -> {
+            try {
+                node.actorSystem.getWhenTerminated().toCompletableFuture().get(30, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                node.actorSystem.log().warning("Node did not terminate {}", e);
+            }
+        });
+    }
+
+    private static Config nodeConfig(int port, int seedPort) {
+        return ConfigFactory.parseString(String.join("\n",
+                "akka.remote.netty.tcp.hostname = \"127.0.0.1\"",
+                "akka.remote.netty.tcp.port = " + port,
+                "akka.cluster.seed-nodes = [\"akka.tcp://" + systemName + "@127.0.0.1:" + seedPort + "\"]",
+                "akka.cluster.auto-down-unreachable-after = 1s",
+                "akka.cluster.sharding.rebalance-interval = 1s",
+                "akka-cluster-openshift.shard-allocation.strategy = least-shard",
+                "akka.coordinated-shutdown.run-by-jvm-shutdown-hook = off",
+                "akka.coordinated-shutdown.run-by-actor-system-terminate = off",
+                "akka.loglevel = WARNING",
+                "akka.stdout-loglevel = WARNING",
+                "akka.log-dead-letters = off",
+                "akka-cluster-openshift.http.hostname = \"127.0.0.1\"",
+                "akka-cluster-openshift.http.port = " + freePort()
+        )).withFallback(ConfigFactory.load());
+    }
+
+    private static int freePort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static class Node {
+        final ActorSystem actorSystem;
+        final ActorRef httpServer;
+        final ActorRef shardRegion;
+        final SingletonHandover singletonHandover;
+        final Drain.Progress drainProgress;
+
+        Node(ActorSystem actorSystem, Runner.Node node) {
+            this.actorSystem = actorSystem;
+            this.httpServer = node.httpServer;
+            this.shardRegion = node.shardRegion;
+            this.singletonHandover = node.singletonHandover;
+            this.drainProgress = node.drainProgress;
+        }
+
+        Address address() {
+            return Cluster.get(actorSystem).selfAddress();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s]", getClass().getSimpleName(), address());
+        }
+    }
+
+    static class Sample {
+        final String shardId;
+        final long sentNanos;
+        final long receivedNanos;
+        final boolean acked;
+
+        Sample(String shardId, long sentNanos, long receivedNanos, boolean acked) {
+            this.shardId = shardId;
+            this.sentNanos = sentNanos;
+            this.receivedNanos = receivedNanos;
+            this.acked = acked;
+        }
+    }
+
+    static class ScenarioReport {
+        final String scenario;
+        final long rebalanceMillis;
+        final int commands;
+        final int droppedCommands;
+        final long maxShardUnavailableMillis;
+        final long totalShardUnavailableMillis;
+        final double p50LatencyMillis;
+        final double p99LatencyMillis;
+        final double maxLatencyMillis;
+
+        private ScenarioReport(String scenario, long rebalanceMillis, int commands, int droppedCommands,
+                               long maxShardUnavailableMillis, long totalShardUnavailableMillis,
+                               double p50LatencyMillis, double p99LatencyMillis, double maxLatencyMillis) {
+            this.scenario = scenario;
+            this.rebalanceMillis = rebalanceMillis;
+            this.commands = commands;
+            this.droppedCommands = droppedCommands;
+            this.maxShardUnavailableMillis = maxShardUnavailableMillis;
+            this.totalShardUnavailableMillis = totalShardUnavailableMillis;
+            this.p50LatencyMillis = p50LatencyMillis;
+            this.p99LatencyMillis = p99LatencyMillis;
+            this.maxLatencyMillis = maxLatencyMillis;
+        }
+
+        /**
+         * Only commands sent after the membership change are counted. A shard is unavailable
+         * from the first failed command sent to it until the next command to it succeeds.
+         */
+        static ScenarioReport create(String scenario, long changedNanos, long rebalancedNanos, Collection<Sample> samples) {
+            List<Sample> after = samples.stream()
+                    .filter(sample -> sample.sentNanos >= changedNanos)
+                    .sorted((a, b) -> Long.compare(a.sentNanos, b.sentNanos))
+                    .collect(Collectors.toList());
+
+            long[] latencies = after.stream()
+                    .filter(sample -> sample.acked)
+                    .mapToLong(sample -> sample.receivedNanos - sample.sentNanos)
+                    .sorted()
+                    .toArray();
+
+            Map<String, Long> unavailableSince = new HashMap<>();
+            long maxUnavailable = 0;
+            long totalUnavailable = 0;
+            for (Sample sample : after) {
+                if (!sample.acked) {
+                    unavailableSince.putIfAbsent(sample.shardId, sample.sentNanos);
+                } else if (unavailableSince.containsKey(sample.shardId)) {
+                    long window = sample.sentNanos - unavailableSince.remove(sample.shardId);
+                    maxUnavailable = Math.max(maxUnavailable, window);
+                    totalUnavailable += window;
+                }
+            }
+
+            return new ScenarioReport(
+                    scenario,
+                    rebalancedNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(rebalancedNanos - changedNanos),
+                    after.size(),
+                    (int) after.stream().filter(sample -> !sample.acked).count(),
+                    TimeUnit.NANOSECONDS.toMillis(maxUnavailable),
+                    TimeUnit.NANOSECONDS.toMillis(totalUnavailable),
+                    percentileMillis(latencies, 0.50),
+                    percentileMillis(latencies, 0.99),
+                    percentileMillis(latencies, 1.0)
+            );
+        }
+
+        private static double percentileMillis(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            return sorted[Math.max(0, (int) Math.ceil(sorted.length * percentile) - 1)] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, rebalance %dms, commands %d, dropped %d, shard unavailable max %dms total %dms, latency p50 %.1fms p99 %.1fms max %.1fms]",
+                    getClass().getSimpleName(), scenario, rebalanceMillis, commands, droppedCommands,
+                    maxShardUnavailableMillis, totalShardUnavailableMillis, p50LatencyMillis, p99LatencyMillis, maxLatencyMillis);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package cluster.sharding;
+
+import akka.actor.ActorRef;
+import akka.cluster.sharding.ShardRegion;
+import akka.pattern.Patterns;
+import akka.testkit.javadsl.TestKit;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.typesafe.config.ConfigFactory;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Membership change scenarios run on an in-JVM cluster. Each takes 15 to 30 seconds, so they only
+ * run when enabled with <code>mvn test -Dcluster.harness=true -Dtest=ClusterHarnessTest</code>.
+ */
+public class ClusterHarnessTest {
+    private static final int commandsPerSecond = 200;
+    private static final Duration timeout = Duration.ofSeconds(45);
+    private static final Duration pollInterval = Duration.ofMillis(100);
+
+    @Before
+    public void enabled() {
+        Assume.assumeTrue(Boolean.getBoolean("cluster.harness"));
+    }
+
+    @Test
+    public void join() {
+        try (ClusterHarness harness = new ClusterHarness(2)) {
+            ClusterHarness.ScenarioReport report = harness.run("join", ClusterHarness::startNode, commandsPerSecond, timeout);
+
+            System.out.println(report);
+            Assert.assertTrue(report.rebalanceMillis >= 0);
+        }
+    }
+
+    @Test
+    public void leave() {
+        try (ClusterHarness harness = new ClusterHarness(3)) {
+            ClusterHarness.Node leaving = harness.node(2);
+            ClusterHarness.ScenarioReport report = harness.run("leave", h -> h.leave(leaving), commandsPerSecond, timeout);
+
+            System.out.println(report);
+            String drain = leaving.drainProgress.toString();
+            Assert.assertTrue(report.rebalanceMillis >= 0);
+            Assert.assertTrue(drain, leaving.drainProgress.isFinished());
+            Assert.assertEquals(drain, Arrays.asList("intake", "mailboxes", "handoff", "leave"),
+                    leaving.drainProgress.phases().stream().map(phase -> phase.name).collect(Collectors.toList()));
+            Assert.assertEquals(drain, 0, report.droppedCommands);
+        }
+    }
+
+    @Test
+    public void crash() {
+        try (ClusterHarness harness = new ClusterHarness(3)) {
+            ClusterHarness.ScenarioReport report = harness.run("crash", h -> h.crash(h.node(2)), commandsPerSecond, timeout);
+
+            System.out.println(report);
+            Assert.assertTrue(report.rebalanceMillis >= 0);
+            Assert.assertTrue(report.droppedCommands > 0);
+        }
+    }
+
+    /**
+     * The singleton runs on the oldest member, the first node, so these scenarios stop that one.
+     */
+    @Test
+    public void singletonHandoverOnLeave() {
+        try (ClusterHarness harness = new ClusterHarness(3)) {
+            ClusterHarness.Node oldest = harness.node(0);
+            awaitSingletonReady(oldest, oldest);
+
+            harness.leave(oldest);
+            SingletonHandover.Handover handover = harness.awaitSingletonHandover(harness.node(0), oldest.address(), timeout);
+
+            System.out.println(handover);
+            Assert.assertNotNull(handover.stopToReadyMillis());
+            Assert.assertTrue(handover.startToReadyMillis() >= 0);
+        }
+    }
+
+    @Test
+    public void singletonHandoverOnCrash() {
+        try (ClusterHarness harness = new ClusterHarness(3)) {
+            ClusterHarness.Node oldest = harness.node(0);
+            awaitSingletonReady(oldest, oldest);
+
+            long crashed = System.currentTimeMillis();
+            harness.crash(oldest);
+            SingletonHandover.Handover handover = harness.awaitSingletonHandover(harness.node(0), oldest.address(), timeout);
+
+            System.out.printf("%s, crash to ready %dms%n", handover, handover.ready - crashed);
+            Assert.assertTrue(handover.startToReadyMillis() >= 0);
+        }
+    }
+
+    private static void awaitSingletonReady(ClusterHarness.Node observer, ClusterHarness.Node singleton) {
+        new TestKit(observer.actorSystem).awaitAssert(timeout, pollInterval, () -> {
+            Assert.assertEquals(singleton.address().toString(), observer.singletonHandover.running());
+            return null;
+        });
+    }
+
+    /**
+     * An entity start that the first node never forwarded is injected into the second node's topology,
+     * and the first node's next digest has to repair it.
+     */
+    @Test
+    public void antiEntropyRepairsDivergence() {
+        try (ClusterHarness harness = new ClusterHarness(3, ConfigFactory.parseString("akka-cluster-openshift.topology.anti-entropy-interval = 1s"))) {
+            AntiEntropy.Counters counters = AntiEntropy.Counters.get(harness.node(1).actorSystem);
+            long repairedBefore = counters.shardsRepaired();
+            String member = harness.node(0).address().toString();
+            harness.node(1).httpServer.tell(new EntityMessage.Action(member, "999", "ghost", "start", false), ActorRef.noSender());
+
+            new TestKit(harness.node(1).actorSystem).awaitAssert(timeout, pollInterval, () -> {
+                Assert.assertTrue(counters.state().toString(), counters.shardsRepaired() > repairedBefore);
+                return null;
+            });
+            System.out.println(counters.state());
+        }
+    }
+
+    /**
+     * Traced commands from the first node to entities whose shards the second node hosts are broken down
+     * into stages that add up to the round trip. Commands to every entity first allocate the shards, until
+     * the second node hosts some of them.
+     */
+    @Test
+    public void latencyTraceBreaksDownRemoteCommands() throws Exception {
+        try (ClusterHarness harness = new ClusterHarness(2)) {
+            List<Entity.Id> remote = new ArrayList<>();
+            new TestKit(harness.driver().actorSystem).awaitAssert(timeout, pollInterval, () -> {
+                remote.clear();
+                remote.addAll(remoteIds(harness, 200));
+                Assert.assertFalse(remote.isEmpty());
+                return null;
+            });
+
+            LatencyTrace trace = new LatencyTrace();
+            LatencyTrace stages = LatencyTrace.get(harness.driver().actorSystem);
+            long serializedBefore = stages.histogram(LatencyTrace.Stage.serialization).count();
+            for (int i = 0; i < 200; i++) {
+                Entity.Id id = remote.get(i % remote.size());
+                EntityMessage.Command command = new EntityMessage.Command(new Entity(id, Entity.Value.number(i)))
+                        .traced(LatencyTrace.Trace.sent(System.nanoTime()));
+                Object reply = Patterns.ask(harness.driver().shardRegion, command, timeout).toCompletableFuture().get();
+                trace.recordReply(reply, System.nanoTime());
+            }
+
+            System.out.println(trace.toJson());
+            Assert.assertEquals(200, trace.histogram(LatencyTrace.Stage.total).count());
+            Assert.assertTrue(trace.histogram(LatencyTrace.Stage.sender).percentileMicros(1) > 0);
+            Assert.assertTrue(stages.histogram(LatencyTrace.Stage.serialization).count() > serializedBefore);
+        }
+    }
+
+    /**
+     * Sends a command to each of the first entities from the first node and returns those whose shards
+     * the second node hosts.
+     */
+    private static List<Entity.Id> remoteIds(ClusterHarness harness, int entityCount) {
+        for (int i = 0; i < entityCount; i++) {
+            Patterns.ask(harness.driver().shardRegion, new EntityMessage.Command(new Entity(Entity.NumericId.of(i), Entity.Value.number(i))), timeout)
+                    .toCompletableFuture().join();
+        }
+        ShardRegion.CurrentShardRegionState state = (ShardRegion.CurrentShardRegionState) Patterns.ask(
+                harness.node(1).shardRegion, ShardRegion.getShardRegionStateInstance(), timeout).toCompletableFuture().join();
+        Set<String> shardIds = state.getShards().stream().map(ShardRegion.ShardState::shardId).collect(Collectors.toSet());
+        return IntStream.range(0, entityCount)
+                .mapToObj(Entity.NumericId::of)
+                .filter(id -> shardIds.contains(EntityMessage.shardId(id)))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Steady state cost of keeping the monitor topology in each mode, under entity churn: commands cycle
+     * through more entities than stay active, so entities keep starting and passivating. A monitor client
+     * on the first node asks for the topology every second.
+     */
+    @Test
+    public void topologyModes() throws Exception {
+        TopologyCost broadcast = topologyCost("broadcast");
+        TopologyCost scatterGather = topologyCost("scatter-gather");
+
+        System.out.println(broadcast);
+        System.out.println(scatterGather);
+        Assert.assertTrue(broadcast.forwardedActions > 0);
+        Assert.assertEquals(0, scatterGather.forwardedActions);
+        Assert.assertTrue(scatterGather.regionReplies > 0);
+    }
+
+    private static TopologyCost topologyCost(String mode) throws Exception {
+        try (ClusterHarness harness = new ClusterHarness(3, ConfigFactory.parseString("akka-cluster-openshift.topology.mode = " + mode))) {
+            harness.startLoad(commandsPerSecond, 20_000);
+            long warmUp = System.nanoTime() + Duration.ofSeconds(20).toNanos();
+            while (System.nanoTime() < warmUp) {
+                monitorPoll(harness, mode);
+            }
+
+            Map<String, Long> before = traffic(harness);
+            long cpuBefore = processCpuNanos();
+            long end = System.nanoTime() + Duration.ofSeconds(20).toNanos();
+            while (System.nanoTime() < end) {
+                monitorPoll(harness, mode);
+            }
+            long cpu = processCpuNanos() - cpuBefore;
+            Map<String, Long> after = traffic(harness);
+            harness.stopLoad();
+
+            return new TopologyCost(mode, cpu / 1_000_000, delta(before, after, "forwardedActions"),
+                    delta(before, after, "regionReplies"), delta(before, after, "gatheredRemoteEntities"));
+        }
+    }
+
+    /**
+     * A websocket client poll, which gathers in scatter gather mode and only renders in broadcast mode.
+     */
+    private static void monitorPoll(ClusterHarness harness, String mode) throws Exception {
+        if (mode.equals("scatter-gather")) {
+            Patterns.ask(harness.driver().httpServer, new HttpServerActor.Gather(), Duration.ofSeconds(5)).toCompletableFuture().get();
+        }
+        Thread.sleep(1000);
+    }
+
+    private static long processCpuNanos() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+    /**
+     * The traffic counters summed over the three nodes.
+     */
+    private static Map<String, Long> traffic(ClusterHarness harness) {
+        Map<String, Long> traffic = new HashMap<>();
+        for (int i = 0; i < 3; i++) {
+            Topology.Traffic.get(harness.node(i).actorSystem).state()
+                    .forEach((counter, value) -> traffic.merge(counter, (Long) value, Long::sum));
+        }
+        return traffic;
+    }
+
+    private static long delta(Map<String, Long> before, Map<String, Long> after, String counter) {
+        return after.get(counter) - before.get(counter);
+    }
+
+    private static class TopologyCost {
+        final String mode;
+        final long cpuMillis;
+        final long forwardedActions;
+        final long regionReplies;
+        final long gatheredRemoteEntities;
+
+        TopologyCost(String mode, long cpuMillis, long forwardedActions, long regionReplies, long gatheredRemoteEntities) {
+            this.mode = mode;
+            this.cpuMillis = cpuMillis;
+            this.forwardedActions = forwardedActions;
+            this.regionReplies = regionReplies;
+            this.gatheredRemoteEntities = gatheredRemoteEntities;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, 20s cpu %dms, forwarded actions %d, region replies %d, remote entity ids gathered %d]",
+                    getClass().getSimpleName(), mode, cpuMillis, forwardedActions, regionReplies, gatheredRemoteEntities);
+        }
+    }
+}
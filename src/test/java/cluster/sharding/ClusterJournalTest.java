@@ -0,0 +1,47 @@
+package cluster.sharding;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class ClusterJournalTest {
+    @Test
+    public void oldestEntriesAreEvicted() {
+        ClusterJournal clusterJournal = new ClusterJournal(3);
+        for (int t = 1; t <= 5; t++) {
+            clusterJournal.record(entry(t));
+        }
+
+        List<ClusterJournal.Entry> entries = clusterJournal.entries(0, Long.MAX_VALUE, 10);
+        Assert.assertEquals(3, entries.size());
+        Assert.assertEquals(5, entries.get(0).time);
+        Assert.assertEquals(3, entries.get(2).time);
+        Assert.assertEquals(5, clusterJournal.recorded());
+        Assert.assertTrue(clusterJournal.toJson(0, Long.MAX_VALUE, 10).contains("\"evicted\" : 2"));
+    }
+
+    @Test
+    public void timeRangeAndLimit() {
+        ClusterJournal clusterJournal = new ClusterJournal(100);
+        for (int t = 10; t <= 100; t += 10) {
+            clusterJournal.record(entry(t));
+        }
+
+        List<ClusterJournal.Entry> entries = clusterJournal.entries(30, 70, 10);
+        Assert.assertEquals(4, entries.size());
+        Assert.assertEquals(60, entries.get(0).time);
+        Assert.assertEquals(30, entries.get(3).time);
+        Assert.assertEquals(2, clusterJournal.entries(30, 70, 2).size());
+    }
+
+    @Test
+    public void timesAreEpochMillisOrInstants() {
+        Assert.assertEquals(1500, ClusterJournal.parseTime("1500"));
+        Assert.assertEquals(1_000_000_000_000L, ClusterJournal.parseTime("2001-09-09T01:46:40Z"));
+    }
+
+    private static ClusterJournal.Entry entry(long time) {
+        return new ClusterJournal.Entry(time, "member", "akka.tcp://cluster@10.0.0.1:2552", "joining", "up");
+    }
+}
@@ -0,0 +1,117 @@
+package cluster.sharding;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.dispatch.Envelope;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.ConfigFactory;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.Duration;
+
+public class CoalescingMailboxTest {
+    private static final Entity.Id id = Entity.NumericId.of(1);
+    private static ActorSystem actorSystem;
+
+    @BeforeClass
+    public static void setup() {
+        actorSystem = ActorSystem.create("CoalescingMailboxTest", ConfigFactory.parseString(String.join("\n",
+                "akka.remote.netty.tcp.hostname = \"127.0.0.1\"",
+                "akka.remote.netty.tcp.port = 0",
+                "akka.loglevel = INFO",
+                "akka.loggers = []",
+                "akka.stdout-loglevel = OFF",
+                "akka.extensions = []"
+        )).withFallback(ConfigFactory.load()));
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(actorSystem);
+    }
+
+    @Test
+    public void collapsesRunsOfSetCommandsOnly() {
+        CoalescingMailbox.Queue queue = new CoalescingMailbox.Queue(new CoalescingMailbox.Counters());
+        ActorRef sender = new TestKit(actorSystem).getRef();
+
+        queue.enqueue(sender, new Envelope(set("a"), sender));
+        queue.enqueue(sender, new Envelope(set("b"), sender));
+        queue.enqueue(sender, new Envelope(new EntityMessage.Query(id), sender));
+        queue.enqueue(sender, new Envelope(set("c"), sender));
+        queue.enqueue(sender, new Envelope(EntityMessage.Command.increment(id, 1), sender));
+        queue.enqueue(sender, new Envelope(set("d"), sender));
+        queue.enqueue(sender, new Envelope(set("e"), sender));
+        queue.enqueue(sender, new Envelope(set("f"), sender));
+
+        Assert.assertEquals(5, queue.numberOfMessages());
+        CoalescingMailbox.Coalesced first = (CoalescingMailbox.Coalesced) queue.dequeue().message();
+        Assert.assertEquals(Entity.Value.text("b"), first.command.entity.value);
+        Assert.assertEquals(1, first.superseded.size());
+        Assert.assertTrue(queue.dequeue().message() instanceof EntityMessage.Query);
+        Assert.assertTrue(queue.dequeue().message() instanceof EntityMessage.Command);
+        Assert.assertTrue(queue.dequeue().message() instanceof EntityMessage.Command);
+        CoalescingMailbox.Coalesced last = (CoalescingMailbox.Coalesced) queue.dequeue().message();
+        Assert.assertEquals(Entity.Value.text("f"), last.command.entity.value);
+        Assert.assertEquals(Entity.Value.text("d"), last.superseded.get(0).command.entity.value);
+        Assert.assertEquals(2, last.superseded.size());
+        Assert.assertFalse(queue.hasMessages());
+    }
+
+    @Test
+    public void hotKeyThroughput() {
+        int commands = 20_000;
+        long direct = hotKey(false, commands);
+        long superseded = CoalescingMailbox.Counters.get(actorSystem).superseded();
+        long coalescing = hotKey(true, commands);
+        superseded = CoalescingMailbox.Counters.get(actorSystem).superseded() - superseded;
+
+        System.out.printf("hot key %d set commands with info logging, default mailbox %dms, coalescing mailbox %dms, %d superseded%n",
+                commands, direct, coalescing, superseded);
+        Assert.assertTrue(superseded > 0);
+    }
+
+    /**
+     * Sends every command before reading any ack, then checks each ack arrives in order, traced, with a
+     * version that never goes back.
+     */
+    private static long hotKey(boolean coalescing, int commands) {
+        TestKit client = new TestKit(actorSystem);
+        ActorRef entity = actorSystem.actorOf(EntityActor.props(new TestKit(actorSystem).getRef(), new ShardLoad.Counters(HotKeys.create(actorSystem.settings().config())),
+                ConfigFactory.parseString("akka-cluster-openshift.entity-mailbox.coalescing = " + coalescing)
+                        .withFallback(actorSystem.settings().config())));
+
+        long start = System.nanoTime();
+        for (int i = 1; i <= commands; i++) {
+            entity.tell(set("value-" + i).traced(LatencyTrace.Trace.sent(System.nanoTime())), client.getRef());
+            if (i % 1000 == 0) {
+                entity.tell(new EntityMessage.Query(id), client.getRef());
+            }
+        }
+        long version = 0;
+        for (int i = 1; i <= commands; i++) {
+            EntityMessage.CommandAck commandAck = client.expectMsgClass(Duration.ofSeconds(30), EntityMessage.CommandAck.class);
+            Assert.assertTrue(commandAck.isApplied());
+            Assert.assertNotNull(commandAck.hops);
+            Assert.assertTrue(commandAck.version() >= version);
+            version = commandAck.version();
+            if (!commandAck.action.equals("superseded")) {
+                Assert.assertEquals(Entity.Value.text("value-" + i), commandAck.entity.value);
+            }
+            if (i % 1000 == 0) {
+                Assert.assertEquals(version, client.expectMsgClass(EntityMessage.QueryAck.class).entity.version);
+            }
+        }
+        Assert.assertTrue(coalescing ? version < commands : version == commands);
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+        actorSystem.stop(entity);
+        return elapsed;
+    }
+
+    private static EntityMessage.Command set(String value) {
+        return new EntityMessage.Command(new Entity(id, Entity.Value.text(value)));
+    }
+}
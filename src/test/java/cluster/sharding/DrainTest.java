@@ -0,0 +1,119 @@
+package cluster.sharding;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.cluster.sharding.ShardRegion;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.ConfigFactory;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import scala.collection.JavaConverters;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+public class DrainTest {
+    private static ActorSystem actorSystem;
+
+    @BeforeClass
+    public static void setup() {
+        actorSystem = ActorSystem.create("DrainTest", ConfigFactory.parseString(String.join("\n",
+                "akka.remote.netty.tcp.hostname = \"127.0.0.1\"",
+                "akka.remote.netty.tcp.port = 0",
+                "akka.loglevel = WARNING",
+                "akka.stdout-loglevel = WARNING",
+                "akka.extensions = []"
+        )).withFallback(ConfigFactory.load()));
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(actorSystem);
+    }
+
+    @Test
+    public void progressTimesEachPhase() {
+        Drain.Progress progress = new Drain.Progress();
+        Assert.assertFalse(progress.isStarted());
+
+        progress.start("test", 0);
+        progress.next("mailboxes", 5_000_000, false, 0);
+        progress.next("handoff", 15_000_000, true, 3);
+        Assert.assertEquals("handoff", progress.phase());
+        Assert.assertEquals(15, progress.elapsedMillis(15_000_000));
+        progress.next("leave", 45_000_000, false, 0);
+        progress.next(null, 50_000_000, false, 0);
+
+        Assert.assertTrue(progress.isFinished());
+        Assert.assertEquals("[intake 5ms, mailboxes 10ms timed out, 3 remaining, handoff 30ms, leave 5ms]", progress.phases().toString());
+        Map<String, Object> state = progress.state(60_000_000);
+        Assert.assertEquals(50L, state.get("elapsedMs"));
+        Assert.assertTrue(progress.toJson().contains("\"timedOut\" : true"));
+    }
+
+    /**
+     * This node never joined a cluster, so it is not removed and the leave phase times out.
+     */
+    @Test
+    public void drainStopsIntakeHandsOffAndLeaves() {
+        TestKit httpServer = new TestKit(actorSystem);
+        TestKit waiter = new TestKit(actorSystem);
+        ActorRef loadGenerator = actorSystem.actorOf(Props.create(LoadGenerator.class), "loadGenerator");
+        ActorRef shardRegion = actorSystem.actorOf(Props.create(Region.class), "region");
+        TestKit watcher = new TestKit(actorSystem);
+        watcher.watch(loadGenerator);
+        watcher.watch(shardRegion);
+        Drain drain = new Drain(Duration.ofSeconds(3), Duration.ofSeconds(3), Duration.ofMillis(300), Duration.ofMillis(20),
+                Arrays.asList("/user/loadGenerator", "/user/missing"));
+        Drain.Progress progress = new Drain.Progress();
+        ActorRef drainActor = actorSystem.actorOf(DrainActor.props(drain, progress, shardRegion, httpServer.getRef()));
+
+        drainActor.tell(new Drain.Start("test"), waiter.getRef());
+        Assert.assertSame(progress, httpServer.expectMsgClass(Drain.Draining.class).progress);
+        waiter.expectMsg(Duration.ofSeconds(5), akka.Done.getInstance());
+        watcher.expectTerminated(loadGenerator);
+        watcher.expectTerminated(shardRegion);
+
+        drainActor.tell(new Drain.Start("again"), waiter.getRef());
+        waiter.expectMsg(akka.Done.getInstance());
+
+        new TestKit(actorSystem).awaitAssert(Duration.ofSeconds(3), () -> {
+            Assert.assertTrue(progress.isFinished());
+            return null;
+        });
+        List<Drain.Phase> phases = progress.phases();
+        Assert.assertEquals(Arrays.asList("intake", "mailboxes", "handoff", "leave"),
+                phases.stream().map(phase -> phase.name).collect(Collectors.toList()));
+        Assert.assertEquals(Arrays.asList(false, false, false, true),
+                phases.stream().map(phase -> phase.timedOut).collect(Collectors.toList()));
+    }
+
+    static class LoadGenerator extends AbstractActor {
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(Drain.StopIntake.class, stopIntake -> getContext().stop(getSelf()))
+                    .build();
+        }
+    }
+
+    static class Region extends AbstractActor {
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(ShardRegion.getShardRegionStateInstance().getClass(), get -> getSender().tell(
+                            new ShardRegion.CurrentShardRegionState(JavaConverters.asScalaSetConverter(
+                                    new HashSet<ShardRegion.ShardState>()).asScala().toSet()), getSelf()))
+                    .match(ShardRegion.gracefulShutdownInstance().getClass(), shutdown -> getContext().stop(getSelf()))
+                    .build();
+        }
+    }
+}
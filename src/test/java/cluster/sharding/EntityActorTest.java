@@ -0,0 +1,110 @@
+package cluster.sharding;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.ConfigFactory;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class EntityActorTest {
+    private static ActorSystem actorSystem;
+
+    @BeforeClass
+    public static void setup() {
+        actorSystem = ActorSystem.create("EntityActorTest", ConfigFactory.parseString(String.join("\n",
+                "akka.remote.netty.tcp.hostname = \"127.0.0.1\"",
+                "akka.remote.netty.tcp.port = 0",
+                "akka.loglevel = WARNING",
+                "akka.stdout-loglevel = WARNING",
+                "akka.extensions = []"
+        )).withFallback(ConfigFactory.load()));
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(actorSystem);
+    }
+
+    @Test
+    public void versionIncrementsWithEveryAppliedCommand() {
+        TestKit client = new TestKit(actorSystem);
+        ActorRef entity = entity();
+        Entity.Id id = Entity.NumericId.of(1);
+
+        entity.tell(new EntityMessage.Command(new Entity(id, Entity.Value.text("a"))), client.getRef());
+        entity.tell(new EntityMessage.Command(new Entity(id, Entity.Value.text("b"))), client.getRef());
+
+        EntityMessage.CommandAck initialize = client.expectMsgClass(EntityMessage.CommandAck.class);
+        EntityMessage.CommandAck update = client.expectMsgClass(EntityMessage.CommandAck.class);
+        Assert.assertEquals("initialize", initialize.action);
+        Assert.assertEquals(1, initialize.version());
+        Assert.assertEquals("update", update.action);
+        Assert.assertEquals(2, update.version());
+        Assert.assertEquals(Entity.Value.text("b"), update.entity.value);
+    }
+
+    @Test
+    public void compareAndSetAppliesOnlyAtTheExpectedVersion() {
+        TestKit client = new TestKit(actorSystem);
+        ActorRef entity = entity();
+        Entity.Id id = Entity.NumericId.of(2);
+
+        entity.tell(EntityMessage.Command.compareAndSet(id, Entity.Value.text("first"), 0), client.getRef());
+        entity.tell(EntityMessage.Command.compareAndSet(id, Entity.Value.text("stale"), 0), client.getRef());
+        entity.tell(EntityMessage.Command.compareAndSet(id, Entity.Value.text("second"), 1), client.getRef());
+
+        Assert.assertEquals("initialize", client.expectMsgClass(EntityMessage.CommandAck.class).action);
+        EntityMessage.CommandAck conflict = client.expectMsgClass(EntityMessage.CommandAck.class);
+        Assert.assertEquals("conflict", conflict.action);
+        Assert.assertFalse(conflict.isApplied());
+        Assert.assertEquals(1, conflict.version());
+        Assert.assertEquals(Entity.Value.text("first"), conflict.entity.value);
+        EntityMessage.CommandAck second = client.expectMsgClass(EntityMessage.CommandAck.class);
+        Assert.assertTrue(second.isApplied());
+        Assert.assertEquals(2, second.version());
+    }
+
+    @Test
+    public void pipelinedIncrementsNeedNoReads() {
+        TestKit client = new TestKit(actorSystem);
+        ActorRef entity = entity();
+        Entity.Id id = Entity.NumericId.of(3);
+
+        for (int i = 0; i < 10; i++) {
+            entity.tell(EntityMessage.Command.increment(id, 5), client.getRef());
+        }
+
+        EntityMessage.CommandAck last = null;
+        for (int i = 1; i <= 10; i++) {
+            last = client.expectMsgClass(EntityMessage.CommandAck.class);
+            Assert.assertEquals(i, last.version());
+        }
+        Assert.assertEquals(Entity.Value.number(50), last.entity.value);
+
+        entity.tell(new EntityMessage.Query(id), client.getRef());
+        Assert.assertEquals(10, client.expectMsgClass(EntityMessage.QueryAck.class).entity.version);
+    }
+
+    @Test
+    public void incrementOfTextIsRejected() {
+        TestKit client = new TestKit(actorSystem);
+        ActorRef entity = entity();
+        Entity.Id id = Entity.NumericId.of(4);
+
+        entity.tell(new EntityMessage.Command(new Entity(id, Entity.Value.text("text"))), client.getRef());
+        entity.tell(EntityMessage.Command.increment(id, 1), client.getRef());
+
+        client.expectMsgClass(EntityMessage.CommandAck.class);
+        EntityMessage.CommandAck rejected = client.expectMsgClass(EntityMessage.CommandAck.class);
+        Assert.assertEquals("rejected", rejected.action);
+        Assert.assertEquals(1, rejected.version());
+    }
+
+    private static ActorRef entity() {
+        TestKit httpServer = new TestKit(actorSystem);
+        return actorSystem.actorOf(EntityActor.props(httpServer.getRef(), new ShardLoad.Counters(HotKeys.create(actorSystem.settings().config()))));
+    }
+}
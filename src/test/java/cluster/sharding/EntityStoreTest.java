@@ -0,0 +1,307 @@
+package cluster.sharding;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.PoisonPill;
+import akka.actor.Props;
+import akka.testkit.javadsl.TestKit;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class EntityStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void entitiesSurviveReopening() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("entities.slots");
+        EntityStore store = EntityStore.open(file, 64, 100);
+        int text = store.write(-1, new Entity(new Entity.Id("text"), Entity.Value.text("h\u00e9llo"), 3));
+        int number = store.write(-1, new Entity(Entity.NumericId.of(42), Entity.Value.number(-7), 1));
+        Assert.assertEquals(text, store.write(text, new Entity(new Entity.Id("text"), Entity.Value.text("again"), 4)));
+        store.force();
+
+        EntityStore reopened = EntityStore.open(file, 64, 100);
+        Assert.assertEquals(2, reopened.size());
+        Assert.assertEquals(text, reopened.find("text"));
+        Assert.assertEquals(new Entity(new Entity.Id("text"), Entity.Value.text("again"), 4), reopened.read(text));
+        Assert.assertEquals(new Entity(new Entity.Id("42"), Entity.Value.number(-7), 1), reopened.read(reopened.find("42")));
+        Assert.assertEquals(number, reopened.find("42"));
+        Assert.assertEquals(-1, reopened.find("43"));
+    }
+
+    @Test
+    public void tornSlotsAreReusedAndOversizedEntitiesRejected() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("entities.slots");
+        EntityStore store = EntityStore.open(file, 64, 3);
+        store.write(-1, new Entity("a", "1"));
+        store.write(-1, new Entity("b", "2"));
+        store.write(-1, new Entity("c", "3"));
+        Assert.assertEquals(-1, store.write(-1, new Entity("d", "4")));
+        Assert.assertEquals(-1, store.write(store.find("a"), new Entity("a", String.join("", java.util.Collections.nCopies(50, "x")))));
+        store.force();
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file.toFile(), "rw")) {
+            randomAccessFile.seek(64 + 20);
+            randomAccessFile.write('x');
+        }
+
+        EntityStore reopened = EntityStore.open(file, 64, 3);
+        Assert.assertEquals(2, reopened.size());
+        Assert.assertEquals(-1, reopened.find("b"));
+        Assert.assertEquals(1, reopened.write(-1, new Entity("d", "4")));
+        Assert.assertEquals(1L, reopened.state().get("torn"));
+    }
+
+    @Test
+    public void removedEntitiesFreeTheirSlots() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("entities.slots");
+        EntityStore store = EntityStore.open(file, 64, 3);
+        for (String id : Arrays.asList("a", "b", "c")) {
+            store.write(-1, new Entity(id, id));
+        }
+        int b = store.find("b");
+
+        Assert.assertEquals(2, store.remove(id -> !id.equals("b")));
+        Assert.assertEquals(1, store.size());
+        Assert.assertEquals(-1, store.find("a"));
+        Assert.assertEquals(-1, store.find("c"));
+        Assert.assertEquals(b, store.find("b"));
+        Assert.assertTrue(store.write(-1, new Entity("d", "d")) >= 0);
+        Assert.assertTrue(store.write(-1, new Entity("e", "e")) >= 0);
+        store.force();
+
+        EntityStore reopened = EntityStore.open(file, 64, 3);
+        Assert.assertEquals(3, reopened.size());
+        Assert.assertEquals(-1, reopened.find("a"));
+        Assert.assertEquals(new Entity("b", "b"), reopened.read(reopened.find("b")));
+
+        EntityStore many = EntityStore.open(folder.getRoot().toPath().resolve("many.slots"), 64, 1000);
+        for (int i = 0; i < 1000; i++) {
+            many.write(-1, new Entity(Entity.NumericId.of(i), Entity.Value.number(i)));
+        }
+        Assert.assertEquals(500, many.remove(id -> Long.parseLong(id) % 2 == 0));
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(i % 2 == 0, many.find(String.valueOf(i)) < 0);
+        }
+    }
+
+    @Test
+    public void restartedEntityWarmsFromTheStore() throws IOException {
+        ActorSystem actorSystem = ActorSystem.create("EntityStoreTest", ConfigFactory.parseString(String.join("\n",
+                "akka.remote.netty.tcp.hostname = \"127.0.0.1\"",
+                "akka.remote.netty.tcp.port = 0",
+                "akka.loglevel = WARNING",
+                "akka.stdout-loglevel = WARNING",
+                "akka.extensions = []"
+        )).withFallback(ConfigFactory.load()));
+        try {
+            EntityStore store = EntityStore.open(folder.getRoot().toPath().resolve("entities.slots"), 128, 10);
+            TestKit client = new TestKit(actorSystem);
+            Entity.Id id = Entity.NumericId.of(7);
+            ActorRef entity = actorSystem.actorOf(EntityActor.props(new TestKit(actorSystem).getRef(), new ShardLoad.Counters(HotKeys.create(actorSystem.settings().config())), actorSystem.settings().config(), store));
+            entity.tell(new EntityMessage.Command(new Entity(id, Entity.Value.text("kept"))), client.getRef());
+            client.expectMsgClass(EntityMessage.CommandAck.class);
+            client.watch(entity);
+            entity.tell(PoisonPill.getInstance(), ActorRef.noSender());
+            client.expectTerminated(entity);
+
+            ActorRef restarted = actorSystem.actorOf(EntityActor.props(new TestKit(actorSystem).getRef(), new ShardLoad.Counters(HotKeys.create(actorSystem.settings().config())), actorSystem.settings().config(), store));
+            restarted.tell(new EntityMessage.Query(id), client.getRef());
+            EntityMessage.QueryAck queryAck = client.expectMsgClass(EntityMessage.QueryAck.class);
+            Assert.assertEquals(Entity.Value.text("kept"), queryAck.entity.value);
+            Assert.assertEquals(1, queryAck.entity.version);
+
+            String oversized = String.join("", java.util.Collections.nCopies(200, "x"));
+            restarted.tell(new EntityMessage.Command(new Entity(id, Entity.Value.text(oversized))), client.getRef());
+            Assert.assertEquals("rejected", client.expectMsgClass(EntityMessage.CommandAck.class).action);
+            restarted.tell(new EntityMessage.Command(new Entity(id, Entity.Value.text("again"))), client.getRef());
+            Assert.assertEquals(2, client.expectMsgClass(EntityMessage.CommandAck.class).version());
+            Assert.assertEquals(1, store.size());
+        } finally {
+            TestKit.shutdownActorSystem(actorSystem);
+        }
+    }
+
+    @Test
+    public void handedOffShardLeavesNoState() throws IOException {
+        ActorSystem actorSystem = ActorSystem.create("EntityStoreTest", ConfigFactory.parseString(String.join("\n",
+                "akka.remote.netty.tcp.hostname = \"127.0.0.1\"",
+                "akka.remote.netty.tcp.port = 0",
+                "akka.loglevel = WARNING",
+                "akka.stdout-loglevel = WARNING",
+                "akka.extensions = []"
+        )).withFallback(ConfigFactory.load()));
+        try {
+            EntityStore store = EntityStore.open(folder.getRoot().toPath().resolve("entities.slots"), 128, 10);
+            actorSystem.actorOf(EntityStoreActor.props(store), "entityStore");
+            TestKit client = new TestKit(actorSystem);
+            Entity.Id id = Entity.NumericId.of(7);
+            ActorRef shard = actorSystem.actorOf(Props.create(Shard.class, EntityActor.props(new TestKit(actorSystem).getRef(),
+                    new ShardLoad.Counters(HotKeys.create(actorSystem.settings().config())), actorSystem.settings().config(), store)));
+            shard.tell(new EntityMessage.Command(new Entity(id, Entity.Value.text("moved"))), client.getRef());
+            client.expectMsgClass(EntityMessage.CommandAck.class);
+            Assert.assertTrue(store.find(id.id) >= 0);
+
+            actorSystem.stop(shard);
+            client.awaitAssert(Duration.ofSeconds(3), () -> {
+                Assert.assertEquals(-1, store.find(id.id));
+                return null;
+            });
+        } finally {
+            TestKit.shutdownActorSystem(actorSystem);
+        }
+    }
+
+    /**
+     * Stands in for a shard, the parent of its entity, which stops when the shard is handed off.
+     */
+    static class Shard extends AbstractActor {
+        private final ActorRef entity;
+
+        Shard(Props entityProps) {
+            entity = getContext().actorOf(entityProps);
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .matchAny(message -> entity.forward(message, getContext()))
+                    .build();
+        }
+    }
+
+    /**
+     * One million resident entities with 200 character values, updated at random, held as entity objects on
+     * the heap or as slots in the store. The store's resident heap is its index and the slot numbers.
+     * Run with <code>mvn test -Dentity.store.benchmark=true -Dtest=EntityStoreTest</code>.
+     */
+    @Test
+    public void residentEntitiesBenchmark() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("entity.store.benchmark"));
+        int entities = 1_000_000;
+        int updates = 3_000_000;
+        char[] filler = new char[190];
+        Arrays.fill(filler, 'v');
+        String padding = new String(filler);
+
+        Entity[] heap = new Entity[entities];
+        Result onHeap = measure("heap", updates, () -> {
+            for (int e = 0; e < entities; e++) {
+                heap[e] = new Entity(new Entity.Id(String.valueOf(e)), Entity.Value.text(padding + e), 1);
+            }
+        }, () -> {
+            int e = ThreadLocalRandom.current().nextInt(entities);
+            heap[e] = heap[e].updated(Entity.Value.text(padding + e));
+        });
+        Arrays.fill(heap, null);
+
+        Path file = folder.getRoot().toPath().resolve("benchmark.slots");
+        EntityStore[] store = new EntityStore[1];
+        int[][] slots = new int[1][];
+        Result offHeap = measure("store", updates, () -> {
+            try {
+                store[0] = EntityStore.open(file, 256, entities);
+            } catch (IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+            slots[0] = new int[entities];
+            for (int e = 0; e < entities; e++) {
+                slots[0][e] = store[0].write(-1, new Entity(new Entity.Id(String.valueOf(e)), Entity.Value.text(padding + e), 1));
+            }
+        }, () -> {
+            int e = ThreadLocalRandom.current().nextInt(entities);
+            int slot = slots[0][e];
+            store[0].write(slot, store[0].read(slot).updated(Entity.Value.text(padding + e)));
+        });
+
+        System.out.println(onHeap);
+        System.out.println(offHeap);
+        Assert.assertEquals(entities, store[0].size());
+        Assert.assertTrue(offHeap.residentBytes * 4 < onHeap.residentBytes);
+    }
+
+    private static Result measure(String mode, int updates, Runnable load, Runnable update) {
+        long before = usedHeap();
+        load.run();
+        long resident = usedHeap() - before;
+
+        AtomicLong pauses = new AtomicLong();
+        AtomicLong pauseMillis = new AtomicLong();
+        AtomicLong maxPauseMillis = new AtomicLong();
+        NotificationListener listener = (notification, handback) -> {
+            if (notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                long duration = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData()).getGcInfo().getDuration();
+                pauses.incrementAndGet();
+                pauseMillis.addAndGet(duration);
+                maxPauseMillis.accumulateAndGet(duration, Math::max);
+            }
+        };
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter) gc).addNotificationListener(listener, null, null);
+        }
+        long start = System.nanoTime();
+        for (int u = 0; u < updates; u++) {
+            update.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            try {
+                ((NotificationEmitter) gc).removeNotificationListener(listener);
+            } catch (javax.management.ListenerNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return new Result(mode, resident, updates * 1e9 / elapsed, pauses.get(), pauseMillis.get(), maxPauseMillis.get());
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static class Result {
+        final String mode;
+        final long residentBytes;
+        final double updatesPerSecond;
+        final long gcs;
+        final long gcMillis;
+        final long maxGcMillis;
+
+        Result(String mode, long residentBytes, double updatesPerSecond, long gcs, long gcMillis, long maxGcMillis) {
+            this.mode = mode;
+            this.residentBytes = residentBytes;
+            this.updatesPerSecond = updatesPerSecond;
+            this.gcs = gcs;
+            this.gcMillis = gcMillis;
+            this.maxGcMillis = maxGcMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, resident heap %dMB, %.0f updates/s, %d gcs, %dms total, %dms max]",
+                    getClass().getSimpleName(), mode, residentBytes >> 20, updatesPerSecond, gcs, gcMillis, maxGcMillis);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package cluster.sharding;
+
+import akka.Done;
+import akka.actor.ActorSystem;
+import akka.http.javadsl.model.ws.BinaryMessage;
+import akka.http.javadsl.model.ws.Message;
+import akka.http.javadsl.model.ws.TextMessage;
+import akka.japi.Pair;
+import akka.stream.ActorMaterializer;
+import akka.stream.Attributes;
+import akka.stream.OverflowStrategy;
+import akka.stream.javadsl.Keep;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.SinkQueueWithCancel;
+import akka.stream.javadsl.Source;
+import akka.stream.javadsl.SourceQueueWithComplete;
+import akka.testkit.javadsl.TestKit;
+import akka.util.ByteString;
+import com.typesafe.config.ConfigFactory;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+public class EventStreamTest {
+    private static ActorSystem actorSystem;
+    private static ActorMaterializer materializer;
+
+    @BeforeClass
+    public static void setup() {
+        actorSystem = ActorSystem.create("EventStreamTest", ConfigFactory.parseString(String.join("\n",
+                "akka.remote.netty.tcp.hostname = \"127.0.0.1\"",
+                "akka.remote.netty.tcp.port = 0",
+                "akka.loglevel = WARNING",
+                "akka.stdout-loglevel = WARNING",
+                "akka.extensions = []"
+        )).withFallback(ConfigFactory.load()));
+        materializer = ActorMaterializer.create(actorSystem);
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(actorSystem);
+    }
+
+    @Test
+    public void slowClientGetsTheLatestSnapshotInsteadOfABacklog() throws Exception {
+        AtomicInteger built = new AtomicInteger();
+        Client client = connect(new EventStream(Duration.ofMillis(10), Duration.ofSeconds(30), 64, Duration.ofSeconds(1)),
+                null, text -> {
+                }, built);
+
+        for (int i = 0; i < 30; i++) {
+            client.send(TextMessage.create("request"));
+        }
+        Thread.sleep(200);
+        Assert.assertEquals(1, built.get());
+
+        Assert.assertEquals("snapshot-1", client.next());
+        Assert.assertEquals("snapshot-2", client.next());
+        Thread.sleep(200);
+        Assert.assertTrue(String.format("built %d", built.get()), built.get() <= 4);
+        Assert.assertEquals(built.get(), client.connection.frames());
+        Assert.assertEquals(30 - built.get(), client.connection.conflated());
+        client.close();
+    }
+
+    @Test
+    public void streamedOversizedAndBinaryMessagesAreReadToTheEnd() throws Exception {
+        List<String> texts = new CopyOnWriteArrayList<>();
+        Client client = connect(new EventStream(Duration.ofMillis(1), Duration.ofSeconds(30), 16, Duration.ofSeconds(1)),
+                null, texts::add, new AtomicInteger());
+
+        client.send(TextMessage.create(Source.from(Arrays.asList("akka.tcp://", "a@b:1"))));
+        Assert.assertEquals("snapshot-1", client.next());
+        client.send(TextMessage.create("this message is longer than sixteen characters"));
+        Assert.assertEquals("snapshot-2", client.next());
+        client.send(BinaryMessage.create(Source.from(Arrays.asList(ByteString.fromString("a"), ByteString.fromString("b")))));
+        Assert.assertEquals("snapshot-3", client.next());
+
+        Assert.assertEquals(Collections.singletonList("akka.tcp://a@b:1"), texts);
+        Map<String, Object> state = client.connection.state(System.nanoTime());
+        Assert.assertEquals(1L, state.get("oversizedMessages"));
+        Assert.assertEquals(1L, state.get("binaryMessages"));
+        client.close();
+    }
+
+    @Test
+    public void clientThatStopsReadingPushedFramesIsDisconnected() throws Exception {
+        EventStream eventStream = new EventStream(Duration.ofMillis(50), Duration.ofMillis(500), 64, Duration.ofSeconds(1));
+        Client client = connect(eventStream, Duration.ofMillis(10), text -> {
+        }, new AtomicInteger());
+
+        Assert.assertEquals("snapshot-1", client.next());
+        Assert.assertEquals("snapshot-2", client.next());
+        Assert.assertTrue(client.connection.lagNanos(System.nanoTime()) < TimeUnit.MILLISECONDS.toNanos(500));
+
+        new TestKit(actorSystem).awaitAssert(Duration.ofSeconds(5), () -> {
+            Assert.assertNull(eventStream.connections.connection(client.connection.id));
+            Assert.assertEquals(1L, eventStream.connections.state().get("closedSlow"));
+            return null;
+        });
+        client.close();
+    }
+
+    private static Client connect(EventStream eventStream, Duration pushInterval, Consumer<String> clientText, AtomicInteger built) {
+        EventStream.Connection connection = eventStream.connections.open("json", pushInterval);
+        Pair<SourceQueueWithComplete<Message>, SinkQueueWithCancel<Message>> queues = Source.<Message>queue(64, OverflowStrategy.fail())
+                .via(eventStream.flow(connection, clientText, () -> CompletableFuture.completedFuture(Done.getInstance()),
+                        () -> TextMessage.create("snapshot-" + built.incrementAndGet()), materializer))
+                .toMat(Sink.<Message>queue().withAttributes(Attributes.inputBuffer(1, 1)), Keep.both())
+                .run(materializer);
+        return new Client(queues.first(), queues.second(), connection);
+    }
+
+    static class Client {
+        final SourceQueueWithComplete<Message> in;
+        final SinkQueueWithCancel<Message> out;
+        final EventStream.Connection connection;
+
+        Client(SourceQueueWithComplete<Message> in, SinkQueueWithCancel<Message> out, EventStream.Connection connection) {
+            this.in = in;
+            this.out = out;
+            this.connection = connection;
+        }
+
+        void send(Message message) throws Exception {
+            in.offer(message).toCompletableFuture().get(1, TimeUnit.SECONDS);
+        }
+
+        String next() throws Exception {
+            return out.pull().toCompletableFuture().get(3, TimeUnit.SECONDS).get().asTextMessage().getStrictText();
+        }
+
+        void close() {
+            in.complete();
+            out.cancel();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package cluster.sharding;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+public class HotKeysTest {
+    private static final long second = TimeUnit.SECONDS.toNanos(1);
+    private static final String member1 = "akka.tcp://cluster@10.0.0.1:2552";
+    private static final String member2 = "akka.tcp://cluster@10.0.0.2:2552";
+
+    @Test
+    public void heavyHittersStandOutOfALargeKeySpace() {
+        HotKeys hotKeys = new HotKeys(1024, 4, 10, 60 * second, 10 * second, 0.05, 0);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < 300_000; i++) {
+            long key = i % 5 == 0 ? 1 + i % 3 : 100 + random.nextLong(1_000_000);
+            hotKeys.record(String.valueOf(key % 100), String.valueOf(key));
+        }
+
+        HotKeys.Report report = hotKeys.report(member1, 2 * second);
+        Assert.assertEquals(10, report.entities.size());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("1", "2", "3")), hotKeys.hot(report.entities));
+        Assert.assertEquals(0.067, report.entities.get(2).share, 0.005);
+        Assert.assertTrue(report.entities.get(3).share < 0.01);
+    }
+
+    @Test
+    public void countsDecaySoTheTopFollowsTraffic() {
+        HotKeys hotKeys = new HotKeys(1024, 4, 1, 10 * second, 10 * second, 0.05, 0);
+        for (int i = 0; i < 1000; i++) {
+            hotKeys.record("1", "old");
+        }
+        hotKeys.report(member1, 60 * second);
+        for (int i = 0; i < 100; i++) {
+            hotKeys.record("2", "new");
+        }
+
+        HotKeys.Report report = hotKeys.report(member1, 62 * second);
+        Assert.assertEquals("new", report.entities.get(0).id);
+        Assert.assertEquals("2", report.shards.get(0).id);
+    }
+
+    @Test
+    public void concurrentRecordsAreAllCounted() throws Exception {
+        HotKeys hotKeys = new HotKeys(1024, 4, 10, 10 * second, 10 * second, 0.05, 0);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    hotKeys.record(String.valueOf(i % 10), String.valueOf(i % 100));
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        HotKeys.Report report = hotKeys.report(member1, second);
+        Assert.assertEquals(40_000 * Math.log(2) / 10, report.rate, 1e-6);
+        Assert.assertEquals(0.1, report.shards.get(0).share, 1e-9);
+    }
+
+    @Test
+    public void clusterViewSumsFreshReports() {
+        HotKeys hotKeys = new HotKeys(1024, 4, 10, 60 * second, 10 * second, 0.05, 0);
+        hotKeys.update(new HotKeys.Report(member1, Collections.singletonList(new HotKeys.Hot("42", 30, 100)),
+                Collections.singletonList(new HotKeys.Hot("7", 60, 100)), 100), 0);
+        hotKeys.update(new HotKeys.Report(member2, Collections.singletonList(new HotKeys.Hot("42", 10, 300)),
+                Collections.singletonList(new HotKeys.Hot("8", 10, 300)), 300), 5 * second);
+
+        HotKeys.Report cluster = hotKeys.cluster(6 * second);
+        Assert.assertEquals(400, cluster.rate, 0.001);
+        Assert.assertEquals("42", cluster.entities.get(0).id);
+        Assert.assertEquals(40, cluster.entities.get(0).rate, 0.001);
+        Assert.assertEquals(0.1, cluster.entities.get(0).share, 0.001);
+        Assert.assertEquals(Collections.singleton("7"), hotKeys.hot(cluster.shards));
+
+        Assert.assertEquals(300, hotKeys.cluster(12 * second).rate, 0.001);
+    }
+}
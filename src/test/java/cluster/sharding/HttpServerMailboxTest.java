@@ -0,0 +1,72 @@
+package cluster.sharding;
+
+import akka.actor.ActorRef;
+import akka.dispatch.Envelope;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HttpServerMailboxTest {
+    private static final String member = "akka.tcp://cluster@10.0.0.1:2552";
+
+    @Test
+    public void controlMessagesGoFirst() {
+        HttpServerMailbox.Queue queue = new HttpServerMailbox.Queue(100, new HttpServerMailbox.Counters());
+
+        enqueue(queue, entity("1", "start", false));
+        enqueue(queue, "other");
+        enqueue(queue, new ClusterSingletonActor.Action(member, "start", false));
+        enqueue(queue, new HttpServerActor.StopNode(member));
+
+        Assert.assertTrue(queue.dequeue().message() instanceof HttpServerActor.StopNode);
+        Assert.assertEquals("other", queue.dequeue().message());
+        Assert.assertTrue(queue.dequeue().message() instanceof EntityMessage.Action);
+        Assert.assertTrue(queue.dequeue().message() instanceof ClusterSingletonActor.Action);
+        Assert.assertNull(queue.dequeue());
+    }
+
+    @Test
+    public void actionsForTheSameEntityAreConflated() {
+        HttpServerMailbox.Queue queue = new HttpServerMailbox.Queue(100, new HttpServerMailbox.Counters());
+
+        enqueue(queue, entity("1", "start", false));
+        enqueue(queue, entity("2", "start", false));
+        enqueue(queue, entity("1", "stop", false));
+
+        Assert.assertEquals(2, queue.numberOfMessages());
+        Assert.assertEquals("2", ((EntityMessage.Action) queue.dequeue().message()).entityId);
+        EntityMessage.Action latest = (EntityMessage.Action) queue.dequeue().message();
+        Assert.assertEquals("1", latest.entityId);
+        Assert.assertEquals("stop", latest.action);
+    }
+
+    @Test
+    public void overflowDropsForwardedActionsAndQueuesOneResync() {
+        HttpServerMailbox.Counters counters = new HttpServerMailbox.Counters();
+        HttpServerMailbox.Queue queue = new HttpServerMailbox.Queue(10, counters);
+
+        for (int i = 0; i < 50; i++) {
+            enqueue(queue, entity(String.valueOf(i), "start", false));
+        }
+        enqueue(queue, entity("local", "start", true));
+
+        Assert.assertEquals(40, counters.dropped());
+        Assert.assertEquals(12, queue.numberOfMessages());
+        Assert.assertTrue(queue.dequeue().message() instanceof HttpServerActor.Resync);
+
+        enqueue(queue, entity("late", "start", false));
+        Assert.assertTrue(queue.dequeue().message() instanceof HttpServerActor.Resync);
+        int remaining = 0;
+        while (queue.dequeue() != null) {
+            remaining++;
+        }
+        Assert.assertEquals(11, remaining);
+    }
+
+    private static EntityMessage.Action entity(String entityId, String action, boolean forward) {
+        return new EntityMessage.Action(member, "1", entityId, action, forward);
+    }
+
+    private static void enqueue(HttpServerMailbox.Queue queue, Object message) {
+        queue.enqueue(ActorRef.noSender(), new Envelope(message, ActorRef.noSender()));
+    }
+}
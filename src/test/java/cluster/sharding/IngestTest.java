@@ -0,0 +1,178 @@
+package cluster.sharding;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.japi.Pair;
+import akka.stream.ActorMaterializer;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.ConfigFactory;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class IngestTest {
+    private static ActorSystem actorSystem;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setup() {
+        actorSystem = ActorSystem.create("IngestTest", ConfigFactory.parseString(String.join("\n",
+                "akka.remote.netty.tcp.hostname = \"127.0.0.1\"",
+                "akka.remote.netty.tcp.port = 0",
+                "akka.loglevel = WARNING",
+                "akka.stdout-loglevel = WARNING",
+                "akka.extensions = []"
+        )).withFallback(ConfigFactory.load()));
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(actorSystem);
+    }
+
+    @Test
+    public void linesParseToEntities() throws IOException {
+        Assert.assertEquals(new Entity("a", "text"), Ingest.parseNdjson("{\"id\": \"a\", \"value\": \"text\"}"));
+        Assert.assertEquals(new Entity(new Entity.Id("7"), Entity.Value.number(42)), Ingest.parseNdjson("{\"id\": 7, \"value\": 42}"));
+        Assert.assertEquals(new Entity(new Entity.Id("b"), Entity.Value.number(-3)), Ingest.parseCsv("b,-3"));
+        Assert.assertEquals(new Entity("c", "say \"hi\", twice"), Ingest.parseCsv("c,\"say \"\"hi\"\", twice\""));
+        Assert.assertEquals(new Entity("d", "12a"), Ingest.parseCsv("d, 12a"));
+        try {
+            Ingest.parseNdjson("{\"id\": \"e\"}");
+            Assert.fail("Expected a missing value to be malformed");
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage().contains("value"));
+        }
+    }
+
+    @Test
+    public void outstandingCommandsAreBoundedByParallelismTimesBatchSize() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("entities.csv");
+        List<String> lines = new ArrayList<>(Arrays.asList("id,value", "", "no comma", "bad,\"rejected\""));
+        for (int i = 0; i < 100; i++) {
+            lines.add(String.format("%d,%d", i, i));
+        }
+        Files.write(file, lines);
+        ActorRef shardRegion = actorSystem.actorOf(Props.create(HeldShardRegion.class));
+
+        Ingest.Progress progress = ingest(2, 3).start(file, shardRegion, ActorMaterializer.create(actorSystem), actorSystem.log());
+        TestKit probe = new TestKit(actorSystem);
+        probe.awaitAssert(Duration.ofSeconds(3), () -> {
+            shardRegion.tell("held", probe.getRef());
+            Assert.assertEquals(6, (int) probe.expectMsgClass(Integer.class));
+            return null;
+        });
+        probe.expectNoMessage(Duration.ofMillis(200));
+        shardRegion.tell("held", probe.getRef());
+        Assert.assertEquals(6, (int) probe.expectMsgClass(Integer.class));
+
+        shardRegion.tell("release", ActorRef.noSender());
+        progress.completion().toCompletableFuture().get(5, TimeUnit.SECONDS);
+        Assert.assertEquals("completed", progress.state().get("status"));
+        Assert.assertEquals(104L, progress.state().get("lines"));
+        Assert.assertEquals(101L, progress.state().get("records"));
+        Assert.assertEquals(100L, progress.state().get("applied"));
+        Assert.assertEquals(1L, progress.state().get("rejected"));
+        Assert.assertEquals(1L, progress.state().get("malformed"));
+    }
+
+    @Test
+    public void filesOutsideTheIngestDirectoryAreRefused() {
+        Ingest ingest = ingest(1, 1);
+        Assert.assertTrue(ingest.file("data/entities.ndjson").endsWith(Paths.get("ingest", "data", "entities.ndjson")));
+        try {
+            ingest.file("../secrets.csv");
+            Assert.fail("Expected a path outside the ingest directory to be refused");
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage().contains("secrets.csv"));
+        }
+    }
+
+    /**
+     * Records per second loading 100,000 NDJSON records over 10,000 entities into a one node cluster, for a
+     * range of batches in flight and commands per batch. Run with <code>mvn test -Dingest.benchmark=true -Dtest=IngestTest</code>.
+     */
+    @Test
+    public void ingestBenchmark() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("ingest.benchmark"));
+        Path file = folder.getRoot().toPath().resolve("entities.ndjson");
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file))) {
+            for (int i = 0; i < 100_000; i++) {
+                writer.printf("{\"id\": %d, \"value\": \"value-%d\"}%n", i % 10_000, i);
+            }
+        }
+        try (ClusterHarness harness = new ClusterHarness(1)) {
+            ClusterHarness.Node node = harness.driver();
+            ActorMaterializer materializer = ActorMaterializer.create(node.actorSystem);
+            ingest(64, 1).start(file, node.shardRegion, materializer, node.actorSystem.log())
+                    .completion().toCompletableFuture().get(5, TimeUnit.MINUTES);
+
+            List<Pair<Integer, Integer>> settings = Arrays.asList(Pair.create(1, 1), Pair.create(4, 1), Pair.create(16, 1),
+                    Pair.create(64, 1), Pair.create(256, 1), Pair.create(4, 16), Pair.create(16, 16), Pair.create(4, 64),
+                    Pair.create(16, 64));
+            for (Pair<Integer, Integer> setting : settings) {
+                Ingest.Progress progress = ingest(setting.first(), setting.second())
+                        .start(file, node.shardRegion, materializer, node.actorSystem.log())
+                        .completion().toCompletableFuture().get(5, TimeUnit.MINUTES);
+                System.out.println(String.format("batches %3d, batch size %2d, in flight %4d, %6.0f records/s, %d applied",
+                        setting.first(), setting.second(), setting.first() * setting.second(), progress.recordsPerSecond(), progress.applied()));
+                Assert.assertEquals(100_000, progress.applied());
+            }
+        }
+    }
+
+    private static Ingest ingest(int parallelism, int batchSize) {
+        return new Ingest(Paths.get("ingest"), parallelism, batchSize, Duration.ofSeconds(5), 1024, Duration.ofMinutes(1));
+    }
+
+    /**
+     * Holds the commands it receives until released, then acks them and all later ones, rejecting entity "bad".
+     */
+    static class HeldShardRegion extends AbstractActor {
+        private final List<Pair<ActorRef, EntityMessage.Command>> held = new ArrayList<>();
+        private boolean released;
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(EntityMessage.Command.class, command -> {
+                        if (released) {
+                            ack(sender(), command);
+                        } else {
+                            held.add(Pair.create(sender(), command));
+                        }
+                    })
+                    .matchEquals("held", held -> sender().tell(this.held.size(), self()))
+                    .matchEquals("release", release -> {
+                        released = true;
+                        held.forEach(command -> ack(command.first(), command.second()));
+                        held.clear();
+                    })
+                    .build();
+        }
+
+        private void ack(ActorRef sender, EntityMessage.Command command) {
+            Entity entity = new Entity(command.entity.id, command.entity.value, 1);
+            sender.tell(new EntityMessage.CommandAck(command.entity.id.id.equals("bad") ? "rejected" : "initialize", entity), self());
+        }
+    }
+}
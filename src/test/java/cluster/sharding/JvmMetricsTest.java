@@ -0,0 +1,65 @@
+package cluster.sharding;
+
+import akka.actor.Address;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class JvmMetricsTest {
+    private static volatile byte[] garbage;
+
+    @Test
+    public void collectorSamplesHeapGcAndAllocation() {
+        JvmMetrics.Collector collector = new JvmMetrics(Duration.ofSeconds(5), 3).collector(System.nanoTime());
+        try {
+            for (int i = 0; i < 64; i++) {
+                garbage = new byte[1 << 20];
+            }
+            System.gc();
+            JvmMetrics.Sample sample = collector.sample(System.nanoTime());
+
+            Assert.assertTrue(sample.heapUsed > 0);
+            Assert.assertTrue(sample.heapCommitted >= sample.heapUsed);
+            Assert.assertTrue(sample.gcCount >= 1);
+            Assert.assertTrue(sample.allocatedPerSecond > 0);
+            Assert.assertTrue(sample.topThreads.containsKey(Thread.currentThread().getName()));
+            Assert.assertTrue(sample.topThreads.size() <= 3);
+
+            // The pause notification of the collection above may arrive after the first sample.
+            JvmMetrics.Sample next = collector.sample(System.nanoTime());
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+            while (next.maxPauseMillis > 0 && System.nanoTime() < deadline) {
+                next = collector.sample(System.nanoTime());
+            }
+            Assert.assertEquals(0, next.gcCount);
+            Assert.assertEquals(0, next.maxPauseMillis);
+        } finally {
+            collector.close();
+        }
+    }
+
+    @Test
+    public void metricsRelateHeapAndGcTimeToEntities() {
+        Address self = new Address("akka.tcp", "akka-cluster-openshift", "10.0.0.1", 2552);
+        String other = "akka.tcp://akka-cluster-openshift@10.0.0.2:2552";
+        MemberMetrics memberMetrics = new MemberMetrics(self, 1.0, 0.9, 0.7, 0.1);
+        memberMetrics.update(self.toString(), new JvmMetrics.Sample(1_000_000, 2_000_000, 4_000_000, 2, 50, 30, 100, Collections.emptyMap(), 5000));
+
+        Map<String, Object> state = memberMetrics.state(Collections.singletonMap(other, new int[]{2, 10}));
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> selfState = (Map<String, Object>) state.get(self.toString());
+        Assert.assertEquals(0, selfState.get("entities"));
+        Assert.assertNull(selfState.get("heapPerEntity"));
+        Assert.assertEquals(10.0, (double) selfState.get("gcMillisPerSecond"), 1e-9);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> otherState = (Map<String, Object>) state.get(other);
+        Assert.assertEquals(10, otherState.get("entities"));
+        Assert.assertFalse(otherState.containsKey("jvm"));
+        Assert.assertTrue(memberMetrics.toJson(Collections.emptyMap()).contains("\"gcMillisPerSecond\" : 10.0"));
+    }
+}
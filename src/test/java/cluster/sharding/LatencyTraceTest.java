@@ -0,0 +1,87 @@
+package cluster.sharding;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.NotSerializableException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+public class LatencyTraceTest {
+    private final EntityMessageSerializer serializer = new EntityMessageSerializer(new LatencyTrace());
+
+    @Test
+    public void traceTimesOnlyMeetTheClockTheyWereTakenOn() throws NotSerializableException {
+        EntityMessage.Command command = new EntityMessage.Command(new Entity(Entity.NumericId.of(5), Entity.Value.text("a")));
+        long sentNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(30);
+        byte[] untraced = serializer.toBinary(command);
+        byte[] traced = serializer.toBinary(command.traced(LatencyTrace.Trace.sent(sentNanos)));
+
+        Assert.assertArrayEquals(untraced, Arrays.copyOf(traced, untraced.length));
+        Assert.assertNull(((EntityMessage.Command) serializer.fromBinary(untraced, serializer.manifest(command))).trace);
+        long beforeReadNanos = System.nanoTime();
+        LatencyTrace.Trace arrived = ((EntityMessage.Command) serializer.fromBinary(traced, serializer.manifest(command))).trace;
+        Assert.assertEquals(sentNanos, arrived.sentNanos);
+        Assert.assertTrue(arrived.waitNanos >= TimeUnit.MILLISECONDS.toNanos(30));
+        Assert.assertTrue(arrived.localNanos >= beforeReadNanos);
+
+        LatencyTrace.Hops hops = arrived.atShard(arrived.localNanos + 1000).hops(arrived.localNanos + 3000, arrived.localNanos + 6000);
+        Assert.assertEquals(1000, hops.regionNanos);
+        Assert.assertEquals(2000, hops.mailboxNanos);
+        Assert.assertEquals(3000, hops.processingNanos);
+        EntityMessage.CommandAck ack = new EntityMessage.CommandAck("update", new Entity(Entity.NumericId.of(5), Entity.Value.text("a"), 2), hops);
+        EntityMessage.CommandAck received = (EntityMessage.CommandAck) serializer.fromBinary(serializer.toBinary(ack), serializer.manifest(ack));
+        Assert.assertEquals(arrived.waitNanos, received.hops.senderNanos);
+        Assert.assertEquals(3000, received.hops.processingNanos);
+    }
+
+    @Test
+    public void histogramPercentilesStayWithinABucket() {
+        LatencyTrace.Histogram histogram = new LatencyTrace.Histogram();
+        for (int micros = 1; micros <= 10_000; micros++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+        }
+        histogram.record(-5);
+
+        Assert.assertEquals(10_001, histogram.count());
+        Assert.assertEquals(5000, histogram.percentileMicros(0.5), 5000 * 0.125);
+        Assert.assertEquals(9900, histogram.percentileMicros(0.99), 9900 * 0.125);
+        Assert.assertEquals(10_000, histogram.percentileMicros(1));
+        Assert.assertEquals(0, histogram.percentileMicros(0.00001));
+    }
+
+    @Test
+    public void entityRepliesWithTheHopsOfATracedCommand() {
+        ActorSystem actorSystem = ActorSystem.create("LatencyTraceTest", ConfigFactory.parseString(String.join("\n",
+                "akka.remote.netty.tcp.hostname = \"127.0.0.1\"",
+                "akka.remote.netty.tcp.port = 0",
+                "akka.loglevel = WARNING",
+                "akka.stdout-loglevel = WARNING",
+                "akka.extensions = []"
+        )).withFallback(ConfigFactory.load()));
+        try {
+            TestKit client = new TestKit(actorSystem);
+            ActorRef entity = actorSystem.actorOf(EntityActor.props(new TestKit(actorSystem).getRef(), new ShardLoad.Counters(HotKeys.create(actorSystem.settings().config()))));
+            long sentNanos = System.nanoTime();
+            Object delivered = EntityMessage.messageExtractor().entityMessage(new EntityMessage.Command(
+                    new Entity(Entity.NumericId.of(9), Entity.Value.number(1))).traced(LatencyTrace.Trace.sent(sentNanos)));
+            entity.tell(delivered, client.getRef());
+
+            EntityMessage.CommandAck ack = client.expectMsgClass(EntityMessage.CommandAck.class);
+            LatencyTrace trace = new LatencyTrace();
+            trace.recordReply(ack, System.nanoTime());
+            Assert.assertEquals(sentNanos, ack.hops.sentNanos);
+            Assert.assertEquals(0, ack.hops.senderNanos);
+            Assert.assertTrue(ack.hops.regionNanos >= 0 && ack.hops.mailboxNanos >= 0 && ack.hops.processingNanos >= 0);
+            Assert.assertEquals(1, trace.histogram(LatencyTrace.Stage.total).count());
+            Assert.assertEquals(1, trace.histogram(LatencyTrace.Stage.network).count());
+            Assert.assertEquals(0, trace.histogram(LatencyTrace.Stage.serialization).count());
+        } finally {
+            TestKit.shutdownActorSystem(actorSystem);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package cluster.sharding;
+
+import akka.actor.Address;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+public class LoadAwareShardAllocationStrategyTest {
+    private static final int members = 5;
+    private static final int shards = 30;
+    private static final long roundNanos = TimeUnit.SECONDS.toNanos(10);
+    private static final ToDoubleFunction<String> idle = region -> 0;
+
+    private long now;
+
+    @Test
+    public void spreadsSkewedLoadBetterThanLeastShard() {
+        Simulation leastShard = simulate(false, 50);
+        Simulation loadAware = simulate(true, 50);
+
+        System.out.printf("max / mean node load, least shard %.2f, load aware %.2f%n", leastShard.maxToMean(), loadAware.maxToMean());
+        Assert.assertTrue(loadAware.maxToMean() < leastShard.maxToMean());
+        Assert.assertTrue(loadAware.maxToMean() < 1.35);
+    }
+
+    @Test
+    public void settlesWithoutOscillating() {
+        Simulation loadAware = simulate(true, 50);
+
+        Assert.assertEquals(0, loadAware.moves.get(loadAware.moves.size() - 1).intValue());
+        Assert.assertEquals(0, loadAware.moves.subList(40, 50).stream().mapToInt(Integer::intValue).sum());
+        Assert.assertTrue(loadAware.moves.stream().allMatch(moves -> moves <= 3));
+    }
+
+    @Test
+    public void limitsConcurrentMoves() {
+        ShardLoad.Table table = new ShardLoad.Table(0.1, Long.MAX_VALUE);
+        LoadAwareShardAllocationStrategy strategy = strategy(table);
+        Map<String, List<String>> allocations = new LinkedHashMap<>();
+        allocations.put("member1", new ArrayList<>(Arrays.asList("1", "2", "3", "4")));
+        allocations.put("member2", new ArrayList<>());
+        Arrays.asList("1", "2", "3", "4").forEach(shardId -> table.update(shardId, new ShardLoad(100, 0), now));
+
+        Assert.assertEquals(2, strategy.selectShardsToMove(allocations, Collections.emptySet(), idle).size());
+        Assert.assertTrue(strategy.selectShardsToMove(allocations, new HashSet<>(Arrays.asList("5", "6", "7")), idle).isEmpty());
+    }
+
+    @Test
+    public void balancesShardCountsWithoutLoadReports() {
+        LoadAwareShardAllocationStrategy strategy = strategy(new ShardLoad.Table(0.1, Long.MAX_VALUE));
+        Map<String, List<String>> allocations = new LinkedHashMap<>();
+        allocations.put("member1", new ArrayList<>(Arrays.asList("1", "2", "3", "4")));
+        allocations.put("member2", new ArrayList<>(Collections.singletonList("5")));
+
+        Assert.assertEquals("member2", strategy.selectRegion(allocations, idle));
+        Assert.assertEquals(1, strategy.selectShardsToMove(allocations, Collections.emptySet(), idle).size());
+    }
+
+    @Test
+    public void avoidsSaturatedMembers() {
+        ShardLoad.Table table = new ShardLoad.Table(0.1, Long.MAX_VALUE);
+        LoadAwareShardAllocationStrategy strategy = strategy(table);
+        Map<String, List<String>> allocations = new LinkedHashMap<>();
+        allocations.put("member1", new ArrayList<>(Arrays.asList("1", "2")));
+        allocations.put("member2", new ArrayList<>(Arrays.asList("3", "4")));
+        allocations.put("member3", new ArrayList<>());
+        Arrays.asList("1", "2", "3", "4").forEach(shardId -> table.update(shardId, new ShardLoad(10, 0), now));
+        Map<String, Double> pressures = new HashMap<>();
+        pressures.put("member1", 0.5);
+        pressures.put("member3", 0.95);
+
+        Assert.assertEquals("member2", strategy.selectRegion(allocations, region -> pressures.getOrDefault(region, 0.0)));
+        Assert.assertEquals("member3", strategy.selectRegion(allocations, idle));
+
+        Set<String> moves = strategy.selectShardsToMove(allocations, Collections.emptySet(), region -> pressures.getOrDefault(region, 0.0));
+        Assert.assertEquals(Collections.emptySet(), moves);
+
+        pressures.put("member3", 0.0);
+        moves = strategy.selectShardsToMove(allocations, Collections.emptySet(), region -> pressures.getOrDefault(region, 0.0));
+        Assert.assertTrue(allocations.get("member1").containsAll(moves));
+        Assert.assertFalse(moves.isEmpty());
+    }
+
+    private Simulation simulate(boolean reportLoads, int rounds) {
+        ShardLoad.Table table = new ShardLoad.Table(0.1, Long.MAX_VALUE);
+        LoadAwareShardAllocationStrategy strategy = strategy(table);
+        Simulation simulation = new Simulation();
+        for (int m = 1; m <= members; m++) {
+            simulation.allocations.put("member" + m, new ArrayList<>());
+        }
+
+        for (int s = 0; s < shards; s++) {
+            simulation.allocations.get(strategy.selectRegion(simulation.allocations, idle)).add(s + "");
+            report(table, reportLoads);
+        }
+
+        for (int round = 0; round < rounds; round++) {
+            report(table, reportLoads);
+            Set<String> moves = strategy.selectShardsToMove(simulation.allocations, Collections.emptySet(), idle);
+            for (String shardId : moves) {
+                simulation.allocations.values().forEach(hosted -> hosted.remove(shardId));
+                simulation.allocations.get(strategy.selectRegion(simulation.allocations, idle)).add(shardId);
+            }
+            simulation.moves.add(moves.size());
+            now += roundNanos;
+        }
+        return simulation;
+    }
+
+    private void report(ShardLoad.Table table, boolean reportLoads) {
+        if (reportLoads) {
+            for (int s = 0; s < shards; s++) {
+                table.update(s + "", new ShardLoad(load(s + ""), 0), now);
+            }
+        }
+    }
+
+    private LoadAwareShardAllocationStrategy strategy(ShardLoad.Table table) {
+        MemberMetrics memberMetrics = new MemberMetrics(new Address("akka.tcp", "test"), 1.0, 0.9, 0.7, 0.1);
+        return new LoadAwareShardAllocationStrategy(table, memberMetrics, 0.2, 2, 3, TimeUnit.SECONDS.toNanos(30), () -> now);
+    }
+
+    /**
+     * Zipf like skew, shard 0 is the hottest.
+     */
+    private static double load(String shardId) {
+        return 100.0 / (Integer.parseInt(shardId) + 1);
+    }
+
+    private static class Simulation {
+        final Map<String, List<String>> allocations = new LinkedHashMap<>();
+        final List<Integer> moves = new ArrayList<>();
+
+        double maxToMean() {
+            double[] loads = allocations.values().stream()
+                    .mapToDouble(hosted -> hosted.stream().mapToDouble(LoadAwareShardAllocationStrategyTest::load).sum())
+                    .toArray();
+            double mean = Arrays.stream(loads).sum() / loads.length;
+            return Arrays.stream(loads).max().orElse(0) / mean;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package cluster.sharding;
+
+import akka.actor.Address;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+
+public class MemberMetricsTest {
+    private final Address self = new Address("akka.tcp", "akka-cluster-openshift", "10.0.0.1", 2552);
+    private final Address other = new Address("akka.tcp", "akka-cluster-openshift", "10.0.0.2", 2552);
+    private final MemberMetrics memberMetrics = new MemberMetrics(self, 1.0, 0.9, 0.7, 0.1);
+
+    @Test
+    public void pressureIsHighestOfHeapCpuAndLoad() {
+        Assert.assertEquals(0.8, new MemberMetrics.Sample(0.3, null, 0.8, 4).pressure, 1e-9);
+        Assert.assertEquals(0.6, new MemberMetrics.Sample(0.6, 0.2, null, 4).pressure, 1e-9);
+        Assert.assertEquals(0.3, new MemberMetrics.Sample(0.3, null, null, 0).pressure, 1e-9);
+    }
+
+    @Test
+    public void localAddressMeansSelf() {
+        memberMetrics.update(self, new MemberMetrics.Sample(0.5, null, null, 4));
+
+        Assert.assertEquals(0.5, memberMetrics.pressure(new Address("akka", "akka-cluster-openshift")), 1e-9);
+        Assert.assertEquals(0, memberMetrics.pressure(other), 1e-9);
+    }
+
+    @Test
+    public void throttlesLinearlyAbovePressureThreshold() {
+        Assert.assertEquals(1, memberMetrics.throttle(), 1e-9);
+
+        memberMetrics.update(self, new MemberMetrics.Sample(0.7, null, null, 4));
+        Assert.assertEquals(1, memberMetrics.throttle(), 1e-9);
+
+        memberMetrics.update(self, new MemberMetrics.Sample(0.8, null, null, 4));
+        Assert.assertEquals(0.5, memberMetrics.throttle(), 1e-9);
+
+        memberMetrics.update(self, new MemberMetrics.Sample(0.8, null, 1.5, 4));
+        Assert.assertEquals(0.1, memberMetrics.throttle(), 1e-9);
+    }
+
+    @Test
+    public void samplesAreKeptUntilTheMemberIsRemoved() {
+        Saturation.Sample saturation = new Saturation.Sample(0.5, 0, Collections.emptyMap(), 0.5);
+        memberMetrics.update(other.toString(), saturation);
+
+        memberMetrics.update(Collections.emptyList());
+        Assert.assertSame(saturation, memberMetrics.saturation(other.toString()));
+
+        memberMetrics.remove(other.toString());
+        Assert.assertNull(memberMetrics.saturation(other.toString()));
+        Assert.assertTrue(memberMetrics.members().isEmpty());
+    }
+
+    @Test
+    public void throttleScalesGeneratorRates() {
+        RateController rateController = new RateController(30, 2, false, 0.1, false, 0, 1, 1, 0);
+
+        rateController.throttle(0.5, 0);
+
+        Assert.assertEquals(15, rateController.effectiveCommandRate(), 1e-9);
+        Assert.assertEquals(1.0, rateController.state().get("effectiveQueryRate"));
+    }
+}
@@ -0,0 +1,138 @@
+package cluster.sharding;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.pattern.Patterns;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.ConfigFactory;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class MultiQueryActorTest {
+    private static ActorSystem actorSystem;
+
+    @BeforeClass
+    public static void setup() {
+        actorSystem = ActorSystem.create("MultiQueryActorTest", ConfigFactory.parseString(String.join("\n",
+                "akka.remote.netty.tcp.hostname = \"127.0.0.1\"",
+                "akka.remote.netty.tcp.port = 0",
+                "akka.loglevel = ERROR",
+                "akka.stdout-loglevel = ERROR",
+                "akka.log-dead-letters = off",
+                "akka.extensions = []"
+        )).withFallback(ConfigFactory.load()));
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(actorSystem);
+    }
+
+    @Test
+    public void idsAreFoundNotFoundOrTimedOut() throws Exception {
+        ActorRef shardRegion = actorSystem.actorOf(Props.create(StubShardRegion.class));
+        List<Entity.Id> ids = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) {
+            ids.add(Entity.NumericId.of(i));
+        }
+        ids.addAll(Arrays.asList(new Entity.Id("missing"), new Entity.Id("slow"), Entity.NumericId.of(3)));
+
+        EntityMessage.MultiQueryAck ack = MultiQueryActor.query(actorSystem, shardRegion, ids, Duration.ofMillis(300))
+                .toCompletableFuture().get(3, TimeUnit.SECONDS);
+
+        Assert.assertEquals(20, ack.found.size());
+        Assert.assertEquals(Entity.Value.text("value-3"), ack.found.stream()
+                .filter(entity -> entity.id.id.equals("3")).findFirst().get().value);
+        Assert.assertEquals(Collections.singletonList(new Entity.Id("missing")), ack.notFound);
+        Assert.assertEquals(Collections.singletonList(new Entity.Id("slow")), ack.timedOut);
+        Assert.assertTrue(ack.shards > 1 && ack.shards <= 15);
+    }
+
+    @Test
+    public void replyIsImmediateWhenEveryEntityAnswered() throws Exception {
+        ActorRef shardRegion = actorSystem.actorOf(Props.create(StubShardRegion.class));
+        long start = System.nanoTime();
+
+        EntityMessage.MultiQueryAck ack = MultiQueryActor.query(actorSystem, shardRegion,
+                Arrays.asList(new Entity.Id("a"), new Entity.Id("missing")), Duration.ofSeconds(5))
+                .toCompletableFuture().get(3, TimeUnit.SECONDS);
+
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        Assert.assertEquals(1, ack.found.size());
+        Assert.assertEquals(1, ack.notFound.size());
+        Assert.assertTrue(ack.timedOut.isEmpty());
+    }
+
+    /**
+     * Latency reading 100 entities from a two node cluster, one query at a time versus one multi query. Entities
+     * of a shard that was rebalanced have lost their state and are not found, which costs the same round trip.
+     * Run with <code>mvn test -Dmulti.query.benchmark=true -Dtest=MultiQueryActorTest</code>.
+     */
+    @Test
+    public void multiQueryBenchmark() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("multi.query.benchmark"));
+        try (ClusterHarness harness = new ClusterHarness(2)) {
+            ClusterHarness.Node node = harness.driver();
+            List<Entity.Id> ids = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                Entity.Id id = Entity.NumericId.of(i);
+                ids.add(id);
+                Patterns.ask(node.shardRegion, new EntityMessage.Command(new Entity(id, Entity.Value.text("v"))), Duration.ofSeconds(10))
+                        .toCompletableFuture().get(10, TimeUnit.SECONDS);
+            }
+
+            int rounds = 30;
+            long[] sequential = new long[rounds];
+            long[] multi = new long[rounds];
+            for (int round = 0; round < rounds; round++) {
+                long start = System.nanoTime();
+                for (Entity.Id id : ids) {
+                    Patterns.ask(node.shardRegion, new EntityMessage.Query(id), Duration.ofSeconds(5))
+                            .toCompletableFuture().get(5, TimeUnit.SECONDS);
+                }
+                sequential[round] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                EntityMessage.MultiQueryAck ack = MultiQueryActor.query(node.actorSystem, node.shardRegion, ids, Duration.ofSeconds(5))
+                        .toCompletableFuture().get(10, TimeUnit.SECONDS);
+                multi[round] = System.nanoTime() - start;
+                Assert.assertEquals(100, ack.found.size() + ack.notFound.size());
+            }
+            Arrays.sort(sequential);
+            Arrays.sort(multi);
+            System.out.println(String.format("100 ids, sequential queries p50 %.1fms p90 %.1fms, multi query p50 %.1fms p90 %.1fms",
+                    sequential[rounds / 2] / 1e6, sequential[rounds * 9 / 10] / 1e6, multi[rounds / 2] / 1e6, multi[rounds * 9 / 10] / 1e6));
+            Assert.assertTrue(multi[rounds / 2] < sequential[rounds / 2]);
+        }
+    }
+
+    /**
+     * Replies value-&lt;id&gt; for every id except "missing", which is not found, and "slow", which never replies.
+     */
+    static class StubShardRegion extends AbstractActor {
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(EntityMessage.Query.class, query -> {
+                        if (query.id.id.equals("missing")) {
+                            sender().tell(new EntityMessage.QueryAckNotFound(query.id), self());
+                        } else if (!query.id.id.equals("slow")) {
+                            sender().tell(new EntityMessage.QueryAck(new Entity(query.id, Entity.Value.text("value-" + query.id.id), 1)), self());
+                        }
+                    })
+                    .build();
+        }
+    }
+}
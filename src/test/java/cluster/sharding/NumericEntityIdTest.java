@@ -0,0 +1,155 @@
+package cluster.sharding;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+
+public class NumericEntityIdTest {
+    private static final int iterations = 2_000_000;
+    private final EntityMessageSerializer serializer = new EntityMessageSerializer(new LatencyTrace());
+
+    @Test
+    public void numericAndStringIdsRouteToTheSameShard() {
+        for (long id = -1000; id <= 100_000; id++) {
+            EntityMessage.Query numeric = new EntityMessage.Query(Entity.NumericId.of(id));
+            EntityMessage.Query string = new EntityMessage.Query(new Entity.Id(String.valueOf(id)));
+
+            Assert.assertEquals(EntityMessage.extractShardIdFromCommands(string), EntityMessage.extractShardIdFromCommands(numeric));
+            Assert.assertEquals(EntityMessage.extractEntityIdFromCommands(string), EntityMessage.extractEntityIdFromCommands(numeric));
+        }
+    }
+
+    @Test
+    public void numericIdsEqualTheirStringIds() {
+        Assert.assertEquals(new Entity.Id("42"), Entity.NumericId.of(42));
+        Assert.assertEquals(Long.MIN_VALUE, Entity.NumericId.of(Long.MIN_VALUE).value);
+        Assert.assertEquals(String.valueOf(Long.MIN_VALUE), Entity.NumericId.of(Long.MIN_VALUE).id);
+    }
+
+    @Test
+    public void serializerRoundTrip() throws NotSerializableException {
+        Object[] messages = {
+                new EntityMessage.Command(new Entity(Entity.NumericId.of(7), Entity.Value.text("entityCommand-1"))),
+                new EntityMessage.CommandAck("update", new Entity(new Entity.Id("8"), Entity.Value.number(12345L), 3)),
+                EntityMessage.Command.compareAndSet(Entity.NumericId.of(7), Entity.Value.number(-5), 4),
+                EntityMessage.Command.increment(new Entity.Id("7"), 2),
+                new EntityMessage.Query(Entity.NumericId.of(9)),
+                new EntityMessage.Query(Entity.NumericId.of(Long.MIN_VALUE)),
+                new EntityMessage.Query(Entity.NumericId.of(Long.MAX_VALUE)),
+                new EntityMessage.QueryAck(new Entity(Entity.NumericId.of(10), null, 0)),
+                new EntityMessage.QueryAckNotFound(new Entity.Id("11"))
+        };
+        for (Object message : messages) {
+            Object decoded = serializer.fromBinary(serializer.toBinary(message), serializer.manifest(message));
+
+            Assert.assertEquals(message.getClass(), decoded.getClass());
+            Assert.assertEquals(message.toString(), decoded.toString());
+        }
+    }
+
+    @Test
+    public void remoteMessageSize() throws IOException {
+        EntityMessage.Command stringCommand = new EntityMessage.Command(new Entity(new Entity.Id("42"), Entity.Value.text("entityCommand-1")));
+        EntityMessage.Command numericCommand = new EntityMessage.Command(new Entity(Entity.NumericId.of(42), Entity.Value.text("entityCommand-1")));
+        EntityMessage.Query numericQuery = new EntityMessage.Query(Entity.NumericId.of(42));
+
+        int javaString = javaSerializedSize(stringCommand);
+        int javaNumeric = javaSerializedSize(numericCommand);
+        int compactString = serializer.toBinary(stringCommand).length;
+        int compactNumeric = serializer.toBinary(numericCommand).length;
+
+        System.out.printf("command bytes, java string id %d, java numeric id %d, compact string id %d, compact numeric id %d, compact numeric query %d%n",
+                javaString, javaNumeric, compactString, compactNumeric, serializer.toBinary(numericQuery).length);
+        Assert.assertTrue(compactNumeric * 10 < javaString);
+        Assert.assertTrue(compactNumeric < compactString);
+        Assert.assertEquals(2, serializer.toBinary(numericQuery).length);
+    }
+
+    @Test
+    public void routingCost() {
+        EntityMessage.Query[] numericQueries = new EntityMessage.Query[1024];
+        for (int i = 0; i < numericQueries.length; i++) {
+            numericQueries[i] = new EntityMessage.Query(Random.numericEntityId(1, 100));
+        }
+
+        for (int warmup = 0; warmup < 5; warmup++) {
+            routeStringIds();
+            routeNumericIds();
+            routePrebuilt(numericQueries);
+        }
+
+        Measurement string = measure(this::routeStringIds);
+        Measurement numeric = measure(this::routeNumericIds);
+        Measurement prebuilt = measure(() -> routePrebuilt(numericQueries));
+
+        System.out.printf("id + routing per message, string %s, numeric %s; routing only, numeric %s%n", string, numeric, prebuilt);
+        Assert.assertTrue(prebuilt.bytesPerOp < string.bytesPerOp);
+        Assert.assertTrue(prebuilt.bytesPerOp < 1);
+    }
+
+    private int routeStringIds() {
+        int hash = 0;
+        for (int i = 0; i < iterations; i++) {
+            EntityMessage.Query query = new EntityMessage.Query(Random.entityId(1, 100));
+            hash += EntityMessage.extractShardIdFromCommands(query).length() + EntityMessage.extractEntityIdFromCommands(query).length();
+        }
+        return hash;
+    }
+
+    private int routeNumericIds() {
+        int hash = 0;
+        for (int i = 0; i < iterations; i++) {
+            EntityMessage.Query query = new EntityMessage.Query(Random.numericEntityId(1, 100));
+            hash += EntityMessage.extractShardIdFromCommands(query).length() + EntityMessage.extractEntityIdFromCommands(query).length();
+        }
+        return hash;
+    }
+
+    private static int routePrebuilt(EntityMessage.Query[] queries) {
+        int hash = 0;
+        for (int i = 0; i < iterations; i++) {
+            EntityMessage.Query query = queries[i & (queries.length - 1)];
+            hash += EntityMessage.extractShardIdFromCommands(query).length() + EntityMessage.extractEntityIdFromCommands(query).length();
+        }
+        return hash;
+    }
+
+    private static Measurement measure(Runnable run) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        run.run();
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        return new Measurement((double) elapsed / iterations, (double) allocated / iterations);
+    }
+
+    private static int javaSerializedSize(Object message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(message);
+        }
+        return bytes.size();
+    }
+
+    private static class Measurement {
+        final double nanosPerOp;
+        final double bytesPerOp;
+
+        Measurement(double nanosPerOp, double bytesPerOp) {
+            this.nanosPerOp = nanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.1fns %.1fB/op", nanosPerOp, bytesPerOp);
+        }
+    }
+}
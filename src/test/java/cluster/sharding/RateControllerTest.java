@@ -0,0 +1,100 @@
+package cluster.sharding;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class RateControllerTest {
+    private static final long second = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void tokenBucketLimitsRate() {
+        TokenBucket bucket = new TokenBucket(100, 0.1, 0);
+
+        int acquired = 0;
+        for (long now = 0; now < 10 * second; now += TimeUnit.MILLISECONDS.toNanos(20)) {
+            while (bucket.tryAcquire(now)) {
+                acquired++;
+            }
+        }
+
+        Assert.assertEquals(1000, acquired, 5);
+    }
+
+    @Test
+    public void tokenBucketCapsBurstAfterIdle() {
+        TokenBucket bucket = new TokenBucket(100, 0.1, 0);
+
+        int acquired = 0;
+        while (bucket.tryAcquire(60 * second)) {
+            acquired++;
+        }
+
+        Assert.assertEquals(10, acquired);
+    }
+
+    @Test
+    public void commandRateIsSharedBetweenMembers() {
+        RateController rateController = rateController(30, false);
+
+        rateController.memberCount(3, 0);
+        Assert.assertEquals(10, rateController.effectiveCommandRate(), 0.001);
+
+        rateController.update(new RateController.Update(60.0, null, null, null), 0);
+        Assert.assertEquals(20, rateController.effectiveCommandRate(), 0.001);
+    }
+
+    @Test
+    public void closedLoopConvergesOnCapacity() {
+        RateController rateController = rateController(10, true);
+        double capacity = 500;
+        long now = 0;
+
+        for (int window = 0; window < 60; window++) {
+            double rate = rateController.commandRate();
+            long latency = rate <= capacity ? TimeUnit.MILLISECONDS.toNanos(5) : TimeUnit.MILLISECONDS.toNanos(500);
+            now = completeWindow(rateController, rate, latency, now);
+        }
+
+        Assert.assertTrue(rateController.maxRateMeetingTarget() <= capacity);
+        Assert.assertTrue(rateController.maxRateMeetingTarget() > capacity * 0.75);
+        System.out.println(rateController.toJson());
+    }
+
+    /**
+     * Generators capped by their in flight limit complete at most 200 commands per second, however fast they
+     * are allowed to send, so the rate stops rising there even though latency stays low.
+     */
+    @Test
+    public void closedLoopHoldsWhenTheGeneratorsCannotKeepUp() {
+        RateController rateController = rateController(10, true);
+        double completedPerSecond = 200;
+        long now = 0;
+
+        for (int window = 0; window < 60; window++) {
+            now = completeWindow(rateController, Math.min(rateController.commandRate(), completedPerSecond), TimeUnit.MILLISECONDS.toNanos(5), now);
+        }
+
+        Assert.assertTrue(rateController.maxRateMeetingTarget() <= completedPerSecond / 0.9);
+        Assert.assertTrue(rateController.commandRate() <= completedPerSecond / 0.9 * 1.25);
+        Assert.assertEquals(completedPerSecond, (double) rateController.state().get("achievedCommandRate"), 10);
+    }
+
+    /**
+     * Completes commands evenly over one five second adjust interval and returns the time at its end.
+     */
+    private static long completeWindow(RateController rateController, double rate, long latency, long now) {
+        int completed = (int) Math.round(rate * 5);
+        for (int sample = 0; sample < completed; sample++) {
+            now += 5 * second / completed;
+            rateController.recordCommandLatency(latency, now);
+        }
+        return now;
+    }
+
+    private static RateController rateController(double commandRate, boolean closedLoop) {
+        return new RateController(commandRate, 1, true, 0.1, closedLoop,
+                TimeUnit.MILLISECONDS.toNanos(100), 5 * second, 20, 0);
+    }
+}
@@ -0,0 +1,110 @@
+package cluster.sharding;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Props;
+import akka.cluster.Cluster;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.ConfigFactory;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+
+public class SaturationTest {
+    private static ActorSystem actorSystem;
+
+    @BeforeClass
+    public static void setup() {
+        actorSystem = ActorSystem.create("SaturationTest", ConfigFactory.parseString(String.join("\n",
+                "akka.remote.netty.tcp.hostname = \"127.0.0.1\"",
+                "akka.remote.netty.tcp.port = 0",
+                "akka.loglevel = WARNING",
+                "akka.stdout-loglevel = WARNING",
+                "akka.extensions = []"
+        )).withFallback(ConfigFactory.load()));
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(actorSystem);
+    }
+
+    @Test
+    public void levelIsHighestOfUtilizationQueueAndMailboxes() {
+        Assert.assertEquals(0.5, new Saturation.Sample(0.5, 100, Collections.singletonMap("a", 10), 1000, 1000).level, 1e-9);
+        Assert.assertEquals(0.8, new Saturation.Sample(0.5, 800, Collections.singletonMap("a", 10), 1000, 1000).level, 1e-9);
+        Assert.assertEquals(2.0, new Saturation.Sample(0.5, 800, Collections.singletonMap("a", 2000), 1000, 1000).level, 1e-9);
+        Assert.assertEquals(0, new Saturation.Sample(0, 0, Collections.emptyMap(), 1000, 1000).level, 1e-9);
+    }
+
+    @Test
+    public void samplerReadsTheDispatcherAndMailboxesOfLocalActors() {
+        CountDownLatch release = new CountDownLatch(1);
+        ActorRef blocked = actorSystem.actorOf(Props.create(BlockedActor.class, release), "blocked");
+        try {
+            for (int i = 0; i < 50; i++) {
+                blocked.tell(i, ActorRef.noSender());
+            }
+            Map<String, String> actors = new TreeMap<>();
+            actors.put("blocked", "/user/blocked");
+            actors.put("missing", "/user/missing");
+            Saturation saturation = new Saturation(Duration.ofMillis(100), Duration.ofSeconds(1), 1000, 10, actors);
+            ExtendedActorSystem system = (ExtendedActorSystem) actorSystem;
+            String address = system.provider().getDefaultAddress().toString();
+            Saturation.Sampler sampler = new Saturation.Sampler(saturation,
+                    Saturation.executor(actorSystem.dispatchers().defaultGlobalDispatcher()),
+                    path -> system.provider().resolveActorRef(address + path));
+
+            new TestKit(actorSystem).awaitAssert(Duration.ofSeconds(3), () -> {
+                sampler.sample();
+                Saturation.Sample sample = sampler.report();
+                Assert.assertEquals(Collections.singletonMap("blocked", 49), sample.mailboxes);
+                Assert.assertTrue(sample.utilization > 0);
+                Assert.assertEquals(4.9, sample.level, 1e-9);
+                return null;
+            });
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void reportsAreKeptPerMember() {
+        MemberMetrics memberMetrics = MemberMetrics.create(actorSystem.settings().config(), Cluster.get(actorSystem).selfAddress());
+        Saturation saturation = new Saturation(Duration.ofMillis(50), Duration.ofMillis(200), 1000, 1000,
+                Collections.singletonMap("httpServer", "/user/httpServer"));
+        actorSystem.actorOf(SaturationActor.props(memberMetrics, saturation));
+
+        new TestKit(actorSystem).awaitAssert(Duration.ofSeconds(3), () -> {
+            Saturation.Sample sample = memberMetrics.saturation(Cluster.get(actorSystem).selfAddress().toString());
+            Assert.assertNotNull(sample);
+            Assert.assertTrue(sample.mailboxes.isEmpty());
+            return null;
+        });
+        Assert.assertEquals(1, memberMetrics.saturation().size());
+    }
+
+    static class BlockedActor extends AbstractActor {
+        private final CountDownLatch release;
+
+        BlockedActor(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .matchAny(message -> release.await())
+                    .build();
+        }
+    }
+}
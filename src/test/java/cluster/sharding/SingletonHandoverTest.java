@@ -0,0 +1,65 @@
+package cluster.sharding;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SingletonHandoverTest {
+    private static final String first = "akka.tcp://cluster@10.0.0.1:2552";
+    private static final String second = "akka.tcp://cluster@10.0.0.2:2552";
+
+    @Test
+    public void leaveIsTimedFromStopToReady() {
+        SingletonHandover singletonHandover = running();
+
+        singletonHandover.located(second, 1000);
+        singletonHandover.stopped(first, 1010);
+        singletonHandover.started(second, 1040);
+        singletonHandover.started(second, 1045);
+        singletonHandover.ready(second, 1050);
+
+        SingletonHandover.Handover handover = singletonHandover.last();
+        Assert.assertEquals(first, handover.from);
+        Assert.assertEquals(second, handover.to);
+        Assert.assertEquals(Long.valueOf(30), handover.stopToStartMillis());
+        Assert.assertEquals(Long.valueOf(10), handover.startToReadyMillis());
+        Assert.assertEquals(Long.valueOf(40), handover.stopToReadyMillis());
+        Assert.assertEquals(Long.valueOf(50), handover.locatedToReadyMillis());
+        Assert.assertEquals(second, singletonHandover.running());
+    }
+
+    @Test
+    public void crashHasNoStop() {
+        SingletonHandover singletonHandover = running();
+
+        singletonHandover.located(second, 2000);
+        singletonHandover.started(second, 2300);
+        singletonHandover.ready(second, 2301);
+
+        SingletonHandover.Handover handover = singletonHandover.last();
+        Assert.assertNull(handover.stopToReadyMillis());
+        Assert.assertEquals(Long.valueOf(301), handover.locatedToReadyMillis());
+        Assert.assertTrue(singletonHandover.toJson().contains("\"handovers\" : 1"));
+    }
+
+    @Test
+    public void startSeenBeforeTheMembershipChange() {
+        SingletonHandover singletonHandover = running();
+
+        singletonHandover.started(second, 3000);
+        singletonHandover.ready(second, 3001);
+        singletonHandover.located(second, 3100);
+
+        Assert.assertEquals(first, singletonHandover.last().from);
+        Assert.assertEquals(Long.valueOf(1), singletonHandover.last().startToReadyMillis());
+        Assert.assertTrue(singletonHandover.toJson().contains("\"inProgress\" : null"));
+    }
+
+    private static SingletonHandover running() {
+        SingletonHandover singletonHandover = new SingletonHandover();
+        singletonHandover.located(first, 0);
+        singletonHandover.started(first, 10);
+        singletonHandover.ready(first, 20);
+        Assert.assertNull(singletonHandover.last());
+        return singletonHandover;
+    }
+}
@@ -0,0 +1,24 @@
+package cluster.sharding;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class StartupTimerTest {
+    @Test
+    public void phasesAreRecordedInOrderOnce() {
+        StartupTimer startupTimer = new StartupTimer(System.currentTimeMillis() - 1000);
+
+        long actorSystem = startupTimer.mark("actorSystem");
+        startupTimer.mark("memberUp");
+        Assert.assertEquals(actorSystem, startupTimer.mark("actorSystem"));
+
+        Assert.assertTrue(actorSystem >= 1000);
+        Assert.assertTrue(startupTimer.isMarked("memberUp"));
+        Assert.assertFalse(startupTimer.isMarked("httpBound"));
+        Assert.assertEquals(Arrays.asList("jvmStart", "actorSystem", "memberUp"), new ArrayList<>(startupTimer.phases().keySet()));
+        System.out.println(startupTimer.toJson());
+    }
+}
@@ -0,0 +1,148 @@
+package cluster.sharding;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class TopologyTest {
+    private static final String member1 = "akka.tcp://cluster@10.0.0.1:2552";
+    private static final String member2 = "akka.tcp://cluster@10.0.0.2:2552";
+
+    @Test
+    public void entitiesMoveAndAreRemovedOnlyWhereTheyAre() {
+        Topology topology = new Topology();
+        topology.add(member1, "1", "42");
+        topology.add(member1, "2", "entity-a");
+        topology.add(member2, "1", "42");
+        topology.remove(member1, "1", "42");
+
+        Assert.assertEquals(2, topology.size());
+        HttpServerActor.Tree tree = topology.toTree(member -> null);
+        Assert.assertEquals(2, tree.children.size());
+        Assert.assertNotNull(tree.find("42", "entity"));
+        Assert.assertNotNull(tree.find(member2, "member").find("42", "entity"));
+
+        topology.remove(member2, "1", "42");
+        Assert.assertNull(topology.toTree(member -> null).find("42", "entity"));
+    }
+
+    @Test
+    public void memberCountsShardsAndEntities() {
+        Topology topology = new Topology();
+        topology.add(member1, "1", "a");
+        topology.add(member1, "1", "b");
+        topology.add(member1, "2", "c");
+        topology.add(member2, "3", "d");
+
+        Map<String, int[]> counts = topology.memberCounts();
+
+        Assert.assertArrayEquals(new int[]{2, 3}, counts.get(member1));
+        Assert.assertArrayEquals(new int[]{1, 1}, counts.get(member2));
+    }
+
+    @Test
+    public void idsRenderUnchanged() {
+        Topology topology = new Topology();
+        String[] ids = {"0", "-1", "007", "-0", "9223372036854775807", "-9223372036854775808", "9223372036854775808", "", "x"};
+        for (String id : ids) {
+            topology.add(member1, "1", id);
+        }
+
+        HttpServerActor.Tree tree = topology.toTree(member -> null);
+        Assert.assertEquals(ids.length, topology.size());
+        for (String id : ids) {
+            Assert.assertNotNull(id, tree.find(id, "entity"));
+        }
+        Assert.assertFalse(Topology.isCanonicalLong("007"));
+        Assert.assertTrue(Topology.isCanonicalLong("-9223372036854775808"));
+    }
+
+    @Test
+    public void replaceAndRetainMembersKeepTypes() {
+        Topology topology = new Topology();
+        topology.add(member1, "1", "1");
+        topology.add(member1, "2", "2");
+        topology.add(member2, "1", "3");
+        topology.setMemberType(member1, "singleton");
+        Map<String, List<String>> shards = new HashMap<>();
+        shards.put("3", Arrays.asList("4", "5"));
+
+        topology.replaceMember(member1, shards);
+
+        HttpServerActor.Tree member = topology.toTree(m -> null).find(member1, "member");
+        Assert.assertTrue(member.type.contains("singleton"));
+        Assert.assertEquals(1, member.children.size());
+        Assert.assertEquals(2, member.leafCount());
+
+        topology.retainMembers(Collections.singleton(member2));
+        Assert.assertEquals(1, topology.size());
+        Assert.assertNull(topology.toTree(m -> null).find(member1, "member"));
+    }
+
+    @Test
+    public void churnMatchesAHashMap() {
+        Topology topology = new Topology(16);
+        Map<String, String> expected = new HashMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 200_000; i++) {
+            String id = random.nextBoolean() ? String.valueOf(random.nextInt(5000)) : "e" + random.nextInt(5000);
+            String member = random.nextBoolean() ? member1 : member2;
+            String shard = String.valueOf(random.nextInt(15));
+            if (random.nextInt(3) == 0) {
+                topology.remove(member, shard, id);
+                expected.remove(id, member + "/" + shard);
+            } else {
+                topology.add(member, shard, id);
+                topology.incrementEvents(member, shard, id);
+                expected.put(id, member + "/" + shard);
+            }
+        }
+
+        Assert.assertEquals(expected.size(), topology.size());
+        HttpServerActor.Tree tree = topology.toTree(m -> null);
+        Assert.assertEquals(expected.size(), tree.leafCount());
+        Assert.assertEquals(topology.eventsCount(), tree.eventsCount());
+        Map<String, String> rendered = new HashMap<>();
+        tree.children.forEach(member -> member.children.forEach(shard -> shard.children.forEach(entity ->
+                rendered.put(entity.name, member.name + "/" + shard.name))));
+        Assert.assertEquals(expected, rendered);
+    }
+
+    @Test
+    public void heapFootprint() {
+        for (int entities : new int[]{100_000, 1_000_000}) {
+            long before = usedHeap();
+            Topology topology = new Topology();
+            for (int e = 1; e <= entities; e++) {
+                topology.add(e % 3 == 0 ? member1 : member2, String.valueOf(e % 15), String.valueOf(e));
+            }
+            long compact = usedHeap() - before;
+
+            long rendering = System.nanoTime();
+            HttpServerActor.Tree tree = topology.toTree(member -> null);
+            rendering = System.nanoTime() - rendering;
+            long withTree = usedHeap() - before;
+
+            System.out.printf("%d entities, compact topology %d bytes (%.0fB/entity), tree %d bytes (%.0fB/entity), render %dms%n",
+                    entities, compact, (double) compact / entities, withTree - compact, (double) (withTree - compact) / entities,
+                    rendering / 1_000_000);
+            Assert.assertEquals(entities, tree.leafCount());
+            Assert.assertEquals(entities, topology.size());
+            Assert.assertTrue(compact * 2 < withTree - compact);
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,103 @@
+package cluster.sharding;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class TreeCodecTest {
+    @Test
+    public void compactJsonRoundTrip() throws IOException {
+        HttpServerActor.Tree tree = testTree(3, 5, 20);
+        tree.incrementEvents("akka.tcp://akka-cluster-openshift@10.0.0.1:2552", "1", "7");
+
+        HttpServerActor.Tree decoded = TreeCodec.fromCompactJson(TreeCodec.toCompactJson(tree));
+
+        Assert.assertEquals(tree.toJson(), decoded.toJson());
+    }
+
+    @Test
+    public void cborRoundTrip() throws IOException {
+        HttpServerActor.Tree tree = testTree(3, 5, 20);
+        tree.setMemberType("akka.tcp://akka-cluster-openshift@10.0.0.2:2552", "singleton");
+
+        HttpServerActor.Tree decoded = TreeCodec.fromCbor(TreeCodec.toCbor(tree));
+
+        Assert.assertEquals(tree.toJson(), decoded.toJson());
+    }
+
+    @Test
+    public void memberMetricsRoundTrip() throws IOException {
+        HttpServerActor.Tree tree = testTree(2, 2, 4);
+        tree.children.get(0).metrics = new MemberMetrics.Sample(0.25, null, 0.5, 4);
+        tree.children.get(1).metrics = new MemberMetrics.Sample(0.75, 0.125, null, 8);
+
+        Assert.assertEquals(tree.toJson(), TreeCodec.fromCompactJson(TreeCodec.toCompactJson(tree)).toJson());
+        Assert.assertEquals(tree.toJson(), TreeCodec.fromCbor(TreeCodec.toCbor(tree)).toJson());
+    }
+
+    @Test
+    public void saturationRoundTrip() throws IOException {
+        HttpServerActor.Tree tree = testTree(2, 2, 4);
+        Map<String, Integer> mailboxes = new TreeMap<>();
+        mailboxes.put("httpServer", 3);
+        mailboxes.put("shardRegion", 250);
+        tree.children.get(0).saturation = new Saturation.Sample(0.5, 12, mailboxes, 1000, 1000);
+        tree.children.get(1).metrics = new MemberMetrics.Sample(0.75, 0.125, null, 8);
+        tree.children.get(1).saturation = new Saturation.Sample(1, 0, new TreeMap<>(), 1000, 1000);
+
+        Assert.assertEquals(tree.toJson(), TreeCodec.fromCompactJson(TreeCodec.toCompactJson(tree)).toJson());
+        Assert.assertEquals(tree.toJson(), TreeCodec.fromCbor(TreeCodec.toCbor(tree)).toJson());
+    }
+
+    @Test
+    public void jvmMetricsRoundTrip() throws IOException {
+        HttpServerActor.Tree tree = testTree(3, 3, 6);
+        Map<String, Long> topThreads = new LinkedHashMap<>();
+        topThreads.put("akka-cluster-openshift-akka.actor.default-dispatcher-3", 6_000_000_000L);
+        topThreads.put("main", 1024L);
+        tree.children.get(0).jvm = new JvmMetrics.Sample(300_000_000L, 400_000_000L, -1, 3, 42, 17, 6_500_000_000L, topThreads, 5000);
+        tree.children.get(1).saturation = new Saturation.Sample(0.25, 0, new TreeMap<>(), 1000, 1000);
+        tree.children.get(2).jvm = new JvmMetrics.Sample(1, 2, 3, 0, 0, 0, 0, new TreeMap<>(), 5000);
+
+        Assert.assertEquals(tree.toJson(), TreeCodec.fromCompactJson(TreeCodec.toCompactJson(tree)).toJson());
+        Assert.assertEquals(tree.toJson(), TreeCodec.fromCbor(TreeCodec.toCbor(tree)).toJson());
+    }
+
+    @Test
+    public void compactFormatsAreAnOrderOfMagnitudeSmaller() {
+        HttpServerActor.Tree tree = testTree(5, 15, 10000);
+
+        int json = tree.toJson().length();
+        int compact = TreeCodec.toCompactJson(tree).length();
+        int cbor = TreeCodec.toCbor(tree).length;
+
+        System.out.printf("json %d, compact %d, cbor %d bytes%n", json, compact, cbor);
+        Assert.assertTrue(compact * 10 < json);
+        Assert.assertTrue(cbor * 10 < json);
+    }
+
+    @Test
+    public void formatDefaultsToJson() {
+        Assert.assertEquals(TreeCodec.Format.cbor, TreeCodec.Format.of("CBOR"));
+        Assert.assertEquals(TreeCodec.Format.json, TreeCodec.Format.of("x"));
+    }
+
+    private static HttpServerActor.Tree testTree(int members, int shards, int entities) {
+        HttpServerActor.Tree tree = HttpServerActor.Tree.create("cluster", "cluster");
+        for (int m = 1; m <= members; m++) {
+            tree.children(HttpServerActor.Tree.create(String.format("akka.tcp://akka-cluster-openshift@10.0.0.%d:2552", m), "member"));
+        }
+        for (int s = 0; s < shards; s++) {
+            tree.children.get(s % members).children(HttpServerActor.Tree.create(s + "", "shard"));
+        }
+        for (int e = 1; e <= entities; e++) {
+            int s = e % shards;
+            tree.children.get(s % members).children.get(s / members).children(HttpServerActor.Tree.create(e + "", "entity"));
+        }
+        return tree;
+    }
+}
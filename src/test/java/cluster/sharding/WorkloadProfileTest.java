@@ -0,0 +1,83 @@
+package cluster.sharding;
+
+import com.typesafe.config.ConfigFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+public class WorkloadProfileTest {
+    private static final long second = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void defaultProfileKeepsUniformHundredKeys() {
+        WorkloadProfile workload = WorkloadProfile.create(ConfigFactory.load());
+        WorkloadProfile.Keys keys = workload.keys();
+
+        long[] counts = new long[101];
+        for (int i = 0; i < 100_000; i++) {
+            counts[(int) keys.next()]++;
+        }
+
+        Assert.assertEquals(0, counts[0]);
+        for (int key = 1; key <= 100; key++) {
+            Assert.assertEquals(1000, counts[key], 150);
+        }
+        Assert.assertSame(workload.entityId(42), workload.entityId(42));
+        Assert.assertEquals("42", workload.entityId(42).id);
+        Assert.assertNull(workload.rates(0));
+    }
+
+    @Test
+    public void skewedDistributionsFavorTheirHotKeys() {
+        WorkloadProfile.Keys zipfian = profile(1_000_000, WorkloadProfile.Distribution.zipfian).keys();
+        WorkloadProfile.Keys hotspot = profile(1_000_000, WorkloadProfile.Distribution.hotspot).keys();
+
+        int zipfianTop10 = 0;
+        int hotspotHot = 0;
+        int draws = 100_000;
+        for (int i = 0; i < draws; i++) {
+            long key = zipfian.next();
+            Assert.assertTrue(key >= 1 && key <= 1_000_000);
+            zipfianTop10 += key <= 10 ? 1 : 0;
+            hotspotHot += hotspot.next() <= 10_000 ? 1 : 0;
+        }
+
+        Assert.assertEquals(0.2, zipfianTop10 / (double) draws, 0.05);
+        Assert.assertEquals(0.9, hotspotHot / (double) draws, 0.01);
+    }
+
+    @Test
+    public void sequentialKeysCycle() {
+        WorkloadProfile.Keys keys = profile(3, WorkloadProfile.Distribution.sequential).keys();
+
+        long[] drawn = new long[7];
+        for (int i = 0; i < drawn.length; i++) {
+            drawn[i] = keys.next();
+        }
+
+        Assert.assertArrayEquals(new long[]{1, 2, 3, 1, 2, 3, 1}, drawn);
+    }
+
+    @Test
+    public void phasesRampAndHold() {
+        WorkloadProfile workload = new WorkloadProfile("ramp", 100, WorkloadProfile.Distribution.uniform, 0.99, 0.01, 0.9,
+                0.25, 8, false, Arrays.asList(
+                new WorkloadProfile.Phase(10 * second, 100, 0.25, true),
+                new WorkloadProfile.Phase(10 * second, 100, 0.5, false)));
+
+        Assert.assertEquals(37.5, workload.rates(5 * second).commandRate, 0.001);
+        Assert.assertEquals(12.5, workload.rates(5 * second).queryRate, 0.001);
+        Assert.assertEquals(50, workload.rates(15 * second).queryRate, 0.001);
+        Assert.assertEquals(50, workload.rates(60 * second).commandRate, 0.001);
+        Assert.assertEquals("label...", workload.value(new StringBuilder("label")));
+        Assert.assertEquals("a-longer", workload.value(new StringBuilder("a-longer-label")));
+    }
+
+    private static WorkloadProfile profile(long keySpace, WorkloadProfile.Distribution distribution) {
+        return new WorkloadProfile(distribution.name(), keySpace, distribution, 0.99, 0.01, 0.9, 0.05, 0, true,
+                Collections.emptyList());
+    }
+}